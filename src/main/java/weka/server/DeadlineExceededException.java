@@ -0,0 +1,71 @@
+/*******************************************************************************
+ * Pentaho Data Science
+ * <p/>
+ * Copyright (c) 2002-2020 Hitachi Vantara. All rights reserved.
+ * <p/>
+ * ******************************************************************************
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ * <p/>
+ ******************************************************************************/
+
+package weka.server;
+
+/**
+ * Thrown when a request's deadline passes before its processing is complete.
+ * Records how many rows of the request were left unprocessed so that the
+ * work saved by abandoning the request can be accounted for.
+ *
+ * @version : $
+ */
+public class DeadlineExceededException extends Exception {
+
+  private static final long serialVersionUID = 5281826469740366923L;
+
+  /** Where in processing the deadline was detected */
+  protected final String m_stage;
+
+  /** Number of rows left unprocessed (-1 if not known) */
+  protected final long m_rowsSkipped;
+
+  /**
+   * Constructor
+   *
+   * @param stage where in processing the deadline was detected
+   * @param rowsSkipped number of rows left unprocessed (-1 if not known)
+   */
+  public DeadlineExceededException(String stage, long rowsSkipped) {
+    super("Request deadline exceeded (" + stage + ")");
+    m_stage = stage;
+    m_rowsSkipped = rowsSkipped;
+  }
+
+  /**
+   * Get where in processing the deadline was detected
+   *
+   * @return the stage of processing
+   */
+  public String getStage() {
+    return m_stage;
+  }
+
+  /**
+   * Get the number of rows left unprocessed
+   *
+   * @return the number of rows left unprocessed, or -1 if not known
+   */
+  public long getRowsSkipped() {
+    return m_rowsSkipped;
+  }
+}
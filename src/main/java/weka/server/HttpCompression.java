@@ -0,0 +1,138 @@
+/*******************************************************************************
+ * Pentaho Data Science
+ * <p/>
+ * Copyright (c) 2002-2020 Hitachi Vantara. All rights reserved.
+ * <p/>
+ * ******************************************************************************
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ * <p/>
+ ******************************************************************************/
+
+package weka.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
+
+import weka.core.WekaException;
+
+/**
+ * Utilities for decoding compressed request bodies and negotiating
+ * compression of response bodies (gzip and deflate content-codings).
+ *
+ * @version : $
+ */
+public class HttpCompression {
+
+  public static final String GZIP = "gzip";
+  public static final String DEFLATE = "deflate";
+
+  /** Buffer size for the (de)compressing streams */
+  protected static final int BUFFER_SIZE = 64 * 1024;
+
+  /**
+   * Wrap a request body in a decompressing stream according to its
+   * Content-Encoding header
+   *
+   * @param contentEncoding the value of the Content-Encoding header (may be
+   *          null)
+   * @param body the raw request body
+   * @return a stream that yields the decoded body
+   * @throws Exception if the encoding is not supported
+   */
+  public static InputStream decode(String contentEncoding, InputStream body)
+    throws Exception {
+    if (contentEncoding == null) {
+      return body;
+    }
+    String encoding = contentEncoding.trim().toLowerCase();
+    if (encoding.length() == 0 || encoding.equals("identity")) {
+      return body;
+    }
+    if (encoding.equals(GZIP) || encoding.equals("x-gzip")) {
+      try {
+        return new GZIPInputStream(body, BUFFER_SIZE);
+      } catch (ZipException ex) {
+        throw new WekaException("Request body is not valid gzip data: "
+          + ex.getMessage());
+      }
+    }
+    if (encoding.equals(DEFLATE)) {
+      return new InflaterInputStream(body);
+    }
+    throw new WekaException(
+      "Unsupported Content-Encoding: " + contentEncoding);
+  }
+
+  /**
+   * Choose a response content-coding from an Accept-Encoding header. gzip is
+   * preferred over deflate. Codings with a q-value of zero are not chosen.
+   *
+   * @param acceptEncoding the value of the Accept-Encoding header (may be null)
+   * @return GZIP, DEFLATE or null if neither is acceptable
+   */
+  public static String negotiate(String acceptEncoding) {
+    if (acceptEncoding == null) {
+      return null;
+    }
+    boolean deflate = false;
+    for (String coding : acceptEncoding.split(",")) {
+      String[] parts = coding.trim().toLowerCase().split(";");
+      boolean rejected = false;
+      for (int i = 1; i < parts.length; i++) {
+        String param = parts[i].trim();
+        if (param.startsWith("q=")) {
+          try {
+            rejected = Double.parseDouble(param.substring(2).trim()) <= 0;
+          } catch (NumberFormatException ex) {
+            rejected = true;
+          }
+        }
+      }
+      if (rejected) {
+        continue;
+      }
+      String name = parts[0].trim();
+      if (name.equals(GZIP) || name.equals("x-gzip") || name.equals("*")) {
+        return GZIP;
+      }
+      if (name.equals(DEFLATE)) {
+        deflate = true;
+      }
+    }
+    return deflate ? DEFLATE : null;
+  }
+
+  /**
+   * Wrap a response stream in a compressing stream for the given coding
+   *
+   * @param coding GZIP or DEFLATE
+   * @param out the stream to write compressed data to
+   * @return the compressing stream
+   * @throws IOException if a problem occurs
+   */
+  public static OutputStream encode(String coding, OutputStream out)
+    throws IOException {
+    if (GZIP.equals(coding)) {
+      return new GZIPOutputStream(out, BUFFER_SIZE);
+    }
+    return new DeflaterOutputStream(out);
+  }
+}
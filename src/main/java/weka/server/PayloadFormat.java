@@ -0,0 +1,149 @@
+/*******************************************************************************
+ * Pentaho Data Science
+ * <p/>
+ * Copyright (c) 2002-2020 Hitachi Vantara. All rights reserved.
+ * <p/>
+ * ******************************************************************************
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ * <p/>
+ ******************************************************************************/
+
+package weka.server;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+
+import weka.server.dataprep.DefaultJsonInstancesDataPreparer;
+
+/**
+ * Encodings of the (pandas-split etc.) payloads exchanged with clients. All
+ * share the same structure; CBOR and Smile are binary Jackson formats in
+ * which numbers are written as raw IEEE doubles rather than decimal text.
+ * The format of a request body is given by its Content-Type and that of the
+ * response is negotiated from the Accept header.
+ *
+ * @version : $
+ */
+public enum PayloadFormat {
+
+  JSON("application/json"), CBOR("application/cbor"), SMILE(
+    "application/x-jackson-smile");
+
+  protected final String m_mediaType;
+
+  /** Factory for parsers and generators (created on first use) */
+  protected volatile JsonFactory m_factory;
+
+  PayloadFormat(String mediaType) {
+    m_mediaType = mediaType;
+  }
+
+  /**
+   * Get the media type of the format
+   *
+   * @return the media type
+   */
+  public String getMediaType() {
+    return m_mediaType;
+  }
+
+  /**
+   * Get the Jackson factory that reads and writes the format
+   *
+   * @return the factory
+   */
+  public JsonFactory getFactory() {
+    JsonFactory factory = m_factory;
+    if (factory == null) {
+      switch (this) {
+      case CBOR:
+        factory = new CBORFactory(DefaultJsonInstancesDataPreparer.MAPPER);
+        break;
+      case SMILE:
+        factory = new SmileFactory(DefaultJsonInstancesDataPreparer.MAPPER);
+        break;
+      default:
+        factory = DefaultJsonInstancesDataPreparer.MAPPER.getFactory();
+      }
+      m_factory = factory;
+    }
+    return factory;
+  }
+
+  /**
+   * Get the format for a Content-Type
+   *
+   * @param contentType the value of the Content-Type header (may be null)
+   * @return the format, JSON if the content type is not a binary format
+   */
+  public static PayloadFormat forContentType(String contentType) {
+    if (contentType != null) {
+      String mediaType = contentType.split(";")[0].trim();
+      for (PayloadFormat f : values()) {
+        if (f.m_mediaType.equalsIgnoreCase(mediaType)) {
+          return f;
+        }
+      }
+    }
+    return JSON;
+  }
+
+  /**
+   * Choose the format of a response from an Accept header. The supported
+   * format with the highest q value is chosen (the first listed if more than
+   * one has the same q value); JSON is used if none are acceptable or the
+   * header is absent.
+   *
+   * @param accept the value of the Accept header (may be null)
+   * @return the format to respond with
+   */
+  public static PayloadFormat negotiate(String accept) {
+    if (accept == null) {
+      return JSON;
+    }
+    PayloadFormat best = JSON;
+    double bestQ = 0;
+    for (String part : accept.split(",")) {
+      String[] params = part.split(";");
+      PayloadFormat f = null;
+      String mediaType = params[0].trim();
+      for (PayloadFormat candidate : values()) {
+        if (candidate.m_mediaType.equalsIgnoreCase(mediaType)) {
+          f = candidate;
+        }
+      }
+      if (f == null) {
+        continue;
+      }
+      double q = 1;
+      for (int i = 1; i < params.length; i++) {
+        String p = params[i].trim();
+        if (p.startsWith("q=")) {
+          try {
+            q = Double.parseDouble(p.substring(2));
+          } catch (NumberFormatException ex) {
+            q = 0;
+          }
+        }
+      }
+      if (q > bestQ) {
+        best = f;
+        bestQ = q;
+      }
+    }
+    return best;
+  }
+}
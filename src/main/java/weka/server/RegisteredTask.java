@@ -0,0 +1,464 @@
+/*******************************************************************************
+ * Pentaho Data Science
+ * <p/>
+ * Copyright (c) 2002-2020 Hitachi Vantara. All rights reserved.
+ * <p/>
+ * ******************************************************************************
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ * <p/>
+ ******************************************************************************/
+
+package weka.server;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import weka.server.drift.DriftMonitor;
+import weka.server.scorer.UpdateableScoringModelPool;
+import weka.server.scorer.WekaScoringModelPool;
+import weka.server.shm.ShmRingServer;
+
+/**
+ * A task that has been loaded into the WekaServerTaskRegistry: its taskid,
+ * configuration and pool, along with any per-task state that the transports
+ * serving it need to share.
+ *
+ * @version : $
+ */
+public class RegisteredTask {
+
+  /** The taskid (suffix of the wekaServer_&lt;taskid&gt;.props file) */
+  protected final String m_taskId;
+
+  /** Config for the task */
+  protected final TaskConfigUtils m_taskConfigUtils;
+
+  /** The pool serving the task */
+  protected final WekaServerTaskPool m_pool;
+
+  /** Minimum response size (in bytes) to compress, or -1 for never */
+  protected final int m_compressionMinSize;
+
+  /** True if every response should carry a Server-Timing header */
+  protected final boolean m_serverTiming;
+
+  /** Concurrency and queue limits for the task */
+  protected final TaskBulkhead m_bulkhead;
+
+  /** Request counters for the task */
+  protected final TaskMetrics m_metrics = new TaskMetrics();
+
+  /** Shared memory ring serving the task, if it configures one */
+  protected volatile ShmRingServer m_shmRing;
+
+  /** Set in m_inFlight once the task has been retired */
+  protected static final int RETIRED = Integer.MIN_VALUE;
+
+  /**
+   * Number of requests currently being processed (via invoke(), update(),
+   * getDriftStatistics() or enter() by a transport), with the RETIRED bit set
+   * once the task has been evicted or replaced in the registry
+   */
+  protected final AtomicInteger m_inFlight = new AtomicInteger();
+
+  /**
+   * Runs shutdown() once the last request finishes, for a task retired while
+   * in use
+   */
+  protected volatile Executor m_shutdownWhenIdle;
+
+  /** Time (System.currentTimeMillis()) the task was last invoked */
+  protected volatile long m_lastUsed = System.currentTimeMillis();
+
+  /** Number of pin()s not yet undone by unpin() */
+  protected final AtomicInteger m_pins = new AtomicInteger();
+
+  /**
+   * Constructor
+   *
+   * @param taskId the taskid
+   * @param taskConfigUtils the config for the task
+   * @param pool the pool serving the task
+   * @throws Exception if a problem occurs reading the config
+   */
+  public RegisteredTask(String taskId, TaskConfigUtils taskConfigUtils,
+    WekaServerTaskPool pool) throws Exception {
+    m_taskId = taskId;
+    m_taskConfigUtils = taskConfigUtils;
+    m_pool = pool;
+
+    int minSize = TaskConfigUtils.TASK_DEFAULT_COMPRESSION_MIN_SIZE;
+    String minSizeS = taskConfigUtils
+      .getTaskProperty(TaskConfigUtils.TASK_COMPRESSION_MIN_SIZE_KEY);
+    if (minSizeS != null && minSizeS.length() > 0) {
+      minSize = Integer.parseInt(minSizeS);
+    }
+    m_compressionMinSize = minSize;
+    m_serverTiming = "true".equalsIgnoreCase(taskConfigUtils
+      .getTaskProperty(TaskConfigUtils.TASK_SERVER_TIMING_KEY));
+    m_bulkhead = TaskBulkhead.fromConfig(taskConfigUtils);
+  }
+
+  /**
+   * Start the transports that the task configures for itself (currently
+   * just a shared memory ring). Called by the registry once the task is
+   * loaded.
+   *
+   * @throws Exception if a problem occurs
+   */
+  public void start() throws Exception {
+    ShmRingServer ring = ShmRingServer.fromConfig(this);
+    if (ring != null) {
+      m_shmRing = ring.start();
+    }
+  }
+
+  /**
+   * Stop the task's own transports and shut down its pool
+   */
+  public void shutdown() {
+    if (m_shmRing != null) {
+      m_shmRing.stop();
+      m_shmRing = null;
+    }
+    m_pool.shutdown();
+  }
+
+  /**
+   * Get the taskid
+   *
+   * @return the taskid
+   */
+  public String getTaskId() {
+    return m_taskId;
+  }
+
+  /**
+   * Get the config for the task
+   *
+   * @return the config for the task
+   */
+  public TaskConfigUtils getTaskConfigUtils() {
+    return m_taskConfigUtils;
+  }
+
+  /**
+   * Get the pool serving the task
+   *
+   * @return the pool
+   */
+  public WekaServerTaskPool getPool() {
+    return m_pool;
+  }
+
+  /**
+   * Get the bulkhead that limits concurrent execution of the task
+   *
+   * @return the bulkhead
+   */
+  public TaskBulkhead getBulkhead() {
+    return m_bulkhead;
+  }
+
+  /**
+   * Get the request counters for the task
+   *
+   * @return the metrics
+   */
+  public TaskMetrics getMetrics() {
+    return m_metrics;
+  }
+
+  /**
+   * Run the task on a payload: wait for the task's bulkhead, lease a task
+   * from the pool, process the payload and return the task to the pool. This
+   * is the in-process entry point that the transports (REST, unix socket)
+   * are layered on; they count requests and map failures to statuses.
+   *
+   * @param context the context of the request
+   * @param body the payload
+   * @param out the stream to write the result to
+   * @throws Exception if the request is rejected, its deadline passes or a
+   *           problem occurs processing it
+   */
+  public void invoke(RequestContext context, InputStream body,
+    OutputStream out) throws Exception {
+    if (!enter()) {
+      // evicted since the caller looked it up - use its replacement
+      WekaServerTaskRegistry.getReplacement(this).invoke(context, body, out);
+      return;
+    }
+    try {
+      process(context, body, out);
+    } finally {
+      exit();
+    }
+  }
+
+  /**
+   * Queue labelled data to update the task's model with. Like invoke(), this
+   * waits for the task's bulkhead and counts as a request in progress, so
+   * the task is not evicted while the update is being prepared.
+   *
+   * @param context the context of the request
+   * @param body the labelled data
+   * @return the number of labelled instances queued
+   * @throws Exception if the task does not accept updates, the update is
+   *           rejected or a problem occurs
+   */
+  public int update(RequestContext context, InputStream body)
+    throws Exception {
+    if (!(m_pool instanceof UpdateableScoringModelPool)) {
+      TaskConfigUtils.generateError(this,
+        "task " + m_taskId + " does not accept updates");
+    }
+    if (!enter()) {
+      return WekaServerTaskRegistry.getReplacement(this).update(context, body);
+    }
+    try {
+      m_bulkhead.acquire(context);
+      try {
+        return ((UpdateableScoringModelPool) m_pool).update(body, context);
+      } finally {
+        m_bulkhead.release();
+      }
+    } finally {
+      exit();
+    }
+  }
+
+  /**
+   * Get the statistics of the task's inputs and predictions, if it gathers
+   * them. Counts as a request in progress, so the task's pool is not shut
+   * down while they are read.
+   *
+   * @return the statistics, or null if the task does not gather them or has
+   *         been evicted
+   */
+  public Map<String, Object> getDriftStatistics() {
+    if (!(m_pool instanceof WekaScoringModelPool) || !enter()) {
+      return null;
+    }
+    try {
+      DriftMonitor monitor = ((WekaScoringModelPool) m_pool).getDriftMonitor();
+      return monitor != null ? monitor.getStatistics() : null;
+    } finally {
+      exit();
+    }
+  }
+
+  /**
+   * Count a request as in progress, unless the task has been retired. Used
+   * by invoke() and update(), and by transports that use the pool directly,
+   * so that the pool is not shut down under them; each successful enter()
+   * must be followed by an exit().
+   *
+   * @return false if the task has been retired (its replacement is
+   *         available from WekaServerTaskRegistry.getReplacement())
+   */
+  public boolean enter() {
+    int inFlight;
+    do {
+      inFlight = m_inFlight.get();
+      if (inFlight < 0) {
+        return false;
+      }
+    } while (!m_inFlight.compareAndSet(inFlight, inFlight + 1));
+    m_lastUsed = System.currentTimeMillis();
+    return true;
+  }
+
+  /**
+   * Count a request started with enter() as finished, shutting the task down
+   * if it was the last one in progress when the task was replaced
+   */
+  public void exit() {
+    if (m_inFlight.decrementAndGet() == RETIRED) {
+      Executor shutdown = m_shutdownWhenIdle;
+      if (shutdown != null) {
+        shutdown.execute(this::shutdown);
+      }
+    }
+  }
+
+  /**
+   * Process a payload once invoke() has checked the task is still live
+   */
+  protected void process(RequestContext context, InputStream body,
+    OutputStream out) throws Exception {
+    RequestTimings timings = context.getTimings();
+    long start = timings != null ? System.nanoTime() : 0;
+    m_bulkhead.acquire(context);
+    try {
+      if (timings != null) {
+        timings.record(RequestTimings.QUEUE, start);
+        start = System.nanoTime();
+      }
+      WekaServerTask task = m_pool.getTask(context);
+      if (timings != null) {
+        timings.record(RequestTimings.LEASE, start);
+      }
+      try {
+        task.processData(body, out);
+      } finally {
+        task.setRequestContext(null);
+        m_pool.releaseTask(task);
+      }
+    } finally {
+      m_bulkhead.release();
+    }
+  }
+
+  /**
+   * Get the time the task was last invoked
+   *
+   * @return the time of the last request (or of the task being loaded), in
+   *         milliseconds since the epoch
+   */
+  public long getLastUsed() {
+    return m_lastUsed;
+  }
+
+  /**
+   * Keep the task in the registry until a matching unpin(), e.g. because
+   * something holds on to it rather than looking the task up per request
+   *
+   * @return true if the task was pinned, false if it has already been
+   *         evicted (in which case there is nothing to unpin)
+   */
+  public boolean pin() {
+    m_pins.incrementAndGet();
+    if (m_inFlight.get() < 0) {
+      m_pins.decrementAndGet();
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Undo a successful pin(). The task can be evicted again once every pin
+   * has been undone.
+   */
+  public void unpin() {
+    m_pins.decrementAndGet();
+  }
+
+  /**
+   * Returns true if the task must never be evicted from the registry. Tasks
+   * serving a shared memory ring use their pool directly, and updateable
+   * tasks would lose whatever their model has learned since the last
+   * checkpoint, so both are always pinned.
+   *
+   * @return true if the task is pinned
+   */
+  public boolean isPinned() {
+    return m_pins.get() > 0 || m_shmRing != null
+      || m_pool instanceof UpdateableScoringModelPool;
+  }
+
+  /**
+   * Mark the task as evicted, if no request is being processed by it.
+   * Requests that arrive afterwards are passed on to whatever replaces it in
+   * the registry.
+   *
+   * @return true if the task was retired, false if it is in use
+   */
+  public boolean retire() {
+    if (isPinned() || !m_inFlight.compareAndSet(0, RETIRED)) {
+      return false;
+    }
+    if (m_pins.get() > 0) {
+      // pinned while being retired
+      m_inFlight.set(0);
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Mark the task as replaced in the registry, whether or not it is pinned
+   * or in use, and shut it down once the requests in progress have
+   * finished. Requests that arrive afterwards, and pinned users of the pool
+   * (which enter() the task for each use), are passed on to the
+   * replacement.
+   *
+   * @param shutdown runs the shutdown (which can block for a while)
+   */
+  public void retireAndShutdown(Executor shutdown) {
+    m_shutdownWhenIdle = shutdown;
+    int inFlight;
+    do {
+      inFlight = m_inFlight.get();
+      if (inFlight < 0) {
+        // already retired
+        return;
+      }
+    } while (!m_inFlight.compareAndSet(inFlight, inFlight | RETIRED));
+    if (inFlight == 0) {
+      shutdown.execute(this::shutdown);
+    }
+  }
+
+  /**
+   * Returns true once the task has been evicted or replaced in the registry
+   *
+   * @return true if the task is retired
+   */
+  public boolean isRetired() {
+    return m_inFlight.get() < 0;
+  }
+
+  /**
+   * Get a snapshot of the task's request counters and bulkhead state
+   *
+   * @return the current values of the task's metrics
+   */
+  public Map<String, Object> getMetricsSnapshot() {
+    Map<String, Object> result = m_metrics.snapshot();
+    result.put("bulkhead.waiting", (long) m_bulkhead.getWaiting());
+    result.put("bulkhead.rejected", m_bulkhead.getRejected());
+    result.put("bulkhead.timedOut", m_bulkhead.getTimedOut());
+    result.putAll(m_pool.getStatistics());
+    ShmRingServer ring = m_shmRing;
+    if (ring != null) {
+      result.putAll(ring.getStatistics());
+    }
+    return result;
+  }
+
+  /**
+   * Returns true if stage timings should be reported for every request,
+   * rather than just those that ask for them
+   *
+   * @return true if all responses should carry a Server-Timing header
+   */
+  public boolean isServerTiming() {
+    return m_serverTiming;
+  }
+
+  /**
+   * Get the minimum size of response (in bytes) that will be compressed if
+   * the client accepts a compressed encoding
+   *
+   * @return the minimum size to compress, or a negative value if responses
+   *         should never be compressed
+   */
+  public int getCompressionMinSize() {
+    return m_compressionMinSize;
+  }
+}
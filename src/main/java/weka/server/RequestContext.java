@@ -0,0 +1,240 @@
+/*******************************************************************************
+ * Pentaho Data Science
+ * <p/>
+ * Copyright (c) 2002-2020 Hitachi Vantara. All rights reserved.
+ * <p/>
+ * ******************************************************************************
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ * <p/>
+ ******************************************************************************/
+
+package weka.server;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-request state that travels with a task while it is leased to a
+ * request: the request's deadline, if it has one, the timings of the
+ * request's stages, if they were asked for, and any options that change how
+ * the request's payload is read or its result written.
+ *
+ * @version : $
+ */
+public class RequestContext {
+
+  /** Header giving the time (ms) the client will wait from sending */
+  public static final String TIMEOUT_HEADER = "X-Request-Timeout-Ms";
+
+  /** Header giving an absolute deadline in ms since the epoch */
+  public static final String DEADLINE_HEADER = "X-Request-Deadline";
+
+  /** Header giving the layout of a JSON payload (split, columns, records) */
+  public static final String ORIENT_HEADER = "X-Json-Orient";
+
+  /** Header selecting how predictions are output (see PredictionOutput) */
+  public static final String OUTPUT_HEADER = "X-Prediction-Output";
+
+  /** Deadline, in terms of System.nanoTime() */
+  protected long m_deadlineNanos;
+
+  /** True if the request has a deadline */
+  protected boolean m_hasDeadline;
+
+  /** Stage timings, or null if they have not been asked for */
+  protected RequestTimings m_timings;
+
+  /** Encoding of the request body */
+  protected PayloadFormat m_inputFormat = PayloadFormat.JSON;
+
+  /** Encoding to write the response in */
+  protected PayloadFormat m_outputFormat = PayloadFormat.JSON;
+
+  /** Request options (null until one is set) */
+  protected Map<String, String> m_options;
+
+  /**
+   * Create a context from the values of the timeout and deadline headers.
+   * If both are given, the earlier of the two applies.
+   *
+   * @param timeoutMs value of the timeout header (may be null)
+   * @param deadlineEpochMs value of the deadline header (may be null)
+   * @return a request context
+   * @throws weka.core.WekaException if a header value is not a number
+   */
+  public static RequestContext fromHeaders(String timeoutMs,
+    String deadlineEpochMs) throws Exception {
+    RequestContext context = new RequestContext();
+    try {
+      if (timeoutMs != null && timeoutMs.trim().length() > 0) {
+        context.setTimeoutMs(Long.parseLong(timeoutMs.trim()));
+      }
+      if (deadlineEpochMs != null && deadlineEpochMs.trim().length() > 0) {
+        context.setTimeoutMs(Long.parseLong(deadlineEpochMs.trim())
+          - System.currentTimeMillis());
+      }
+    } catch (NumberFormatException ex) {
+      TaskConfigUtils.generateError(RequestContext.class,
+        "Malformed request deadline: " + ex.getMessage());
+    }
+    return context;
+  }
+
+  /**
+   * Set the time remaining (from now) before the request's deadline. If the
+   * request already has an earlier deadline, it is kept.
+   *
+   * @param timeoutMs the time remaining in milliseconds
+   */
+  public void setTimeoutMs(long timeoutMs) {
+    // toNanos() saturates rather than overflowing; the cap keeps the sum and
+    // the differences between deadlines in range
+    long deadline = System.nanoTime()
+      + Math.min(TimeUnit.MILLISECONDS.toNanos(timeoutMs), Long.MAX_VALUE / 4);
+    if (!m_hasDeadline || deadline - m_deadlineNanos < 0) {
+      m_deadlineNanos = deadline;
+      m_hasDeadline = true;
+    }
+  }
+
+  /**
+   * Returns true if the request has a deadline
+   *
+   * @return true if the request has a deadline
+   */
+  public boolean hasDeadline() {
+    return m_hasDeadline;
+  }
+
+  /**
+   * Get the time remaining before the deadline
+   *
+   * @return the remaining time in milliseconds (zero or negative if the
+   *         deadline has passed, Long.MAX_VALUE if there is no deadline)
+   */
+  public long getRemainingMs() {
+    if (!m_hasDeadline) {
+      return Long.MAX_VALUE;
+    }
+    return (m_deadlineNanos - System.nanoTime()) / 1000000L;
+  }
+
+  /**
+   * Returns true if the request has a deadline that has passed
+   *
+   * @return true if the deadline has passed
+   */
+  public boolean isExpired() {
+    return m_hasDeadline && m_deadlineNanos - System.nanoTime() <= 0;
+  }
+
+  /**
+   * Set the encoding of the request body
+   *
+   * @param format the format of the request body
+   */
+  public void setInputFormat(PayloadFormat format) {
+    m_inputFormat = format;
+  }
+
+  /**
+   * Get the encoding of the request body
+   *
+   * @return the format of the request body
+   */
+  public PayloadFormat getInputFormat() {
+    return m_inputFormat;
+  }
+
+  /**
+   * Set the encoding to write the response in
+   *
+   * @param format the format of the response
+   */
+  public void setOutputFormat(PayloadFormat format) {
+    m_outputFormat = format;
+  }
+
+  /**
+   * Get the encoding to write the response in
+   *
+   * @return the format of the response
+   */
+  public PayloadFormat getOutputFormat() {
+    return m_outputFormat;
+  }
+
+  /**
+   * Set a request option
+   *
+   * @param name the name of the option
+   * @param value the value of the option (null or empty to leave unset)
+   */
+  public void setOption(String name, String value) {
+    if (value != null && value.length() > 0) {
+      if (m_options == null) {
+        m_options = new HashMap<>();
+      }
+      m_options.put(name, value);
+    }
+  }
+
+  /**
+   * Get a request option
+   *
+   * @param name the name of the option
+   * @return the value of the option, or null if it is not set
+   */
+  public String getOption(String name) {
+    return m_options != null ? m_options.get(name) : null;
+  }
+
+  /**
+   * Start recording stage timings for this request (if not already doing
+   * so)
+   *
+   * @return the timings
+   */
+  public RequestTimings enableTimings() {
+    if (m_timings == null) {
+      m_timings = new RequestTimings();
+    }
+    return m_timings;
+  }
+
+  /**
+   * Get the stage timings for this request
+   *
+   * @return the timings, or null if they are not being recorded
+   */
+  public RequestTimings getTimings() {
+    return m_timings;
+  }
+
+  /**
+   * Throw an exception if the deadline has passed
+   *
+   * @param stage where in processing the check is being made
+   * @param rowsRemaining rows still to be processed (-1 if not known)
+   * @throws DeadlineExceededException if the deadline has passed
+   */
+  public void checkDeadline(String stage, long rowsRemaining)
+    throws DeadlineExceededException {
+    if (isExpired()) {
+      throw new DeadlineExceededException(stage, rowsRemaining);
+    }
+  }
+}
@@ -0,0 +1,163 @@
+/*******************************************************************************
+ * Pentaho Data Science
+ * <p/>
+ * Copyright (c) 2002-2020 Hitachi Vantara. All rights reserved.
+ * <p/>
+ * ******************************************************************************
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ * <p/>
+ ******************************************************************************/
+
+package weka.server;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Time spent in each stage of processing a request, along with the number
+ * of rows and bytes processed. Only created for requests that ask for it
+ * (via the X-Server-Timing header or the weka.server.task.serverTiming task
+ * property), so code that records timings checks for null first and does
+ * no work otherwise. Stages that run in parallel (e.g. the models of a
+ * fan-out task) accumulate into the same stage.
+ *
+ * @version : $
+ */
+public class RequestTimings {
+
+  /** Request header that asks for a Server-Timing response header */
+  public static final String REQUEST_HEADER = "X-Server-Timing";
+
+  /** Response header carrying the timings */
+  public static final String RESPONSE_HEADER = "Server-Timing";
+
+  /** Waiting for the task's bulkhead */
+  public static final String QUEUE = "queue";
+
+  /** Leasing a task from the pool */
+  public static final String LEASE = "lease";
+
+  /** Converting the input to Instances (prepareInputData()) */
+  public static final String PREPARE = "prepare";
+
+  /** Mapping incoming Instances into the model's training header */
+  public static final String MAP = "map";
+
+  /** The model's distributionsForInstances() */
+  public static final String PREDICT = "predict";
+
+  /** Converting predictions to the response format */
+  public static final String SERIALISE = "serialise";
+
+  /** Wall-clock time of a pipelined request's concurrent stages */
+  public static final String PIPELINE = "pipeline";
+
+  /** Compressing the response */
+  public static final String COMPRESS = "compress";
+
+  /** Accumulated nanoseconds for each stage, in the order first seen */
+  protected final Map<String, Long> m_stageNanos = new LinkedHashMap<>();
+
+  /** System.nanoTime() at which the request was received */
+  protected final long m_startNanos = System.nanoTime();
+
+  protected long m_rows = -1;
+  protected long m_bytesIn = -1;
+  protected long m_bytesOut = -1;
+
+  /**
+   * Add the time since startNanos to a stage
+   *
+   * @param stage the stage
+   * @param startNanos the System.nanoTime() at which the stage started
+   */
+  public synchronized void record(String stage, long startNanos) {
+    m_stageNanos.merge(stage, System.nanoTime() - startNanos, Long::sum);
+  }
+
+  /**
+   * Set the number of rows processed
+   *
+   * @param rows the number of rows
+   */
+  public synchronized void setRows(long rows) {
+    m_rows = rows;
+  }
+
+  /**
+   * Set the size of the request body (as received)
+   *
+   * @param bytes the size in bytes
+   */
+  public synchronized void setBytesIn(long bytes) {
+    m_bytesIn = bytes;
+  }
+
+  /**
+   * Set the size of the response body (as sent)
+   *
+   * @param bytes the size in bytes
+   */
+  public synchronized void setBytesOut(long bytes) {
+    m_bytesOut = bytes;
+  }
+
+  /**
+   * Get the stage durations (in milliseconds, including a "total" since the
+   * request was received) and counts
+   *
+   * @return a map of the timings
+   */
+  public synchronized Map<String, Object> toMap() {
+    Map<String, Object> result = new LinkedHashMap<>();
+    for (Map.Entry<String, Long> e : m_stageNanos.entrySet()) {
+      result.put(e.getKey(), e.getValue() / 1e6);
+    }
+    result.put("total", (System.nanoTime() - m_startNanos) / 1e6);
+    if (m_rows >= 0) {
+      result.put("rows", m_rows);
+    }
+    if (m_bytesIn >= 0) {
+      result.put("bytesIn", m_bytesIn);
+    }
+    if (m_bytesOut >= 0) {
+      result.put("bytesOut", m_bytesOut);
+    }
+    return result;
+  }
+
+  /**
+   * Format the timings as the value of a Server-Timing header. Durations are
+   * reported as dur (milliseconds); counts as desc.
+   *
+   * @return the header value
+   */
+  public String toHeaderValue() {
+    StringBuilder b = new StringBuilder();
+    for (Map.Entry<String, Object> e : toMap().entrySet()) {
+      if (b.length() > 0) {
+        b.append(", ");
+      }
+      b.append(e.getKey());
+      if (e.getValue() instanceof Double) {
+        b.append(";dur=").append(String.format(Locale.ROOT, "%.3f", e.getValue()));
+      } else {
+        b.append(";desc=\"").append(e.getValue()).append('"');
+      }
+    }
+    return b.toString();
+  }
+}
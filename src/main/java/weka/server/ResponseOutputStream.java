@@ -0,0 +1,152 @@
+/*******************************************************************************
+ * Pentaho Data Science
+ * <p/>
+ * Copyright (c) 2002-2020 Hitachi Vantara. All rights reserved.
+ * <p/>
+ * ******************************************************************************
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ * <p/>
+ ******************************************************************************/
+
+package weka.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.DeflaterOutputStream;
+
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Streams a task's result to an HTTP response. The first minSize bytes are
+ * held back so that small responses can be sent uncompressed with a
+ * Content-Length. Once more than that has been written (or at close(), for
+ * small responses) the headers are set and everything is passed straight
+ * through to the response, compressed with the negotiated content-coding if
+ * there is one. Nothing reaches the response until then, so a task that
+ * fails before writing (much) still allows an error status to be sent.
+ * close() completes the body but does not close the underlying response
+ * stream.
+ *
+ * @version : $
+ */
+public class ResponseOutputStream extends OutputStream {
+
+  /** Bytes held back before streaming an uncompressed response */
+  protected static final int UNCOMPRESSED_HOLD_SIZE = 8192;
+
+  protected final HttpServletResponse m_response;
+  protected final String m_coding;
+  protected final String m_contentType;
+  protected final int m_holdSize;
+
+  /** Held back bytes (null once committed) */
+  protected ByteArrayOutputStream m_held = new ByteArrayOutputStream();
+
+  /** Where bytes go once committed */
+  protected OutputStream m_out;
+
+  /**
+   * Constructor
+   *
+   * @param response the response to write to
+   * @param coding the negotiated content-coding, or null to not compress
+   * @param minSize the minimum size of response to compress
+   * @param contentType the content type of the response, or null for the
+   *          default
+   */
+  public ResponseOutputStream(HttpServletResponse response, String coding,
+    int minSize, String contentType) {
+    m_response = response;
+    m_coding = minSize >= 0 ? coding : null;
+    m_contentType = contentType;
+    m_holdSize = m_coding != null ? Math.max(minSize, 1)
+      : UNCOMPRESSED_HOLD_SIZE;
+  }
+
+  /**
+   * Set the response headers and start passing bytes through
+   *
+   * @param complete true if the held back bytes are the whole response
+   * @throws IOException if a problem occurs
+   */
+  protected void commit(boolean complete) throws IOException {
+    if (m_contentType != null) {
+      m_response.setContentType(m_contentType);
+    }
+    OutputStream raw = m_response.getOutputStream();
+
+    boolean compress =
+      m_coding != null && (!complete || m_held.size() >= m_holdSize);
+    if (compress) {
+      m_response.setHeader("Content-Encoding", m_coding);
+      m_out = HttpCompression.encode(m_coding, raw);
+    } else {
+      if (complete) {
+        m_response.setContentLength(m_held.size());
+      }
+      m_out = raw;
+    }
+    m_held.writeTo(m_out);
+    m_held = null;
+  }
+
+  /**
+   * Returns true once bytes have started passing through to the response,
+   * after which its status and headers can no longer be changed (even if
+   * the servlet container hasn't sent them yet)
+   *
+   * @return true if the response has been started
+   */
+  public boolean isCommitted() {
+    return m_out != null;
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    write(new byte[] { (byte) b }, 0, 1);
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    if (m_out == null) {
+      m_held.write(b, off, len);
+      if (m_held.size() > m_holdSize) {
+        commit(false);
+      }
+      return;
+    }
+    m_out.write(b, off, len);
+  }
+
+  @Override
+  public void flush() throws IOException {
+    // held back bytes stay held back; anything else is already on its way
+    if (m_out != null) {
+      m_out.flush();
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (m_out == null) {
+      commit(true);
+    }
+    if (m_out instanceof DeflaterOutputStream) {
+      ((DeflaterOutputStream) m_out).finish();
+    }
+    m_out.flush();
+  }
+}
@@ -0,0 +1,209 @@
+/*******************************************************************************
+ * Pentaho Data Science
+ * <p/>
+ * Copyright (c) 2002-2020 Hitachi Vantara. All rights reserved.
+ * <p/>
+ * ******************************************************************************
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ * <p/>
+ ******************************************************************************/
+
+package weka.server;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Limits the number of requests a single task executes concurrently, and the
+ * number of requests that may wait for execution, so that one slow or
+ * overloaded task cannot tie up the threads needed by other tasks. Waiting
+ * requests are admitted in arrival order. Requests that arrive when the queue
+ * is full, or that wait longer than the queue timeout, are rejected.
+ *
+ * @version : $
+ */
+public class TaskBulkhead {
+
+  /** Permits for concurrent execution (null if concurrency is unlimited) */
+  protected final Semaphore m_permits;
+
+  /** Maximum number of requests that may wait for a permit */
+  protected final int m_maxQueued;
+
+  /** Maximum time (ms) to wait for a permit, or negative to wait forever */
+  protected final long m_queueTimeoutMs;
+
+  /** Number of requests currently waiting for a permit */
+  protected final AtomicInteger m_waiting = new AtomicInteger();
+
+  /** Number of requests rejected because the queue was full */
+  protected final LongAdder m_rejected = new LongAdder();
+
+  /** Number of requests rejected because they waited too long */
+  protected final LongAdder m_timedOut = new LongAdder();
+
+  /**
+   * Constructor
+   *
+   * @param maxConcurrent maximum concurrent executions (0 or less for
+   *          unlimited)
+   * @param maxQueued maximum number of waiting requests
+   * @param queueTimeoutMs maximum time to wait (ms), negative for no limit
+   */
+  public TaskBulkhead(int maxConcurrent, int maxQueued, long queueTimeoutMs) {
+    m_permits = maxConcurrent > 0 ? new Semaphore(maxConcurrent, true) : null;
+    m_maxQueued = maxQueued;
+    m_queueTimeoutMs = queueTimeoutMs;
+  }
+
+  /**
+   * Create a bulkhead from the limits in a task's config
+   *
+   * @param taskConfigUtils the config of the task
+   * @return a bulkhead
+   * @throws Exception if a problem occurs reading the config
+   */
+  public static TaskBulkhead fromConfig(TaskConfigUtils taskConfigUtils)
+    throws Exception {
+    int maxConcurrent = 0;
+    String s =
+      taskConfigUtils.getTaskProperty(TaskConfigUtils.TASK_MAX_CONCURRENT_KEY);
+    if (s != null && s.length() > 0) {
+      maxConcurrent = Integer.parseInt(s);
+    }
+    int maxQueued = maxConcurrent;
+    s = taskConfigUtils.getTaskProperty(TaskConfigUtils.TASK_MAX_QUEUED_KEY);
+    if (s != null && s.length() > 0) {
+      maxQueued = Integer.parseInt(s);
+    }
+    long queueTimeout = -1;
+    s = taskConfigUtils
+      .getTaskProperty(TaskConfigUtils.TASK_QUEUE_TIMEOUT_KEY);
+    if (s != null && s.length() > 0) {
+      queueTimeout = Long.parseLong(s);
+    }
+
+    return new TaskBulkhead(maxConcurrent, maxQueued, queueTimeout);
+  }
+
+  /**
+   * Obtain permission to execute. Every successful call must be matched by a
+   * call to release().
+   *
+   * @throws TaskRejectedException if the task is overloaded
+   * @throws InterruptedException if interrupted while waiting
+   */
+  public void acquire() throws TaskRejectedException, InterruptedException {
+    try {
+      acquire(null);
+    } catch (DeadlineExceededException ex) {
+      // can't happen without a request context
+      throw new TaskRejectedException(ex.getMessage());
+    }
+  }
+
+  /**
+   * Obtain permission to execute a request, waiting no longer than the
+   * request's deadline allows. Every successful call must be matched by a
+   * call to release().
+   *
+   * @param context the context of the request (may be null)
+   * @throws TaskRejectedException if the task is overloaded
+   * @throws DeadlineExceededException if the request's deadline passes while
+   *           waiting
+   * @throws InterruptedException if interrupted while waiting
+   */
+  public void acquire(RequestContext context) throws TaskRejectedException,
+    DeadlineExceededException, InterruptedException {
+    // (the untimed tryAcquire() would barge ahead of queued requests)
+    if (m_permits == null || m_permits.tryAcquire(0, TimeUnit.MILLISECONDS)) {
+      return;
+    }
+
+    long timeout = m_queueTimeoutMs;
+    boolean deadlineLimited = false;
+    if (context != null && context.hasDeadline()) {
+      long remaining = context.getRemainingMs();
+      if (remaining <= 0) {
+        throw new DeadlineExceededException("queue", -1);
+      }
+      if (timeout < 0 || remaining < timeout) {
+        timeout = remaining;
+        deadlineLimited = true;
+      }
+    }
+
+    if (m_waiting.incrementAndGet() > m_maxQueued) {
+      m_waiting.decrementAndGet();
+      m_rejected.increment();
+      throw new TaskRejectedException("Task is at capacity");
+    }
+    boolean acquired = true;
+    try {
+      if (timeout < 0) {
+        m_permits.acquire();
+      } else {
+        acquired = m_permits.tryAcquire(timeout, TimeUnit.MILLISECONDS);
+      }
+    } finally {
+      m_waiting.decrementAndGet();
+    }
+    if (!acquired && deadlineLimited) {
+      throw new DeadlineExceededException("queue", -1);
+    }
+    if (!acquired) {
+      m_timedOut.increment();
+      throw new TaskRejectedException("Timed out waiting for the task");
+    }
+  }
+
+  /**
+   * Release permission obtained via acquire()
+   */
+  public void release() {
+    if (m_permits != null) {
+      m_permits.release();
+    }
+  }
+
+  /**
+   * Get the number of requests currently waiting to execute
+   *
+   * @return the number of waiting requests
+   */
+  public int getWaiting() {
+    return m_waiting.get();
+  }
+
+  /**
+   * Get the number of requests rejected because the queue was full
+   *
+   * @return the number of rejected requests
+   */
+  public long getRejected() {
+    return m_rejected.sum();
+  }
+
+  /**
+   * Get the number of requests rejected because they waited too long
+   *
+   * @return the number of timed out requests
+   */
+  public long getTimedOut() {
+    return m_timedOut.sum();
+  }
+}
@@ -0,0 +1,459 @@
+/*******************************************************************************
+ * Pentaho Data Science
+ * <p/>
+ * Copyright (c) 2002-2020 Hitachi Vantara. All rights reserved.
+ * <p/>
+ * ******************************************************************************
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ * <p/>
+ ******************************************************************************/
+
+package weka.server;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import weka.core.Environment;
+import weka.core.Instances;
+import weka.server.scorer.WekaScoringModel;
+import weka.server.scorer.WekaScoringModelPool;
+
+/**
+ * Lightweight metadata about every task configured in ${user.home}/config,
+ * whether or not the task is loaded: its type, model file and size, the
+ * training header of its model (once it has been loaded), when it was last
+ * used, and how often it has been loaded and evicted. The
+ * WekaServerTaskRegistry consults the catalog to keep the estimated heap
+ * footprint of loaded tasks within a budget, evicting the least recently
+ * used tasks when a load takes it over.
+ * <p>
+ * A task's footprint is estimated as the size of its serialized model file,
+ * times a factor for the deserialized object graph
+ * (weka.server.catalog.footprintFactor, default 2), times the number of
+ * copies of the model its pool holds. The budget is set with the
+ * weka.server.catalog.heapBudgetMB system property; without it tasks are
+ * never evicted.
+ *
+ * @version : $
+ */
+public class TaskCatalog {
+
+  /** System property giving the heap budget (MB) for loaded tasks */
+  public static final String HEAP_BUDGET_PROPERTY =
+    "weka.server.catalog.heapBudgetMB";
+
+  /**
+   * System property giving the ratio of a model's size in the heap to the
+   * size of its serialized file
+   */
+  public static final String FOOTPRINT_FACTOR_PROPERTY =
+    "weka.server.catalog.footprintFactor";
+
+  public static final double DEFAULT_FOOTPRINT_FACTOR = 2.0;
+
+  /** Metadata about one configured task */
+  public static class Entry {
+    protected final String m_taskId;
+    protected final String m_taskType;
+    protected final String m_modelFile;
+    protected final long m_modelBytes;
+
+    /** Training header of the task's model, once it has been loaded */
+    protected volatile Instances m_header;
+
+    /** The loaded task (null when not loaded) */
+    protected volatile RegisteredTask m_task;
+
+    /** Time the task was last used before it was evicted */
+    protected volatile long m_lastUsed;
+
+    /** Taskids of the tasks this task used while it was being loaded */
+    protected final Set<String> m_dependsOn = ConcurrentHashMap.newKeySet();
+
+    protected final LongAdder m_loads = new LongAdder();
+    protected final LongAdder m_evictions = new LongAdder();
+    protected volatile long m_lastLoadNanos;
+
+    protected Entry(String taskId, String taskType, String modelFile,
+      long modelBytes) {
+      m_taskId = taskId;
+      m_taskType = taskType;
+      m_modelFile = modelFile;
+      m_modelBytes = modelBytes;
+    }
+
+    /**
+     * Get the taskid
+     *
+     * @return the taskid
+     */
+    public String getTaskId() {
+      return m_taskId;
+    }
+
+    /**
+     * Get the size of the task's serialized model file
+     *
+     * @return the size in bytes (0 if the task has no model file)
+     */
+    public long getModelBytes() {
+      return m_modelBytes;
+    }
+
+    /**
+     * Get the training header of the task's model
+     *
+     * @return the header, or null if the task hasn't been loaded yet (or
+     *         isn't a scoring task)
+     */
+    public Instances getHeader() {
+      return m_header;
+    }
+
+    /**
+     * Get the loaded task
+     *
+     * @return the task, or null if it isn't loaded
+     */
+    public RegisteredTask getTask() {
+      return m_task;
+    }
+
+    /**
+     * Get the time the task was last used
+     *
+     * @return the time in milliseconds since the epoch, or 0 if it has never
+     *         been loaded
+     */
+    public long getLastUsed() {
+      RegisteredTask task = m_task;
+      return task != null ? task.getLastUsed() : m_lastUsed;
+    }
+
+    protected Map<String, Object> toMap(double footprintFactor) {
+      Map<String, Object> m = new LinkedHashMap<>();
+      RegisteredTask task = m_task;
+      m.put("type", m_taskType);
+      if (m_modelFile != null) {
+        m.put("modelFile", m_modelFile);
+        m.put("modelBytes", m_modelBytes);
+      }
+      m.put("loaded", task != null);
+      m.put("estimatedBytes", estimateBytes(task, footprintFactor));
+      m.put("lastUsed", getLastUsed());
+      m.put("loads", m_loads.sum());
+      m.put("evictions", m_evictions.sum());
+      m.put("lastLoadMs", m_lastLoadNanos / 1e6);
+      if (task != null && task.isPinned()) {
+        m.put("pinned", true);
+      }
+      if (!m_dependsOn.isEmpty()) {
+        m.put("dependsOn", new ArrayList<>(m_dependsOn));
+      }
+      Instances header = m_header;
+      if (header != null) {
+        List<String> atts = new ArrayList<>();
+        for (int i = 0; i < header.numAttributes(); i++) {
+          if (i != header.classIndex()) {
+            atts.add(header.attribute(i).name());
+          }
+        }
+        m.put("attributes", atts);
+        if (header.classIndex() >= 0) {
+          m.put("classAttribute", header.classAttribute().name());
+        }
+      }
+      return m;
+    }
+
+    protected long estimateBytes(RegisteredTask task, double footprintFactor) {
+      if (task == null) {
+        return 0;
+      }
+      return (long) (m_modelBytes * footprintFactor
+        * task.getPool().getNumModelCopies());
+    }
+  }
+
+  protected final Map<String, Entry> m_entries = new ConcurrentHashMap<>();
+
+  /** Heap budget for loaded tasks (bytes), or 0 for no limit */
+  protected final long m_heapBudget;
+
+  protected final double m_footprintFactor;
+
+  protected final LongAdder m_loads = new LongAdder();
+  protected final LongAdder m_loadFailures = new LongAdder();
+  protected final LongAdder m_loadWaits = new LongAdder();
+  protected final LongAdder m_loadNanos = new LongAdder();
+  protected final LongAdder m_evictions = new LongAdder();
+  protected final LongAdder m_overBudget = new LongAdder();
+
+  /**
+   * Constructor
+   *
+   * @param heapBudget the heap budget for loaded tasks in bytes, or 0 for no
+   *          limit
+   * @param footprintFactor ratio of a model's size in the heap to its
+   *          serialized size
+   */
+  public TaskCatalog(long heapBudget, double footprintFactor) {
+    m_heapBudget = Math.max(0, heapBudget);
+    m_footprintFactor = footprintFactor;
+  }
+
+  /**
+   * Create a catalog configured by the weka.server.catalog.* system
+   * properties
+   *
+   * @return the catalog
+   */
+  public static TaskCatalog fromSystemProperties() {
+    long budget = 0;
+    String budgetS = System.getProperty(HEAP_BUDGET_PROPERTY);
+    if (budgetS != null && budgetS.length() > 0) {
+      budget = (long) (Double.parseDouble(budgetS.trim()) * 1024 * 1024);
+    }
+    double factor = DEFAULT_FOOTPRINT_FACTOR;
+    String factorS = System.getProperty(FOOTPRINT_FACTOR_PROPERTY);
+    if (factorS != null && factorS.length() > 0) {
+      factor = Double.parseDouble(factorS.trim());
+    }
+    return new TaskCatalog(budget, factor);
+  }
+
+  /**
+   * Get the heap budget for loaded tasks
+   *
+   * @return the budget in bytes, or 0 if there is no limit
+   */
+  public long getHeapBudget() {
+    return m_heapBudget;
+  }
+
+  /**
+   * Add any task configured in ${user.home}/config that isn't in the
+   * catalog yet
+   */
+  public void scan() {
+    File[] files = new File(System.getProperty("user.home") + File.separator
+      + "config").listFiles((dir, name) -> name.startsWith("wekaServer_")
+        && name.endsWith(".props"));
+    if (files == null) {
+      return;
+    }
+    for (File f : files) {
+      String name = f.getName();
+      getEntry(name.substring("wekaServer_".length(),
+        name.length() - ".props".length()));
+    }
+  }
+
+  /**
+   * Get the entry for a task, reading its props file if the task isn't in
+   * the catalog yet
+   *
+   * @param taskId the taskid
+   * @return the entry
+   */
+  public Entry getEntry(String taskId) {
+    return m_entries.computeIfAbsent(taskId, TaskCatalog::describe);
+  }
+
+  /**
+   * Read the metadata of a task from its props file (without loading any
+   * Weka packages or models)
+   */
+  protected static Entry describe(String taskId) {
+    Properties props = new Properties();
+    File propsFile = new File(System.getProperty("user.home")
+      + File.separator + "config" + File.separator
+      + WekaServerTaskRegistry.getPropsFileName(taskId));
+    try (Reader r = new FileReader(propsFile)) {
+      props.load(r);
+    } catch (Exception ex) {
+      // a task that doesn't exist fails when loaded
+    }
+    String modelFile =
+      props.getProperty(WekaScoringModel.PROP_SCORER_MODEL_FILE_NAME_KEY);
+    long modelBytes = 0;
+    if (modelFile != null && modelFile.length() > 0) {
+      try {
+        modelFile = Environment.getSystemWide().substitute(modelFile);
+      } catch (Exception ex) {
+        // ignore substitution problems
+      }
+      modelBytes = new File(System.getProperty("user.home") + File.separator
+        + "models" + File.separator + modelFile).length();
+    }
+    return new Entry(taskId, props.getProperty(TaskConfigUtils.TASK_TYPE_KEY),
+      modelFile, modelBytes);
+  }
+
+  /**
+   * Get the estimated heap footprint of a loaded task
+   *
+   * @param task the task
+   * @return the estimated footprint in bytes
+   */
+  public long estimateBytes(RegisteredTask task) {
+    return getEntry(task.getTaskId()).estimateBytes(task, m_footprintFactor);
+  }
+
+  /**
+   * Get the estimated heap footprint of all loaded tasks
+   *
+   * @return the estimated footprint in bytes
+   */
+  public long getEstimatedBytes() {
+    long total = 0;
+    for (Entry e : m_entries.values()) {
+      total += e.estimateBytes(e.m_task, m_footprintFactor);
+    }
+    return total;
+  }
+
+  /**
+   * Returns true if a loaded task (or one being loaded) used the given task
+   * while it was being loaded (e.g. a fan-out task that scores against it),
+   * and so may hold on to its pool
+   *
+   * @param taskId the taskid
+   * @param loading the taskids of the tasks being loaded
+   * @return true if another task depends on the task
+   */
+  public boolean isDependedOn(String taskId, Collection<String> loading) {
+    for (Entry e : m_entries.values()) {
+      if ((e.m_task != null || loading.contains(e.m_taskId))
+        && e.m_dependsOn.contains(taskId)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Record that one task used another while it was being loaded
+   *
+   * @param taskId the task being loaded
+   * @param dependencyId the task it used
+   */
+  public void addDependency(String taskId, String dependencyId) {
+    if (!taskId.equals(dependencyId)) {
+      getEntry(taskId).m_dependsOn.add(dependencyId);
+    }
+  }
+
+  /**
+   * Record that a task has been loaded
+   *
+   * @param task the task
+   * @param nanos how long loading took
+   */
+  public void loaded(RegisteredTask task, long nanos) {
+    Entry e = getEntry(task.getTaskId());
+    e.m_task = task;
+    e.m_loads.increment();
+    e.m_lastLoadNanos = nanos;
+    if (task.getPool() instanceof WekaScoringModelPool) {
+      e.m_header = ((WekaScoringModelPool) task.getPool()).getModelHeader();
+    }
+    m_loads.increment();
+    m_loadNanos.add(nanos);
+  }
+
+  /**
+   * Record that loading a task failed
+   */
+  public void loadFailed() {
+    m_loadFailures.increment();
+  }
+
+  /**
+   * Record that a request waited for another thread's load of a task
+   * rather than loading it itself
+   */
+  public void loadWaited() {
+    m_loadWaits.increment();
+  }
+
+  /**
+   * Record that a task has been removed from the registry
+   *
+   * @param task the task
+   * @param evicted true if it was evicted to stay within the budget (rather
+   *          than cleared or reloaded)
+   */
+  public void unloaded(RegisteredTask task, boolean evicted) {
+    Entry e = getEntry(task.getTaskId());
+    if (e.m_task == task) {
+      e.m_lastUsed = task.getLastUsed();
+      e.m_task = null;
+      e.m_dependsOn.clear();
+    }
+    if (evicted) {
+      e.m_evictions.increment();
+      m_evictions.increment();
+    }
+  }
+
+  /**
+   * Record that the budget is exceeded but no loaded task can be evicted
+   */
+  public void overBudget() {
+    m_overBudget.increment();
+  }
+
+  /**
+   * Get the catalog's counters, and the metadata of every configured task
+   *
+   * @return the catalog, keyed by taskid under "tasks"
+   */
+  public Map<String, Object> toMap() {
+    scan();
+    Map<String, Object> m = new LinkedHashMap<>();
+    long loads = m_loads.sum();
+    int loaded = 0;
+    Map<String, Object> tasks = new TreeMap<>();
+    for (Entry e : m_entries.values()) {
+      tasks.put(e.m_taskId, e.toMap(m_footprintFactor));
+      loaded += e.m_task != null ? 1 : 0;
+    }
+    m.put("catalog.tasks", tasks.size());
+    m.put("catalog.loaded", loaded);
+    m.put("catalog.heapBudgetBytes", m_heapBudget);
+    m.put("catalog.estimatedBytes", getEstimatedBytes());
+    m.put("catalog.loads", loads);
+    m.put("catalog.loadFailures", m_loadFailures.sum());
+    m.put("catalog.loadWaits", m_loadWaits.sum());
+    m.put("catalog.loadMeanMs", loads > 0 ? m_loadNanos.sum() / 1e6 / loads
+      : 0);
+    m.put("catalog.evictions", m_evictions.sum());
+    m.put("catalog.overBudget", m_overBudget.sum());
+    m.put("tasks", tasks);
+    return m;
+  }
+}
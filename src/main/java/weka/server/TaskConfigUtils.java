@@ -49,10 +49,37 @@ public class TaskConfigUtils {
   public static final String TASK_TYPE_KEY = "weka.server.task.type";
   public static final String TASK_POOL_SIZE_KEY = "weka.server.task.poolSize";
   public static final int TASK_DEFAULT_POOL_SIZE = 1;
+  public static final String TASK_POOL_MIN_SIZE_KEY =
+    "weka.server.task.poolMinSize";
+  public static final String TASK_POOL_MAX_SIZE_KEY =
+    "weka.server.task.poolMaxSize";
+  public static final String TASK_POOL_IDLE_TIMEOUT_KEY =
+    "weka.server.task.poolIdleTimeoutMs";
+  public static final long TASK_DEFAULT_POOL_IDLE_TIMEOUT = 60000;
+  public static final String TASK_POOL_SCALE_INTERVAL_KEY =
+    "weka.server.task.poolScaleIntervalMs";
+  public static final long TASK_DEFAULT_POOL_SCALE_INTERVAL = 1000;
+  public static final String TASK_COMPRESSION_MIN_SIZE_KEY =
+    "weka.server.task.compression.minSize";
+  public static final int TASK_DEFAULT_COMPRESSION_MIN_SIZE = 1024;
+  public static final String TASK_SERVER_TIMING_KEY =
+    "weka.server.task.serverTiming";
+  public static final String TASK_MAX_CONCURRENT_KEY =
+    "weka.server.task.maxConcurrent";
+  public static final String TASK_MAX_QUEUED_KEY =
+    "weka.server.task.maxQueued";
+  public static final String TASK_QUEUE_TIMEOUT_KEY =
+    "weka.server.task.queueTimeoutMs";
 
   public static final String PROP_WEKA_PACKAGE_MANAGER_OFFLINE_KEY =
     "weka.packageManager.offline";
 
+  /**
+   * Values that override those read from any task's props file (e.g. so that
+   * tools can vary the pool size of a task without editing its config)
+   */
+  protected static final Properties s_propertyOverrides = new Properties();
+
   /** Properties object for this TaskConfigUtils instance */
   protected Properties properties;
 
@@ -104,6 +131,53 @@ public class TaskConfigUtils {
     }
   }
 
+  /**
+   * Constructor for derived configs (see derive())
+   *
+   * @param base the config to copy
+   * @param overrides properties to replace in the copy
+   */
+  protected TaskConfigUtils(TaskConfigUtils base, Properties overrides) {
+    propFileName = base.propFileName;
+    properties = new Properties();
+    properties.putAll(base.properties);
+    properties.putAll(overrides);
+    debug = "true".equalsIgnoreCase(properties.getProperty(TASK_DEBUG_KEY));
+  }
+
+  /**
+   * Create a copy of this config with some properties replaced (e.g. to
+   * configure a secondary pool for the same task). The props file is not
+   * re-read.
+   *
+   * @param overrides properties to replace in the copy
+   * @return the derived config
+   * @throws IOException if this config's properties can't be loaded
+   */
+  public TaskConfigUtils derive(Properties overrides) throws IOException {
+    if (properties == null) {
+      loadProperties();
+    }
+    return new TaskConfigUtils(this, overrides);
+  }
+
+  /**
+   * Get the taskid of the task configured by this config, i.e. the suffix of
+   * its wekaServer_&lt;taskid&gt;.props file name
+   *
+   * @return the taskid
+   */
+  public String getTaskId() {
+    String taskId = propFileName;
+    if (taskId.startsWith("wekaServer_")) {
+      taskId = taskId.substring("wekaServer_".length());
+    }
+    if (taskId.endsWith(".props")) {
+      taskId = taskId.substring(0, taskId.length() - ".props".length());
+    }
+    return taskId;
+  }
+
   /**
    * Load the properties file
    *
@@ -114,6 +188,7 @@ public class TaskConfigUtils {
     properties
       .load(new BufferedReader(new FileReader(System.getProperty("user.home")
         + File.separator + "config" + File.separator + propFileName)));
+    properties.putAll(s_propertyOverrides);
 
     String debug_prop = getTaskProperty(TASK_DEBUG_KEY);
     debug = debug_prop != null && debug_prop.equalsIgnoreCase("true");
@@ -135,6 +210,20 @@ public class TaskConfigUtils {
     return properties.getProperty(propName);
   }
 
+  /**
+   * Override a property for all tasks configured from now on
+   *
+   * @param propName the name of the property
+   * @param value the value to use, or null to remove the override
+   */
+  public static void setPropertyOverride(String propName, String value) {
+    if (value == null) {
+      s_propertyOverrides.remove(propName);
+    } else {
+      s_propertyOverrides.setProperty(propName, value);
+    }
+  }
+
   /**
    * Get an appropriately configured task pool for the task type specified in
    * the config property file
@@ -0,0 +1,88 @@
+/*******************************************************************************
+ * Pentaho Data Science
+ * <p/>
+ * Copyright (c) 2002-2020 Hitachi Vantara. All rights reserved.
+ * <p/>
+ * ******************************************************************************
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ * <p/>
+ ******************************************************************************/
+
+package weka.server;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Named counters for a task. Counters are created on first use and are
+ * cheap to update from many threads concurrently.
+ *
+ * @version : $
+ */
+public class TaskMetrics {
+
+  /** The counters, keyed by name */
+  protected final Map<String, LongAdder> m_counters =
+    new ConcurrentHashMap<>();
+
+  /**
+   * Add one to the named counter
+   *
+   * @param name the name of the counter
+   */
+  public void increment(String name) {
+    add(name, 1);
+  }
+
+  /**
+   * Add to the named counter
+   *
+   * @param name the name of the counter
+   * @param amount the amount to add
+   */
+  public void add(String name, long amount) {
+    LongAdder counter = m_counters.get(name);
+    if (counter == null) {
+      counter = m_counters.computeIfAbsent(name, k -> new LongAdder());
+    }
+    counter.add(amount);
+  }
+
+  /**
+   * Get the value of the named counter
+   *
+   * @param name the name of the counter
+   * @return the value of the counter (zero if it has never been updated)
+   */
+  public long get(String name) {
+    LongAdder counter = m_counters.get(name);
+    return counter != null ? counter.sum() : 0;
+  }
+
+  /**
+   * Get the current values of all counters, sorted by name
+   *
+   * @return the counter values
+   */
+  public Map<String, Object> snapshot() {
+    Map<String, Object> result = new TreeMap<>();
+    for (Map.Entry<String, LongAdder> e : m_counters.entrySet()) {
+      result.put(e.getKey(), e.getValue().sum());
+    }
+    return result;
+  }
+}
@@ -0,0 +1,43 @@
+/*******************************************************************************
+ * Pentaho Data Science
+ * <p/>
+ * Copyright (c) 2002-2020 Hitachi Vantara. All rights reserved.
+ * <p/>
+ * ******************************************************************************
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ * <p/>
+ ******************************************************************************/
+
+package weka.server;
+
+/**
+ * Thrown when a task cannot accept a request because it is overloaded (i.e.
+ * the request would exceed the task's concurrency and queue limits).
+ *
+ * @version : $
+ */
+public class TaskRejectedException extends Exception {
+
+  private static final long serialVersionUID = -2907409526236317340L;
+
+  /**
+   * Constructor
+   *
+   * @param message the reason the request was rejected
+   */
+  public TaskRejectedException(String message) {
+    super(message);
+  }
+}
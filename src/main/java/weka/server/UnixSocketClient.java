@@ -0,0 +1,170 @@
+/*******************************************************************************
+ * Pentaho Data Science
+ * <p/>
+ * Copyright (c) 2002-2020 Hitachi Vantara. All rights reserved.
+ * <p/>
+ * ******************************************************************************
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ * <p/>
+ ******************************************************************************/
+
+package weka.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+import weka.core.Utils;
+
+/**
+ * Client for a UnixSocketServer. A client holds one connection, over which
+ * requests are sent one at a time, so it is not thread-safe; threads that
+ * make concurrent requests should each have their own client.
+ *
+ * <pre>
+ * try (UnixSocketClient client = new UnixSocketClient("/tmp/weka.sock")) {
+ *   UnixSocketClient.Response r =
+ *     client.invoke("irisClassifier", PayloadFormat.JSON, payload);
+ * }
+ * </pre>
+ *
+ * @version : $
+ */
+public class UnixSocketClient implements AutoCloseable {
+
+  /** Result of a request */
+  public static class Response {
+    protected final int m_status;
+    protected final byte[] m_body;
+
+    protected Response(int status, byte[] body) {
+      m_status = status;
+      m_body = body;
+    }
+
+    /**
+     * Get the status (as /invocations would give it, e.g. 200 for success)
+     *
+     * @return the status
+     */
+    public int getStatus() {
+      return m_status;
+    }
+
+    /**
+     * Get the body: the task's result, or an error message
+     *
+     * @return the body
+     */
+    public byte[] getBody() {
+      return m_body;
+    }
+
+    /**
+     * Get the body as a (UTF-8) string
+     *
+     * @return the body
+     */
+    public String getBodyAsString() {
+      return new String(m_body, StandardCharsets.UTF_8);
+    }
+  }
+
+  protected final SocketChannel m_channel;
+  protected final DataInputStream m_in;
+  protected final DataOutputStream m_out;
+
+  /**
+   * Constructor. Connects to the server.
+   *
+   * @param path the path of the server's socket
+   * @throws Exception if the connection can't be made
+   */
+  public UnixSocketClient(String path) throws Exception {
+    m_channel = UnixSocketServer.openChannel();
+    m_channel.connect(UnixSocketServer.address(path));
+    m_in = new DataInputStream(
+      new BufferedInputStream(Channels.newInputStream(m_channel), 65536));
+    m_out = new DataOutputStream(
+      new BufferedOutputStream(Channels.newOutputStream(m_channel), 65536));
+  }
+
+  /**
+   * Send a request and wait for its response
+   *
+   * @param taskId the task to invoke
+   * @param format the format of the payload (and of the response)
+   * @param payload the payload
+   * @return the response
+   * @throws IOException if the connection fails
+   */
+  public Response invoke(String taskId, PayloadFormat format, byte[] payload)
+    throws IOException {
+    byte[] taskIdBytes = taskId.getBytes(StandardCharsets.UTF_8);
+    m_out.writeShort(taskIdBytes.length);
+    m_out.write(taskIdBytes);
+    m_out.writeByte(format.ordinal());
+    m_out.writeInt(payload.length);
+    m_out.write(payload);
+    m_out.flush();
+
+    int status = m_in.readUnsignedShort();
+    byte[] body = new byte[m_in.readInt()];
+    m_in.readFully(body);
+    return new Response(status, body);
+  }
+
+  @Override
+  public void close() throws IOException {
+    m_channel.close();
+  }
+
+  /**
+   * Send a payload from a file and print the response
+   *
+   * @param args -socket &lt;path&gt; -task &lt;taskid&gt; -payload &lt;file&gt;
+   *          [-format json|cbor|smile]
+   */
+  public static void main(String[] args) {
+    try {
+      String path = Utils.getOption("socket", args);
+      String taskId = Utils.getOption("task", args);
+      String payload = Utils.getOption("payload", args);
+      String format = Utils.getOption("format", args);
+      if (path.length() == 0 || taskId.length() == 0 || payload.length() == 0) {
+        System.err.println("Usage: UnixSocketClient -socket <path> "
+          + "-task <taskid> -payload <file> [-format json|cbor|smile]");
+        return;
+      }
+      try (UnixSocketClient client = new UnixSocketClient(path)) {
+        Response r = client.invoke(taskId, format.length() > 0
+          ? PayloadFormat.valueOf(format.toUpperCase()) : PayloadFormat.JSON,
+          Files.readAllBytes(Paths.get(payload)));
+        System.out.println(r.getStatus());
+        System.out.write(r.getBody());
+        System.out.println();
+      }
+    } catch (Exception ex) {
+      ex.printStackTrace();
+    }
+  }
+}
@@ -0,0 +1,344 @@
+/*******************************************************************************
+ * Pentaho Data Science
+ * <p/>
+ * Copyright (c) 2002-2020 Hitachi Vantara. All rights reserved.
+ * <p/>
+ * ******************************************************************************
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ * <p/>
+ ******************************************************************************/
+
+package weka.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import weka.core.WekaException;
+
+/**
+ * Listener on a Unix domain socket for clients on the same host, which
+ * dispatches to the same WekaServerTaskRegistry as WekaRESTServer without
+ * the overhead of TCP and HTTP. Connections are persistent and carry a
+ * sequence of requests, each answered before the next is read. All integers
+ * are big-endian.
+ * <p>
+ * Request frame:
+ *
+ * <pre>
+ * u16 length of taskid, taskid (UTF-8)
+ * u8  payload format (0 = JSON, 1 = CBOR, 2 = Smile), used for the response too
+ * u32 length of payload, payload
+ * </pre>
+ *
+ * Response frame:
+ *
+ * <pre>
+ * u16 status (as the HTTP status /invocations would give, e.g. 200, 400, 503)
+ * u32 length of body, body (the task's result, or a UTF-8 error message)
+ * </pre>
+ *
+ * A frame with a payload longer than the weka.server.socket.maxPayload system
+ * property (8 MB by default) is answered with a 413 status and the
+ * connection is closed, as the rest of the frame is not read.
+ * <p>
+ * Unix domain socket channels need Java 16 or later at runtime; they are
+ * opened reflectively so that the server still builds for and runs on Java
+ * 8 without the listener.
+ *
+ * @version : $
+ */
+public class UnixSocketServer {
+
+  /** System property giving the largest payload accepted, in bytes */
+  public static final String MAX_PAYLOAD_PROPERTY =
+    "weka.server.socket.maxPayload";
+  public static final int DEFAULT_MAX_PAYLOAD = 8 * 1024 * 1024;
+
+  /**
+   * Largest buffer a connection keeps between requests; buffers grown for
+   * larger payloads or results are released once the request is answered
+   */
+  protected static final int RETAINED_BUFFER_SIZE = 64 * 1024;
+
+  final static Logger logger =
+    LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+  /** Path of the socket */
+  protected final String m_path;
+
+  /** The listening channel */
+  protected ServerSocketChannel m_server;
+
+  /** Serves connections, one thread per connection */
+  protected final ExecutorService m_connections;
+
+  /** Largest payload accepted, in bytes */
+  protected final int m_maxPayload;
+
+  /**
+   * Constructor. The largest payload accepted is given by the
+   * weka.server.socket.maxPayload system property.
+   *
+   * @param path the path of the socket to listen on
+   */
+  public UnixSocketServer(String path) {
+    this(path, Integer.getInteger(MAX_PAYLOAD_PROPERTY, DEFAULT_MAX_PAYLOAD));
+  }
+
+  /**
+   * Constructor
+   *
+   * @param path the path of the socket to listen on
+   * @param maxPayload the largest payload accepted, in bytes
+   */
+  public UnixSocketServer(String path, int maxPayload) {
+    m_path = path;
+    m_maxPayload = maxPayload;
+    final AtomicInteger threadCount = new AtomicInteger();
+    m_connections = Executors.newCachedThreadPool(r -> {
+      Thread t = new Thread(r, "uds-" + threadCount.incrementAndGet());
+      t.setDaemon(true);
+      return t;
+    });
+  }
+
+  /**
+   * Get the address of a Unix domain socket
+   *
+   * @param path the path of the socket
+   * @return the address
+   * @throws Exception if Unix domain sockets are not supported by this JVM
+   */
+  public static SocketAddress address(String path) throws Exception {
+    try {
+      return (SocketAddress) Class.forName("java.net.UnixDomainSocketAddress")
+        .getMethod("of", String.class).invoke(null, path);
+    } catch (ClassNotFoundException ex) {
+      throw new WekaException("Unix domain sockets need Java 16 or later");
+    }
+  }
+
+  /**
+   * Get the protocol family of Unix domain sockets
+   *
+   * @return the protocol family
+   * @throws Exception if Unix domain sockets are not supported by this JVM
+   */
+  protected static ProtocolFamily unixFamily() throws Exception {
+    try {
+      return StandardProtocolFamily.valueOf("UNIX");
+    } catch (IllegalArgumentException ex) {
+      throw new WekaException("Unix domain sockets need Java 16 or later");
+    }
+  }
+
+  /**
+   * Open an (unconnected) Unix domain socket channel
+   *
+   * @return the channel
+   * @throws Exception if Unix domain sockets are not supported by this JVM
+   */
+  public static SocketChannel openChannel() throws Exception {
+    ProtocolFamily family = unixFamily();
+    return (SocketChannel) SocketChannel.class
+      .getMethod("open", ProtocolFamily.class).invoke(null, family);
+  }
+
+  /**
+   * Start listening. A stale socket file left at the path (e.g. by a server
+   * that was killed) is replaced.
+   *
+   * @return this server
+   * @throws Exception if the socket can't be created
+   */
+  public UnixSocketServer start() throws Exception {
+    SocketAddress address = address(m_path);
+    ProtocolFamily family = unixFamily();
+    Files.deleteIfExists(Paths.get(m_path));
+    m_server = (ServerSocketChannel) ServerSocketChannel.class
+      .getMethod("open", ProtocolFamily.class).invoke(null, family);
+    m_server.bind(address);
+
+    Thread acceptor = new Thread(this::accept, "uds-acceptor");
+    acceptor.setDaemon(true);
+    acceptor.start();
+    logger.info("Listening on unix socket " + m_path);
+    return this;
+  }
+
+  /**
+   * Stop listening, close open connections and remove the socket file
+   */
+  public void stop() {
+    try {
+      if (m_server != null) {
+        m_server.close();
+      }
+      Files.deleteIfExists(Paths.get(m_path));
+    } catch (IOException ex) {
+      logger.warn("Problem closing unix socket " + m_path + ": " + ex);
+    }
+    m_connections.shutdownNow();
+  }
+
+  protected void accept() {
+    while (m_server.isOpen()) {
+      try {
+        SocketChannel channel = m_server.accept();
+        m_connections.execute(() -> serve(channel));
+      } catch (ClosedChannelException ex) {
+        return;
+      } catch (Exception ex) {
+        logger.warn("Problem accepting a unix socket connection: " + ex);
+      }
+    }
+  }
+
+  /**
+   * Serve the requests of one connection until the client closes it
+   *
+   * @param channel the connection
+   */
+  protected void serve(SocketChannel channel) {
+    try (SocketChannel c = channel;
+      DataInputStream in = new DataInputStream(
+        new BufferedInputStream(Channels.newInputStream(c), 65536));
+      DataOutputStream out = new DataOutputStream(
+        new BufferedOutputStream(Channels.newOutputStream(c), 65536))) {
+      ByteArrayOutputStream result = new ByteArrayOutputStream(8192);
+      byte[] payload = new byte[8192];
+      while (true) {
+        int taskIdLength;
+        try {
+          taskIdLength = in.readUnsignedShort();
+        } catch (EOFException ex) {
+          return;
+        }
+        byte[] taskIdBytes = new byte[taskIdLength];
+        in.readFully(taskIdBytes);
+        String taskId = new String(taskIdBytes, StandardCharsets.UTF_8);
+        int formatCode = in.readUnsignedByte();
+        int length = in.readInt();
+        if (length < 0 || length > m_maxPayload) {
+          logger.warn("Closing unix socket connection after a frame with a "
+            + "payload length of " + length + " (the limit is " + m_maxPayload
+            + ")");
+          result.reset();
+          int status = error(result, 413, new WekaException("payload of "
+            + length + " bytes is larger than the limit of " + m_maxPayload));
+          writeResponse(out, status, result);
+          return;
+        }
+        if (length > payload.length) {
+          payload = new byte[Math.max(length, payload.length * 2)];
+        }
+        in.readFully(payload, 0, length);
+
+        result.reset();
+        int status = dispatch(taskId, formatCode,
+          new ByteArrayInputStream(payload, 0, length), result);
+        writeResponse(out, status, result);
+
+        // don't hold on to the memory of an unusually large request
+        if (payload.length > RETAINED_BUFFER_SIZE) {
+          payload = new byte[8192];
+        }
+        if (result.size() > RETAINED_BUFFER_SIZE) {
+          result = new ByteArrayOutputStream(8192);
+        }
+      }
+    } catch (IOException ex) {
+      logger.debug("Unix socket connection closed: " + ex);
+    }
+  }
+
+  protected static void writeResponse(DataOutputStream out, int status,
+    ByteArrayOutputStream result) throws IOException {
+    out.writeShort(status);
+    out.writeInt(result.size());
+    result.writeTo(out);
+    out.flush();
+  }
+
+  /**
+   * Process one request, mapping failures to statuses as WekaRESTServer
+   * does
+   *
+   * @param taskId the taskid
+   * @param formatCode the code of the payload format
+   * @param body the payload
+   * @param result receives the result (or an error message)
+   * @return the status
+   */
+  protected int dispatch(String taskId, int formatCode,
+    ByteArrayInputStream body, ByteArrayOutputStream result) {
+    RegisteredTask registered = null;
+    try {
+      PayloadFormat[] formats = PayloadFormat.values();
+      if (formatCode >= formats.length) {
+        throw new WekaException("unknown payload format " + formatCode);
+      }
+      RequestContext context = RequestContext.fromHeaders(null, null);
+      context.setInputFormat(formats[formatCode]);
+      context.setOutputFormat(formats[formatCode]);
+
+      registered = WekaServerTaskRegistry.getTask(taskId);
+      registered.getMetrics().increment("requests");
+      registered.invoke(context, body, result);
+      return 200;
+    } catch (DeadlineExceededException e) {
+      if (registered != null) {
+        registered.getMetrics().increment("deadline.expired." + e.getStage());
+      }
+      return error(result, 504, e);
+    } catch (TaskRejectedException e) {
+      return error(result, 503, e);
+    } catch (WekaException e) {
+      return error(result, 400, e);
+    } catch (Exception e) {
+      return error(result, 500, e);
+    }
+  }
+
+  protected static int error(ByteArrayOutputStream result, int status, Exception e) {
+    result.reset();
+    String message = e.getMessage() != null ? e.getMessage() : e.toString();
+    byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+    result.write(bytes, 0, bytes.length);
+    return status;
+  }
+}
@@ -22,15 +22,31 @@
 
 package weka.server;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
-import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 import java.util.stream.Stream;
 
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
 import io.javalin.Javalin;
+import io.javalin.http.Context;
+import io.javalin.plugin.json.JavalinJson;
 import weka.core.WekaException;
+import weka.server.dataprep.DefaultJsonInstancesDataPreparer;
+import weka.server.scorer.PredictionOutput;
+import weka.server.training.TrainingJob;
+import weka.server.training.TrainingTaskPool;
 
 /**
  * Simple Javalin server for executing WekaServerTasks
@@ -42,16 +58,59 @@ public class WekaRESTServer {
     // json string sample for testing purposes
     private static String json;
 
-    // private static Dictionary<String, WekaScoringModelPool> poolDictionary = new Hashtable<String, WekaScoringModelPool>();
-    private static Map<String, WekaServerTaskPool> poolMap = new HashMap<>();
+    // true once all tasks named on the command line have been loaded (and
+    // warmed up, if so configured). Stays false if any of them failed to load
+    private static volatile boolean ready;
+
+    // taskids named on the command line that failed to load
+    private static volatile String preloadFailures;
+
+    /** Default port to listen on */
+    public static final int DEFAULT_PORT = 7000;
+
+    /** Request attribute holding the stream a result is being streamed to */
+    private static final String STREAM_ATTRIBUTE = "weka.server.responseStream";
+
+    /** For finding the end of a result that the timings are added to */
+    private static final JsonFactory TIMING_JSON = new JsonFactory();
+
+    /** System property giving the path of a unix socket to also listen on */
+    public static final String SOCKET_PROPERTY = "weka.server.socket";
 
     /**
-     * Entry point, no args required
+     * Entry point. Optional args are taskids to load (and warm up) before the
+     * server reports itself as ready via /ping. If the weka.server.socket
+     * system property is set, requests are also accepted on a unix socket at
+     * that path (see UnixSocketServer).
      * 
-     * @param args
+     * @param args zero or more taskids to preload
      */
     public static void main(String[] args) {
-        Javalin app = Javalin.create().start(7000);
+        start(DEFAULT_PORT, args);
+        String socketPath = System.getProperty(SOCKET_PROPERTY);
+        if (socketPath != null && socketPath.length() > 0) {
+            try {
+                UnixSocketServer socketServer = new UnixSocketServer(socketPath).start();
+                Runtime.getRuntime().addShutdownHook(new Thread(socketServer::stop));
+            } catch (Exception e) {
+                System.out.println("Failed to listen on unix socket " + socketPath + ": " + e.toString());
+            }
+        }
+    }
+
+    /**
+     * Start a server. Returns once the server is listening and the named
+     * tasks have been loaded. If any of them fail to load, the server keeps
+     * running but /ping never reports it as ready.
+     *
+     * @param port the port to listen on
+     * @param preloadTaskIds zero or more taskids to load (and warm up) before
+     *          the server reports itself as ready via /ping
+     * @return the running server (stop() it to shut it down)
+     */
+    public static Javalin start(int port, String... preloadTaskIds) {
+        // compression of responses is negotiated per task (see writeResult())
+        Javalin app = Javalin.create(config -> config.compressionStrategy(null, null)).start(port);
         // load sample json object and instance of scorer
         try (Stream<String> stream = Files.lines(Paths.get("input_data/iris.json"), StandardCharsets.UTF_8)) {
             StringBuilder contentBuilder = new StringBuilder();
@@ -63,35 +122,295 @@ public class WekaRESTServer {
 
         app.get("/", ctx -> ctx
                 .result("Post JSON data to /invocations, or get /sample to get a sample JSON input data set"));
+        app.get("/ping", ctx -> {
+            if (ready) {
+                ctx.result("ready");
+            } else if (preloadFailures != null) {
+                ctx.status(503).result("failed to load " + preloadFailures);
+            } else {
+                ctx.status(503).result("loading");
+            }
+        });
+        app.get("/metrics", ctx -> {
+            Map<String, Object> metrics = new TreeMap<>();
+            for (RegisteredTask registered : WekaServerTaskRegistry.getTasks()) {
+                metrics.put(registered.getTaskId(), registered.getMetricsSnapshot());
+            }
+            ctx.json(metrics);
+        });
+        app.get("/catalog", ctx -> {
+            // every configured task, loaded or not, plus load/eviction counters
+            ctx.json(WekaServerTaskRegistry.getCatalog().toMap());
+        });
+        app.get("/drift", ctx -> {
+            // statistics of inputs and predictions, for tasks that gather them
+            String taskid = ctx.queryParam("taskid");
+            Map<String, Object> drift = new TreeMap<>();
+            for (RegisteredTask registered : WekaServerTaskRegistry.getTasks()) {
+                if (taskid != null && !taskid.equals(registered.getTaskId())) {
+                    continue;
+                }
+                Map<String, Object> statistics = registered.getDriftStatistics();
+                if (statistics != null) {
+                    drift.put(registered.getTaskId(), statistics);
+                }
+            }
+            ctx.json(drift);
+        });
         app.post("/invocations", ctx -> {
+            RegisteredTask registered = null;
             try {
+                // the client's deadline runs from when we received the request
+                RequestContext context = RequestContext.fromHeaders(ctx.header(RequestContext.TIMEOUT_HEADER),
+                        ctx.header(RequestContext.DEADLINE_HEADER));
+
                 // taskid is the suffix of the wekaServer props file name for the task to be executed
                 String taskid = ctx.queryParam("taskid");
                 if (taskid == null) {
                     throw new Exception("missing query parameter taskid");
                 }
-                String propsFileName = "wekaServer_" + taskid + ".props";
-
-                WekaServerTaskPool pool = poolMap.get(propsFileName);
-                if (pool == null) {
-                    System.out.println("Creating new server pool with " + propsFileName);
-                    TaskConfigUtils configUtils = new TaskConfigUtils(propsFileName);
-                    pool = configUtils.getTaskPool();
-                    poolMap.put(propsFileName, pool);
+
+                registered = WekaServerTaskRegistry.getTask(taskid);
+                registered.getMetrics().increment("requests");
+                context.checkDeadline("arrival", -1);
+                context.setOption(DefaultJsonInstancesDataPreparer.ORIENT_OPTION,
+                        ctx.header(RequestContext.ORIENT_HEADER));
+                context.setOption(PredictionOutput.OUTPUT_OPTION, ctx.header(RequestContext.OUTPUT_HEADER));
+                context.setInputFormat(PayloadFormat.forContentType(ctx.header("Content-Type")));
+                context.setOutputFormat(PayloadFormat.negotiate(ctx.header("Accept")));
+                // any other query parameters are options for the task (e.g. the classifier to train)
+                for (Map.Entry<String, List<String>> param : ctx.queryParamMap().entrySet()) {
+                    if (!param.getKey().equals("taskid") && !param.getValue().isEmpty()) {
+                        context.setOption(param.getKey(), param.getValue().get(0));
+                    }
+                }
+
+                // stage timings are only recorded when asked for
+                String timingHeader = ctx.header(RequestTimings.REQUEST_HEADER);
+                RequestTimings timings = null;
+                if (registered.isServerTiming()
+                        || (timingHeader != null && !timingHeader.equalsIgnoreCase("false"))) {
+                    timings = context.enableTimings();
+                    timings.setBytesIn(ctx.req.getContentLengthLong());
+                }
+
+                String contentEncoding = ctx.header("Content-Encoding");
+                // decompress straight into the task rather than via a String
+                InputStream body = contentEncoding != null
+                        ? HttpCompression.decode(contentEncoding, ctx.req.getInputStream()) : ctx.req.getInputStream();
+                String contentType = context.getOutputFormat() != PayloadFormat.JSON
+                        ? context.getOutputFormat().getMediaType() : null;
+
+                // the result is streamed to the client unless timings are wanted, as they
+                // have to be sent (in a header) ahead of it
+                ByteArrayOutputStream buffered = null;
+                OutputStream out;
+                ctx.header("Vary", "Accept-Encoding");
+                if (timings != null) {
+                    out = buffered = new ByteArrayOutputStream();
+                } else {
+                    out = new ResponseOutputStream(ctx.res, HttpCompression.negotiate(ctx.header("Accept-Encoding")),
+                            registered.getCompressionMinSize(), contentType);
+                    ctx.attribute(STREAM_ATTRIBUTE, out);
                 }
-                ctx.result(pool.getTask().processData(ctx.body()));
+
+                registered.invoke(context, body, out);
+                if (buffered == null) {
+                    // sends anything held back
+                    out.close();
+                } else {
+                    byte[] result = buffered.toByteArray();
+                    if (registered.getTaskConfigUtils().debug && contentType == null) {
+                        result = appendTimingTrailer(result, timings);
+                    }
+                    writeResult(ctx, result, contentType, registered.getCompressionMinSize(), timings);
+                }
+            } catch (DeadlineExceededException e) {
+                // the client has given up on this request, so don't spend any more on it
+                if (registered != null) {
+                    registered.getMetrics().increment("deadline.expired." + e.getStage());
+                    if (e.getRowsSkipped() > 0) {
+                        registered.getMetrics().add("deadline.rowsSkipped", e.getRowsSkipped());
+                    }
+                }
+                sendError(ctx, 504, e);
+            } catch (TaskRejectedException e) {
+                // shed load for this task only
+                sendError(ctx, 503, e);
+                ctx.header("Retry-After", "1");
             } catch (WekaException e) {
-                ctx.status(400);
-                ctx.json(new Object() {
-                    public String error = e.getMessage();
-                });
+                sendError(ctx, 400, e);
             } catch (Exception e) {
-                ctx.status(500);
-                ctx.json(new Object() {
-                    public String error = e.getMessage();
+                sendError(ctx, 500, e);
+            }
+        });
+        app.get("/jobs/:id", ctx -> {
+            TrainingJob job = TrainingTaskPool.getJob(ctx.pathParam("id"));
+            if (job == null) {
+                ctx.status(404).json(new Object() {
+                    public String error = "no such job";
+                });
+            } else {
+                ctx.json(job.toMap());
+            }
+        });
+        app.post("/update", ctx -> {
+            // labelled data to update a task's model with
+            RegisteredTask registered = null;
+            try {
+                RequestContext context = RequestContext.fromHeaders(ctx.header(RequestContext.TIMEOUT_HEADER),
+                        ctx.header(RequestContext.DEADLINE_HEADER));
+                String taskid = ctx.queryParam("taskid");
+                if (taskid == null) {
+                    throw new Exception("missing query parameter taskid");
+                }
+
+                registered = WekaServerTaskRegistry.getTask(taskid);
+                registered.getMetrics().increment("updates");
+                context.setOption(DefaultJsonInstancesDataPreparer.ORIENT_OPTION,
+                        ctx.header(RequestContext.ORIENT_HEADER));
+                context.setInputFormat(PayloadFormat.forContentType(ctx.header("Content-Type")));
+
+                String contentEncoding = ctx.header("Content-Encoding");
+                InputStream body = contentEncoding != null
+                        ? HttpCompression.decode(contentEncoding, ctx.req.getInputStream()) : ctx.req.getInputStream();
+                int rows = registered.update(context, body);
+                ctx.status(202).json(new Object() {
+                    public int queued = rows;
                 });
+            } catch (DeadlineExceededException e) {
+                sendError(ctx, 504, e);
+            } catch (TaskRejectedException e) {
+                sendError(ctx, 503, e);
+                ctx.header("Retry-After", "1");
+            } catch (WekaException e) {
+                sendError(ctx, 400, e);
+            } catch (Exception e) {
+                sendError(ctx, 500, e);
             }
         });
         app.get("/sample", ctx -> ctx.result(json));
+
+        String failed = null;
+        for (String taskid : preloadTaskIds) {
+            try {
+                WekaServerTaskRegistry.getTaskPool(taskid);
+            } catch (Exception e) {
+                System.out.println("Failed to preload task " + taskid + ": " + e.toString());
+                failed = failed == null ? taskid : failed + ", " + taskid;
+            }
+        }
+        // a server missing a task it was asked to serve never reports itself as ready
+        preloadFailures = failed;
+        ready = failed == null;
+
+        return app;
+    }
+
+    /**
+     * Send an error response, replacing anything that has been written so
+     * far. If part of a streamed result has already been sent, all that can
+     * be done is to log the problem.
+     *
+     * @param ctx the request context
+     * @param status the http status to send
+     * @param e the problem
+     */
+    private static void sendError(Context ctx, int status, Exception e) {
+        ResponseOutputStream streamed = ctx.attribute(STREAM_ATTRIBUTE);
+        if (ctx.res.isCommitted() || (streamed != null && streamed.isCommitted())) {
+            // the (possibly compressed) body is left unfinished, so the client
+            // sees a truncated response rather than an error after a 200
+            System.out.println("Failed after sending part of a response: " + e.toString());
+            return;
+        }
+        ctx.res.reset();
+        ctx.status(status);
+        ctx.json(new Object() {
+            public String error = e.getMessage();
+        });
+    }
+
+    /**
+     * Add the stage timings to a JSON object result as a "timing" field. The
+     * result is returned unchanged unless it is a single top-level JSON object
+     * (e.g. an array of records, or anything that doesn't parse).
+     *
+     * @param result the result of a task
+     * @param timings the timings of the request
+     * @return the result with the timings added
+     */
+    private static byte[] appendTimingTrailer(byte[] result, RequestTimings timings) {
+        long end;
+        boolean empty;
+        try (JsonParser p = TIMING_JSON.createParser(result)) {
+            if (p.nextToken() != JsonToken.START_OBJECT) {
+                return result;
+            }
+            JsonToken t = p.nextToken();
+            empty = t == JsonToken.END_OBJECT;
+            while (t != JsonToken.END_OBJECT) {
+                // t is a field name, so skip over its value
+                p.nextToken();
+                p.skipChildren();
+                t = p.nextToken();
+            }
+            // the closing brace of the root object
+            end = p.getTokenLocation().getByteOffset();
+            if (p.nextToken() != null) {
+                return result;
+            }
+        } catch (IOException e) {
+            return result;
+        }
+        byte[] field = ((empty ? "" : ",") + "\"timing\":" + JavalinJson.toJson(timings.toMap()))
+                .getBytes(StandardCharsets.UTF_8);
+        byte[] withTimings = new byte[result.length + field.length];
+        System.arraycopy(result, 0, withTimings, 0, (int) end);
+        System.arraycopy(field, 0, withTimings, (int) end, field.length);
+        System.arraycopy(result, (int) end, withTimings, (int) end + field.length, result.length - (int) end);
+        return withTimings;
+    }
+
+    /**
+     * Set the result of a request, compressing it if the client accepts a
+     * supported content-coding and the result is at least minSize bytes
+     *
+     * @param ctx the request context
+     * @param bytes the result to send
+     * @param contentType the content type of the result (null for the default)
+     * @param minSize the minimum size to compress (negative for never)
+     * @param timings the timings of the request (null if not recording them)
+     * @throws Exception if a problem occurs
+     */
+    private static void writeResult(Context ctx, byte[] bytes, String contentType, int minSize,
+            RequestTimings timings) throws Exception {
+        if (contentType != null) {
+            ctx.contentType(contentType);
+        }
+        String coding = minSize >= 0 && bytes.length >= minSize
+                ? HttpCompression.negotiate(ctx.header("Accept-Encoding")) : null;
+        ctx.header("Vary", "Accept-Encoding");
+        if (coding == null) {
+            if (timings != null) {
+                timings.setBytesOut(bytes.length);
+                ctx.header(RequestTimings.RESPONSE_HEADER, timings.toHeaderValue());
+            }
+            ctx.result(new ByteArrayInputStream(bytes));
+            return;
+        }
+
+        long start = timings != null ? System.nanoTime() : 0;
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(bytes.length / 4);
+        try (OutputStream out = HttpCompression.encode(coding, bos)) {
+            out.write(bytes);
+        }
+        if (timings != null) {
+            timings.record(RequestTimings.COMPRESS, start);
+            timings.setBytesOut(bos.size());
+            ctx.header(RequestTimings.RESPONSE_HEADER, timings.toHeaderValue());
+        }
+        ctx.header("Content-Encoding", coding);
+        ctx.result(new ByteArrayInputStream(bos.toByteArray()));
     }
 }
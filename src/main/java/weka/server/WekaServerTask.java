@@ -22,6 +22,14 @@
 
 package weka.server;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+import weka.server.dataprep.AbstractDataPreparer;
+
 /**
  * @author Mark Hall (mhall{[at]}pentaho{[dot]}com)
  * @author Ben Birch (Ben.Birch{[at]}hitachivantara{[dot]}com>
@@ -29,12 +37,109 @@ package weka.server;
  */
 public abstract class WekaServerTask {
 
+  /** Context of the request this task is currently leased to (may be null) */
+  protected RequestContext m_requestContext;
+
   /**
-   * Process one or more datasets. Subclasses to override.
+   * Set the context of the request that this task is leased to. Pools set
+   * this when the task is leased and it is cleared before the task is
+   * returned.
+   *
+   * @param context the request context (or null)
+   */
+  public void setRequestContext(RequestContext context) {
+    m_requestContext = context;
+  }
+
+  /**
+   * Get the context of the request that this task is leased to
+   *
+   * @return the request context (may be null)
+   */
+  public RequestContext getRequestContext() {
+    return m_requestContext;
+  }
+
+  /**
+   * Get the stage timings of the request that this task is leased to
+   *
+   * @return the timings, or null if they are not being recorded
+   */
+  protected RequestTimings getTimings() {
+    RequestContext context = m_requestContext;
+    return context != null ? context.getTimings() : null;
+  }
+
+  /**
+   * Process one or more datasets
    *
    * @param input one or more input datasets to process
    * @return result of task processing in json format
    * @throws Exception if a problem occurs
    */
   public abstract String processData(String... input) throws Exception;
+
+  /**
+   * Process a single dataset with processData(InputStream, OutputStream) and
+   * return the UTF-8 decoded result. Tasks that only implement the stream
+   * based method can implement processData(String...) with this.
+   *
+   * @param input one or more input datasets to process
+   * @return result of task processing in json format
+   * @throws Exception if a problem occurs
+   */
+  protected String processDataFromStream(String... input) throws Exception {
+    if (input.length != 1) {
+      TaskConfigUtils.generateError(this,
+        "Was expecting only a single input dataset");
+    }
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    processData(
+      new ByteArrayInputStream(input[0].getBytes(StandardCharsets.UTF_8)),
+      output);
+    return new String(output.toByteArray(), StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Process a single dataset supplied as a stream of UTF-8 encoded bytes. The
+   * default implementation reads the stream into a String and calls
+   * processData(String...). Subclasses that can consume the stream directly
+   * should override.
+   *
+   * @param input the input dataset to process
+   * @return result of task processing in json format
+   * @throws Exception if a problem occurs
+   */
+  public String processData(InputStream input) throws Exception {
+    return processData(AbstractDataPreparer.readFully(input));
+  }
+
+  /**
+   * Process a single dataset read from a stream and write the result to
+   * another stream. This is what the server's transports call, so that
+   * neither the request nor the result need to be held in memory as a
+   * whole. The input is encoded in the request context's input
+   * format and the result is to be written in its output format. The default
+   * implementation writes the UTF-8 encoded result of
+   * processData(InputStream), so only supports JSON input and output;
+   * subclasses that can read or write other formats should override.
+   *
+   * @param input the input dataset to process
+   * @param output the stream to write the result to
+   * @throws Exception if a problem occurs
+   */
+  public void processData(InputStream input, OutputStream output)
+    throws Exception {
+    if (m_requestContext != null
+      && m_requestContext.getInputFormat() != PayloadFormat.JSON) {
+      TaskConfigUtils.generateError(this, "This task can not read "
+        + m_requestContext.getInputFormat().getMediaType());
+    }
+    if (m_requestContext != null
+      && m_requestContext.getOutputFormat() != PayloadFormat.JSON) {
+      TaskConfigUtils.generateError(this, "This task can not write "
+        + m_requestContext.getOutputFormat().getMediaType());
+    }
+    output.write(processData(input).getBytes(StandardCharsets.UTF_8));
+  }
 }
@@ -22,6 +22,9 @@
 
 package weka.server;
 
+import java.util.Collections;
+import java.util.Map;
+
 /**
  * @author Mark Hall (mhall{[at]}pentaho{[dot]}com)
  * @author Ben Birch (Ben.Birch{[at]}hitachivantara{[dot]}com>
@@ -37,6 +40,62 @@ public abstract class WekaServerTaskPool {
    */
   public abstract WekaServerTask getTask() throws Exception;
 
+  /**
+   * Get a Task from the pool to process the request with the supplied
+   * context. The request's deadline is checked before the task is leased.
+   *
+   * @param context the context of the request (may be null)
+   * @return a Task
+   * @throws DeadlineExceededException if the request's deadline has passed
+   * @throws Exception if a problem occurs
+   */
+  public WekaServerTask getTask(RequestContext context) throws Exception {
+    if (context != null) {
+      context.checkDeadline("lease", -1);
+    }
+    WekaServerTask task = getTask();
+    task.setRequestContext(context);
+    return task;
+  }
+
+  /**
+   * Return a Task obtained via getTask() to the pool once the caller has
+   * finished with it. Default implementation does nothing; pools that reuse
+   * their tasks should override.
+   *
+   * @param task the task to return
+   */
+  public void releaseTask(WekaServerTask task) {
+  }
+
+  /**
+   * Get statistics about the pool to report alongside the task's request
+   * metrics. Default implementation returns nothing.
+   *
+   * @return named statistics
+   */
+  public Map<String, Object> getStatistics() {
+    return Collections.emptyMap();
+  }
+
+  /**
+   * Get the number of deserialized copies of the task's model that the pool
+   * currently holds (used to estimate the pool's share of the heap). Default
+   * implementation returns 1.
+   *
+   * @return the number of model copies held
+   */
+  public int getNumModelCopies() {
+    return 1;
+  }
+
+  /**
+   * Release any threads or other resources held by the pool once it is no
+   * longer in use. Default implementation does nothing.
+   */
+  public void shutdown() {
+  }
+
   /**
    * Set the config for the tasks served by this pool
    *
@@ -0,0 +1,343 @@
+/*******************************************************************************
+ * Pentaho Data Science
+ * <p/>
+ * Copyright (c) 2002-2020 Hitachi Vantara. All rights reserved.
+ * <p/>
+ * ******************************************************************************
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ * <p/>
+ ******************************************************************************/
+
+package weka.server;
+
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Process-wide registry of task pools, keyed by taskid. A taskid is the
+ * suffix of the wekaServer_&lt;taskid&gt;.props file that configures the task.
+ * Pools are created on first use and shared by everything that refers to the
+ * same taskid (the REST server, composite tasks, etc.). Concurrent first
+ * requests for a task wait for a single load of it.
+ * <p>
+ * Every configured task is described in a TaskCatalog. If the catalog has a
+ * heap budget, loading a task that takes the estimated footprint of loaded
+ * tasks over the budget evicts the least recently used tasks that are not
+ * in use, pinned (e.g. by an EmbeddedScorer) or used by another loaded task.
+ * An evicted task is loaded again when next requested.
+ *
+ * @version : $
+ */
+public class WekaServerTaskRegistry {
+
+  private static final Map<String, RegisteredTask> taskMap =
+    new ConcurrentHashMap<>();
+
+  /** Loads in progress, so that concurrent requests share them */
+  private static final Map<String, CompletableFuture<RegisteredTask>> s_loading =
+    new ConcurrentHashMap<>();
+
+  /** The tasks each thread is in the middle of loading (innermost last) */
+  private static final ThreadLocal<Deque<String>> s_loadStack =
+    ThreadLocal.withInitial(ArrayDeque::new);
+
+  /** Held while evicting tasks and while replacing an evicted task */
+  private static final Object s_evictionLock = new Object();
+
+  /**
+   * Shuts down evicted and replaced tasks, which can take a while (waiting
+   * for the pool's workers), off the request thread and outside the
+   * eviction lock
+   */
+  private static final ExecutorService s_shutdowns =
+    Executors.newSingleThreadExecutor(r -> {
+      Thread t = new Thread(r, "task-shutdown");
+      t.setDaemon(true);
+      return t;
+    });
+
+  private static final TaskCatalog s_catalog =
+    TaskCatalog.fromSystemProperties();
+
+  final static Logger logger =
+    LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+  /**
+   * Get the name of the props file that configures the given taskid
+   *
+   * @param taskid the taskid
+   * @return the name of the props file for the task
+   */
+  public static String getPropsFileName(String taskid) {
+    return "wekaServer_" + taskid + ".props";
+  }
+
+  /**
+   * Get the pool for the given taskid, creating (and warming up) the pool if
+   * this is the first time the taskid has been seen
+   *
+   * @param taskid the suffix of the wekaServer props file name for the task
+   * @return the pool for the task
+   * @throws Exception if a problem occurs
+   */
+  public static WekaServerTaskPool getTaskPool(String taskid)
+    throws Exception {
+    return getTask(taskid).getPool();
+  }
+
+  /**
+   * Get the registered task for the given taskid, creating (and warming up)
+   * its pool if this is the first time the taskid has been seen
+   *
+   * @param taskid the suffix of the wekaServer props file name for the task
+   * @return the registered task
+   * @throws Exception if a problem occurs
+   */
+  public static RegisteredTask getTask(String taskid) throws Exception {
+    String loading = s_loadStack.get().peekLast();
+    if (loading != null) {
+      s_catalog.addDependency(loading, taskid);
+    }
+    RegisteredTask task = taskMap.get(taskid);
+    if (task == null) {
+      task = loadTask(taskid);
+    }
+    return task;
+  }
+
+  /**
+   * Get the task that replaces one that has been evicted, loading it if
+   * necessary
+   *
+   * @param task a task that may have been evicted
+   * @return the task itself if it turns out not to have been evicted,
+   *         otherwise the (newly loaded) task registered under its taskid
+   * @throws Exception if a problem occurs
+   */
+  public static RegisteredTask getReplacement(RegisteredTask task)
+    throws Exception {
+    synchronized (s_evictionLock) {
+      if (!task.isRetired()) {
+        return task;
+      }
+      taskMap.remove(task.getTaskId(), task);
+    }
+    return getTask(task.getTaskId());
+  }
+
+  /**
+   * Get the catalog describing all configured tasks
+   *
+   * @return the catalog
+   */
+  public static TaskCatalog getCatalog() {
+    return s_catalog;
+  }
+
+  /**
+   * Get all the tasks loaded so far
+   *
+   * @return the registered tasks
+   */
+  public static Collection<RegisteredTask> getTasks() {
+    return new ArrayList<>(taskMap.values());
+  }
+
+  /**
+   * Remove all tasks from the registry, so that each is created afresh (with
+   * its current config) the next time it is requested. Each is shut down
+   * once the requests it is processing have finished.
+   */
+  public static synchronized void clear() {
+    synchronized (s_evictionLock) {
+      for (RegisteredTask task : taskMap.values()) {
+        unload(task);
+      }
+    }
+  }
+
+  /**
+   * Replace a task with one created afresh from its current config (e.g.
+   * after its props file has been rewritten). Requests that arrive for the
+   * old task from now on, and pinned users of its pool, go to the new task;
+   * the old task's pool (along with any transports of its own) is shut down
+   * once the requests it is processing have finished.
+   *
+   * @param taskid the taskid to reload
+   * @return the newly registered task
+   * @throws Exception if a problem occurs
+   */
+  public static synchronized RegisteredTask reload(String taskid)
+    throws Exception {
+    synchronized (s_evictionLock) {
+      RegisteredTask old = taskMap.get(taskid);
+      if (old != null) {
+        unload(old);
+      }
+    }
+    return loadTask(taskid);
+  }
+
+  /**
+   * Remove a task from the registry and have it shut down once it is idle.
+   * Called with the eviction lock held.
+   *
+   * @param task the task to unload
+   */
+  private static void unload(RegisteredTask task) {
+    taskMap.remove(task.getTaskId(), task);
+    s_catalog.unloaded(task, false);
+    task.retireAndShutdown(s_shutdowns);
+  }
+
+  /**
+   * Load and register a task, or wait for a load of it that is already in
+   * progress. Loading composite tasks re-enters via getTaskPool() for the
+   * tasks they reference.
+   *
+   * @param taskid the taskid to load
+   * @return the registered task
+   * @throws Exception if a problem occurs
+   */
+  private static RegisteredTask loadTask(String taskid) throws Exception {
+    CompletableFuture<RegisteredTask> load = new CompletableFuture<>();
+    CompletableFuture<RegisteredTask> existing =
+      s_loading.putIfAbsent(taskid, load);
+    if (existing != null) {
+      if (s_loadStack.get().contains(taskid)) {
+        TaskConfigUtils.generateError(WekaServerTaskRegistry.class,
+          "Task '" + taskid + "' refers to itself");
+      }
+      s_catalog.loadWaited();
+      try {
+        return existing.get();
+      } catch (ExecutionException ex) {
+        throw ex.getCause() instanceof Exception ? (Exception) ex.getCause()
+          : ex;
+      }
+    }
+
+    RegisteredTask task;
+    try {
+      task = taskMap.get(taskid);
+      if (task == null) {
+        long start = System.nanoTime();
+        s_loadStack.get().addLast(taskid);
+        try {
+          task = createTask(taskid);
+        } finally {
+          s_loadStack.get().removeLast();
+        }
+        taskMap.put(taskid, task);
+        s_catalog.loaded(task, System.nanoTime() - start);
+      }
+      load.complete(task);
+    } catch (Exception ex) {
+      s_catalog.loadFailed();
+      load.completeExceptionally(ex);
+      throw ex;
+    } finally {
+      s_loading.remove(taskid, load);
+    }
+    evictIfOverBudget(task);
+    return task;
+  }
+
+  /**
+   * Evict least recently used tasks until the estimated footprint of the
+   * loaded tasks is within the catalog's heap budget (if it has one)
+   *
+   * @param loaded the task just loaded, which is not evicted
+   */
+  private static void evictIfOverBudget(RegisteredTask loaded) {
+    long budget = s_catalog.getHeapBudget();
+    if (budget <= 0) {
+      return;
+    }
+    synchronized (s_evictionLock) {
+      long total = s_catalog.getEstimatedBytes();
+      Set<RegisteredTask> busy = new HashSet<>();
+      while (total > budget) {
+        RegisteredTask victim = null;
+        long victimBytes = 0;
+        for (RegisteredTask task : taskMap.values()) {
+          long bytes = s_catalog.estimateBytes(task);
+          if (task == loaded || bytes == 0 || busy.contains(task)
+            || task.isPinned()
+            || s_catalog.isDependedOn(task.getTaskId(), s_loading.keySet())) {
+            continue;
+          }
+          if (victim == null || task.getLastUsed() < victim.getLastUsed()) {
+            victim = task;
+            victimBytes = bytes;
+          }
+        }
+        if (victim == null) {
+          s_catalog.overBudget();
+          logger.warn("Loaded tasks are estimated to use " + total
+            + " bytes, over the budget of " + budget
+            + ", but none can be evicted");
+          return;
+        }
+        if (!victim.retire()) {
+          busy.add(victim);
+          continue;
+        }
+        taskMap.remove(victim.getTaskId(), victim);
+        s_catalog.unloaded(victim, true);
+        s_shutdowns.execute(victim::shutdown);
+        total -= victimBytes;
+        logger.info("Evicted task " + victim.getTaskId() + " (estimated "
+          + victimBytes + " bytes)");
+      }
+    }
+  }
+
+  /**
+   * Create a task from its config
+   *
+   * @param taskid the taskid to create a pool for
+   * @return the task
+   * @throws Exception if a problem occurs
+   */
+  private static RegisteredTask createTask(String taskid) throws Exception {
+    String propsFileName = getPropsFileName(taskid);
+    logger.info("Creating new server pool with " + propsFileName);
+    TaskConfigUtils configUtils = new TaskConfigUtils(propsFileName);
+    RegisteredTask task =
+      new RegisteredTask(taskid, configUtils, configUtils.getTaskPool());
+    try {
+      task.start();
+    } catch (Exception ex) {
+      task.shutdown();
+      throw ex;
+    }
+    return task;
+  }
+}
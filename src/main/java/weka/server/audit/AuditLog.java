@@ -0,0 +1,311 @@
+/*******************************************************************************
+ * Pentaho Data Science
+ * <p/>
+ * Copyright (c) 2002-2020 Hitachi Vantara. All rights reserved.
+ * <p/>
+ * ******************************************************************************
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ * <p/>
+ ******************************************************************************/
+
+package weka.server.audit;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import weka.core.Environment;
+import weka.core.Instances;
+import weka.server.TaskConfigUtils;
+
+/**
+ * Audit log of the predictions made by a task. Request threads encode a
+ * compact binary AuditRecord for each scored batch and add it to a lock-free
+ * ring buffer; they never wait for the disk, and if the ring is full the
+ * record is dropped and counted. A background thread drains the ring into
+ * memory-mapped segment files named &lt;taskid&gt;-&lt;start time&gt;-&lt;n&gt;.audit,
+ * starting a new segment whenever the current one is full, and forces
+ * written data to disk every flush interval. AuditLogReader decodes the
+ * segments.
+ *
+ * @version : $
+ */
+public class AuditLog {
+
+  public static final String PROP_AUDIT_DIR_KEY = "weka.server.scorer.audit.dir";
+  public static final String PROP_AUDIT_INPUT_KEY =
+    "weka.server.scorer.audit.input";
+  public static final String PROP_AUDIT_BUFFER_SIZE_KEY =
+    "weka.server.scorer.audit.bufferSize";
+  public static final int DEFAULT_BUFFER_SIZE = 8192;
+  public static final String PROP_AUDIT_SEGMENT_SIZE_KEY =
+    "weka.server.scorer.audit.segmentSize";
+  public static final long DEFAULT_SEGMENT_SIZE = 64L * 1024 * 1024;
+  public static final String PROP_AUDIT_FLUSH_INTERVAL_KEY =
+    "weka.server.scorer.audit.flushIntervalMs";
+  public static final long DEFAULT_FLUSH_INTERVAL = 1000;
+
+  /** File extension of segment files */
+  public static final String SEGMENT_EXTENSION = ".audit";
+
+  final static Logger logger =
+    LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+  /** Encoded records waiting to be written */
+  protected final AuditRingBuffer<byte[]> m_ring;
+
+  /** UTF-8 bytes of the taskid */
+  protected final byte[] m_taskIdBytes;
+
+  /** Directory to write segments to */
+  protected final File m_dir;
+
+  /** Prefix of segment file names */
+  protected final String m_prefix;
+
+  /** True to record input values as well as their fingerprint */
+  protected final boolean m_includeInput;
+
+  protected final long m_segmentSize;
+  protected final long m_flushIntervalNanos;
+
+  /** Writes records to segments */
+  protected final Thread m_writer;
+
+  protected volatile boolean m_running = true;
+
+  /** Segment being written (writer thread only) */
+  protected MappedByteBuffer m_segment;
+
+  /** Number of segments started (writer thread only) */
+  protected int m_segmentCount;
+
+  protected final LongAdder m_appended = new LongAdder();
+  protected final LongAdder m_dropped = new LongAdder();
+  protected final LongAdder m_oversized = new LongAdder();
+  protected final LongAdder m_written = new LongAdder();
+  protected final LongAdder m_bytes = new LongAdder();
+  protected final LongAdder m_segments = new LongAdder();
+  protected final LongAdder m_failed = new LongAdder();
+
+  /**
+   * Create an audit log for a task if its config names an audit directory
+   *
+   * @param taskConfigUtils the config of the task
+   * @return an audit log, or null if auditing is not configured
+   * @throws Exception if a problem occurs
+   */
+  public static AuditLog fromConfig(TaskConfigUtils taskConfigUtils)
+    throws Exception {
+    String dir = taskConfigUtils.getTaskProperty(PROP_AUDIT_DIR_KEY);
+    if (dir == null || dir.trim().length() == 0) {
+      return null;
+    }
+    try {
+      dir = Environment.getSystemWide().substitute(dir.trim());
+    } catch (Exception ex) {
+      // ignore substitution problems
+    }
+
+    int bufferSize = DEFAULT_BUFFER_SIZE;
+    String bufferS =
+      taskConfigUtils.getTaskProperty(PROP_AUDIT_BUFFER_SIZE_KEY);
+    if (bufferS != null && bufferS.length() > 0) {
+      bufferSize = Integer.parseInt(bufferS);
+    }
+    long segmentSize = DEFAULT_SEGMENT_SIZE;
+    String segmentS =
+      taskConfigUtils.getTaskProperty(PROP_AUDIT_SEGMENT_SIZE_KEY);
+    if (segmentS != null && segmentS.length() > 0) {
+      segmentSize = Long.parseLong(segmentS);
+    }
+    long flushInterval = DEFAULT_FLUSH_INTERVAL;
+    String flushS =
+      taskConfigUtils.getTaskProperty(PROP_AUDIT_FLUSH_INTERVAL_KEY);
+    if (flushS != null && flushS.length() > 0) {
+      flushInterval = Long.parseLong(flushS);
+    }
+    String inputS = taskConfigUtils.getTaskProperty(PROP_AUDIT_INPUT_KEY);
+
+    File dirFile = new File(dir);
+    if (!dirFile.isDirectory() && !dirFile.mkdirs()) {
+      TaskConfigUtils.generateError(AuditLog.class,
+        "Unable to create audit directory " + dir);
+    }
+    logger.info("Auditing " + taskConfigUtils.getTaskId() + " to " + dir);
+
+    return new AuditLog(taskConfigUtils.getTaskId(), dirFile,
+      "true".equalsIgnoreCase(inputS), bufferSize, segmentSize,
+      flushInterval);
+  }
+
+  /**
+   * Constructor. Starts the writer thread.
+   *
+   * @param taskId the task being audited
+   * @param dir the directory to write segments to
+   * @param includeInput true to record input values as well as their
+   *          fingerprint
+   * @param bufferSize the number of records that may wait to be written
+   * @param segmentSize the size of each segment file in bytes
+   * @param flushInterval how often (ms) written records are forced to disk
+   */
+  public AuditLog(String taskId, File dir, boolean includeInput,
+    int bufferSize, long segmentSize, long flushInterval) {
+    m_taskIdBytes = taskId.getBytes(StandardCharsets.UTF_8);
+    m_dir = dir;
+    m_prefix = taskId + "-" + System.currentTimeMillis() + "-";
+    m_includeInput = includeInput;
+    m_ring = new AuditRingBuffer<>(bufferSize);
+    m_segmentSize = segmentSize;
+    m_flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(flushInterval);
+
+    m_writer = new Thread(this::writeLoop, "audit-" + taskId);
+    m_writer.setDaemon(true);
+    m_writer.start();
+  }
+
+  /**
+   * Record a scored batch. Never blocks: if the buffer is full, or the log
+   * has been closed, the record is dropped. Records that would be larger
+   * than a segment are not recorded either, and are counted separately.
+   *
+   * @param data the scored instances, in the model's training header
+   * @param predictions the predictions made
+   */
+  public void append(Instances data, double[][] predictions) {
+    if (!m_running) {
+      m_dropped.increment();
+      return;
+    }
+    byte[] record = AuditRecord.encode(System.currentTimeMillis(),
+      m_taskIdBytes, data, m_includeInput, predictions, m_segmentSize);
+    if (record == null) {
+      m_oversized.increment();
+    } else if (m_ring.offer(record)) {
+      m_appended.increment();
+    } else {
+      m_dropped.increment();
+    }
+  }
+
+  /**
+   * Drains the ring into segment files until closed
+   */
+  protected void writeLoop() {
+    long lastFlush = System.nanoTime();
+    boolean dirty = false;
+    while (true) {
+      byte[] record = m_ring.poll();
+      if (record != null) {
+        try {
+          write(record);
+          dirty = true;
+        } catch (IOException ex) {
+          m_failed.increment();
+          logger.warn("Unable to write audit record: " + ex.getMessage());
+        }
+      } else if (!m_running) {
+        break;
+      }
+
+      long now = System.nanoTime();
+      if (dirty && now - lastFlush >= m_flushIntervalNanos) {
+        m_segment.force();
+        lastFlush = now;
+        dirty = false;
+      }
+      if (record == null) {
+        LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+      }
+    }
+
+    if (m_segment != null) {
+      m_segment.force();
+    }
+  }
+
+  /**
+   * Write a record to the current segment, starting a new one if it won't
+   * fit
+   *
+   * @param record the encoded record
+   * @throws IOException if a problem occurs
+   */
+  protected void write(byte[] record) throws IOException {
+    if (m_segment == null || m_segment.remaining() < record.length) {
+      if (m_segment != null) {
+        m_segment.force();
+      }
+      // zero padded, so that segments sort by name in the order written
+      File file = new File(m_dir, m_prefix
+        + String.format("%06d", m_segmentCount++) + SEGMENT_EXTENSION);
+      try (FileChannel channel = FileChannel.open(file.toPath(),
+        StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+        StandardOpenOption.WRITE)) {
+        // the mapping remains valid once the channel is closed
+        m_segment =
+          channel.map(FileChannel.MapMode.READ_WRITE, 0, m_segmentSize);
+      }
+      m_segments.increment();
+    }
+
+    m_segment.put(record);
+    m_written.increment();
+    m_bytes.add(record.length);
+  }
+
+  /**
+   * Get the statistics gathered so far
+   *
+   * @return named statistics
+   */
+  public Map<String, Object> getStatistics() {
+    Map<String, Object> stats = new LinkedHashMap<>();
+    stats.put("audit.appended", m_appended.sum());
+    stats.put("audit.dropped", m_dropped.sum());
+    stats.put("audit.oversized", m_oversized.sum());
+    stats.put("audit.written", m_written.sum());
+    stats.put("audit.failed", m_failed.sum());
+    stats.put("audit.bytes", m_bytes.sum());
+    stats.put("audit.segments", m_segments.sum());
+    return stats;
+  }
+
+  /**
+   * Stop accepting records, write out those waiting and force the current
+   * segment to disk
+   */
+  public void close() {
+    m_running = false;
+    try {
+      m_writer.join(TimeUnit.SECONDS.toMillis(10));
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
@@ -0,0 +1,145 @@
+/*******************************************************************************
+ * Pentaho Data Science
+ * <p/>
+ * Copyright (c) 2002-2020 Hitachi Vantara. All rights reserved.
+ * <p/>
+ * ******************************************************************************
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ * <p/>
+ ******************************************************************************/
+
+package weka.server.audit;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import static weka.server.dataprep.DefaultJsonInstancesDataPreparer.MAPPER;
+
+/**
+ * Command line utility to decode audit log segments. Prints one JSON object
+ * per record. Arguments are segment files, or directories whose segments are
+ * read in file name order (which, for a given task, is the order they were
+ * written in).
+ *
+ * @version : $
+ */
+public class AuditLogReader {
+
+  /**
+   * Decode all the records in a segment file
+   *
+   * @param segment the segment file
+   * @param consumer receives each record
+   * @throws IOException if a problem occurs
+   */
+  public static void read(File segment, Consumer<AuditRecord> consumer)
+    throws IOException {
+    try (FileChannel channel =
+      FileChannel.open(segment.toPath(), StandardOpenOption.READ)) {
+      MappedByteBuffer b =
+        channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      AuditRecord record;
+      while ((record = AuditRecord.decode(b)) != null) {
+        consumer.accept(record);
+      }
+    }
+  }
+
+  /**
+   * Get the segment files named by a list of files and directories
+   *
+   * @param names the names of segment files or directories holding them
+   * @return the segment files
+   */
+  public static List<File> listSegments(String... names) {
+    List<File> segments = new ArrayList<>();
+    for (String name : names) {
+      File f = new File(name);
+      if (f.isDirectory()) {
+        File[] files =
+          f.listFiles((d, n) -> n.endsWith(AuditLog.SEGMENT_EXTENSION));
+        if (files != null) {
+          Arrays.sort(files);
+          segments.addAll(Arrays.asList(files));
+        }
+      } else {
+        segments.add(f);
+      }
+    }
+    return segments;
+  }
+
+  /**
+   * Write a record as a JSON object
+   *
+   * @param record the record
+   * @param gen the generator to write to
+   * @throws IOException if a problem occurs
+   */
+  public static void writeJson(AuditRecord record, JsonGenerator gen)
+    throws IOException {
+    gen.writeStartObject();
+    gen.writeNumberField("timestamp", record.getTimestamp());
+    gen.writeStringField("taskid", record.getTaskId());
+    gen.writeStringField("fingerprint",
+      String.format("%016x", record.getFingerprint()));
+    gen.writeNumberField("rows", record.getPredictions().length);
+    if (record.getInput() != null) {
+      gen.writeFieldName("input");
+      MAPPER.writeValue(gen, record.getInput());
+    }
+    gen.writeFieldName("predictions");
+    MAPPER.writeValue(gen, record.getPredictions());
+    gen.writeEndObject();
+  }
+
+  public static void main(String[] args) {
+    if (args.length == 0) {
+      System.err.println("Usage: AuditLogReader <segment file or directory>...");
+      return;
+    }
+    try {
+      PrintStream out = System.out;
+      JsonGenerator gen = MAPPER.getFactory().createGenerator((OutputStream) out);
+      gen.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+      // records are separated by newlines instead
+      gen.setRootValueSeparator(null);
+      for (File segment : listSegments(args)) {
+        read(segment, record -> {
+          try {
+            writeJson(record, gen);
+            gen.flush();
+            out.println();
+          } catch (IOException ex) {
+            throw new RuntimeException(ex);
+          }
+        });
+      }
+    } catch (Exception ex) {
+      ex.printStackTrace();
+    }
+  }
+}
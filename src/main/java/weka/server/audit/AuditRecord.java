@@ -0,0 +1,206 @@
+/*******************************************************************************
+ * Pentaho Data Science
+ * <p/>
+ * Copyright (c) 2002-2020 Hitachi Vantara. All rights reserved.
+ * <p/>
+ * ******************************************************************************
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ * <p/>
+ ******************************************************************************/
+
+package weka.server.audit;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import weka.core.Instance;
+import weka.core.Instances;
+
+/**
+ * A single audit record: when a batch was scored, by which task, a
+ * fingerprint of the input (and optionally the input itself) and the
+ * predictions made. Records are encoded as
+ *
+ * <pre>
+ * int    length of the rest of the record (0 marks the end of a segment)
+ * long   timestamp (ms since the epoch)
+ * short  length of the taskid, followed by the UTF-8 bytes of the taskid
+ * long   fingerprint of the input values
+ * int    number of rows
+ * int    number of input values per row (0 if the input isn't recorded)
+ * double input values, row by row (Weka internal values, so nominal
+ *        values are indexes into the model's training header)
+ * int    number of predictions per row
+ * double predictions, row by row
+ * </pre>
+ *
+ * in big-endian byte order.
+ *
+ * @version : $
+ */
+public class AuditRecord {
+
+  protected long m_timestamp;
+  protected String m_taskId;
+  protected long m_fingerprint;
+  protected double[][] m_input;
+  protected double[][] m_predictions;
+
+  /**
+   * Constructor
+   *
+   * @param timestamp when the batch was scored
+   * @param taskId the task that scored it
+   * @param fingerprint a fingerprint of the input values
+   * @param input the input values (or null if not recorded)
+   * @param predictions the predictions
+   */
+  public AuditRecord(long timestamp, String taskId, long fingerprint,
+    double[][] input, double[][] predictions) {
+    m_timestamp = timestamp;
+    m_taskId = taskId;
+    m_fingerprint = fingerprint;
+    m_input = input;
+    m_predictions = predictions;
+  }
+
+  public long getTimestamp() {
+    return m_timestamp;
+  }
+
+  public String getTaskId() {
+    return m_taskId;
+  }
+
+  public long getFingerprint() {
+    return m_fingerprint;
+  }
+
+  /**
+   * Get the input values
+   *
+   * @return the input values, or null if they weren't recorded
+   */
+  public double[][] getInput() {
+    return m_input;
+  }
+
+  public double[][] getPredictions() {
+    return m_predictions;
+  }
+
+  /**
+   * Compute a 64 bit FNV-1a hash of the values of a batch of instances
+   *
+   * @param data the instances
+   * @return the fingerprint
+   */
+  public static long fingerprint(Instances data) {
+    long h = 0xcbf29ce484222325L;
+    for (int i = 0; i < data.numInstances(); i++) {
+      Instance inst = data.instance(i);
+      for (int j = 0; j < inst.numAttributes(); j++) {
+        h ^= Double.doubleToLongBits(inst.value(j));
+        h *= 0x100000001b3L;
+      }
+    }
+    return h;
+  }
+
+  /**
+   * Encode a record for a scored batch, taking values straight from the
+   * instances (to avoid copying them first)
+   *
+   * @param timestamp when the batch was scored
+   * @param taskIdBytes the UTF-8 bytes of the taskid
+   * @param data the scored instances, in the model's training header
+   * @param includeInput true if the input values are to be recorded
+   * @param predictions the predictions
+   * @param maxLength the maximum length of an encoded record in bytes
+   * @return the encoded record, or null if it would be longer than maxLength
+   */
+  public static byte[] encode(long timestamp, byte[] taskIdBytes,
+    Instances data, boolean includeInput, double[][] predictions,
+    long maxLength) {
+    int rows = data.numInstances();
+    int inputWidth = includeInput ? data.numAttributes() : 0;
+    int predWidth = rows > 0 ? predictions[0].length : 0;
+    long length = 8 + 2 + taskIdBytes.length + 8 + 4 + 4 + 4
+      + 8L * rows * (inputWidth + predWidth);
+    if (4 + length > Math.min(maxLength, Integer.MAX_VALUE - 8)) {
+      return null;
+    }
+
+    ByteBuffer b = ByteBuffer.allocate(4 + (int) length);
+    b.putInt((int) length).putLong(timestamp).putShort((short) taskIdBytes.length)
+      .put(taskIdBytes).putLong(fingerprint(data)).putInt(rows)
+      .putInt(inputWidth);
+    for (int i = 0; i < rows && inputWidth > 0; i++) {
+      Instance inst = data.instance(i);
+      for (int j = 0; j < inputWidth; j++) {
+        b.putDouble(inst.value(j));
+      }
+    }
+    b.putInt(predWidth);
+    for (int i = 0; i < rows; i++) {
+      for (int j = 0; j < predWidth; j++) {
+        b.putDouble(predictions[i][j]);
+      }
+    }
+
+    return b.array();
+  }
+
+  /**
+   * Decode the next record from a buffer
+   *
+   * @param b the buffer, positioned at the start of a record
+   * @return the record, or null if the end of the records in the buffer has
+   *         been reached
+   */
+  public static AuditRecord decode(ByteBuffer b) {
+    if (b.remaining() < 4) {
+      return null;
+    }
+    int length = b.getInt();
+    if (length <= 0 || length > b.remaining()) {
+      return null;
+    }
+
+    long timestamp = b.getLong();
+    byte[] taskIdBytes = new byte[b.getShort()];
+    b.get(taskIdBytes);
+    long fingerprint = b.getLong();
+    int rows = b.getInt();
+    int inputWidth = b.getInt();
+    double[][] input = inputWidth > 0 ? readValues(b, rows, inputWidth) : null;
+    int predWidth = b.getInt();
+    double[][] predictions = readValues(b, rows, predWidth);
+
+    return new AuditRecord(timestamp,
+      new String(taskIdBytes, StandardCharsets.UTF_8), fingerprint, input,
+      predictions);
+  }
+
+  protected static double[][] readValues(ByteBuffer b, int rows, int width) {
+    double[][] values = new double[rows][width];
+    for (int i = 0; i < rows; i++) {
+      for (int j = 0; j < width; j++) {
+        values[i][j] = b.getDouble();
+      }
+    }
+    return values;
+  }
+}
@@ -0,0 +1,126 @@
+/*******************************************************************************
+ * Pentaho Data Science
+ * <p/>
+ * Copyright (c) 2002-2020 Hitachi Vantara. All rights reserved.
+ * <p/>
+ * ******************************************************************************
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ * <p/>
+ ******************************************************************************/
+
+package weka.server.audit;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded, lock-free ring buffer for many producers and a single consumer.
+ * Each slot carries a sequence number saying whether it is ready to be
+ * written (for a given lap of the ring) or read, so producers only contend
+ * on a single compare-and-set of the tail and never wait for each other or
+ * for the consumer. offer() fails immediately rather than blocking when the
+ * ring is full.
+ *
+ * @param <T> the type of element held
+ * @version : $
+ */
+public class AuditRingBuffer<T> {
+
+  /** The elements */
+  protected final AtomicReferenceArray<T> m_elements;
+
+  /** Sequence number of each slot */
+  protected final AtomicLongArray m_sequences;
+
+  /** Capacity - 1 (capacity is a power of two) */
+  protected final int m_mask;
+
+  /** Next position to write to */
+  protected final AtomicLong m_tail = new AtomicLong();
+
+  /** Next position to read from (only used by the consumer) */
+  protected long m_head;
+
+  /**
+   * Constructor
+   *
+   * @param capacity the minimum number of elements the ring can hold (rounded
+   *          up to a power of two)
+   */
+  public AuditRingBuffer(int capacity) {
+    int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+    m_mask = size - 1;
+    m_elements = new AtomicReferenceArray<>(size);
+    m_sequences = new AtomicLongArray(size);
+    for (int i = 0; i < size; i++) {
+      m_sequences.set(i, i);
+    }
+  }
+
+  /**
+   * Add an element. Safe to call from any number of threads.
+   *
+   * @param t the element to add
+   * @return false if the ring is full (the element is not added)
+   */
+  public boolean offer(T t) {
+    while (true) {
+      long tail = m_tail.get();
+      int slot = (int) tail & m_mask;
+      long seq = m_sequences.get(slot);
+      if (seq == tail) {
+        if (m_tail.compareAndSet(tail, tail + 1)) {
+          m_elements.set(slot, t);
+          // publish to the consumer
+          m_sequences.set(slot, tail + 1);
+          return true;
+        }
+      } else if (seq < tail) {
+        // the slot still holds an element from the previous lap
+        return false;
+      }
+      // otherwise another producer claimed the slot first, so try again
+    }
+  }
+
+  /**
+   * Remove the oldest element. Must only be called by one thread at a time.
+   *
+   * @return the oldest element, or null if the ring is empty (or the next
+   *         element is still being written)
+   */
+  public T poll() {
+    int slot = (int) m_head & m_mask;
+    if (m_sequences.get(slot) != m_head + 1) {
+      return null;
+    }
+    T t = m_elements.get(slot);
+    m_elements.set(slot, null);
+    // make the slot available to producers on their next lap
+    m_sequences.set(slot, m_head + m_mask + 1);
+    m_head++;
+    return t;
+  }
+
+  /**
+   * Get the number of elements the ring can hold
+   *
+   * @return the capacity
+   */
+  public int capacity() {
+    return m_mask + 1;
+  }
+}
@@ -22,6 +22,14 @@
 
 package weka.server.dataprep;
 
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import weka.server.PayloadFormat;
+import weka.server.RequestContext;
+import weka.server.TaskConfigUtils;
+
 /**
  * Abstract base class for all data preparers
  *
@@ -41,4 +49,74 @@ public abstract class AbstractDataPreparer {
    */
   public abstract <T> T prepareInputData(String... input)
     throws Exception;
+
+  /**
+   * Prepare a single input data payload supplied as a stream of UTF-8
+   * encoded bytes. The default implementation reads the entire stream into a
+   * String and calls prepareInputData(String...); subclasses that can parse
+   * directly from a stream should override.
+   *
+   * @param input the input data to prepare
+   * @param <T> the type of the prepared data
+   * @return the prepared data
+   * @throws Exception if a problem occurs
+   */
+  public <T> T prepareInputData(InputStream input) throws Exception {
+    return prepareInputData(readFully(input));
+  }
+
+  /**
+   * Prepare one or more input payloads for the request with the supplied
+   * context. The default implementation ignores the context; subclasses that
+   * honour per-request options should override.
+   *
+   * @param context the context of the request (may be null)
+   * @param input the input data to prepare
+   * @param <T> the type of the prepared data
+   * @return the prepared data
+   * @throws Exception if a problem occurs
+   */
+  public <T> T prepareInputData(RequestContext context, String... input)
+    throws Exception {
+    return prepareInputData(input);
+  }
+
+  /**
+   * Prepare a single streamed input payload for the request with the
+   * supplied context. The default implementation reads the payload as UTF-8
+   * encoded JSON, so rejects any other input format, and otherwise ignores
+   * the context; subclasses that read other formats or honour per-request
+   * options should override.
+   *
+   * @param context the context of the request (may be null)
+   * @param input the input data to prepare
+   * @param <T> the type of the prepared data
+   * @return the prepared data
+   * @throws Exception if a problem occurs
+   */
+  public <T> T prepareInputData(RequestContext context, InputStream input)
+    throws Exception {
+    if (context != null && context.getInputFormat() != PayloadFormat.JSON) {
+      TaskConfigUtils.generateError(this, "This data preparer can not read "
+        + context.getInputFormat().getMediaType());
+    }
+    return prepareInputData(input);
+  }
+
+  /**
+   * Read the supplied stream of UTF-8 encoded bytes into a String
+   *
+   * @param input the stream to read
+   * @return the contents of the stream
+   * @throws Exception if a problem occurs
+   */
+  public static String readFully(InputStream input) throws Exception {
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    byte[] buffer = new byte[8192];
+    int n;
+    while ((n = input.read(buffer)) >= 0) {
+      bos.write(buffer, 0, n);
+    }
+    return new String(bos.toByteArray(), StandardCharsets.UTF_8);
+  }
 }
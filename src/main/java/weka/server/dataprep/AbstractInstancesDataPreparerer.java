@@ -27,6 +27,7 @@ import weka.core.Utils;
 import weka.core.converters.CSVLoader;
 
 import java.io.ByteArrayInputStream;
+import java.util.Arrays;
 
 /**
  * Abstract base class for data preparers. Most of the time, the default
@@ -68,4 +69,37 @@ public abstract class AbstractInstancesDataPreparerer
 
     return loader.getDataSet();
   }
+
+  /**
+   * Sort the first count entries of parallel index/value arrays (such as those
+   * used to construct SparseInstances) by index. Sparse values usually arrive
+   * already in order, which is checked for first; otherwise each index is
+   * packed with its position into a long and the longs are sorted, which
+   * keeps entries with equal indices in their original order.
+   *
+   * @param indices the indices
+   * @param vals the values
+   * @param count the number of entries to sort
+   */
+  public static void sortByIndex(int[] indices, double[] vals, int count) {
+    int i = 1;
+    while (i < count && indices[i - 1] <= indices[i]) {
+      i++;
+    }
+    if (i >= count) {
+      return;
+    }
+
+    long[] packed = new long[count];
+    for (int j = 0; j < count; j++) {
+      packed[j] = ((long) indices[j] << 32) | j;
+    }
+    Arrays.sort(packed);
+    double[] sortedVals = new double[count];
+    for (int j = 0; j < count; j++) {
+      indices[j] = (int) (packed[j] >> 32);
+      sortedVals[j] = vals[(int) packed[j]];
+    }
+    System.arraycopy(sortedVals, 0, vals, 0, count);
+  }
 }
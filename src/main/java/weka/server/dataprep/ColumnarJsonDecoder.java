@@ -0,0 +1,302 @@
+/*******************************************************************************
+ * Pentaho Data Science
+ * <p/>
+ * Copyright (c) 2002-2020 Hitachi Vantara. All rights reserved.
+ * <p/>
+ * ******************************************************************************
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ * <p/>
+ ******************************************************************************/
+
+package weka.server.dataprep;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instances;
+import weka.core.Utils;
+import weka.server.TaskConfigUtils;
+
+/**
+ * Decodes pandas orient=columns and orient=records JSON straight from a
+ * streaming parser into one primitive double[] per column, and then builds
+ * Instances from the columns. There is no intermediate per-cell object or
+ * CSV text.
+ * <p>
+ * Columns may be given as arrays ({"a": [1, 2], "b": ["x", "y"]}) or as
+ * objects keyed by row index, as pandas writes them ({"a": {"0": 1, "1": 2},
+ * ...}). Records are an array of row objects ([{"a": 1, "b": "x"}, ...]);
+ * a column absent from a row is missing in that row. Columns holding only
+ * numbers (or nulls) become numeric attributes; columns holding any strings
+ * become nominal attributes with labels in order of first appearance. null,
+ * "" and "?" are missing values.
+ *
+ * @version : $
+ */
+public class ColumnarJsonDecoder {
+
+  /** Values decoded for a single column */
+  protected static class Column {
+    protected final String m_name;
+
+    /** Numeric values, or label indexes once m_labels is in use */
+    protected double[] m_values = new double[16];
+
+    /** Label of each row that held a string (null until one is seen) */
+    protected String[] m_strings;
+
+    /** Number of rows written so far (highest row index + 1) */
+    protected int m_numRows;
+
+    protected Column(String name) {
+      m_name = name;
+      Arrays.fill(m_values, Utils.missingValue());
+    }
+
+    protected void ensureCapacity(int row) {
+      if (row >= m_values.length) {
+        int oldLength = m_values.length;
+        int newLength = Math.max(row + 1, oldLength * 2);
+        m_values = Arrays.copyOf(m_values, newLength);
+        Arrays.fill(m_values, oldLength, newLength, Utils.missingValue());
+        if (m_strings != null) {
+          m_strings = Arrays.copyOf(m_strings, newLength);
+        }
+      }
+    }
+
+    /**
+     * Set the value for a row from the parser's current (scalar) token
+     *
+     * @param row the row index
+     * @param p the parser
+     * @throws Exception if the token is not a scalar
+     */
+    protected void set(int row, JsonParser p) throws Exception {
+      ensureCapacity(row);
+      m_numRows = Math.max(m_numRows, row + 1);
+      JsonToken t = p.currentToken();
+      switch (t) {
+      case VALUE_NUMBER_INT:
+      case VALUE_NUMBER_FLOAT:
+        m_values[row] = p.getDoubleValue();
+        break;
+      case VALUE_NULL:
+        break;
+      case VALUE_TRUE:
+      case VALUE_FALSE:
+      case VALUE_STRING:
+        String s = p.getText();
+        if (s.length() > 0 && !s.equals("?")) {
+          if (m_strings == null) {
+            m_strings = new String[m_values.length];
+          }
+          m_strings[row] = s;
+        }
+        break;
+      default:
+        TaskConfigUtils.generateError(ColumnarJsonDecoder.class,
+          "Expected a single value for row " + row + " of column '" + m_name
+            + "' but found " + t);
+      }
+    }
+
+    /**
+     * Create the attribute for this column, converting the column's values
+     * to label indexes if it is nominal
+     *
+     * @return the attribute
+     */
+    protected Attribute toAttribute() {
+      if (m_strings == null) {
+        return new Attribute(m_name);
+      }
+
+      Map<String, Integer> labelIndex = new LinkedHashMap<>();
+      for (int i = 0; i < m_numRows; i++) {
+        String label = m_strings[i];
+        if (label == null && !Utils.isMissingValue(m_values[i])) {
+          // a number in an otherwise nominal column
+          double v = m_values[i];
+          label = v == Math.rint(v) && !Double.isInfinite(v)
+            ? Long.toString((long) v) : Double.toString(v);
+        }
+        if (label != null) {
+          Integer index = labelIndex.get(label);
+          if (index == null) {
+            index = labelIndex.size();
+            labelIndex.put(label, index);
+          }
+          m_values[i] = index;
+        }
+      }
+      return new Attribute(m_name, new ArrayList<>(labelIndex.keySet()));
+    }
+  }
+
+  /**
+   * Decode a pandas orient=columns document. The parser must not have been
+   * advanced, or be positioned on the document's START_OBJECT.
+   *
+   * @param p the parser
+   * @return the decoded data
+   * @throws Exception if a problem occurs
+   */
+  public static Instances decodeColumns(JsonParser p) throws Exception {
+    expect(p, JsonToken.START_OBJECT, "columns");
+
+    List<Column> columns = new ArrayList<>();
+    Map<String, Integer> rowIndex = null;
+    while (p.nextToken() == JsonToken.FIELD_NAME) {
+      Column column = new Column(p.getCurrentName());
+      columns.add(column);
+      JsonToken t = p.nextToken();
+      if (t == JsonToken.START_ARRAY) {
+        int row = 0;
+        while (p.nextToken() != JsonToken.END_ARRAY) {
+          column.set(row++, p);
+        }
+      } else if (t == JsonToken.START_OBJECT) {
+        // keyed by row index, in (normally) the same order for every column
+        if (rowIndex == null) {
+          rowIndex = new HashMap<>();
+        }
+        while (p.nextToken() == JsonToken.FIELD_NAME) {
+          String key = p.getCurrentName();
+          Integer row = rowIndex.get(key);
+          if (row == null) {
+            row = rowIndex.size();
+            rowIndex.put(key, row);
+          }
+          p.nextToken();
+          column.set(row, p);
+        }
+      } else {
+        TaskConfigUtils.generateError(ColumnarJsonDecoder.class,
+          "Expected an array or object of values for column '"
+            + column.m_name + "' but found " + t);
+      }
+    }
+
+    return toInstances(columns);
+  }
+
+  /**
+   * Decode a pandas orient=records document. The parser must not have been
+   * advanced, or be positioned on the document's START_ARRAY.
+   *
+   * @param p the parser
+   * @return the decoded data
+   * @throws Exception if a problem occurs
+   */
+  public static Instances decodeRecords(JsonParser p) throws Exception {
+    expect(p, JsonToken.START_ARRAY, "records");
+
+    Map<String, Column> columns = new LinkedHashMap<>();
+    int row = 0;
+    JsonToken t;
+    while ((t = p.nextToken()) != JsonToken.END_ARRAY) {
+      if (t != JsonToken.START_OBJECT) {
+        TaskConfigUtils.generateError(ColumnarJsonDecoder.class,
+          "Expected an object for record " + row + " but found " + t);
+      }
+      while (p.nextToken() == JsonToken.FIELD_NAME) {
+        String name = p.getCurrentName();
+        Column column = columns.get(name);
+        if (column == null) {
+          column = new Column(name);
+          columns.put(name, column);
+        }
+        p.nextToken();
+        column.set(row, p);
+      }
+      row++;
+    }
+
+    for (Column column : columns.values()) {
+      // rows at the end that lacked the column
+      column.ensureCapacity(row - 1);
+      column.m_numRows = row;
+    }
+    return toInstances(new ArrayList<>(columns.values()));
+  }
+
+  /**
+   * Check that the parser is on (or advance it to) the expected first token
+   *
+   * @param p the parser
+   * @param expected the expected token
+   * @param orient the orientation being decoded (for error messages)
+   * @throws Exception if the token is not the expected one
+   */
+  protected static void expect(JsonParser p, JsonToken expected,
+    String orient) throws Exception {
+    JsonToken t = p.currentToken();
+    if (t == null) {
+      t = p.nextToken();
+    }
+    if (t != expected) {
+      TaskConfigUtils.generateError(ColumnarJsonDecoder.class,
+        "Payload does not look like pandas orient=" + orient + " JSON");
+    }
+  }
+
+  /**
+   * Build Instances from decoded columns
+   *
+   * @param columns the columns
+   * @return the Instances
+   * @throws Exception if there are no columns
+   */
+  protected static Instances toInstances(List<Column> columns)
+    throws Exception {
+    if (columns.size() == 0) {
+      TaskConfigUtils.generateError(ColumnarJsonDecoder.class,
+        "No columns in payload");
+    }
+
+    int numRows = 0;
+    for (Column column : columns) {
+      numRows = Math.max(numRows, column.m_numRows);
+    }
+    ArrayList<Attribute> atts = new ArrayList<>();
+    double[][] values = new double[columns.size()][];
+    for (int j = 0; j < columns.size(); j++) {
+      Column column = columns.get(j);
+      column.ensureCapacity(numRows - 1);
+      atts.add(column.toAttribute());
+      values[j] = column.m_values;
+    }
+
+    Instances data = new Instances("input", atts, numRows);
+    for (int i = 0; i < numRows; i++) {
+      double[] row = new double[values.length];
+      for (int j = 0; j < values.length; j++) {
+        row[j] = values[j][i];
+      }
+      data.add(new DenseInstance(1.0, row));
+    }
+    return data;
+  }
+}
@@ -23,6 +23,9 @@
 package weka.server.dataprep;
 
 import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.SerializationFeature;
 import com.fasterxml.jackson.core.type.TypeReference;
@@ -32,14 +35,21 @@ import com.fasterxml.jackson.module.paramnames.ParameterNamesModule;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import weka.core.Attribute;
 import weka.core.Instance;
 import weka.core.Instances;
+import weka.core.SparseInstance;
+import weka.core.Utils;
+import weka.server.RequestContext;
 import weka.server.TaskConfigUtils;
 
 import java.io.BufferedReader;
 import java.io.FileReader;
+import java.io.InputStream;
 import java.lang.invoke.MethodHandles;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
@@ -51,7 +61,24 @@ import static com.fasterxml.jackson.annotation.PropertyAccessor.FIELD;
  * Default data preparer for JSON pandas-split formatted data. Simply converts
  * (via CSV intermediatary) to Weka Instances/ARFF format. Column types can be
  * coerced via options to the CSVLoader, specified via the
- * weka.scorer.data.preparer.csvOpts property in the props config file
+ * weka.scorer.data.preparer.csvOpts property in the props config file.
+ * <p>
+ * Sparse numeric data is also accepted. In this case each row in "data" is an
+ * object holding "values" and either "indices" (into "columns") or "names"
+ * of the columns that are non-zero, e.g.
+ * {"columns": ["a", "b", "c"], "data": [{"indices": [0, 2], "values": [1.5, 3]}]}
+ * or {"data": [{"names": ["a", "c"], "values": [1.5, 3]}]}. Sparse data is
+ * converted directly to Weka SparseInstances, without a CSV intermediary.
+ * <p>
+ * pandas orient=columns and orient=records JSON are also accepted, and are
+ * decoded column by column without a CSV intermediary (see
+ * ColumnarJsonDecoder). The layout is given per request via the
+ * X-Json-Orient header, or per task via the
+ * weka.server.scorer.data.preparer.orient property. If neither is set, a JSON
+ * array is read as records and anything else as split.
+ * <p>
+ * Streamed payloads are decoded in the request's input format (see
+ * PayloadFormat), so the same structures may also be sent as CBOR or Smile.
  *
  * @author Mark Hall (mhall{[at]}pentaho{[dot]}com)
  * @author Ben Birch (Ben.Birch{[at]}hitachivantara{[dot]}com>
@@ -59,6 +86,24 @@ import static com.fasterxml.jackson.annotation.PropertyAccessor.FIELD;
 public class DefaultJsonInstancesDataPreparer
   extends AbstractInstancesDataPreparerer {
   protected TaskConfigUtils taskConfigUtils;
+
+  /** Property giving the layout of JSON payloads (split, columns or records) */
+  public static final String PROP_ORIENT_KEY =
+    "weka.server.scorer.data.preparer.orient";
+
+  /** Name of the request option that overrides PROP_ORIENT_KEY */
+  public static final String ORIENT_OPTION = "orient";
+
+  public static final String ORIENT_SPLIT = "split";
+  public static final String ORIENT_COLUMNS = "columns";
+  public static final String ORIENT_RECORDS = "records";
+
+  /** Column names of the most recently used sparse header */
+  protected List<String> m_sparseColumns;
+
+  /** The most recently used sparse header (reused when columns match) */
+  protected Instances m_sparseHeader;
+
   final static Logger logger = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
 
   public DefaultJsonInstancesDataPreparer(TaskConfigUtils taskConfigUtils) {
@@ -83,12 +128,39 @@ public class DefaultJsonInstancesDataPreparer
    * @return a csv string
    * @throws Exception if a problem occurs
    */
-  @SuppressWarnings("unchecked")
   protected static String pandasSplitJsonToCsv(String json) throws Exception {
 
     Map<String, Object> m = MAPPER.readValue(json, new TypeReference<Map<String, Object>>() {
     });
 
+    return pandasSplitJsonToCsv(m);
+  }
+
+  /**
+   * Converts a pandas-split json stream to a CSV string
+   *
+   * @param json stream of UTF-8 encoded json pandas-split
+   * @return a csv string
+   * @throws Exception if a problem occurs
+   */
+  protected static String pandasSplitJsonToCsv(InputStream json) throws Exception {
+
+    Map<String, Object> m = MAPPER.readValue(json, new TypeReference<Map<String, Object>>() {
+    });
+
+    return pandasSplitJsonToCsv(m);
+  }
+
+  /**
+   * Converts a decoded pandas-split json object to a CSV string
+   *
+   * @param m the decoded pandas-split json object
+   * @return a csv string
+   * @throws Exception if a problem occurs
+   */
+  @SuppressWarnings("unchecked")
+  protected static String pandasSplitJsonToCsv(Map<String, Object> m) throws Exception {
+
     List<Object> columnNames = (List<Object>) m.get("columns");
     if (columnNames == null || columnNames.size() == 0) {
       TaskConfigUtils
@@ -136,15 +208,361 @@ public class DefaultJsonInstancesDataPreparer
    * @throws Exception if a problem occurs
    */
   @Override
-  @SuppressWarnings("unchecked")
   public Instances prepareInputData(String... input) throws Exception {
+    return prepareInputData((RequestContext) null, input);
+  }
+
+  @Override
+  public Instances prepareInputData(RequestContext context, String... input) throws Exception {
 
     if (input.length > 1) {
       TaskConfigUtils
         .generateError(DefaultJsonInstancesDataPreparer.class, "Was expecting only a " + "single input dataset");
     }
 
-    String csvData = pandasSplitJsonToCsv(input[0]);
+    try (JsonParser p = MAPPER.getFactory().createParser(input[0])) {
+      return parseInstances(p, getOrient(context));
+    }
+  }
+
+  /**
+   * Input data is assumed to be a stream of UTF-8 encoded JSON in the
+   * pandas-split format. The stream is decoded directly, without first being
+   * read into a String.
+   *
+   * @param input the stream of JSON input
+   * @return a set of Weka Instances representing the data
+   * @throws Exception if a problem occurs
+   */
+  @Override
+  public Instances prepareInputData(InputStream input) throws Exception {
+    return prepareInputData((RequestContext) null, input);
+  }
+
+  @Override
+  public Instances prepareInputData(RequestContext context, InputStream input) throws Exception {
+    JsonFactory factory = context != null ? context.getInputFormat().getFactory() : MAPPER.getFactory();
+    try (JsonParser p = factory.createParser(input)) {
+      return parseInstances(p, getOrient(context));
+    }
+  }
+
+  /**
+   * Get the layout of the payload for a request: the request's orient option
+   * if set, otherwise the task's weka.server.scorer.data.preparer.orient property
+   *
+   * @param context the context of the request (may be null)
+   * @return the orient, or null to infer it from the payload
+   * @throws Exception if the orient is not one that is supported
+   */
+  public String getOrient(RequestContext context) throws Exception {
+    String orient = context != null ? context.getOption(ORIENT_OPTION) : null;
+    if (orient == null && taskConfigUtils != null) {
+      orient = taskConfigUtils.getTaskProperty(PROP_ORIENT_KEY);
+    }
+    if (orient == null || orient.trim().length() == 0) {
+      return null;
+    }
+
+    orient = orient.trim().toLowerCase();
+    if (!orient.equals(ORIENT_SPLIT) && !orient.equals(ORIENT_COLUMNS) && !orient.equals(ORIENT_RECORDS)) {
+      TaskConfigUtils.generateError(DefaultJsonInstancesDataPreparer.class,
+        "Unsupported JSON orient '" + orient + "' (expected split, columns or records)");
+    }
+    return orient;
+  }
+
+  /**
+   * Parse a payload with the supplied layout
+   *
+   * @param p a parser positioned at the start of the payload (or on its first
+   *          token)
+   * @param orient the layout of the payload, or null to infer it
+   * @return a set of Weka Instances representing the data
+   * @throws Exception if a problem occurs
+   */
+  public Instances parseInstances(JsonParser p, String orient) throws Exception {
+    JsonToken first = p.currentToken() != null ? p.currentToken() : p.nextToken();
+    if (orient == null) {
+      orient = first == JsonToken.START_ARRAY ? ORIENT_RECORDS : ORIENT_SPLIT;
+    }
+
+    if (orient.equals(ORIENT_COLUMNS)) {
+      return ColumnarJsonDecoder.decodeColumns(p);
+    }
+    if (orient.equals(ORIENT_RECORDS)) {
+      return ColumnarJsonDecoder.decodeRecords(p);
+    }
+    if (first != JsonToken.START_OBJECT) {
+      TaskConfigUtils.generateError(DefaultJsonInstancesDataPreparer.class,
+        "Payload does not look like pandas orient=split JSON");
+    }
+    return parseSplit(p);
+  }
+
+  /**
+   * Parse a pandas orient=split (dense or sparse) payload. Sparse rows
+   * (objects rather than arrays) are streamed straight into index and value
+   * arrays; dense rows are decoded and converted via CSV. Fields other than
+   * columns and data (e.g. index) are skipped.
+   *
+   * @param p a parser positioned on the payload's START_OBJECT
+   * @return a set of Weka Instances representing the data
+   * @throws Exception if a problem occurs
+   */
+  protected Instances parseSplit(JsonParser p) throws Exception {
+    List<Object> declared = null;
+    List<Object> denseRows = null;
+    SparseRows sparseRows = null;
+    while (p.nextToken() == JsonToken.FIELD_NAME) {
+      String field = p.getCurrentName();
+      JsonToken t = p.nextToken();
+      if (field.equals("columns") && t == JsonToken.START_ARRAY) {
+        declared = new ArrayList<>();
+        while (p.nextToken() != JsonToken.END_ARRAY) {
+          declared.add(p.getText());
+        }
+      } else if (field.equals("data") && t == JsonToken.START_ARRAY) {
+        JsonToken row = p.nextToken();
+        if (row == JsonToken.START_OBJECT) {
+          sparseRows = new SparseRows();
+          do {
+            if (row != JsonToken.START_OBJECT) {
+              TaskConfigUtils.generateError(this, "Sparse row "
+                + sparseRows.m_numRows + " is not an object");
+            }
+            sparseRows.read(p);
+          } while ((row = p.nextToken()) != JsonToken.END_ARRAY);
+        } else {
+          denseRows = new ArrayList<>();
+          for (; row != JsonToken.END_ARRAY; row = p.nextToken()) {
+            denseRows.add(MAPPER.readValue(p, Object.class));
+          }
+        }
+      } else {
+        p.skipChildren();
+      }
+    }
+
+    if (sparseRows != null) {
+      return sparseRows.toInstances(declared);
+    }
+    Map<String, Object> m = new LinkedHashMap<>();
+    m.put("columns", declared);
+    m.put("data", denseRows);
+    return csvToInstances(pandasSplitJsonToCsv(m));
+  }
+
+  /**
+   * Rows of sparse pandas-split data ({"indices": [...], "values": [...]}
+   * or {"names": [...], "values": [...]}), read from a parser into
+   * primitive arrays. All columns are numeric.
+   */
+  protected class SparseRows {
+
+    /** Columns named by rows (in order of first appearance) */
+    protected final List<String> m_named = new ArrayList<>();
+    protected final Map<String, Integer> m_namedIndex = new HashMap<>();
+
+    /** Whether each row's indices are column names (else declared indices) */
+    protected boolean[] m_byName = new boolean[16];
+    protected int[][] m_indices = new int[16][];
+    protected double[][] m_values = new double[16][];
+    protected int m_numRows;
+
+    /** Buffers for the row being read */
+    protected int[] m_rowIndices = new int[16];
+    protected int[] m_rowNames = new int[16];
+    protected double[] m_rowValues = new double[16];
+
+    /**
+     * Read a row
+     *
+     * @param p a parser positioned on the row's START_OBJECT
+     * @throws Exception if the row is malformed
+     */
+    protected void read(JsonParser p) throws Exception {
+      int row = m_numRows;
+      int numIndices = -1;
+      int numNames = -1;
+      int numValues = -1;
+      while (p.nextToken() == JsonToken.FIELD_NAME) {
+        String field = p.getCurrentName();
+        JsonToken t = p.nextToken();
+        if (t != JsonToken.START_ARRAY) {
+          p.skipChildren();
+          continue;
+        }
+        if (field.equals("indices")) {
+          numIndices = 0;
+          while (p.nextToken() != JsonToken.END_ARRAY) {
+            if (numIndices == m_rowIndices.length) {
+              m_rowIndices = Arrays.copyOf(m_rowIndices, numIndices * 2);
+            }
+            m_rowIndices[numIndices++] = p.getValueAsInt(-1);
+          }
+        } else if (field.equals("names")) {
+          numNames = 0;
+          while (p.nextToken() != JsonToken.END_ARRAY) {
+            if (numNames == m_rowNames.length) {
+              m_rowNames = Arrays.copyOf(m_rowNames, numNames * 2);
+            }
+            String name = p.getText();
+            Integer index = m_namedIndex.get(name);
+            if (index == null) {
+              index = m_named.size();
+              m_namedIndex.put(name, index);
+              m_named.add(name);
+            }
+            m_rowNames[numNames++] = index;
+          }
+        } else if (field.equals("values")) {
+          numValues = 0;
+          while (p.nextToken() != JsonToken.END_ARRAY) {
+            if (numValues == m_rowValues.length) {
+              m_rowValues = Arrays.copyOf(m_rowValues, numValues * 2);
+            }
+            m_rowValues[numValues++] = readValue(p);
+          }
+        } else {
+          p.skipChildren();
+        }
+      }
+
+      boolean byName = numIndices < 0;
+      int numKeys = byName ? numNames : numIndices;
+      if (numValues < 0 || numKeys < 0 || numKeys != numValues) {
+        TaskConfigUtils.generateError(this, "Sparse row " + row + " must have "
+          + "'values' and the same number of 'indices' or 'names'");
+      }
+      if (row == m_indices.length) {
+        m_byName = Arrays.copyOf(m_byName, row * 2);
+        m_indices = Arrays.copyOf(m_indices, row * 2);
+        m_values = Arrays.copyOf(m_values, row * 2);
+      }
+      m_byName[row] = byName;
+      m_indices[row] =
+        Arrays.copyOf(byName ? m_rowNames : m_rowIndices, numKeys);
+      m_values[row] = Arrays.copyOf(m_rowValues, numValues);
+      m_numRows++;
+    }
+
+    /**
+     * Read a sparse value. Nulls, empty strings and "null" are treated as
+     * missing values.
+     *
+     * @param p a parser positioned on the value
+     * @return the value as a double
+     * @throws Exception if the value is not numeric
+     */
+    protected double readValue(JsonParser p) throws Exception {
+      JsonToken t = p.currentToken();
+      if (t == JsonToken.VALUE_NUMBER_INT || t == JsonToken.VALUE_NUMBER_FLOAT) {
+        return p.getDoubleValue();
+      }
+      if (t == JsonToken.VALUE_NULL) {
+        return Utils.missingValue();
+      }
+      if (t != JsonToken.VALUE_STRING) {
+        TaskConfigUtils.generateError(this, "Non-numeric sparse value: " + t);
+      }
+      String strValue = p.getText().trim();
+      if (strValue.length() == 0 || strValue.equalsIgnoreCase("null")) {
+        return Utils.missingValue();
+      }
+      try {
+        return Double.parseDouble(strValue);
+      } catch (NumberFormatException ex) {
+        TaskConfigUtils.generateError(this, "Non-numeric sparse value: " + strValue);
+      }
+      return Utils.missingValue();
+    }
+
+    /**
+     * Build the instances once all rows have been read. Declared columns
+     * come first, followed by any named only by rows.
+     *
+     * @param declared the declared column names (or null)
+     * @return the instances
+     * @throws Exception if a row refers to an undeclared column index or
+     *           gives a column more than once
+     */
+    protected Instances toInstances(List<Object> declared) throws Exception {
+      List<String> columns = new ArrayList<>();
+      Map<String, Integer> columnIndex = new HashMap<>();
+      if (declared != null) {
+        for (Object n : declared) {
+          columnIndex.put(n.toString(), columns.size());
+          columns.add(n.toString());
+        }
+      }
+      int numDeclared = columns.size();
+      int[] namedToColumn = new int[m_named.size()];
+      for (int i = 0; i < namedToColumn.length; i++) {
+        String name = m_named.get(i);
+        Integer index = columnIndex.get(name);
+        if (index == null) {
+          index = columns.size();
+          columnIndex.put(name, index);
+          columns.add(name);
+        }
+        namedToColumn[i] = index;
+      }
+
+      for (int i = 0; i < m_numRows; i++) {
+        int[] idx = m_indices[i];
+        if (m_byName[i]) {
+          for (int j = 0; j < idx.length; j++) {
+            idx[j] = namedToColumn[idx[j]];
+          }
+        } else {
+          for (int j = 0; j < idx.length; j++) {
+            if (idx[j] < 0 || idx[j] >= numDeclared) {
+              TaskConfigUtils.generateError(this, "Sparse row " + i
+                + " refers to column index " + idx[j] + ", but only "
+                + numDeclared + " columns are declared");
+            }
+          }
+        }
+        sortByIndex(idx, m_values[i], idx.length);
+        for (int j = 1; j < idx.length; j++) {
+          if (idx[j] == idx[j - 1]) {
+            TaskConfigUtils.generateError(this, "Sparse row " + i
+              + " has more than one value for column '" + columns.get(idx[j]) + "'");
+          }
+        }
+      }
+
+      // reuse the header from the previous request if the columns are the same
+      if (m_sparseHeader == null || !columns.equals(m_sparseColumns)) {
+        ArrayList<Attribute> atts = new ArrayList<>(columns.size());
+        for (String name : columns) {
+          atts.add(new Attribute(name));
+        }
+        m_sparseHeader = new Instances("sparse", atts, 0);
+        m_sparseColumns = columns;
+      }
+
+      Instances result = new Instances(m_sparseHeader, m_numRows);
+      for (int i = 0; i < m_numRows; i++) {
+        result.add(new SparseInstance(1.0, m_values[i], m_indices[i], columns.size()));
+      }
+      if (taskConfigUtils.debug) {
+        logger.debug("Decoded sparse input data:\n\n" + result.toString());
+      }
+      return result;
+    }
+  }
+
+  /**
+   * Convert CSV data to Instances, using the CSV options configured for the
+   * task
+   *
+   * @param csvData the CSV data to convert
+   * @return a set of Weka Instances representing the data
+   * @throws Exception if a problem occurs
+   */
+  protected Instances csvToInstances(String csvData) throws Exception {
     String csvOpts = taskConfigUtils.getTaskProperty(
       AbstractInstancesDataPreparerer.PROP_SCORER_CSV_OPTS_KEY);
 
@@ -0,0 +1,262 @@
+/*******************************************************************************
+ * Pentaho Data Science
+ * <p/>
+ * Copyright (c) 2002-2020 Hitachi Vantara. All rights reserved.
+ * <p/>
+ * ******************************************************************************
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ * <p/>
+ ******************************************************************************/
+
+package weka.server.dataprep;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import weka.core.Instances;
+import weka.server.TaskConfigUtils;
+
+/**
+ * Reads a (possibly very large) JSON payload as a sequence of Instances
+ * chunks, so that the payload never has to be held in memory as a whole.
+ * Three layouts are accepted:
+ * <ul>
+ * <li>pandas orient=records: an array of row objects</li>
+ * <li>newline-delimited JSON: a sequence of row objects at the top level</li>
+ * <li>pandas orient=split, with "columns" before "data" (as pandas writes
+ * it)</li>
+ * </ul>
+ * Each chunk is decoded as ColumnarJsonDecoder decodes a whole payload, so
+ * attribute types and nominal labels are those seen in the chunk; a
+ * MappingPlan takes care of relating them to the model.
+ *
+ * @version : $
+ */
+public class JsonChunkReader {
+
+  protected enum Layout {
+    RECORDS, NDJSON, SPLIT
+  }
+
+  /** The parser being read from */
+  protected final JsonParser m_parser;
+
+  /** The layout of the payload */
+  protected final Layout m_layout;
+
+  /** Column names (split layout only) */
+  protected List<String> m_columnNames;
+
+  /** True if the first row object has been started but not yet read */
+  protected boolean m_pendingRecord;
+
+  /** True once the end of the data has been reached */
+  protected boolean m_done;
+
+  /** Number of rows read so far */
+  protected long m_rowsRead;
+
+  /**
+   * Constructor. Works out the layout of the payload from its first token(s).
+   *
+   * @param p a parser that has not been advanced, or is on its first token
+   * @throws Exception if the payload is not in one of the accepted layouts
+   */
+  public JsonChunkReader(JsonParser p) throws Exception {
+    m_parser = p;
+    JsonToken t = p.currentToken() != null ? p.currentToken() : p.nextToken();
+    if (t == null) {
+      m_layout = Layout.NDJSON;
+      m_done = true;
+    } else if (t == JsonToken.START_ARRAY) {
+      m_layout = Layout.RECORDS;
+    } else if (t != JsonToken.START_OBJECT) {
+      m_layout = null;
+      TaskConfigUtils.generateError(this,
+        "Payload does not look like records, newline-delimited or split JSON");
+    } else if (p.nextToken() == JsonToken.FIELD_NAME
+      && isSplitField(p.getCurrentName())) {
+      m_layout = Layout.SPLIT;
+      startSplitData();
+    } else {
+      // the first row object of newline-delimited JSON, its first field name
+      // (or END_OBJECT) already read
+      m_layout = Layout.NDJSON;
+      m_pendingRecord = true;
+    }
+  }
+
+  protected static boolean isSplitField(String name) {
+    return name.equals("columns") || name.equals("index")
+      || name.equals("data");
+  }
+
+  /**
+   * Read the fields of a split payload up to the start of the data array
+   *
+   * @throws Exception if the columns do not precede the data
+   */
+  protected void startSplitData() throws Exception {
+    JsonParser p = m_parser;
+    while (p.currentToken() == JsonToken.FIELD_NAME) {
+      String name = p.getCurrentName();
+      JsonToken t = p.nextToken();
+      if (name.equals("columns") && t == JsonToken.START_ARRAY) {
+        m_columnNames = new ArrayList<>();
+        while (p.nextToken() != JsonToken.END_ARRAY) {
+          m_columnNames.add(p.getText());
+        }
+      } else if (name.equals("data") && t == JsonToken.START_ARRAY) {
+        if (m_columnNames == null) {
+          TaskConfigUtils.generateError(this,
+            "Split payloads must give \"columns\" before \"data\" to be "
+              + "streamed");
+        }
+        return;
+      } else {
+        p.skipChildren();
+      }
+      p.nextToken();
+    }
+    TaskConfigUtils.generateError(this, "No \"data\" in split payload");
+  }
+
+  /**
+   * Get the number of rows read so far
+   *
+   * @return the number of rows read
+   */
+  public long getRowsRead() {
+    return m_rowsRead;
+  }
+
+  /**
+   * Whether the end of the data has been reached (possibly while reading the
+   * last chunk returned)
+   *
+   * @return true if next() will return null
+   */
+  public boolean isDone() {
+    return m_done;
+  }
+
+  /**
+   * Read the next chunk of rows
+   *
+   * @param maxRows the maximum number of rows to read
+   * @return the rows, or null if there are no more
+   * @throws Exception if a problem occurs
+   */
+  public Instances next(int maxRows) throws Exception {
+    if (m_done) {
+      return null;
+    }
+    Instances chunk = m_layout == Layout.SPLIT ? nextSplit(maxRows)
+      : nextRecords(maxRows);
+    if (chunk == null) {
+      m_done = true;
+    } else {
+      m_rowsRead += chunk.numInstances();
+    }
+    return chunk;
+  }
+
+  protected Instances nextRecords(int maxRows) throws Exception {
+    JsonParser p = m_parser;
+    Map<String, ColumnarJsonDecoder.Column> columns = new LinkedHashMap<>();
+    int row = 0;
+    while (row < maxRows) {
+      if (m_pendingRecord) {
+        m_pendingRecord = false;
+      } else {
+        JsonToken t = p.nextToken();
+        if (t == null || t == JsonToken.END_ARRAY) {
+          m_done = true;
+          break;
+        }
+        if (t != JsonToken.START_OBJECT) {
+          TaskConfigUtils.generateError(this, "Expected an object for record "
+            + (m_rowsRead + row) + " but found " + t);
+        }
+        p.nextToken();
+      }
+      while (p.currentToken() == JsonToken.FIELD_NAME) {
+        String name = p.getCurrentName();
+        ColumnarJsonDecoder.Column column = columns.get(name);
+        if (column == null) {
+          column = new ColumnarJsonDecoder.Column(name);
+          columns.put(name, column);
+        }
+        p.nextToken();
+        column.set(row, p);
+        p.nextToken();
+      }
+      row++;
+    }
+
+    if (row == 0) {
+      return null;
+    }
+    for (ColumnarJsonDecoder.Column column : columns.values()) {
+      // rows at the end that lacked the column
+      column.ensureCapacity(row - 1);
+      column.m_numRows = row;
+    }
+    return ColumnarJsonDecoder.toInstances(new ArrayList<>(columns.values()));
+  }
+
+  protected Instances nextSplit(int maxRows) throws Exception {
+    JsonParser p = m_parser;
+    List<ColumnarJsonDecoder.Column> columns = new ArrayList<>();
+    for (String name : m_columnNames) {
+      columns.add(new ColumnarJsonDecoder.Column(name));
+    }
+    int row = 0;
+    while (row < maxRows) {
+      JsonToken t = p.nextToken();
+      if (t == JsonToken.END_ARRAY) {
+        m_done = true;
+        break;
+      }
+      if (t != JsonToken.START_ARRAY) {
+        TaskConfigUtils.generateError(this, "Expected an array for row "
+          + (m_rowsRead + row) + " but found " + t);
+      }
+      int j = 0;
+      while (p.nextToken() != JsonToken.END_ARRAY) {
+        if (j >= columns.size()) {
+          TaskConfigUtils.generateError(this, "Row " + (m_rowsRead + row)
+            + " has more values than there are columns");
+        }
+        columns.get(j++).set(row, p);
+      }
+      row++;
+    }
+
+    if (row == 0) {
+      return null;
+    }
+    for (ColumnarJsonDecoder.Column column : columns) {
+      column.ensureCapacity(row - 1);
+      column.m_numRows = row;
+    }
+    return ColumnarJsonDecoder.toInstances(columns);
+  }
+}
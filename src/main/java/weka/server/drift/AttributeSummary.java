@@ -0,0 +1,195 @@
+/*******************************************************************************
+ * Pentaho Data Science
+ * <p/>
+ * Copyright (c) 2002-2020 Hitachi Vantara. All rights reserved.
+ * <p/>
+ * ******************************************************************************
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ * <p/>
+ ******************************************************************************/
+
+package weka.server.drift;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import weka.core.Attribute;
+import weka.core.Utils;
+
+/**
+ * Streaming summary of the values of one attribute: count, missing count,
+ * mean and variance (Welford's method, merged with Chan et al.'s formula),
+ * minimum, maximum and a quantile sketch for numeric values, and value
+ * frequencies for nominal values. Infinite values are counted separately and
+ * otherwise treated like missing values. Not thread-safe.
+ *
+ * @version : $
+ */
+public class AttributeSummary {
+
+  /** Quantiles reported for numeric values */
+  public static final double[] QUANTILES =
+    { 0.01, 0.05, 0.25, 0.5, 0.75, 0.95, 0.99 };
+
+  protected final String m_name;
+
+  /** Labels of a nominal attribute (null if numeric) */
+  protected final String[] m_labels;
+
+  protected long m_count;
+  protected long m_missing;
+  protected long m_infinite;
+  protected double m_mean;
+  protected double m_m2;
+  protected double m_min = Double.POSITIVE_INFINITY;
+  protected double m_max = Double.NEGATIVE_INFINITY;
+
+  /** Sketch of numeric values (null if nominal) */
+  protected final QuantileSketch m_sketch;
+
+  /** Frequency of each label of a nominal attribute (null if numeric) */
+  protected final long[] m_frequencies;
+
+  /**
+   * Constructor for a summary of an attribute's values
+   *
+   * @param attribute the attribute
+   * @param accuracy the relative accuracy of quantile estimates
+   */
+  public AttributeSummary(Attribute attribute, double accuracy) {
+    this(attribute.name(), labelsOf(attribute), accuracy);
+  }
+
+  /**
+   * Constructor
+   *
+   * @param name the name of the values summarised
+   * @param labels the labels of nominal values, or null for numeric values
+   * @param accuracy the relative accuracy of quantile estimates
+   */
+  public AttributeSummary(String name, String[] labels, double accuracy) {
+    m_name = name;
+    m_labels = labels;
+    m_sketch = labels == null ? new QuantileSketch(accuracy) : null;
+    m_frequencies = labels != null ? new long[labels.length] : null;
+  }
+
+  protected static String[] labelsOf(Attribute attribute) {
+    if (!attribute.isNominal()) {
+      return null;
+    }
+    String[] labels = new String[attribute.numValues()];
+    for (int i = 0; i < labels.length; i++) {
+      labels[i] = attribute.value(i);
+    }
+    return labels;
+  }
+
+  /**
+   * Add a value
+   *
+   * @param v the value (a label index for nominal attributes)
+   */
+  public void add(double v) {
+    if (Utils.isMissingValue(v)) {
+      m_missing++;
+      return;
+    }
+    if (Double.isInfinite(v)) {
+      m_infinite++;
+      return;
+    }
+    m_count++;
+    if (m_frequencies != null) {
+      m_frequencies[(int) v]++;
+      return;
+    }
+    double delta = v - m_mean;
+    m_mean += delta / m_count;
+    m_m2 += delta * (v - m_mean);
+    if (v < m_min) {
+      m_min = v;
+    }
+    if (v > m_max) {
+      m_max = v;
+    }
+    m_sketch.add(v);
+  }
+
+  /**
+   * Add another summary of the same attribute to this one
+   *
+   * @param other the summary to merge in
+   */
+  public void merge(AttributeSummary other) {
+    m_missing += other.m_missing;
+    m_infinite += other.m_infinite;
+    if (other.m_count == 0) {
+      return;
+    }
+    long n = m_count + other.m_count;
+    if (m_frequencies != null) {
+      for (int i = 0; i < m_frequencies.length; i++) {
+        m_frequencies[i] += other.m_frequencies[i];
+      }
+    } else {
+      double delta = other.m_mean - m_mean;
+      m_mean += delta * other.m_count / n;
+      m_m2 += other.m_m2 + delta * delta * m_count * other.m_count / n;
+      m_min = Math.min(m_min, other.m_min);
+      m_max = Math.max(m_max, other.m_max);
+      m_sketch.merge(other.m_sketch);
+    }
+    m_count = n;
+  }
+
+  public String getName() {
+    return m_name;
+  }
+
+  /**
+   * Get the summary as a map (for serialising as JSON)
+   *
+   * @return the summary
+   */
+  public Map<String, Object> toMap() {
+    Map<String, Object> m = new LinkedHashMap<>();
+    long total = m_count + m_missing + m_infinite;
+    m.put("type", m_labels != null ? "nominal" : "numeric");
+    m.put("count", m_count);
+    m.put("missingRate", total > 0 ? (double) m_missing / total : 0);
+    if (m_infinite > 0) {
+      m.put("infiniteRate", (double) m_infinite / total);
+    }
+    if (m_labels != null) {
+      Map<String, Object> frequencies = new LinkedHashMap<>();
+      for (int i = 0; i < m_labels.length; i++) {
+        frequencies.put(m_labels[i], m_frequencies[i]);
+      }
+      m.put("frequencies", frequencies);
+    } else if (m_count > 0) {
+      m.put("mean", m_mean);
+      m.put("variance", m_count > 1 ? m_m2 / (m_count - 1) : 0);
+      m.put("min", m_min);
+      m.put("max", m_max);
+      Map<String, Object> quantiles = new LinkedHashMap<>();
+      for (double q : QUANTILES) {
+        quantiles.put(Double.toString(q), m_sketch.getQuantile(q));
+      }
+      m.put("quantiles", quantiles);
+    }
+    return m;
+  }
+}
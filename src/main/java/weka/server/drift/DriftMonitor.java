@@ -0,0 +1,135 @@
+/*******************************************************************************
+ * Pentaho Data Science
+ * <p/>
+ * Copyright (c) 2002-2020 Hitachi Vantara. All rights reserved.
+ * <p/>
+ * ******************************************************************************
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ * <p/>
+ ******************************************************************************/
+
+package weka.server.drift;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import weka.core.Instances;
+import weka.server.TaskConfigUtils;
+
+/**
+ * Gathers statistics of the inputs and predictions of a scoring task, for
+ * comparison with the data the model was trained on. Scorers in the task's
+ * pool are handed FeatureStatistics stripes in turn (so with as many stripes
+ * as scorers, each has its own) and accumulate into them; the stripes are
+ * only merged when the statistics are asked for.
+ *
+ * @version : $
+ */
+public class DriftMonitor {
+
+  public static final String PROP_DRIFT_ENABLED_KEY =
+    "weka.server.scorer.drift.enabled";
+  public static final String PROP_DRIFT_ACCURACY_KEY =
+    "weka.server.scorer.drift.accuracy";
+  public static final double DEFAULT_ACCURACY = 0.01;
+
+  protected final Instances m_header;
+  protected final String[] m_columnNames;
+  protected final String[] m_labels;
+  protected final double m_accuracy;
+
+  /** The stripes */
+  protected final FeatureStatistics[] m_stripes;
+
+  /** Number of stripes handed out so far */
+  protected final AtomicInteger m_next = new AtomicInteger();
+
+  /**
+   * Create a drift monitor for a task if its config enables one
+   *
+   * @param taskConfigUtils the config of the task
+   * @param header the model's training header
+   * @param columnNames the names of the prediction columns
+   * @param labels the labels predicted, or null for numeric predictions
+   * @param numStripes the number of stripes (typically the most scorers the
+   *          pool will hold)
+   * @return a drift monitor, or null if not enabled
+   * @throws Exception if a problem occurs
+   */
+  public static DriftMonitor fromConfig(TaskConfigUtils taskConfigUtils,
+    Instances header, String[] columnNames, String[] labels, int numStripes)
+    throws Exception {
+    String enabled = taskConfigUtils.getTaskProperty(PROP_DRIFT_ENABLED_KEY);
+    if (!"true".equalsIgnoreCase(enabled)) {
+      return null;
+    }
+    double accuracy = DEFAULT_ACCURACY;
+    String accuracyS = taskConfigUtils.getTaskProperty(PROP_DRIFT_ACCURACY_KEY);
+    if (accuracyS != null && accuracyS.length() > 0) {
+      accuracy = Double.parseDouble(accuracyS);
+    }
+    return new DriftMonitor(header, columnNames, labels, accuracy,
+      numStripes);
+  }
+
+  /**
+   * Constructor
+   *
+   * @param header the model's training header
+   * @param columnNames the names of the prediction columns
+   * @param labels the labels predicted, or null for numeric predictions
+   * @param accuracy the relative accuracy of quantile estimates
+   * @param numStripes the number of stripes
+   */
+  public DriftMonitor(Instances header, String[] columnNames, String[] labels,
+    double accuracy, int numStripes) {
+    m_header = header;
+    m_columnNames = columnNames;
+    m_labels = labels;
+    m_accuracy = accuracy;
+    m_stripes = new FeatureStatistics[Math.max(1, numStripes)];
+    for (int i = 0; i < m_stripes.length; i++) {
+      m_stripes[i] = newStatistics();
+    }
+  }
+
+  /**
+   * Get a stripe for a (new) scorer to update
+   *
+   * @return the stripe
+   */
+  public FeatureStatistics getStripe() {
+    return m_stripes[(m_next.getAndIncrement() & Integer.MAX_VALUE)
+      % m_stripes.length];
+  }
+
+  protected FeatureStatistics newStatistics() {
+    return new FeatureStatistics(m_header, m_columnNames, m_labels,
+      m_accuracy);
+  }
+
+  /**
+   * Merge the stripes and get the statistics gathered so far
+   *
+   * @return the statistics
+   */
+  public Map<String, Object> getStatistics() {
+    FeatureStatistics merged = newStatistics();
+    for (FeatureStatistics stripe : m_stripes) {
+      stripe.mergeInto(merged);
+    }
+    return merged.toMap();
+  }
+}
@@ -0,0 +1,169 @@
+/*******************************************************************************
+ * Pentaho Data Science
+ * <p/>
+ * Copyright (c) 2002-2020 Hitachi Vantara. All rights reserved.
+ * <p/>
+ * ******************************************************************************
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ * <p/>
+ ******************************************************************************/
+
+package weka.server.drift;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.Utils;
+
+/**
+ * Statistics of the inputs (in the model's training header) and predictions
+ * of the batches scored by one or more scorers. Methods are synchronized, but
+ * as DriftMonitor spreads scorers over several of these, updates rarely
+ * contend with anything but an occasional merge. The lock is taken twice per
+ * batch, once for its inputs (once per chunk if the batch is scored in
+ * chunks) and once for its predictions, rather than per value.
+ *
+ * @version : $
+ */
+public class FeatureStatistics {
+
+  /** Index in the training header of each summarised input attribute */
+  protected final int[] m_attIndexes;
+
+  /** Summaries of the input attributes */
+  protected final AttributeSummary[] m_inputs;
+
+  /** Summaries of each prediction column */
+  protected final AttributeSummary[] m_predictions;
+
+  /** Most probable label of each prediction (null for numeric predictions) */
+  protected final AttributeSummary m_predictedLabels;
+
+  protected long m_batches;
+  protected long m_rows;
+
+  /**
+   * Constructor
+   *
+   * @param header the model's training header
+   * @param columnNames the names of the prediction columns
+   * @param labels the labels predicted, or null for numeric predictions
+   * @param accuracy the relative accuracy of quantile estimates
+   */
+  public FeatureStatistics(Instances header, String[] columnNames,
+    String[] labels, double accuracy) {
+    List<Integer> indexes = new ArrayList<>();
+    for (int i = 0; i < header.numAttributes(); i++) {
+      if (i != header.classIndex() && (header.attribute(i).isNumeric()
+        || header.attribute(i).isNominal())) {
+        indexes.add(i);
+      }
+    }
+    m_attIndexes = new int[indexes.size()];
+    m_inputs = new AttributeSummary[indexes.size()];
+    for (int i = 0; i < m_attIndexes.length; i++) {
+      m_attIndexes[i] = indexes.get(i);
+      m_inputs[i] =
+        new AttributeSummary(header.attribute(m_attIndexes[i]), accuracy);
+    }
+
+    m_predictions = new AttributeSummary[columnNames.length];
+    for (int i = 0; i < columnNames.length; i++) {
+      m_predictions[i] = new AttributeSummary(columnNames[i], null, accuracy);
+    }
+    m_predictedLabels =
+      labels != null ? new AttributeSummary("label", labels, accuracy) : null;
+  }
+
+  /**
+   * Add a batch of inputs
+   *
+   * @param mapped the inputs, mapped into the model's training header
+   */
+  public synchronized void addInputs(Instances mapped) {
+    for (int i = 0; i < mapped.numInstances(); i++) {
+      Instance inst = mapped.instance(i);
+      for (int j = 0; j < m_attIndexes.length; j++) {
+        m_inputs[j].add(inst.value(m_attIndexes[j]));
+      }
+    }
+  }
+
+  /**
+   * Add the predictions for a batch
+   *
+   * @param preds the predictions, one row per instance
+   */
+  public synchronized void addPredictions(double[][] preds) {
+    for (double[] pred : preds) {
+      for (int j = 0; j < m_predictions.length && j < pred.length; j++) {
+        m_predictions[j].add(pred[j]);
+      }
+      if (m_predictedLabels != null) {
+        m_predictedLabels.add(Utils.maxIndex(pred));
+      }
+    }
+    m_batches++;
+    m_rows += preds.length;
+  }
+
+  /**
+   * Add these statistics to another set (built for the same model)
+   *
+   * @param target the statistics to add to
+   */
+  public synchronized void mergeInto(FeatureStatistics target) {
+    for (int i = 0; i < m_inputs.length; i++) {
+      target.m_inputs[i].merge(m_inputs[i]);
+    }
+    for (int i = 0; i < m_predictions.length; i++) {
+      target.m_predictions[i].merge(m_predictions[i]);
+    }
+    if (m_predictedLabels != null) {
+      target.m_predictedLabels.merge(m_predictedLabels);
+    }
+    target.m_batches += m_batches;
+    target.m_rows += m_rows;
+  }
+
+  /**
+   * Get the statistics as a map (for serialising as JSON)
+   *
+   * @return the statistics
+   */
+  public synchronized Map<String, Object> toMap() {
+    Map<String, Object> m = new LinkedHashMap<>();
+    m.put("batches", m_batches);
+    m.put("rows", m_rows);
+    Map<String, Object> inputs = new LinkedHashMap<>();
+    for (AttributeSummary s : m_inputs) {
+      inputs.put(s.getName(), s.toMap());
+    }
+    m.put("features", inputs);
+    Map<String, Object> predictions = new LinkedHashMap<>();
+    for (AttributeSummary s : m_predictions) {
+      predictions.put(s.getName(), s.toMap());
+    }
+    if (m_predictedLabels != null) {
+      predictions.put(m_predictedLabels.getName(), m_predictedLabels.toMap());
+    }
+    m.put("predictions", predictions);
+    return m;
+  }
+}
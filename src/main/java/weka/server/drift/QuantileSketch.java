@@ -0,0 +1,182 @@
+/*******************************************************************************
+ * Pentaho Data Science
+ * <p/>
+ * Copyright (c) 2002-2020 Hitachi Vantara. All rights reserved.
+ * <p/>
+ * ******************************************************************************
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ * <p/>
+ ******************************************************************************/
+
+package weka.server.drift;
+
+/**
+ * A mergeable sketch for estimating quantiles of a stream of numbers to
+ * within a fixed relative accuracy. Values are counted in buckets whose
+ * boundaries grow geometrically (by a factor of gamma = (1 + a) / (1 - a) for
+ * relative accuracy a), so memory depends on the range of magnitudes seen
+ * rather than the number of values. Sketches with the same accuracy are
+ * merged by adding bucket counts. Not thread-safe.
+ *
+ * @version : $
+ */
+public class QuantileSketch {
+
+  /** Values smaller than this in magnitude are counted as zero */
+  protected static final double MIN_INDEXABLE = 1e-9;
+
+  /** Relative accuracy */
+  protected final double m_accuracy;
+
+  protected final double m_gamma;
+  protected final double m_logGamma;
+
+  /** Counts for positive values */
+  protected final Buckets m_positive = new Buckets();
+
+  /** Counts for negative values (by magnitude) */
+  protected final Buckets m_negative = new Buckets();
+
+  protected long m_zeroCount;
+  protected long m_count;
+
+  /**
+   * Constructor
+   *
+   * @param accuracy the relative accuracy of quantile estimates (e.g. 0.01)
+   */
+  public QuantileSketch(double accuracy) {
+    m_accuracy = accuracy;
+    m_gamma = (1 + accuracy) / (1 - accuracy);
+    m_logGamma = Math.log(m_gamma);
+  }
+
+  /**
+   * Add a value. NaN and infinite values have no bucket, so are ignored.
+   *
+   * @param v the value
+   */
+  public void add(double v) {
+    if (Double.isNaN(v) || Double.isInfinite(v)) {
+      return;
+    }
+    if (v > MIN_INDEXABLE) {
+      m_positive.increment(index(v), 1);
+    } else if (v < -MIN_INDEXABLE) {
+      m_negative.increment(index(-v), 1);
+    } else {
+      m_zeroCount++;
+    }
+    m_count++;
+  }
+
+  protected int index(double magnitude) {
+    return (int) Math.ceil(Math.log(magnitude) / m_logGamma);
+  }
+
+  protected double value(int index) {
+    // the point in the bucket with the same relative error to either bound
+    // (from the lower bound, which can't overflow for a finite value)
+    double v = Math.pow(m_gamma, index - 1) * (2 * m_gamma / (m_gamma + 1));
+    return Math.min(v, Double.MAX_VALUE);
+  }
+
+  /**
+   * Add the counts of another sketch (with the same accuracy) to this one
+   *
+   * @param other the sketch to merge in
+   */
+  public void merge(QuantileSketch other) {
+    m_positive.merge(other.m_positive);
+    m_negative.merge(other.m_negative);
+    m_zeroCount += other.m_zeroCount;
+    m_count += other.m_count;
+  }
+
+  /**
+   * Estimate a quantile
+   *
+   * @param q the quantile (between 0 and 1)
+   * @return the estimate, or NaN if no values have been added
+   */
+  public double getQuantile(double q) {
+    if (m_count == 0) {
+      return Double.NaN;
+    }
+    long rank = (long) (q * (m_count - 1));
+    long seen = 0;
+    // most negative values first
+    for (int i = m_negative.m_counts.length - 1; i >= 0; i--) {
+      seen += m_negative.m_counts[i];
+      if (seen > rank) {
+        return -value(i + m_negative.m_offset);
+      }
+    }
+    seen += m_zeroCount;
+    if (seen > rank) {
+      return 0;
+    }
+    for (int i = 0; i < m_positive.m_counts.length; i++) {
+      seen += m_positive.m_counts[i];
+      if (seen > rank) {
+        return value(i + m_positive.m_offset);
+      }
+    }
+    return value(m_positive.m_offset + m_positive.m_counts.length - 1);
+  }
+
+  public long getCount() {
+    return m_count;
+  }
+
+  /**
+   * Counts for a contiguous range of bucket indexes, grown as needed
+   */
+  protected static class Buckets {
+
+    /** Counts, starting at bucket m_offset */
+    protected long[] m_counts = new long[0];
+
+    protected int m_offset;
+
+    protected void increment(int index, long count) {
+      if (m_counts.length == 0) {
+        m_counts = new long[16];
+        m_offset = index - 8;
+      } else if (index < m_offset
+        || index >= m_offset + m_counts.length) {
+        int min = Math.min(index, m_offset);
+        int max = Math.max(index, m_offset + m_counts.length - 1);
+        // leave some room to grow in the same direction
+        int size = Math.max(max - min + 1, m_counts.length * 2);
+        int newOffset = index < m_offset ? max - size + 1 : min;
+        long[] counts = new long[size];
+        System.arraycopy(m_counts, 0, counts, m_offset - newOffset,
+          m_counts.length);
+        m_counts = counts;
+        m_offset = newOffset;
+      }
+      m_counts[index - m_offset] += count;
+    }
+
+    protected void merge(Buckets other) {
+      for (int i = 0; i < other.m_counts.length; i++) {
+        if (other.m_counts[i] != 0) {
+          increment(i + other.m_offset, other.m_counts[i]);
+        }
+      }
+    }
+  }
+}
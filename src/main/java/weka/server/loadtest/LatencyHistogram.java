@@ -0,0 +1,157 @@
+/*******************************************************************************
+ * Pentaho Data Science
+ * <p/>
+ * Copyright (c) 2002-2020 Hitachi Vantara. All rights reserved.
+ * <p/>
+ * ******************************************************************************
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ * <p/>
+ ******************************************************************************/
+
+package weka.server.loadtest;
+
+/**
+ * Log-linear latency histogram (in microseconds). Values below 128 are
+ * recorded exactly; above that each power of two is split into 64 buckets,
+ * so reported percentiles are within about 1.6% of the true value. Not
+ * thread safe - each load generator worker records into its own histogram
+ * and they are merged at the end of a run.
+ *
+ * @version : $
+ */
+public class LatencyHistogram {
+
+  /** Number of sub-buckets per power of two (above the linear range) */
+  protected static final int SUB_BUCKETS = 64;
+
+  /** Values up to (2^MAX_MAGNITUDE) - 1 microseconds can be recorded */
+  protected static final int MAX_MAGNITUDE = 40;
+
+  protected final long[] m_counts =
+    new long[(MAX_MAGNITUDE - 6) * SUB_BUCKETS + 2 * SUB_BUCKETS];
+
+  protected long m_total;
+  protected long m_sum;
+  protected long m_max;
+
+  /**
+   * Get the bucket that the supplied value falls into
+   *
+   * @param micros the value
+   * @return the index of the bucket
+   */
+  protected static int bucketFor(long micros) {
+    if (micros < 2 * SUB_BUCKETS) {
+      return (int) micros;
+    }
+    int shift = 63 - Long.numberOfLeadingZeros(micros) - 6;
+    return shift * SUB_BUCKETS + (int) (micros >> shift);
+  }
+
+  /**
+   * Get the largest value that falls into the supplied bucket
+   *
+   * @param bucket the index of the bucket
+   * @return the upper bound (inclusive) of the bucket
+   */
+  protected static long upperBound(int bucket) {
+    if (bucket < 2 * SUB_BUCKETS) {
+      return bucket;
+    }
+    int shift = bucket / SUB_BUCKETS - 1;
+    long sub = bucket - shift * SUB_BUCKETS;
+    return ((sub + 1) << shift) - 1;
+  }
+
+  /**
+   * Record a latency
+   *
+   * @param micros the latency in microseconds
+   */
+  public void record(long micros) {
+    if (micros < 0) {
+      micros = 0;
+    }
+    int bucket = Math.min(bucketFor(micros), m_counts.length - 1);
+    m_counts[bucket]++;
+    m_total++;
+    m_sum += micros;
+    m_max = Math.max(m_max, micros);
+  }
+
+  /**
+   * Add all the values recorded in another histogram to this one
+   *
+   * @param other the histogram to add
+   */
+  public void add(LatencyHistogram other) {
+    for (int i = 0; i < m_counts.length; i++) {
+      m_counts[i] += other.m_counts[i];
+    }
+    m_total += other.m_total;
+    m_sum += other.m_sum;
+    m_max = Math.max(m_max, other.m_max);
+  }
+
+  /**
+   * Get the number of values recorded
+   *
+   * @return the number of values recorded
+   */
+  public long getCount() {
+    return m_total;
+  }
+
+  /**
+   * Get the mean of the values recorded
+   *
+   * @return the mean in microseconds
+   */
+  public double getMean() {
+    return m_total == 0 ? 0 : (double) m_sum / m_total;
+  }
+
+  /**
+   * Get the largest value recorded
+   *
+   * @return the maximum in microseconds
+   */
+  public long getMax() {
+    return m_max;
+  }
+
+  /**
+   * Get the value at the supplied percentile
+   *
+   * @param percentile the percentile (0 - 100)
+   * @return the (upper bound of the bucket holding the) value at the
+   *         percentile, in microseconds
+   */
+  public long getPercentile(double percentile) {
+    if (m_total == 0) {
+      return 0;
+    }
+    long rank = (long) Math.ceil(percentile / 100.0 * m_total);
+    rank = Math.max(1, Math.min(rank, m_total));
+    long seen = 0;
+    for (int i = 0; i < m_counts.length; i++) {
+      seen += m_counts[i];
+      if (seen >= rank) {
+        return Math.min(upperBound(i), m_max);
+      }
+    }
+    return m_max;
+  }
+}
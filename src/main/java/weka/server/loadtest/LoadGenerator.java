@@ -0,0 +1,445 @@
+/*******************************************************************************
+ * Pentaho Data Science
+ * <p/>
+ * Copyright (c) 2002-2020 Hitachi Vantara. All rights reserved.
+ * <p/>
+ * ******************************************************************************
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ * <p/>
+ ******************************************************************************/
+
+package weka.server.loadtest;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import io.javalin.Javalin;
+import weka.core.Instances;
+import weka.core.Utils;
+import weka.server.PayloadFormat;
+import weka.server.TaskConfigUtils;
+import weka.server.UnixSocketClient;
+import weka.server.UnixSocketServer;
+import weka.server.WekaRESTServer;
+import weka.server.WekaServerTaskRegistry;
+import weka.server.scorer.WekaScoringModelPool;
+
+/**
+ * Drives load at the /invocations endpoint of a WekaRESTServer and reports
+ * throughput and latency percentiles. The server can either be started
+ * in-process or be an already running instance. Request bodies are replayed
+ * from a file (one JSON document per line for .jsonl files, otherwise the
+ * whole file is one request) or synthesized from the training header of the
+ * task's model.
+ *
+ * With -rate, load is open-loop: request i is due at start + i / rate and its
+ * latency is measured from that intended send time rather than from when a
+ * worker actually got round to sending it. This corrects for coordinated
+ * omission - a stalled server delays the sends that would otherwise have
+ * observed the stall. Without -rate, each worker sends back-to-back (closed
+ * loop) and latency is service time only.
+ *
+ * With -pool-sizes (in-process only), the run is repeated for each pool size
+ * in the list, so that weka.server.task.poolSize can be sized for a given
+ * machine.
+ *
+ * With -socket, each run is made twice, once over HTTP and once over the
+ * server's unix socket (see UnixSocketServer), to compare the two.
+ *
+ * Options:
+ *
+ * <pre>
+ * -task &lt;taskid&gt;         the task to invoke (required)
+ * -url &lt;url&gt;             base url of a running server (default http://localhost:7000)
+ * -in-process            start a server in this JVM instead
+ * -port &lt;port&gt;           port for the in-process server (default 7000)
+ * -payload &lt;file&gt;        file of request bodies (.jsonl = one per line)
+ * -synth &lt;rows&gt;          synthesize bodies of this many rows (default 1)
+ * -rate &lt;req/s&gt;          open-loop target rate (default closed loop)
+ * -concurrency &lt;n&gt;       number of workers/connections (default 8)
+ * -duration &lt;s&gt;          measured seconds per run (default 10)
+ * -warmup &lt;s&gt;            unmeasured seconds before each run (default 2)
+ * -pool-sizes &lt;n,n,..&gt;   pool sizes to sweep (in-process only)
+ * -socket &lt;path&gt;         also run over the unix socket at this path
+ * </pre>
+ *
+ * @version : $
+ */
+public class LoadGenerator {
+
+  protected String m_invocationsUrl;
+  protected String m_taskId;
+  protected String m_socketPath;
+  protected List<byte[]> m_bodies;
+  protected double m_rate;
+  protected int m_concurrency = 8;
+
+  /** Result of one run */
+  protected static class RunResult {
+    protected final LatencyHistogram m_latencies = new LatencyHistogram();
+    protected final Map<Integer, Long> m_statusCounts = new TreeMap<>();
+    protected long m_errors;
+    protected double m_seconds;
+
+    protected void add(RunResult other) {
+      m_latencies.add(other.m_latencies);
+      for (Map.Entry<Integer, Long> e : other.m_statusCounts.entrySet()) {
+        m_statusCounts.merge(e.getKey(), e.getValue(), Long::sum);
+      }
+      m_errors += other.m_errors;
+    }
+  }
+
+  /**
+   * Constructor
+   *
+   * @param baseUrl the base url of the server
+   * @param taskId the task to invoke
+   * @param bodies the request bodies to cycle through
+   * @param rate the open-loop rate (requests/s), or 0 for closed loop
+   * @param concurrency the number of workers
+   * @throws Exception if a problem occurs
+   */
+  public LoadGenerator(String baseUrl, String taskId, List<byte[]> bodies,
+    double rate, int concurrency) throws Exception {
+    if (bodies.size() == 0) {
+      throw new IllegalArgumentException("No request bodies to send!");
+    }
+    m_invocationsUrl = baseUrl + "/invocations?taskid="
+      + URLEncoder.encode(taskId, "UTF-8");
+    m_taskId = taskId;
+    m_bodies = bodies;
+    m_rate = rate;
+    m_concurrency = concurrency;
+  }
+
+  /**
+   * Send one request and read the full response (so that the connection can
+   * be reused)
+   *
+   * @param body the request body
+   * @return the http status
+   * @throws Exception if the request could not be sent
+   */
+  protected int send(byte[] body) throws Exception {
+    HttpURLConnection conn =
+      (HttpURLConnection) new URL(m_invocationsUrl).openConnection();
+    conn.setRequestMethod("POST");
+    conn.setDoOutput(true);
+    conn.setRequestProperty("Content-Type", "application/json");
+    conn.setFixedLengthStreamingMode(body.length);
+    try (OutputStream out = conn.getOutputStream()) {
+      out.write(body);
+    }
+    int status = conn.getResponseCode();
+    InputStream in =
+      status >= 400 ? conn.getErrorStream() : conn.getInputStream();
+    if (in != null) {
+      byte[] buf = new byte[8192];
+      try {
+        while (in.read(buf) >= 0) {
+          // discard
+        }
+      } finally {
+        in.close();
+      }
+    }
+    return status;
+  }
+
+  /**
+   * Set the path of the server's unix socket, for runs over the socket
+   *
+   * @param path the path of the socket
+   */
+  public void setSocketPath(String path) {
+    m_socketPath = path;
+  }
+
+  /**
+   * Drive load over HTTP for the supplied duration
+   *
+   * @param seconds how long to run for
+   * @return the results of the run
+   * @throws Exception if a problem occurs
+   */
+  public RunResult run(double seconds) throws Exception {
+    return run(seconds, false);
+  }
+
+  /**
+   * Drive load for the supplied duration
+   *
+   * @param seconds how long to run for
+   * @param overSocket true to send requests over the unix socket rather than
+   *          HTTP (each worker has its own connection)
+   * @return the results of the run
+   * @throws Exception if a problem occurs
+   */
+  public RunResult run(double seconds, boolean overSocket) throws Exception {
+    final long startNanos = System.nanoTime();
+    final long endNanos = startNanos + (long) (seconds * 1e9);
+    final double intervalNanos = m_rate > 0 ? 1e9 / m_rate : 0;
+    final AtomicLong sequence = new AtomicLong();
+    final CountDownLatch done = new CountDownLatch(m_concurrency);
+    final RunResult[] workerResults = new RunResult[m_concurrency];
+
+    for (int w = 0; w < m_concurrency; w++) {
+      final RunResult result = workerResults[w] = new RunResult();
+      Thread worker = new Thread(() -> {
+        UnixSocketClient client = null;
+        try {
+          if (overSocket) {
+            client = new UnixSocketClient(m_socketPath);
+          }
+          while (true) {
+            long i = sequence.getAndIncrement();
+            long intended;
+            if (m_rate > 0) {
+              intended = startNanos + (long) (i * intervalNanos);
+              if (intended >= endNanos) {
+                break;
+              }
+              long now;
+              while ((now = System.nanoTime()) < intended) {
+                LockSupport.parkNanos(intended - now);
+              }
+            } else {
+              intended = System.nanoTime();
+              if (intended >= endNanos) {
+                break;
+              }
+            }
+
+            byte[] body = m_bodies.get((int) (i % m_bodies.size()));
+            try {
+              int status = client != null
+                ? client.invoke(m_taskId, PayloadFormat.JSON, body).getStatus()
+                : send(body);
+              result.m_statusCounts.merge(status, 1L, Long::sum);
+            } catch (Exception ex) {
+              result.m_errors++;
+            }
+            result.m_latencies.record((System.nanoTime() - intended) / 1000);
+          }
+        } catch (Exception ex) {
+          // couldn't connect
+          result.m_errors++;
+        } finally {
+          if (client != null) {
+            try {
+              client.close();
+            } catch (Exception ex) {
+              // ignore
+            }
+          }
+          done.countDown();
+        }
+      }, "load-generator-" + w);
+      worker.setDaemon(true);
+      worker.start();
+    }
+    done.await();
+
+    RunResult total = new RunResult();
+    for (RunResult r : workerResults) {
+      total.add(r);
+    }
+    total.m_seconds = (System.nanoTime() - startNanos) / 1e9;
+    return total;
+  }
+
+  /**
+   * Print a one line report for a run
+   *
+   * @param label a label for the run
+   * @param r the results of the run
+   */
+  protected static void report(String label, RunResult r) {
+    LatencyHistogram h = r.m_latencies;
+    System.out.println(String.format(
+      "%-12s %10.1f %9d %9.2f %9.2f %9.2f %9.2f %9.2f %9.2f  %s%s", label,
+      h.getCount() / r.m_seconds, h.getCount(), h.getMean() / 1000.0,
+      h.getPercentile(50) / 1000.0, h.getPercentile(90) / 1000.0,
+      h.getPercentile(99) / 1000.0, h.getPercentile(99.9) / 1000.0,
+      h.getMax() / 1000.0, r.m_statusCounts,
+      r.m_errors > 0 ? " io errors=" + r.m_errors : ""));
+  }
+
+  /**
+   * Load request bodies from a file. Files ending in .jsonl hold one request
+   * per (non-blank) line; anything else is sent as a single request.
+   *
+   * @param path the path to the file
+   * @return the request bodies
+   * @throws Exception if a problem occurs
+   */
+  protected static List<byte[]> loadBodies(String path) throws Exception {
+    List<byte[]> bodies = new ArrayList<>();
+    if (path.endsWith(".jsonl")) {
+      for (String line : Files.readAllLines(Paths.get(path),
+        StandardCharsets.UTF_8)) {
+        if (line.trim().length() > 0) {
+          bodies.add(line.getBytes(StandardCharsets.UTF_8));
+        }
+      }
+    } else {
+      bodies.add(Files.readAllBytes(Paths.get(path)));
+    }
+    return bodies;
+  }
+
+  /**
+   * Synthesize request bodies from the training header of the task's model
+   *
+   * @param taskId the task
+   * @param rows the number of rows per request
+   * @return a set of request bodies
+   * @throws Exception if a problem occurs
+   */
+  protected static List<byte[]> synthesizeBodies(String taskId, int rows)
+    throws Exception {
+    TaskConfigUtils config =
+      new TaskConfigUtils(WekaServerTaskRegistry.getPropsFileName(taskId));
+    Instances header =
+      (Instances) WekaScoringModelPool.readModelFile(config)[1];
+    List<byte[]> bodies = new ArrayList<>();
+    for (int i = 0; i < 16; i++) {
+      bodies.add(WekaScoringModelPool.synthesizePayload(header, rows, i)
+        .getBytes(StandardCharsets.UTF_8));
+    }
+    return bodies;
+  }
+
+  public static void main(String[] args) {
+    try {
+      String taskId = Utils.getOption("task", args);
+      if (taskId.length() == 0) {
+        System.err.println("Usage: LoadGenerator -task <taskid> [-url <url> "
+          + "| -in-process [-port <port>]] [-payload <file> | -synth <rows>] "
+          + "[-rate <req/s>] [-concurrency <n>] [-duration <s>] "
+          + "[-warmup <s>] [-pool-sizes <n,n,...>] [-socket <path>]");
+        return;
+      }
+      boolean inProcess = Utils.getFlag("in-process", args);
+      String portS = Utils.getOption("port", args);
+      int port = portS.length() > 0 ? Integer.parseInt(portS)
+        : WekaRESTServer.DEFAULT_PORT;
+      String url = Utils.getOption("url", args);
+      if (url.length() == 0) {
+        url = "http://localhost:" + port;
+      }
+      String payload = Utils.getOption("payload", args);
+      String synthS = Utils.getOption("synth", args);
+      String rateS = Utils.getOption("rate", args);
+      String concurrencyS = Utils.getOption("concurrency", args);
+      String durationS = Utils.getOption("duration", args);
+      String warmupS = Utils.getOption("warmup", args);
+      String poolSizesS = Utils.getOption("pool-sizes", args);
+      String socketPath = Utils.getOption("socket", args);
+
+      double rate = rateS.length() > 0 ? Double.parseDouble(rateS) : 0;
+      int concurrency =
+        concurrencyS.length() > 0 ? Integer.parseInt(concurrencyS) : 8;
+      double duration =
+        durationS.length() > 0 ? Double.parseDouble(durationS) : 10;
+      double warmup = warmupS.length() > 0 ? Double.parseDouble(warmupS) : 2;
+
+      List<String> poolSizes = new ArrayList<>();
+      if (poolSizesS.length() > 0) {
+        if (!inProcess) {
+          throw new IllegalArgumentException(
+            "-pool-sizes requires -in-process");
+        }
+        for (String s : poolSizesS.split(",")) {
+          poolSizes.add(s.trim());
+        }
+      } else {
+        poolSizes.add(null);
+      }
+
+      // one keep-alive connection per worker
+      System.setProperty("http.maxConnections", "" + concurrency);
+
+      List<byte[]> bodies = payload.length() > 0 ? loadBodies(payload)
+        : synthesizeBodies(taskId,
+          synthS.length() > 0 ? Integer.parseInt(synthS) : 1);
+
+      Javalin server = inProcess ? WekaRESTServer.start(port) : null;
+      UnixSocketServer socketServer = inProcess && socketPath.length() > 0
+        ? new UnixSocketServer(socketPath).start() : null;
+      try {
+        LoadGenerator generator =
+          new LoadGenerator(url, taskId, bodies, rate, concurrency);
+        generator.setSocketPath(socketPath);
+        System.out.println("Task: " + taskId + ", "
+          + (rate > 0 ? "open loop at " + rate + " req/s" : "closed loop")
+          + ", concurrency " + concurrency + ", " + bodies.size()
+          + " distinct bodies");
+        System.out.println(String.format(
+          "%-12s %10s %9s %9s %9s %9s %9s %9s %9s  %s", "run", "req/s",
+          "count", "mean ms", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms",
+          "max ms", "statuses"));
+        for (String poolSize : poolSizes) {
+          String label = "default";
+          if (poolSize != null) {
+            label = "pool=" + poolSize;
+            TaskConfigUtils.setPropertyOverride(
+              TaskConfigUtils.TASK_POOL_SIZE_KEY, poolSize);
+            WekaServerTaskRegistry.clear();
+            WekaServerTaskRegistry.getTask(taskId);
+          }
+          if (socketPath.length() == 0) {
+            if (warmup > 0) {
+              generator.run(warmup);
+            }
+            report(label, generator.run(duration));
+            continue;
+          }
+          for (boolean overSocket : new boolean[] { false, true }) {
+            if (warmup > 0) {
+              generator.run(warmup, overSocket);
+            }
+            report((poolSize != null ? label + " " : "")
+              + (overSocket ? "socket" : "http"),
+              generator.run(duration, overSocket));
+          }
+        }
+      } finally {
+        if (server != null) {
+          server.stop();
+        }
+        if (socketServer != null) {
+          socketServer.stop();
+        }
+      }
+    } catch (Exception ex) {
+      ex.printStackTrace();
+    }
+  }
+}
@@ -0,0 +1,272 @@
+/*******************************************************************************
+ * Pentaho Data Science
+ * <p/>
+ * Copyright (c) 2002-2020 Hitachi Vantara. All rights reserved.
+ * <p/>
+ * ******************************************************************************
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ * <p/>
+ ******************************************************************************/
+
+package weka.server.loadtest;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+import weka.core.Attribute;
+import weka.core.Instances;
+import weka.core.Utils;
+import weka.server.TaskConfigUtils;
+import weka.server.WekaServerTaskRegistry;
+import weka.server.scorer.WekaScoringModelPool;
+import weka.server.shm.ShmRingClient;
+
+/**
+ * Drives load at a ShmRingServer from a separate process and reports
+ * throughput and latency percentiles (in microseconds). Each worker thread
+ * opens its own ShmRingClient (and so claims its own slot) and sends
+ * requests back-to-back.
+ * <p>
+ * Rows are synthesized at random. With -task, values are drawn to suit the
+ * attributes of the task's model (read from the task's props file, so this
+ * process needs the server's config): numeric values from a standard normal
+ * distribution and nominal values uniformly from the label indexes.
+ * Otherwise every column is treated as numeric.
+ *
+ * Options:
+ *
+ * <pre>
+ * -file &lt;path&gt;           the ring's file (weka.server.shm.file) (required)
+ * -task &lt;taskid&gt;         the task served by the ring, to synthesize rows for
+ * -rows &lt;n&gt;              rows per request (default 1)
+ * -threads &lt;n&gt;           number of workers/slots (default 1)
+ * -duration &lt;s&gt;          measured seconds (default 10)
+ * -warmup &lt;s&gt;            unmeasured seconds before the run (default 2)
+ * -spin &lt;us&gt;             microseconds to spin before parking (default 50)
+ * </pre>
+ *
+ * @version : $
+ */
+public class ShmRingBenchmark {
+
+  /** Number of distinct requests each worker cycles through */
+  protected static final int NUM_BODIES = 16;
+
+  protected final String m_path;
+  protected final double[][] m_bodies;
+  protected final int m_rows;
+  protected final int m_threads;
+  protected final long m_spinMicros;
+
+  /** Result of one worker's run */
+  protected static class RunResult {
+    protected final LatencyHistogram m_latencies = new LatencyHistogram();
+    protected long m_errors;
+    protected String m_firstError;
+  }
+
+  /**
+   * Constructor
+   *
+   * @param path the path of the ring's file
+   * @param bodies the requests (rows * columns values each) to cycle through
+   * @param rows the number of rows per request
+   * @param threads the number of workers
+   * @param spinMicros microseconds each client spins before parking
+   */
+  public ShmRingBenchmark(String path, double[][] bodies, int rows,
+    int threads, long spinMicros) {
+    m_path = path;
+    m_bodies = bodies;
+    m_rows = rows;
+    m_threads = threads;
+    m_spinMicros = spinMicros;
+  }
+
+  /**
+   * Run all workers for the given time
+   *
+   * @param seconds how long to run for
+   * @return the merged results of the workers
+   * @throws Exception if a worker can't connect
+   */
+  public RunResult run(double seconds) throws Exception {
+    List<ShmRingClient> clients = new ArrayList<>();
+    try {
+      for (int i = 0; i < m_threads; i++) {
+        ShmRingClient client = new ShmRingClient(m_path);
+        client.setSpinMicros(m_spinMicros);
+        clients.add(client);
+      }
+      long end = System.nanoTime() + (long) (seconds * 1e9);
+      CountDownLatch done = new CountDownLatch(m_threads);
+      RunResult[] results = new RunResult[m_threads];
+      for (int i = 0; i < m_threads; i++) {
+        final int w = i;
+        results[w] = new RunResult();
+        Thread t = new Thread(() -> {
+          try {
+            work(clients.get(w), results[w], w, end);
+          } finally {
+            done.countDown();
+          }
+        }, "shm-bench-" + i);
+        t.setDaemon(true);
+        t.start();
+      }
+      done.await();
+
+      RunResult total = new RunResult();
+      for (RunResult r : results) {
+        total.m_latencies.add(r.m_latencies);
+        total.m_errors += r.m_errors;
+        if (total.m_firstError == null) {
+          total.m_firstError = r.m_firstError;
+        }
+      }
+      return total;
+    } finally {
+      for (ShmRingClient client : clients) {
+        client.close();
+      }
+    }
+  }
+
+  protected void work(ShmRingClient client, RunResult result, int worker,
+    long end) {
+    double[] out = new double[m_rows * client.getNumPredictionColumns()];
+    int i = worker;
+    long now;
+    while ((now = System.nanoTime()) < end) {
+      try {
+        client.score(m_bodies[i++ % m_bodies.length], m_rows, out);
+        result.m_latencies.record((System.nanoTime() - now) / 1000);
+      } catch (Exception ex) {
+        result.m_errors++;
+        if (result.m_firstError == null) {
+          result.m_firstError = ex.getMessage();
+        }
+      }
+    }
+  }
+
+  /**
+   * Synthesize requests
+   *
+   * @param header the model's training header, or null to treat every
+   *          column as numeric
+   * @param numColumns the number of input columns
+   * @param rows the number of rows per request
+   * @return the requests
+   */
+  protected static double[][] synthesizeBodies(Instances header,
+    int numColumns, int rows) {
+    List<Attribute> atts = new ArrayList<>();
+    if (header != null) {
+      for (int i = 0; i < header.numAttributes(); i++) {
+        if (i != header.classIndex()) {
+          atts.add(header.attribute(i));
+        }
+      }
+    }
+    Random r = new Random(1);
+    double[][] bodies = new double[NUM_BODIES][rows * numColumns];
+    for (double[] body : bodies) {
+      for (int i = 0; i < body.length; i++) {
+        Attribute a = header != null ? atts.get(i % numColumns) : null;
+        if (a == null || a.isNumeric()) {
+          body[i] = r.nextGaussian();
+        } else if (a.isNominal() && a.numValues() > 0) {
+          body[i] = r.nextInt(a.numValues());
+        } else {
+          body[i] = Utils.missingValue();
+        }
+      }
+    }
+    return bodies;
+  }
+
+  protected static void report(String label, RunResult r, double seconds,
+    int rows) {
+    LatencyHistogram h = r.m_latencies;
+    System.out.println(String.format(
+      "%-10s %10.1f %11.1f %9d %9.1f %8d %8d %8d %8d %8d  %s", label,
+      h.getCount() / seconds, h.getCount() * rows / seconds, h.getCount(),
+      h.getMean(), h.getPercentile(50), h.getPercentile(90),
+      h.getPercentile(99), h.getPercentile(99.9), h.getMax(),
+      r.m_errors > 0 ? "errors=" + r.m_errors + " (" + r.m_firstError + ")"
+        : ""));
+  }
+
+  public static void main(String[] args) {
+    try {
+      String path = Utils.getOption("file", args);
+      if (path.length() == 0) {
+        System.err.println("Usage: ShmRingBenchmark -file <path> "
+          + "[-task <taskid>] [-rows <n>] [-threads <n>] [-duration <s>] "
+          + "[-warmup <s>] [-spin <us>]");
+        return;
+      }
+      String taskId = Utils.getOption("task", args);
+      String rowsS = Utils.getOption("rows", args);
+      String threadsS = Utils.getOption("threads", args);
+      String durationS = Utils.getOption("duration", args);
+      String warmupS = Utils.getOption("warmup", args);
+      String spinS = Utils.getOption("spin", args);
+
+      int rows = rowsS.length() > 0 ? Integer.parseInt(rowsS) : 1;
+      int threads = threadsS.length() > 0 ? Integer.parseInt(threadsS) : 1;
+      double duration =
+        durationS.length() > 0 ? Double.parseDouble(durationS) : 10;
+      double warmup = warmupS.length() > 0 ? Double.parseDouble(warmupS) : 2;
+      long spin = spinS.length() > 0 ? Long.parseLong(spinS)
+        : ShmRingClient.DEFAULT_SPIN_MICROS;
+
+      Instances header = null;
+      if (taskId.length() > 0) {
+        TaskConfigUtils config =
+          new TaskConfigUtils(WekaServerTaskRegistry.getPropsFileName(taskId));
+        header = (Instances) WekaScoringModelPool.readModelFile(config)[1];
+      }
+      int numColumns;
+      try (ShmRingClient probe = new ShmRingClient(path)) {
+        numColumns = probe.getNumColumns();
+        if (header != null
+          && numColumns != header.numAttributes()
+            - (header.classIndex() >= 0 ? 1 : 0)) {
+          throw new IllegalArgumentException("The ring at " + path
+            + " doesn't serve the model of " + taskId);
+        }
+      }
+
+      ShmRingBenchmark benchmark = new ShmRingBenchmark(path,
+        synthesizeBodies(header, numColumns, rows), rows, threads, spin);
+      System.out.println("Ring: " + path + ", " + threads + " thread(s), "
+        + rows + " row(s) per request");
+      System.out.println(String.format(
+        "%-10s %10s %11s %9s %9s %8s %8s %8s %8s %8s", "run", "req/s",
+        "rows/s", "count", "mean us", "p50 us", "p90 us", "p99 us",
+        "p99.9 us", "max us"));
+      if (warmup > 0) {
+        benchmark.run(warmup);
+      }
+      report("shm", benchmark.run(duration), duration, rows);
+    } catch (Exception ex) {
+      ex.printStackTrace();
+    }
+  }
+}
@@ -25,6 +25,7 @@ package weka.server.scorer;
 import weka.classifiers.AbstractClassifier;
 import weka.classifiers.Classifier;
 import weka.core.Instances;
+import weka.server.RequestTimings;
 import weka.server.TaskConfigUtils;
 
 /**
@@ -43,8 +44,10 @@ public class ClassifierScoringModel extends WekaScoringModel {
    * Constructor
    *
    * @param scorerUtils the config/utils to use
+   * @throws Exception if a scorer setting in the config is invalid
    */
-  public ClassifierScoringModel(TaskConfigUtils scorerUtils) {
+  public ClassifierScoringModel(TaskConfigUtils scorerUtils)
+    throws Exception {
     super(scorerUtils);
   }
 
@@ -61,25 +64,24 @@ public class ClassifierScoringModel extends WekaScoringModel {
   }
 
   @Override
-  protected double[][] distributionsForInstances(Instances toScore)
+  protected double[][] distributionsForInstances(Instances mappedToScore)
     throws Exception {
 
-    Instances mappedToScore =
-      new Instances(m_modelTrainingHeader, toScore.numInstances());
-
-    for (int i = 0; i < toScore.numInstances(); i++) {
-      mappedToScore.add(constructMappedInstance(toScore.instance(i)));
-    }
-
+    RequestTimings timings = getTimings();
+    long start = timings != null ? System.nanoTime() : 0;
     double[][] preds = ((AbstractClassifier) m_classifier)
       .distributionsForInstances(mappedToScore);
+    if (timings != null) {
+      timings.record(RequestTimings.PREDICT, start);
+    }
 
     return preds;
   }
 
   @Override
   protected String[] getPredictionColumnNames() {
-    String[] names = new String[m_modelTrainingHeader.classAttribute().numValues()];
+    String[] names = new String[m_modelTrainingHeader.classAttribute().isNumeric() ? 1
+      : m_modelTrainingHeader.classAttribute().numValues()];
     if (m_modelTrainingHeader.classAttribute().isNumeric()) {
       names[0] = "pred_" + m_modelTrainingHeader.classAttribute().name();
     } else {
@@ -89,4 +91,16 @@ public class ClassifierScoringModel extends WekaScoringModel {
     }
     return names;
   }
+
+  @Override
+  protected String[] getPredictionLabels() {
+    if (m_modelTrainingHeader.classAttribute().isNumeric()) {
+      return null;
+    }
+    String[] labels = new String[m_modelTrainingHeader.classAttribute().numValues()];
+    for (int i = 0; i < labels.length; i++) {
+      labels[i] = m_modelTrainingHeader.classAttribute().value(i);
+    }
+    return labels;
+  }
 }
@@ -24,6 +24,7 @@ package weka.server.scorer;
 
 import weka.clusterers.Clusterer;
 import weka.core.Instances;
+import weka.server.RequestTimings;
 import weka.server.TaskConfigUtils;
 
 /**
@@ -42,8 +43,10 @@ public class ClustererScoringModel extends WekaScoringModel {
    * Constructor
    *
    * @param taskConfigUtils the configuration/utils to use
+   * @throws Exception if a scorer setting in the config is invalid
    */
-  public ClustererScoringModel(TaskConfigUtils taskConfigUtils) {
+  public ClustererScoringModel(TaskConfigUtils taskConfigUtils)
+    throws Exception {
     super(taskConfigUtils);
   }
 
@@ -60,21 +63,19 @@ public class ClustererScoringModel extends WekaScoringModel {
     m_modelTrainingHeader = modelHeader;
   }
 
-  @Override protected double[][] distributionsForInstances(Instances toScore)
-    throws Exception {
-
-    Instances mappedToScore =
-      new Instances(m_modelTrainingHeader, toScore.numAttributes());
-
-    for (int i = 0; i < toScore.numInstances(); i++) {
-      mappedToScore.add(constructMappedInstance(toScore.instance(i)));
-    }
+  @Override protected double[][] distributionsForInstances(
+    Instances mappedToScore) throws Exception {
 
+    RequestTimings timings = getTimings();
+    long start = timings != null ? System.nanoTime() : 0;
     double[][] preds = new double[mappedToScore.numInstances()][];
 
     for (int i = 0; i < mappedToScore.numInstances(); i++) {
       preds[i] = m_clusterer.distributionForInstance(mappedToScore.instance(i));
     }
+    if (timings != null) {
+      timings.record(RequestTimings.PREDICT, start);
+    }
 
     return preds;
   }
@@ -87,4 +88,13 @@ public class ClustererScoringModel extends WekaScoringModel {
     }
     return names;
   }
+
+  @Override protected String[] getPredictionLabels() throws Exception {
+    String[] labels = new String[m_clusterer.numberOfClusters()];
+
+    for (int i = 0; i < labels.length; i++) {
+      labels[i] = "cluster_" + i;
+    }
+    return labels;
+  }
 }
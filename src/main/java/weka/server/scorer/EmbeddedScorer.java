@@ -0,0 +1,540 @@
+/*******************************************************************************
+ * Pentaho Data Science
+ * <p/>
+ * Copyright (c) 2002-2020 Hitachi Vantara. All rights reserved.
+ * <p/>
+ * ******************************************************************************
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ * <p/>
+ ******************************************************************************/
+
+package weka.server.scorer;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instances;
+import weka.core.Utils;
+import weka.server.RegisteredTask;
+import weka.server.RequestContext;
+import weka.server.TaskConfigUtils;
+import weka.server.WekaServerTaskRegistry;
+
+/**
+ * Thread-safe API for scoring a task in-process from primitive arrays,
+ * without HTTP or JSON. The task is loaded from its props file via the
+ * WekaServerTaskRegistry, so it shares its scorer pool, bulkhead, metrics
+ * and monitoring (shadow scoring, audit log, drift statistics) with any
+ * other transport serving the same taskid in the JVM.
+ * <p>
+ * Rows are arrays of doubles, one per column. Values of nominal model
+ * attributes are indexes into the attribute's labels (see getLabels()), and
+ * NaN (Utils.missingValue()) is a missing value. Columns are matched to the
+ * model's attributes by name; a ColumnBinding made once with bind() (or
+ * getModelOrder() for rows already in the order of getColumns()) saves
+ * matching them on every call. Columns the model doesn't use are ignored.
+ * <p>
+ * Rows are scored in batches of at most getBatchSize() rows with a single
+ * scorer leased for the whole call. Results can be written to buffers
+ * supplied by the caller, either one row per prediction or row-major in a
+ * single array, so that no result matrix need be allocated per call.
+ * <p>
+ * The task is pinned in the registry (kept from being evicted) while the
+ * scorer is open, so close() it once it is no longer needed.
+ *
+ * <pre>
+ * try (EmbeddedScorer scorer = EmbeddedScorer.forTask("irisClassifier")) {
+ *   EmbeddedScorer.ColumnBinding binding = scorer.bind(columnNames);
+ *   double[] out = new double[numRows * scorer.getNumPredictionColumns()];
+ *   scorer.score(values, numRows, binding, out);
+ * }
+ * </pre>
+ *
+ * @version : $
+ */
+public class EmbeddedScorer implements AutoCloseable {
+
+  public static final int DEFAULT_BATCH_SIZE = 1000;
+
+  /**
+   * The model attribute each column of incoming rows supplies. Immutable,
+   * so a binding can be shared between threads.
+   */
+  public static final class ColumnBinding {
+
+    /** Model attribute index of each incoming column (-1 if unused) */
+    protected final int[] m_modelIndex;
+
+    protected ColumnBinding(int[] modelIndex) {
+      m_modelIndex = modelIndex;
+    }
+
+    /**
+     * Get the number of columns incoming rows must have
+     *
+     * @return the number of columns
+     */
+    public int getNumColumns() {
+      return m_modelIndex.length;
+    }
+  }
+
+  /**
+   * The task being scored (replaced by the task that replaces it in the
+   * registry, if it is reloaded)
+   */
+  protected volatile RegisteredTask m_task;
+
+  /** The model's training header */
+  protected final Instances m_header;
+
+  /** Names of the model's input attributes, in model order */
+  protected final String[] m_columns;
+
+  protected final String[] m_predictionColumnNames;
+  protected final String[] m_predictionLabels;
+
+  /** Binding for rows in the order of m_columns */
+  protected final ColumnBinding m_modelOrder;
+
+  protected volatile int m_batchSize = DEFAULT_BATCH_SIZE;
+
+  /** True once close() has unpinned the task */
+  protected volatile boolean m_closed;
+
+  /**
+   * Get a scorer for a task, loading the task from its props file if it
+   * hasn't been loaded already
+   *
+   * @param taskId the taskid (suffix of the wekaServer_&lt;taskid&gt;.props
+   *          file)
+   * @return a scorer for the task
+   * @throws Exception if the task can't be loaded or is not a scoring task
+   */
+  public static EmbeddedScorer forTask(String taskId) throws Exception {
+    return new EmbeddedScorer(WekaServerTaskRegistry.getTask(taskId));
+  }
+
+  /**
+   * Constructor
+   *
+   * @param task the (scoring) task to score with
+   * @throws Exception if the task is not a scoring task
+   */
+  public EmbeddedScorer(RegisteredTask task) throws Exception {
+    if (!(task.getPool() instanceof WekaScoringModelPool)) {
+      TaskConfigUtils.generateError(this, "Task '" + task.getTaskId()
+        + "' is not a " + WekaScoringModel.TASK_ID);
+    }
+    // scoring goes straight to the pool, so the task mustn't be evicted
+    while (!task.pin()) {
+      task = WekaServerTaskRegistry.getReplacement(task);
+    }
+    m_task = task;
+
+    WekaScoringModelPool pool = (WekaScoringModelPool) task.getPool();
+    WekaScoringModel scorer = pool.getPooledScorer();
+    try {
+      m_header = new Instances(scorer.m_modelTrainingHeader, 0);
+      m_predictionColumnNames = scorer.getPredictionColumnNames();
+      m_predictionLabels = scorer.getPredictionLabels();
+    } finally {
+      pool.releasePooledScorer(scorer);
+    }
+
+    int numColumns = m_header.numAttributes()
+      - (m_header.classIndex() >= 0 ? 1 : 0);
+    m_columns = new String[numColumns];
+    int[] modelIndex = new int[numColumns];
+    for (int i = 0, j = 0; i < m_header.numAttributes(); i++) {
+      if (i != m_header.classIndex()) {
+        m_columns[j] = m_header.attribute(i).name();
+        modelIndex[j++] = i;
+      }
+    }
+    m_modelOrder = new ColumnBinding(modelIndex);
+  }
+
+  /**
+   * Get the names of the model's input columns, in the order of
+   * getModelOrder()
+   *
+   * @return the column names
+   */
+  public String[] getColumns() {
+    return m_columns.clone();
+  }
+
+  /**
+   * Get the labels of a nominal input column, whose indexes are the values
+   * to give for it
+   *
+   * @param column the column name
+   * @return the labels, or null if the column is numeric
+   * @throws Exception if the model has no such column
+   */
+  public String[] getLabels(String column) throws Exception {
+    Attribute a = m_header.attribute(column);
+    if (a == null) {
+      TaskConfigUtils.generateError(this, "No model attribute '" + column
+        + "'");
+    }
+    if (!a.isNominal()) {
+      return null;
+    }
+    String[] labels = new String[a.numValues()];
+    for (int i = 0; i < labels.length; i++) {
+      labels[i] = a.value(i);
+    }
+    return labels;
+  }
+
+  /**
+   * Get the names of the prediction columns
+   *
+   * @return the prediction column names
+   */
+  public String[] getPredictionColumnNames() {
+    return m_predictionColumnNames.clone();
+  }
+
+  /**
+   * Get the label each prediction column gives the probability of
+   *
+   * @return the labels, or null if the model makes a numeric prediction
+   */
+  public String[] getPredictionLabels() {
+    return m_predictionLabels != null ? m_predictionLabels.clone() : null;
+  }
+
+  /**
+   * Get the number of values predicted for each row
+   *
+   * @return the number of prediction columns
+   */
+  public int getNumPredictionColumns() {
+    return m_predictionColumnNames.length;
+  }
+
+  /**
+   * Get the maximum number of rows scored at a time
+   *
+   * @return the batch size
+   */
+  public int getBatchSize() {
+    return m_batchSize;
+  }
+
+  /**
+   * Set the maximum number of rows scored at a time
+   *
+   * @param batchSize the batch size
+   */
+  public void setBatchSize(int batchSize) {
+    m_batchSize = Math.max(1, batchSize);
+  }
+
+  /**
+   * Get the binding for rows whose columns are in the order of getColumns()
+   *
+   * @return the binding
+   */
+  public ColumnBinding getModelOrder() {
+    return m_modelOrder;
+  }
+
+  /**
+   * Match columns to the model's attributes by name
+   *
+   * @param columns the names of the columns of incoming rows
+   * @return the binding
+   * @throws Exception if a model attribute has no column, or a column is
+   *           given twice
+   */
+  public ColumnBinding bind(String[] columns) throws Exception {
+    Map<String, Integer> modelIndexByName = new HashMap<>();
+    for (int i = 0; i < m_header.numAttributes(); i++) {
+      if (i != m_header.classIndex()) {
+        modelIndexByName.put(m_header.attribute(i).name(), i);
+      }
+    }
+
+    int[] modelIndex = new int[columns.length];
+    boolean[] bound = new boolean[m_header.numAttributes()];
+    for (int j = 0; j < columns.length; j++) {
+      Integer i = modelIndexByName.get(columns[j]);
+      modelIndex[j] = i != null ? i : -1;
+      if (i != null) {
+        if (bound[i]) {
+          TaskConfigUtils.generateError(this, "Column '" + columns[j]
+            + "' is given more than once");
+        }
+        bound[i] = true;
+      }
+    }
+    StringBuilder missing = new StringBuilder();
+    for (String name : m_columns) {
+      if (!bound[modelIndexByName.get(name)]) {
+        missing.append(missing.length() > 0 ? ", " : "").append(name);
+      }
+    }
+    if (missing.length() > 0) {
+      TaskConfigUtils.generateError(this, "No column for model attribute(s): "
+        + missing);
+    }
+    return new ColumnBinding(modelIndex);
+  }
+
+  /**
+   * Score rows
+   *
+   * @param rows the rows
+   * @param columns the names of the rows' columns
+   * @return the predictions, one row for each row scored
+   * @throws Exception if a problem occurs
+   */
+  public double[][] score(double[][] rows, String[] columns)
+    throws Exception {
+    return score(rows, bind(columns));
+  }
+
+  /**
+   * Score rows
+   *
+   * @param rows the rows
+   * @param binding the binding of the rows' columns
+   * @return the predictions, one row for each row scored
+   * @throws Exception if a problem occurs
+   */
+  public double[][] score(double[][] rows, ColumnBinding binding)
+    throws Exception {
+    double[][] out = new double[rows.length][getNumPredictionColumns()];
+    score(rows, binding, out);
+    return out;
+  }
+
+  /**
+   * Score rows into a buffer supplied by the caller
+   *
+   * @param rows the rows
+   * @param binding the binding of the rows' columns
+   * @param out receives the predictions: at least rows.length rows of at
+   *          least getNumPredictionColumns() values
+   * @throws Exception if a problem occurs
+   */
+  public void score(double[][] rows, ColumnBinding binding, double[][] out)
+    throws Exception {
+    score(rows, null, rows.length, binding, out, null);
+  }
+
+  /**
+   * Score rows held row-major in a single array, into a single array
+   * supplied by the caller
+   *
+   * @param values the values of the rows, row-major (numRows *
+   *          binding.getNumColumns() values)
+   * @param numRows the number of rows
+   * @param binding the binding of the rows' columns
+   * @param out receives the predictions, row-major (numRows *
+   *          getNumPredictionColumns() values)
+   * @throws Exception if a problem occurs
+   */
+  public void score(double[] values, int numRows, ColumnBinding binding,
+    double[] out) throws Exception {
+    score(null, values, numRows, binding, null, out);
+  }
+
+  /**
+   * Score rows given either as arrays or row-major, writing the predictions
+   * to one of the output buffers
+   */
+  protected void score(double[][] rows, double[] values, int numRows,
+    ColumnBinding binding, double[][] out, double[] flatOut)
+    throws Exception {
+    int numColumns = binding.getNumColumns();
+    int numPreds = getNumPredictionColumns();
+    if (values != null && values.length < numRows * numColumns) {
+      TaskConfigUtils.generateError(this, "Expected " + numRows * numColumns
+        + " values for " + numRows + " rows but got " + values.length);
+    }
+    if (flatOut != null && flatOut.length < numRows * numPreds) {
+      TaskConfigUtils.generateError(this, "Output buffer too small for "
+        + numRows + " rows of predictions");
+    }
+
+    RegisteredTask task = enterTask();
+    try {
+      score(task, rows, values, numRows, binding, out, flatOut);
+    } finally {
+      task.exit();
+    }
+  }
+
+  /**
+   * Score rows with a task that has been entered
+   */
+  protected void score(RegisteredTask task, double[][] rows, double[] values,
+    int numRows, ColumnBinding binding, double[][] out, double[] flatOut)
+    throws Exception {
+    int numColumns = binding.getNumColumns();
+    int numPreds = getNumPredictionColumns();
+    WekaScoringModelPool pool = (WekaScoringModelPool) task.getPool();
+    task.getMetrics().increment("requests");
+    RequestContext context = RequestContext.fromHeaders(null, null);
+    int batchSize = m_batchSize;
+    task.getBulkhead().acquire(context);
+    try {
+      WekaScoringModel scorer = (WekaScoringModel) pool.getTask(context);
+      try {
+        for (int from = 0; from < numRows; from += batchSize) {
+          int to = Math.min(numRows, from + batchSize);
+          Instances batch = new Instances(m_header, to - from);
+          for (int r = from; r < to; r++) {
+            double[] inst = new double[m_header.numAttributes()];
+            if (m_header.classIndex() >= 0) {
+              inst[m_header.classIndex()] = Utils.missingValue();
+            }
+            for (int j = 0; j < numColumns; j++) {
+              int i = binding.m_modelIndex[j];
+              if (i >= 0) {
+                inst[i] = checkValue(i,
+                  rows != null ? rows[r][j] : values[r * numColumns + j]);
+              }
+            }
+            batch.add(new DenseInstance(1.0, inst));
+          }
+
+          double[][] preds = scorer.scoreInstances(batch);
+          for (int r = from; r < to; r++) {
+            if (out != null) {
+              System.arraycopy(preds[r - from], 0, out[r], 0, numPreds);
+            } else {
+              System.arraycopy(preds[r - from], 0, flatOut, r * numPreds,
+                numPreds);
+            }
+          }
+        }
+      } finally {
+        scorer.setRequestContext(null);
+        pool.releaseTask(scorer);
+      }
+    } finally {
+      task.getBulkhead().release();
+    }
+  }
+
+  /**
+   * Count a request as in progress on the task, moving on to the task that
+   * replaces it in the registry if it has been reloaded since
+   *
+   * @return the task, entered (the caller must exit() it)
+   * @throws Exception if the scorer has been closed, or the replacement
+   *           can't be loaded or has a different model header
+   */
+  protected RegisteredTask enterTask() throws Exception {
+    checkOpen();
+    RegisteredTask task = m_task;
+    while (!task.enter()) {
+      task = replaceTask(task);
+    }
+    return task;
+  }
+
+  /**
+   * Switch to (and pin) the task that replaces a retired one
+   *
+   * @param retired the task that was retired
+   * @return the current task
+   * @throws Exception if the scorer has been closed, or the replacement
+   *           can't be loaded or has a different model header
+   */
+  protected synchronized RegisteredTask replaceTask(RegisteredTask retired)
+    throws Exception {
+    checkOpen();
+    if (m_task != retired) {
+      return m_task;
+    }
+    RegisteredTask task = retired;
+    do {
+      task = WekaServerTaskRegistry.getReplacement(task);
+      if (!(task.getPool() instanceof WekaScoringModelPool)) {
+        TaskConfigUtils.generateError(this, "Task '" + task.getTaskId()
+          + "' is no longer a " + WekaScoringModel.TASK_ID);
+      }
+      WekaScoringModelPool pool = (WekaScoringModelPool) task.getPool();
+      WekaScoringModel scorer = pool.getPooledScorer();
+      try {
+        // bindings hold model attribute indexes
+        String mismatch =
+          m_header.equalHeadersMsg(scorer.m_modelTrainingHeader);
+        if (mismatch != null) {
+          TaskConfigUtils.generateError(this, "Task '" + task.getTaskId()
+            + "' was reloaded with a model with a different header ("
+            + mismatch + ") - create a new EmbeddedScorer for it");
+        }
+      } finally {
+        pool.releasePooledScorer(scorer);
+      }
+    } while (!task.pin());
+    retired.unpin();
+    m_task = task;
+    return task;
+  }
+
+  /**
+   * Unpin the task, so that it can be evicted from the registry again. The
+   * scorer can't be used once it has been closed.
+   */
+  @Override
+  public synchronized void close() {
+    if (!m_closed) {
+      m_closed = true;
+      m_task.unpin();
+    }
+  }
+
+  /**
+   * Check that the scorer hasn't been closed
+   *
+   * @throws Exception if it has
+   */
+  protected void checkOpen() throws Exception {
+    if (m_closed) {
+      TaskConfigUtils.generateError(this, "The scorer for task '"
+        + m_task.getTaskId() + "' has been closed");
+    }
+  }
+
+  /**
+   * Check that a value is valid for a model attribute
+   *
+   * @param modelIndex the index of the attribute
+   * @param value the value
+   * @return the value
+   * @throws Exception if the attribute is nominal and the value is not the
+   *           index of one of its labels
+   */
+  protected double checkValue(int modelIndex, double value) throws Exception {
+    Attribute a = m_header.attribute(modelIndex);
+    if (a.isNominal() && !Utils.isMissingValue(value)
+      && (value < 0 || value >= a.numValues() || value != Math.rint(value))) {
+      TaskConfigUtils.generateError(this, "Value " + value
+        + " is not a label index of nominal attribute '" + a.name() + "'");
+    }
+    return value;
+  }
+}
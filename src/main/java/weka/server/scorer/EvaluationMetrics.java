@@ -0,0 +1,279 @@
+/*******************************************************************************
+ * Pentaho Data Science
+ * <p/>
+ * Copyright (c) 2002-2020 Hitachi Vantara. All rights reserved.
+ * <p/>
+ * ******************************************************************************
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ * <p/>
+ ******************************************************************************/
+
+package weka.server.scorer;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import weka.core.Utils;
+
+/**
+ * Incremental evaluation metrics whose memory does not depend on the number
+ * of predictions added, so that they can be accumulated over an arbitrarily
+ * long stream. Partial metrics (e.g. from parallel workers) are combined with
+ * merge(). Not thread-safe.
+ * <p>
+ * For a nominal class the metrics are the confusion matrix, accuracy,
+ * log-loss and, per class and weighted by class frequency, the area under
+ * the ROC curve. The AUC is computed from histograms of the predicted
+ * probability of each class for positive and negative rows, so is exact up
+ * to ties within a bin. For a numeric class the metrics are the RMSE, MAE
+ * and R&sup2;. Rows without a (known) class value are only counted.
+ *
+ * @version : $
+ */
+public class EvaluationMetrics {
+
+  /** Smallest probability used when computing log-loss */
+  protected static final double MIN_PROB = 1e-15;
+
+  /** Class labels (null for a numeric class) */
+  protected final String[] m_labels;
+
+  /** Number of bins in each AUC histogram */
+  protected final int m_bins;
+
+  /** Rows that were scored and had a class value */
+  protected long m_count;
+
+  /** Rows without a (known) class value */
+  protected long m_unlabelled;
+
+  /** Rows for which the model made no prediction */
+  protected long m_unpredicted;
+
+  /** Nominal: confusion matrix, indexed by actual then predicted class */
+  protected long[][] m_confusion;
+
+  protected double m_logLoss;
+
+  /**
+   * Nominal: histograms of the predicted probability of each class, for rows
+   * of that class (positives) and the rest (negatives)
+   */
+  protected long[][] m_positives;
+  protected long[][] m_negatives;
+
+  /** Numeric: error sums, and the mean and sum of squared deviations of the
+   * actual values (for R-squared) */
+  protected double m_sumSquaredError;
+  protected double m_sumAbsError;
+  protected double m_meanActual;
+  protected double m_m2Actual;
+
+  /**
+   * Constructor
+   *
+   * @param labels the class labels, or null if the class is numeric
+   * @param bins the number of bins for the AUC histograms
+   */
+  public EvaluationMetrics(String[] labels, int bins) {
+    m_labels = labels;
+    m_bins = bins;
+    if (labels != null) {
+      m_confusion = new long[labels.length][labels.length];
+      m_positives = new long[labels.length][bins];
+      m_negatives = new long[labels.length][bins];
+    }
+  }
+
+  /**
+   * Add a prediction
+   *
+   * @param pred the prediction (class distribution, or the predicted value
+   *          for a numeric class)
+   * @param actual the actual class value, in model space
+   */
+  public void add(double[] pred, double actual) {
+    if (Utils.isMissingValue(actual)) {
+      m_unlabelled++;
+      return;
+    }
+
+    if (m_labels == null) {
+      double predicted = pred[0];
+      if (Utils.isMissingValue(predicted)) {
+        m_unpredicted++;
+        return;
+      }
+      m_count++;
+      double err = predicted - actual;
+      m_sumSquaredError += err * err;
+      m_sumAbsError += Math.abs(err);
+      double delta = actual - m_meanActual;
+      m_meanActual += delta / m_count;
+      m_m2Actual += delta * (actual - m_meanActual);
+      return;
+    }
+
+    double sum = 0;
+    for (double p : pred) {
+      sum += p;
+    }
+    if (!(sum > 0)) {
+      m_unpredicted++;
+      return;
+    }
+    m_count++;
+    int actualIndex = (int) actual;
+    m_confusion[actualIndex][Utils.maxIndex(pred)]++;
+    m_logLoss -= Math.log(Math.max(MIN_PROB, pred[actualIndex] / sum));
+    for (int c = 0; c < pred.length; c++) {
+      int bin = (int) (pred[c] / sum * m_bins);
+      bin = Math.max(0, Math.min(m_bins - 1, bin));
+      if (c == actualIndex) {
+        m_positives[c][bin]++;
+      } else {
+        m_negatives[c][bin]++;
+      }
+    }
+  }
+
+  /**
+   * Merge another set of metrics (for the same class) into this one
+   *
+   * @param other the metrics to merge
+   */
+  public void merge(EvaluationMetrics other) {
+    m_unlabelled += other.m_unlabelled;
+    m_unpredicted += other.m_unpredicted;
+    if (m_labels == null) {
+      // Chan et al.'s formula for combining means and squared deviations
+      long count = m_count + other.m_count;
+      if (count > 0) {
+        double delta = other.m_meanActual - m_meanActual;
+        m_m2Actual += other.m_m2Actual
+          + delta * delta * m_count * other.m_count / count;
+        m_meanActual += delta * other.m_count / count;
+      }
+      m_count = count;
+      m_sumSquaredError += other.m_sumSquaredError;
+      m_sumAbsError += other.m_sumAbsError;
+      return;
+    }
+
+    m_count += other.m_count;
+    m_logLoss += other.m_logLoss;
+    for (int i = 0; i < m_labels.length; i++) {
+      for (int j = 0; j < m_labels.length; j++) {
+        m_confusion[i][j] += other.m_confusion[i][j];
+      }
+      for (int b = 0; b < m_bins; b++) {
+        m_positives[i][b] += other.m_positives[i][b];
+        m_negatives[i][b] += other.m_negatives[i][b];
+      }
+    }
+  }
+
+  /**
+   * Get the number of rows counted (with or without a class value)
+   *
+   * @return the number of rows
+   */
+  public long getRows() {
+    return m_count + m_unlabelled + m_unpredicted;
+  }
+
+  /**
+   * Compute the AUC of a class from its histograms: the probability that a
+   * random positive is scored above a random negative, counting pairs in the
+   * same bin as ties
+   *
+   * @param c the class index
+   * @return the AUC, or NaN if the class has no positives or no negatives
+   */
+  protected double auc(int c) {
+    long[] pos = m_positives[c];
+    long[] neg = m_negatives[c];
+    double pairs = 0;
+    long negBelow = 0;
+    long numPos = 0;
+    for (int b = 0; b < m_bins; b++) {
+      pairs += pos[b] * (negBelow + 0.5 * neg[b]);
+      negBelow += neg[b];
+      numPos += pos[b];
+    }
+    if (numPos == 0 || negBelow == 0) {
+      return Double.NaN;
+    }
+    return pairs / ((double) numPos * negBelow);
+  }
+
+  /**
+   * Get the metrics as a map (for reporting as JSON)
+   *
+   * @return the metrics
+   */
+  public Map<String, Object> toMap() {
+    Map<String, Object> m = new LinkedHashMap<>();
+    m.put("rows", getRows());
+    m.put("evaluated", m_count);
+    m.put("unlabelled", m_unlabelled);
+    m.put("unpredicted", m_unpredicted);
+    if (m_labels == null) {
+      m.put("type", "numeric");
+      if (m_count > 0) {
+        m.put("rmse", Math.sqrt(m_sumSquaredError / m_count));
+        m.put("mae", m_sumAbsError / m_count);
+        if (m_m2Actual > 0) {
+          m.put("r2", 1 - m_sumSquaredError / m_m2Actual);
+        }
+      }
+      return m;
+    }
+
+    m.put("type", "nominal");
+    long correct = 0;
+    for (int i = 0; i < m_labels.length; i++) {
+      correct += m_confusion[i][i];
+    }
+    if (m_count > 0) {
+      m.put("accuracy", (double) correct / m_count);
+      m.put("logLoss", m_logLoss / m_count);
+    }
+
+    Map<String, Object> aucs = new LinkedHashMap<>();
+    double weightedAuc = 0;
+    long weight = 0;
+    for (int c = 0; c < m_labels.length; c++) {
+      double auc = auc(c);
+      if (!Double.isNaN(auc)) {
+        aucs.put(m_labels[c], auc);
+        long classCount = 0;
+        for (long n : m_confusion[c]) {
+          classCount += n;
+        }
+        weightedAuc += auc * classCount;
+        weight += classCount;
+      }
+    }
+    if (weight > 0) {
+      m.put("weightedAuc", weightedAuc / weight);
+    }
+    m.put("auc", aucs);
+
+    m.put("labels", m_labels);
+    m.put("confusionMatrix", m_confusion);
+    return m;
+  }
+}
@@ -0,0 +1,182 @@
+/*******************************************************************************
+ * Pentaho Data Science
+ * <p/>
+ * Copyright (c) 2002-2020 Hitachi Vantara. All rights reserved.
+ * <p/>
+ * ******************************************************************************
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ * <p/>
+ ******************************************************************************/
+
+package weka.server.scorer;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+
+import weka.core.Instances;
+import weka.server.PayloadFormat;
+import weka.server.RequestContext;
+import weka.server.RequestTimings;
+import weka.server.WekaServerTask;
+import weka.server.dataprep.JsonChunkReader;
+
+/**
+ * Task that evaluates a model on a stream of labelled data (records,
+ * newline-delimited or split JSON, in the request's input format) and
+ * returns a report of metrics once the stream ends. The stream is read a
+ * chunk at a time on the request thread, and chunks are scored by the
+ * pool's workers, so only a bounded number of chunks are in memory at once.
+ * Each worker adds its predictions to one of a fixed set of partial metrics,
+ * which are merged for the report.
+ *
+ * @version : $
+ */
+public class EvaluationTask extends WekaServerTask {
+
+  /** The pool that owns this task */
+  protected final EvaluationTaskPool m_owner;
+
+  /**
+   * Constructor
+   *
+   * @param owner the pool that owns this task
+   */
+  public EvaluationTask(EvaluationTaskPool owner) {
+    m_owner = owner;
+  }
+
+  @Override
+  public String processData(String... input) throws Exception {
+    return processDataFromStream(input);
+  }
+
+  @Override
+  public void processData(InputStream input, OutputStream output)
+    throws Exception {
+    RequestContext context = m_requestContext;
+    PayloadFormat inputFormat =
+      context != null ? context.getInputFormat() : PayloadFormat.JSON;
+    long start = System.nanoTime();
+
+    int workers = m_owner.m_workers;
+    BlockingQueue<EvaluationMetrics> partials =
+      new ArrayBlockingQueue<>(workers);
+    for (int i = 0; i < workers; i++) {
+      partials.add(m_owner.newMetrics());
+    }
+    // read at most one chunk ahead of each worker
+    int maxInFlight = 2 * workers;
+    Semaphore inFlight = new Semaphore(maxInFlight);
+    AtomicReference<Exception> failure = new AtomicReference<>();
+    long chunks = 0;
+    long rows;
+
+    try (JsonParser p = inputFormat.getFactory().createParser(input)) {
+      JsonChunkReader reader = new JsonChunkReader(p);
+      Instances chunk;
+      while (failure.get() == null
+        && (chunk = reader.next(m_owner.m_chunkSize)) != null) {
+        if (context != null) {
+          context.checkDeadline("evaluate", -1);
+        }
+        inFlight.acquire();
+        final Instances toScore = chunk;
+        try {
+          m_owner.m_executor.execute(() -> {
+            try {
+              evaluate(toScore, partials);
+            } catch (Exception ex) {
+              failure.compareAndSet(null, ex);
+            } finally {
+              inFlight.release();
+            }
+          });
+        } catch (RuntimeException ex) {
+          inFlight.release();
+          throw ex;
+        }
+        chunks++;
+      }
+      rows = reader.getRowsRead();
+    } finally {
+      // wait for the chunks already handed to workers
+      inFlight.acquireUninterruptibly(maxInFlight);
+    }
+    if (failure.get() != null) {
+      throw failure.get();
+    }
+
+    EvaluationMetrics metrics = partials.take();
+    for (EvaluationMetrics partial : partials) {
+      metrics.merge(partial);
+    }
+    m_owner.m_evaluations.increment();
+    m_owner.m_rows.add(rows);
+    RequestTimings timings = getTimings();
+    if (timings != null) {
+      timings.setRows(rows);
+    }
+
+    Map<String, Object> report = new LinkedHashMap<>();
+    report.put("task", m_owner.m_taskId);
+    report.put("chunks", chunks);
+    report.put("elapsedMs", (System.nanoTime() - start) / 1000000);
+    report.putAll(metrics.toMap());
+    PayloadFormat format =
+      context != null ? context.getOutputFormat() : PayloadFormat.JSON;
+    JsonGenerator gen = format.getFactory().createGenerator(output);
+    gen.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+    gen.writeObject(report);
+    gen.flush();
+  }
+
+  /**
+   * Score a chunk of labelled data with a pooled scorer and add the
+   * predictions to one of the partial metrics
+   *
+   * @param chunk the chunk to score
+   * @param partials the partial metrics
+   * @throws Exception if a problem occurs
+   */
+  protected void evaluate(Instances chunk,
+    BlockingQueue<EvaluationMetrics> partials) throws Exception {
+    double[] actual = new double[chunk.numInstances()];
+    double[][] preds;
+    WekaScoringModel scorer = m_owner.m_scorers.getPooledScorer();
+    try {
+      preds = scorer.scoreLabelledInstances(chunk, actual);
+    } finally {
+      m_owner.m_scorers.releasePooledScorer(scorer);
+    }
+
+    EvaluationMetrics metrics = partials.take();
+    try {
+      for (int i = 0; i < preds.length; i++) {
+        metrics.add(preds[i], actual[i]);
+      }
+    } finally {
+      partials.put(metrics);
+    }
+  }
+}
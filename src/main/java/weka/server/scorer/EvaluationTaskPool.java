@@ -0,0 +1,210 @@
+/*******************************************************************************
+ * Pentaho Data Science
+ * <p/>
+ * Copyright (c) 2002-2020 Hitachi Vantara. All rights reserved.
+ * <p/>
+ * ******************************************************************************
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ * <p/>
+ ******************************************************************************/
+
+package weka.server.scorer;
+
+import java.lang.invoke.MethodHandles;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import weka.server.TaskConfigUtils;
+import weka.server.WekaServerTask;
+import weka.server.WekaServerTaskPool;
+import weka.server.WekaServerTaskRegistry;
+import weka.server.audit.AuditLog;
+import weka.server.drift.DriftMonitor;
+
+/**
+ * Pool for tasks that evaluate a scoring task's model on a stream of
+ * labelled data. The scoring task is named (by taskid) in the
+ * weka.server.evaluation.task property. Evaluation uses its own pool of
+ * scorers, created from the scoring task's config, so that a long
+ * evaluation neither competes with live traffic for scorers nor shows up in
+ * the scoring task's shadow comparisons, audit log or drift statistics.
+ * Chunks of the stream are scored by a fixed number of worker threads
+ * shared by all evaluation requests.
+ *
+ * @version : $
+ */
+public class EvaluationTaskPool extends WekaServerTaskPool {
+
+  public static final String TASK_ID = "EvaluationTask";
+
+  /** The taskid of the scoring task to evaluate */
+  public static final String PROP_EVALUATION_TASK_KEY =
+    "weka.server.evaluation.task";
+
+  /** Number of threads (and scorers) used for scoring chunks */
+  public static final String PROP_EVALUATION_WORKERS_KEY =
+    "weka.server.evaluation.workers";
+
+  /** Number of rows read from the stream and scored at a time */
+  public static final String PROP_EVALUATION_CHUNK_SIZE_KEY =
+    "weka.server.evaluation.chunkSize";
+  public static final int DEFAULT_CHUNK_SIZE = 10000;
+
+  /** Number of histogram bins used to approximate AUC */
+  public static final String PROP_EVALUATION_AUC_BINS_KEY =
+    "weka.server.evaluation.aucBins";
+  public static final int DEFAULT_AUC_BINS = 1000;
+
+  /** The taskid of the scoring task being evaluated */
+  protected String m_taskId;
+
+  /** Scorers used for evaluation */
+  protected WekaScoringModelPool m_scorers;
+
+  /** Scores chunks */
+  protected ExecutorService m_executor;
+
+  protected int m_workers;
+  protected int m_chunkSize = DEFAULT_CHUNK_SIZE;
+  protected int m_aucBins = DEFAULT_AUC_BINS;
+
+  /** Class labels of the model (null if its class is numeric) */
+  protected String[] m_labels;
+
+  protected final LongAdder m_evaluations = new LongAdder();
+  protected final LongAdder m_rows = new LongAdder();
+
+  final static Logger logger =
+    LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+  /**
+   * No-args constructor (so PluginManager can instantiate us)
+   */
+  public EvaluationTaskPool() {
+  }
+
+  @Override
+  public void setTaskConfigUtils(TaskConfigUtils taskConfigUtils)
+    throws Exception {
+    if (m_scorers != null) {
+      return;
+    }
+
+    String taskId = taskConfigUtils.getTaskProperty(PROP_EVALUATION_TASK_KEY);
+    if (taskId == null || taskId.trim().length() == 0) {
+      TaskConfigUtils.generateError(this,
+        "No scoring task specified via " + PROP_EVALUATION_TASK_KEY);
+    }
+    m_taskId = taskId.trim();
+
+    int workers = Runtime.getRuntime().availableProcessors();
+    String workersS =
+      taskConfigUtils.getTaskProperty(PROP_EVALUATION_WORKERS_KEY);
+    if (workersS != null && workersS.length() > 0) {
+      workers = Integer.parseInt(workersS);
+    }
+    m_workers = Math.max(1, workers);
+    String chunkS =
+      taskConfigUtils.getTaskProperty(PROP_EVALUATION_CHUNK_SIZE_KEY);
+    if (chunkS != null && chunkS.length() > 0) {
+      m_chunkSize = Math.max(1, Integer.parseInt(chunkS));
+    }
+    String binsS = taskConfigUtils.getTaskProperty(PROP_EVALUATION_AUC_BINS_KEY);
+    if (binsS != null && binsS.length() > 0) {
+      m_aucBins = Math.max(1, Integer.parseInt(binsS));
+    }
+
+    TaskConfigUtils scoringConfig = new TaskConfigUtils(
+      WekaServerTaskRegistry.getPropsFileName(m_taskId));
+    // updateable tasks are evaluated as of their configured model file
+    String type = scoringConfig.getTaskProperty(TaskConfigUtils.TASK_TYPE_KEY);
+    if (!WekaScoringModel.TASK_ID.equals(type)
+      && !"UpdateableScoringTask".equals(type)) {
+      TaskConfigUtils.generateError(this,
+        "Task '" + m_taskId + "' is not a " + WekaScoringModel.TASK_ID);
+    }
+    Properties overrides = new Properties();
+    overrides.setProperty(WekaScoringModel.PROP_SHADOW_MODEL_FILE_NAME_KEY, "");
+    overrides.setProperty(AuditLog.PROP_AUDIT_DIR_KEY, "");
+    overrides.setProperty(DriftMonitor.PROP_DRIFT_ENABLED_KEY, "false");
+    overrides.setProperty(TaskConfigUtils.TASK_POOL_SIZE_KEY, "" + m_workers);
+    overrides.setProperty(TaskConfigUtils.TASK_POOL_MIN_SIZE_KEY, "" + m_workers);
+    overrides.setProperty(TaskConfigUtils.TASK_POOL_MAX_SIZE_KEY, "" + m_workers);
+    WekaScoringModelPool scorers =
+      new WekaScoringModelPool(scoringConfig.derive(overrides));
+
+    WekaScoringModel scorer = scorers.getPooledScorer();
+    try {
+      m_labels = scorer.getPredictionLabels();
+    } finally {
+      scorers.releasePooledScorer(scorer);
+    }
+
+    final AtomicInteger threadCount = new AtomicInteger();
+    m_executor = Executors.newFixedThreadPool(m_workers, r -> {
+      Thread t = new Thread(r, "evaluation-" + threadCount.incrementAndGet());
+      t.setDaemon(true);
+      return t;
+    });
+    m_scorers = scorers;
+    logger.debug("Evaluating " + m_taskId + " with " + m_workers + " workers");
+  }
+
+  @Override
+  public WekaServerTask getTask() throws Exception {
+    // tasks only hold per-request state, so are not pooled
+    return new EvaluationTask(this);
+  }
+
+  /**
+   * Create an empty set of metrics for the model being evaluated
+   *
+   * @return the metrics
+   */
+  protected EvaluationMetrics newMetrics() {
+    return new EvaluationMetrics(m_labels, m_aucBins);
+  }
+
+  @Override
+  public Map<String, Object> getStatistics() {
+    Map<String, Object> stats = new LinkedHashMap<>();
+    stats.put("evaluation.task", m_taskId);
+    stats.put("evaluation.evaluations", m_evaluations.sum());
+    stats.put("evaluation.rows", m_rows.sum());
+    return stats;
+  }
+
+  @Override
+  public int getNumModelCopies() {
+    return m_scorers != null ? m_scorers.getNumModelCopies() : 0;
+  }
+
+  @Override
+  public void shutdown() {
+    if (m_executor != null) {
+      m_executor.shutdownNow();
+    }
+    if (m_scorers != null) {
+      m_scorers.shutdown();
+    }
+  }
+}
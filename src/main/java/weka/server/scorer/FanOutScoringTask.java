@@ -0,0 +1,219 @@
+/*******************************************************************************
+ * Pentaho Data Science
+ * <p/>
+ * Copyright (c) 2002-2020 Hitachi Vantara. All rights reserved.
+ * <p/>
+ * ******************************************************************************
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ * <p/>
+ ******************************************************************************/
+
+package weka.server.scorer;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import weka.core.Instances;
+import weka.server.PayloadFormat;
+import weka.server.RequestContext;
+import weka.server.RequestTimings;
+import weka.server.TaskConfigUtils;
+import weka.server.WekaServerTask;
+import weka.server.dataprep.AbstractInstancesDataPreparerer;
+
+/**
+ * Task that prepares an incoming payload once and then scores it, in
+ * parallel, against each of the scoring tasks of a FanOutScoringTaskPool.
+ * Predictions from all models are merged into a single pandas-split result
+ * with column names prefixed by the taskid of the model that produced them.
+ *
+ * @version : $
+ */
+public class FanOutScoringTask extends WekaServerTask {
+
+  /** The pool that owns this task */
+  protected FanOutScoringTaskPool m_owner;
+
+  /** Data preparer to use */
+  protected AbstractInstancesDataPreparerer m_dataPreparerer;
+
+  /**
+   * Constructor
+   *
+   * @param owner the pool that owns this task
+   * @param dataPreparer the data preparer to use
+   */
+  public FanOutScoringTask(FanOutScoringTaskPool owner,
+    AbstractInstancesDataPreparerer dataPreparer) {
+    m_owner = owner;
+    m_dataPreparerer = dataPreparer;
+  }
+
+  @Override
+  public String processData(String... input) throws Exception {
+    RequestTimings timings = getTimings();
+    long start = timings != null ? System.nanoTime() : 0;
+    Instances toScore = m_dataPreparerer.prepareInputData(m_requestContext, input);
+    if (timings != null) {
+      timings.record(RequestTimings.PREPARE, start);
+      timings.setRows(toScore.numInstances());
+    }
+
+    return score(toScore);
+  }
+
+  @Override
+  public String processData(InputStream input) throws Exception {
+    return score(prepare(input));
+  }
+
+  @Override
+  public void processData(InputStream input, OutputStream output)
+    throws Exception {
+    score(prepare(input), output);
+  }
+
+  /**
+   * Convert a streamed dataset to Instances via the data preparer
+   *
+   * @param input the dataset
+   * @return the prepared data
+   * @throws Exception if a problem occurs
+   */
+  protected Instances prepare(InputStream input) throws Exception {
+    RequestTimings timings = getTimings();
+    long start = timings != null ? System.nanoTime() : 0;
+    Instances toScore = m_dataPreparerer.prepareInputData(m_requestContext, input);
+    if (timings != null) {
+      timings.record(RequestTimings.PREPARE, start);
+      timings.setRows(toScore.numInstances());
+    }
+    return toScore;
+  }
+
+  /**
+   * Score prepared data against all the models of the owning pool
+   *
+   * @param toScore the prepared data
+   * @return the merged predictions in JSON pandas-split format
+   * @throws Exception if a problem occurs
+   */
+  protected String score(Instances toScore) throws Exception {
+    return score(toScore, null);
+  }
+
+  /**
+   * Score prepared data against all the models of the owning pool, either
+   * returning the merged predictions as JSON or writing them to a stream in
+   * the request's output format
+   *
+   * @param toScore the prepared data
+   * @param outputStream the stream to write to, or null to return a String
+   * @return the merged predictions in JSON pandas-split format, or null if
+   *         they were written to the output stream
+   * @throws Exception if a problem occurs
+   */
+  protected String score(Instances toScore, OutputStream outputStream) throws Exception {
+    WekaScoringModelPool[] pools = m_owner.m_scorerPools;
+    List<Future<double[][]>> futures = new ArrayList<>();
+    for (int i = 1; i < pools.length; i++) {
+      final WekaScoringModelPool pool = pools[i];
+      futures.add(m_owner.m_executor.submit(() -> score(pool, toScore, m_requestContext)));
+    }
+
+    // score against the first model on this thread while the others run
+    double[][][] preds = new double[pools.length][][];
+    try {
+      preds[0] = score(pools[0], toScore, m_requestContext);
+      for (int i = 1; i < pools.length; i++) {
+        preds[i] = futures.get(i - 1).get();
+      }
+    } catch (ExecutionException ex) {
+      if (ex.getCause() instanceof Exception) {
+        throw (Exception) ex.getCause();
+      }
+      throw ex;
+    } finally {
+      for (Future<double[][]> f : futures) {
+        f.cancel(false);
+      }
+    }
+
+    int numCols = 0;
+    for (String[] names : m_owner.m_columnNames) {
+      numCols += names.length;
+    }
+    String[] columnNames = new String[numCols];
+    double[][] merged = new double[toScore.numInstances()][numCols];
+    int offset = 0;
+    for (int i = 0; i < pools.length; i++) {
+      String[] names = m_owner.m_columnNames[i];
+      System.arraycopy(names, 0, columnNames, offset, names.length);
+      for (int j = 0; j < merged.length; j++) {
+        System.arraycopy(preds[i][j], 0, merged[j], offset, names.length);
+      }
+      offset += names.length;
+    }
+
+    RequestTimings timings = getTimings();
+    long start = timings != null ? System.nanoTime() : 0;
+    // the merged columns come from several models, so only rounding applies
+    String spec = m_requestContext != null
+      ? m_requestContext.getOption(PredictionOutput.OUTPUT_OPTION) : null;
+    if (spec == null) {
+      spec = m_owner.taskConfigUtils.getTaskProperty(WekaScoringModel.PROP_OUTPUT_KEY);
+    }
+    PredictionOutput output = PredictionOutput.parse(spec);
+    if (output.getMode() != PredictionOutput.Mode.FULL) {
+      TaskConfigUtils.generateError(this,
+        "Only full output (optionally with precision) is supported when fanning out");
+    }
+    String result = null;
+    if (outputStream == null) {
+      result = output.toJson(merged, columnNames, null);
+    } else {
+      output.write(outputStream, m_requestContext != null ? m_requestContext.getOutputFormat()
+        : PayloadFormat.JSON, merged, columnNames, null);
+    }
+    if (timings != null) {
+      timings.record(RequestTimings.SERIALISE, start);
+    }
+    return result;
+  }
+
+  /**
+   * Score the prepared data with a scorer leased from the supplied pool
+   *
+   * @param pool the pool to lease a scorer from
+   * @param toScore the prepared data
+   * @param context the context of the request (may be null)
+   * @return predictions
+   * @throws Exception if a problem occurs
+   */
+  protected static double[][] score(WekaScoringModelPool pool,
+    Instances toScore, RequestContext context) throws Exception {
+    WekaScoringModel scorer = (WekaScoringModel) pool.getTask(context);
+    try {
+      return scorer.scoreInstances(toScore);
+    } finally {
+      scorer.setRequestContext(null);
+      pool.releasePooledScorer(scorer);
+    }
+  }
+}
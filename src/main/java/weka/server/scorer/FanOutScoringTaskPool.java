@@ -0,0 +1,170 @@
+/*******************************************************************************
+ * Pentaho Data Science
+ * <p/>
+ * Copyright (c) 2002-2020 Hitachi Vantara. All rights reserved.
+ * <p/>
+ * ******************************************************************************
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ * <p/>
+ ******************************************************************************/
+
+package weka.server.scorer;
+
+import java.lang.invoke.MethodHandles;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import weka.server.TaskConfigUtils;
+import weka.server.WekaServerTask;
+import weka.server.WekaServerTaskPool;
+import weka.server.WekaServerTaskRegistry;
+
+/**
+ * Pool for tasks that score a single payload against several scoring tasks.
+ * The scoring tasks to use are listed (by taskid) in the
+ * weka.server.fanout.tasks property. Each referenced task is served by its own
+ * (shared) WekaScoringModelPool, obtained from the WekaServerTaskRegistry.
+ *
+ * @version : $
+ */
+public class FanOutScoringTaskPool extends WekaServerTaskPool {
+
+  public static final String TASK_ID = "FanOutScoringTask";
+
+  /** Comma-separated list of the taskids to score against */
+  public static final String PROP_FANOUT_TASKS_KEY = "weka.server.fanout.tasks";
+
+  /** Number of threads used to score against the referenced tasks */
+  public static final String PROP_FANOUT_THREADS_KEY =
+    "weka.server.fanout.threads";
+
+  /** Config for this task */
+  protected TaskConfigUtils taskConfigUtils;
+
+  /** The taskids of the scoring tasks to fan out to */
+  protected String[] m_taskIds;
+
+  /** The pools of the scoring tasks to fan out to */
+  protected WekaScoringModelPool[] m_scorerPools;
+
+  /** Prediction column names of each scoring task, namespaced by taskid */
+  protected String[][] m_columnNames;
+
+  /** Executes scoring against all but the first task */
+  protected ExecutorService m_executor;
+
+  /** Idle fan-out tasks */
+  protected ConcurrentLinkedQueue<FanOutScoringTask> m_taskPool =
+    new ConcurrentLinkedQueue<>();
+
+  final static Logger logger =
+    LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+  /**
+   * No-args constructor (so PluginManager can instantiate us)
+   */
+  public FanOutScoringTaskPool() {
+  }
+
+  @Override
+  public int getNumModelCopies() {
+    // the models belong to the pools fanned out to
+    return 0;
+  }
+
+  @Override
+  public void shutdown() {
+    // the pools fanned out to belong to the registry, so are left alone
+    if (m_executor != null) {
+      m_executor.shutdownNow();
+    }
+  }
+
+  @Override
+  public void setTaskConfigUtils(TaskConfigUtils taskConfigUtils)
+    throws Exception {
+    this.taskConfigUtils = taskConfigUtils;
+    if (m_scorerPools != null) {
+      return;
+    }
+
+    String tasks = taskConfigUtils.getTaskProperty(PROP_FANOUT_TASKS_KEY);
+    if (tasks == null || tasks.trim().length() == 0) {
+      TaskConfigUtils.generateError(this,
+        "No scoring tasks specified via " + PROP_FANOUT_TASKS_KEY);
+    }
+    String[] taskIds = tasks.split(",");
+    WekaScoringModelPool[] pools = new WekaScoringModelPool[taskIds.length];
+    String[][] columnNames = new String[taskIds.length][];
+    for (int i = 0; i < taskIds.length; i++) {
+      taskIds[i] = taskIds[i].trim();
+      WekaServerTaskPool pool = WekaServerTaskRegistry.getTaskPool(taskIds[i]);
+      if (!(pool instanceof WekaScoringModelPool)) {
+        TaskConfigUtils.generateError(this,
+          "Task '" + taskIds[i] + "' is not a " + WekaScoringModel.TASK_ID);
+      }
+      pools[i] = (WekaScoringModelPool) pool;
+
+      WekaScoringModel scorer = pools[i].getPooledScorer();
+      try {
+        String[] names = scorer.getPredictionColumnNames();
+        columnNames[i] = new String[names.length];
+        for (int j = 0; j < names.length; j++) {
+          columnNames[i][j] = taskIds[i] + "." + names[j];
+        }
+      } finally {
+        pools[i].releasePooledScorer(scorer);
+      }
+    }
+
+    int numThreads = Math.max(1, taskIds.length - 1);
+    String threadsS = taskConfigUtils.getTaskProperty(PROP_FANOUT_THREADS_KEY);
+    if (threadsS != null && threadsS.length() > 0) {
+      numThreads = Integer.parseInt(threadsS);
+    }
+    final AtomicInteger threadCount = new AtomicInteger();
+    m_executor = Executors.newFixedThreadPool(numThreads, r -> {
+      Thread t = new Thread(r, "fanout-" + threadCount.incrementAndGet());
+      t.setDaemon(true);
+      return t;
+    });
+
+    m_taskIds = taskIds;
+    m_columnNames = columnNames;
+    m_scorerPools = pools;
+    logger.debug("Fanning out to: " + tasks);
+  }
+
+  @Override
+  public WekaServerTask getTask() throws Exception {
+    FanOutScoringTask task = m_taskPool.poll();
+    if (task == null) {
+      task = new FanOutScoringTask(this,
+        WekaScoringModelPool.createDataPreparer(taskConfigUtils));
+    }
+    return task;
+  }
+
+  @Override
+  public void releaseTask(WekaServerTask task) {
+    if (task instanceof FanOutScoringTask) {
+      m_taskPool.offer((FanOutScoringTask) task);
+    }
+  }
+}
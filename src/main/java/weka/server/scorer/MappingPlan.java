@@ -0,0 +1,341 @@
+/*******************************************************************************
+ * Pentaho Data Science
+ * <p/>
+ * Copyright (c) 2002-2020 Hitachi Vantara. All rights reserved.
+ * <p/>
+ * ******************************************************************************
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ * <p/>
+ ******************************************************************************/
+
+package weka.server.scorer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.SparseInstance;
+import weka.core.Utils;
+import weka.server.TaskConfigUtils;
+import weka.server.dataprep.AbstractInstancesDataPreparerer;
+
+/**
+ * Describes how to map instances with a particular incoming header into the
+ * attribute space of a model's training header. Attribute lookups by name,
+ * type checks and nominal label translation are done once, when the plan is
+ * built, rather than for every row. Dense incoming instances are mapped
+ * attribute by attribute; sparse incoming instances are mapped by visiting
+ * only their non-zero values, producing sparse instances in model space.
+ * <p>
+ * An incoming attribute whose type doesn't match the model's is only a
+ * problem for data that has a value for it: decoders type a column that is
+ * entirely missing (e.g. in one chunk of a streamed payload) as numeric,
+ * whatever the model's type, and such a column simply maps to missing
+ * values.
+ *
+ * @version : $
+ */
+public class MappingPlan {
+
+  /** The model's training header */
+  protected final Instances m_modelHeader;
+
+  /** Attributes of the incoming header that this plan was built for */
+  protected final Attribute[] m_inputAttributes;
+
+  /** Index of the incoming attribute for each model attribute (or -1) */
+  protected final int[] m_inputIndexForModel;
+
+  /** Index of the model attribute for each incoming attribute (or -1) */
+  protected final int[] m_modelIndexForInput;
+
+  /**
+   * For nominal attributes, the model label index for each incoming label
+   * index (-1 for labels the model doesn't know), indexed by model attribute
+   */
+  protected final int[][] m_labelMap;
+
+  /** Index of the model's class attribute in the incoming data (or -1) */
+  protected final int m_inputClassIndex;
+
+  /** Problems with model attributes missing from the incoming data */
+  protected final String m_missingProblems;
+
+  /** Incoming attributes whose types don't match the model's */
+  protected final int[] m_mismatchedInputs;
+
+  /** The problem to report for each of m_mismatchedInputs */
+  protected final String[] m_mismatchProblems;
+
+  /**
+   * Constructor
+   *
+   * @param modelHeader the model's training header
+   * @param inputHeader the header of the incoming data
+   */
+  public MappingPlan(Instances modelHeader, Instances inputHeader) {
+    m_modelHeader = modelHeader;
+    m_inputAttributes = new Attribute[inputHeader.numAttributes()];
+    m_modelIndexForInput = new int[inputHeader.numAttributes()];
+    for (int i = 0; i < m_inputAttributes.length; i++) {
+      m_inputAttributes[i] = inputHeader.attribute(i);
+      m_modelIndexForInput[i] = -1;
+    }
+    m_inputIndexForModel = new int[modelHeader.numAttributes()];
+    m_labelMap = new int[modelHeader.numAttributes()][];
+
+    StringBuilder missingProbs = new StringBuilder();
+    List<Integer> mismatchedInputs = new ArrayList<>();
+    List<String> mismatchProblems = new ArrayList<>();
+    int inputClassIndex = -1;
+    for (int i = 0; i < modelHeader.numAttributes(); i++) {
+      m_inputIndexForModel[i] = -1;
+      Attribute modelA = modelHeader.attribute(i);
+      Attribute matchA = inputHeader.attribute(modelA.name());
+      if (i == modelHeader.classIndex()) {
+        // incoming class values are optional, and only used for labelled data
+        if (matchA != null && matchA.type() == modelA.type()) {
+          inputClassIndex = matchA.index();
+          m_labelMap[i] = modelA.isNominal() ? labelMap(modelA, matchA) : null;
+        }
+        continue;
+      }
+      if (matchA == null) {
+        missingProbs.append("Model attribute '" + modelA.name()
+          + "' does not seem " + "to have a match in the incoming data!")
+          .append("\n");
+      } else if (modelA.type() != matchA.type()) {
+        mismatchedInputs.add(matchA.index());
+        mismatchProblems.add("Type mismatch between model attribute '"
+          + modelA.toString() + "' and incoming attribute '"
+          + matchA.toString() + "'\n");
+        // only used if every value is missing (see checkProblems())
+        m_inputIndexForModel[i] = matchA.index();
+        m_modelIndexForInput[matchA.index()] = i;
+        if (modelA.isNominal()) {
+          m_labelMap[i] = new int[0];
+        }
+      } else {
+        m_inputIndexForModel[i] = matchA.index();
+        m_modelIndexForInput[matchA.index()] = i;
+        if (modelA.isNominal()) {
+          m_labelMap[i] = labelMap(modelA, matchA);
+        }
+      }
+    }
+    m_inputClassIndex = inputClassIndex;
+    m_missingProblems = missingProbs.toString();
+    m_mismatchedInputs = new int[mismatchedInputs.size()];
+    for (int k = 0; k < m_mismatchedInputs.length; k++) {
+      m_mismatchedInputs[k] = mismatchedInputs.get(k);
+    }
+    m_mismatchProblems = mismatchProblems.toArray(new String[0]);
+  }
+
+  /**
+   * Compute the model label index for each label of an incoming nominal
+   * attribute
+   *
+   * @param modelA the model attribute
+   * @param inputA the incoming attribute
+   * @return the model label index for each incoming label (-1 if unknown)
+   */
+  protected static int[] labelMap(Attribute modelA, Attribute inputA) {
+    int[] labels = new int[inputA.numValues()];
+    for (int j = 0; j < labels.length; j++) {
+      labels[j] = modelA.indexOfValue(inputA.value(j));
+    }
+    return labels;
+  }
+
+  /**
+   * Returns true if this plan was built for the supplied incoming header
+   * (i.e. the header has exactly the same attribute objects)
+   *
+   * @param inputHeader the incoming header to check
+   * @return true if this plan applies to the header
+   */
+  public boolean isFor(Instances inputHeader) {
+    if (inputHeader.numAttributes() != m_inputAttributes.length) {
+      return false;
+    }
+    for (int i = 0; i < m_inputAttributes.length; i++) {
+      if (inputHeader.attribute(i) != m_inputAttributes[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Throw an exception describing any problems mapping some incoming data.
+   * Sparse data need not mention every model attribute (unmentioned
+   * attributes are zero), so missing attributes are only a problem for dense
+   * data. Attributes whose types don't match are only a problem if the data
+   * has a value for them.
+   *
+   * @param requester the object to report the error against
+   * @param data the incoming instances (at least one)
+   * @throws Exception if there are mapping problems
+   */
+  public void checkProblems(Object requester, List<Instance> data)
+    throws Exception {
+    boolean sparse = data.get(0) instanceof SparseInstance;
+    StringBuilder probs = new StringBuilder(sparse ? "" : m_missingProblems);
+    for (int k = 0; k < m_mismatchedInputs.length; k++) {
+      for (Instance inst : data) {
+        if (!inst.isMissing(m_mismatchedInputs[k])) {
+          probs.append(m_mismatchProblems[k]);
+          break;
+        }
+      }
+    }
+    if (probs.length() > 0) {
+      TaskConfigUtils.generateError(requester,
+        "Input to model matching problems:\n\n" + probs);
+    }
+  }
+
+  /**
+   * Throw an exception describing any problems mapping an incoming instance
+   *
+   * @param requester the object to report the error against
+   * @param input the incoming instance
+   * @throws Exception if there are mapping problems
+   */
+  public void checkProblems(Object requester, Instance input)
+    throws Exception {
+    checkProblems(requester, Collections.singletonList(input));
+  }
+
+  /**
+   * Map a single value of an incoming attribute to model space
+   *
+   * @param modelIndex the index of the model attribute
+   * @param value the incoming value
+   * @return the value in model space
+   */
+  protected double mapValue(int modelIndex, double value) {
+    int[] labels = m_labelMap[modelIndex];
+    if (labels != null && !Utils.isMissingValue(value)) {
+      int label = labels[(int) value];
+      return label >= 0 ? label : Utils.missingValue();
+    }
+    return value;
+  }
+
+  /**
+   * Whether the incoming data has a column matching the model's class
+   *
+   * @return true if class values can be mapped from the incoming data
+   */
+  public boolean hasClass() {
+    return m_inputClassIndex >= 0;
+  }
+
+  /**
+   * Get the class value of an incoming instance in model space (e.g. the
+   * model's label index)
+   *
+   * @param input the incoming instance
+   * @return the class value, or missing if the incoming data has no class
+   *         column, the value is missing, or it is a label the model doesn't
+   *         know
+   */
+  public double mapClassValue(Instance input) {
+    if (m_inputClassIndex < 0) {
+      return Utils.missingValue();
+    }
+    return mapValue(m_modelHeader.classIndex(),
+      input.value(m_inputClassIndex));
+  }
+
+  /**
+   * Map an incoming instance into model space. The class value (if any) is
+   * set to missing.
+   *
+   * @param input the incoming instance
+   * @return the instance in model space
+   */
+  public Instance map(Instance input) {
+    return map(input, false);
+  }
+
+  /**
+   * Map an incoming instance into model space
+   *
+   * @param input the incoming instance
+   * @param keepClass true to map the class value from the incoming instance
+   *          (if present there) rather than set it to missing
+   * @return the instance in model space
+   */
+  public Instance map(Instance input, boolean keepClass) {
+    int classIndex = m_modelHeader.classIndex();
+    int inputClassIndex = keepClass ? m_inputClassIndex : -1;
+
+    Instance inst;
+    if (input instanceof SparseInstance) {
+      int n = input.numValues();
+      int[] indices = new int[n + 1];
+      double[] vals = new double[n + 1];
+      int count = 0;
+      boolean classSet = false;
+      for (int p = 0; p < n; p++) {
+        int inputIndex = input.index(p);
+        int modelIndex = m_modelIndexForInput[inputIndex];
+        if (inputIndex == inputClassIndex) {
+          modelIndex = classIndex;
+        }
+        if (modelIndex < 0) {
+          continue;
+        }
+        indices[count] = modelIndex;
+        vals[count] = mapValue(modelIndex, input.valueSparse(p));
+        classSet |= modelIndex == classIndex;
+        count++;
+      }
+      if (classIndex >= 0 && !classSet && inputClassIndex < 0) {
+        indices[count] = classIndex;
+        vals[count] = Utils.missingValue();
+        count++;
+      }
+      AbstractInstancesDataPreparerer.sortByIndex(indices, vals, count);
+      int[] finalIndices = new int[count];
+      double[] finalVals = new double[count];
+      System.arraycopy(indices, 0, finalIndices, 0, count);
+      System.arraycopy(vals, 0, finalVals, 0, count);
+      inst = new SparseInstance(1.0, finalVals, finalIndices,
+        m_modelHeader.numAttributes());
+    } else {
+      double[] vals = new double[m_modelHeader.numAttributes()];
+      for (int i = 0; i < vals.length; i++) {
+        int inputIndex = m_inputIndexForModel[i];
+        if (i == classIndex) {
+          inputIndex = inputClassIndex;
+        }
+        vals[i] = inputIndex < 0 ? Utils.missingValue()
+          : mapValue(i, input.value(inputIndex));
+      }
+      inst = new DenseInstance(1.0, vals);
+    }
+    inst.setDataset(m_modelHeader);
+
+    return inst;
+  }
+}
@@ -0,0 +1,407 @@
+/*******************************************************************************
+ * Pentaho Data Science
+ * <p/>
+ * Copyright (c) 2002-2020 Hitachi Vantara. All rights reserved.
+ * <p/>
+ * ******************************************************************************
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ * <p/>
+ ******************************************************************************/
+
+package weka.server.scorer;
+
+import java.io.OutputStream;
+import java.io.StringWriter;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.json.JsonGeneratorImpl;
+
+import weka.server.PayloadFormat;
+import weka.server.TaskConfigUtils;
+import weka.server.dataprep.DefaultJsonInstancesDataPreparer;
+
+/**
+ * How predictions are written in a response. Specified as a comma separated
+ * list of settings, per request via the X-Prediction-Output header or per
+ * task via the weka.server.scorer.output property:
+ *
+ * <pre>
+ * full            every prediction column (the default)
+ * argmax          the most probable label only
+ * topk=&lt;k&gt;         the k most probable labels with their probabilities
+ * threshold=&lt;t&gt;    the labels with probability of at least t
+ * precision=&lt;n&gt;    round probabilities to n decimal places
+ * </pre>
+ *
+ * e.g. "topk=3,precision=4". Output is pandas-split JSON written directly
+ * with a streaming generator. argmax gives a single "prediction" column;
+ * topk gives prediction_1, probability_1, ... prediction_k, probability_k;
+ * threshold gives a single "predictions" column holding an object mapping
+ * each label over the threshold to its probability. For models with a
+ * numeric prediction (no labels), every mode other than full gives just the
+ * predicted value.
+ *
+ * @version : $
+ */
+public class PredictionOutput {
+
+  /** The ways of selecting what is output for each row */
+  public enum Mode {
+    FULL, ARGMAX, TOPK, THRESHOLD
+  }
+
+  /** Name of the request option that overrides the task's output */
+  public static final String OUTPUT_OPTION = "output";
+
+  /** Output of all columns at full precision */
+  public static final PredictionOutput FULL = new PredictionOutput();
+
+  protected Mode m_mode = Mode.FULL;
+  protected int m_k = 1;
+  protected double m_threshold;
+
+  /** Number of decimal places, or -1 for full precision */
+  protected int m_precision = -1;
+
+  /** 10^m_precision */
+  protected double m_scale = 1;
+
+  /**
+   * Parse an output specification
+   *
+   * @param spec the specification (e.g. "topk=3,precision=4")
+   * @return the output settings
+   * @throws Exception if the specification is invalid
+   */
+  public static PredictionOutput parse(String spec) throws Exception {
+    PredictionOutput output = new PredictionOutput();
+    if (spec == null) {
+      return output;
+    }
+    for (String setting : spec.split(",")) {
+      setting = setting.trim();
+      if (setting.length() == 0) {
+        continue;
+      }
+      String name = setting;
+      String value = null;
+      int eq = setting.indexOf('=');
+      if (eq > 0) {
+        name = setting.substring(0, eq).trim();
+        value = setting.substring(eq + 1).trim();
+      }
+      try {
+        switch (name.toLowerCase()) {
+        case "full":
+          output.m_mode = Mode.FULL;
+          break;
+        case "argmax":
+          output.m_mode = Mode.ARGMAX;
+          break;
+        case "topk":
+          output.m_mode = Mode.TOPK;
+          output.m_k = Integer.parseInt(value);
+          if (output.m_k < 1) {
+            throw new NumberFormatException("k must be at least 1");
+          }
+          break;
+        case "threshold":
+          output.m_mode = Mode.THRESHOLD;
+          output.m_threshold = Double.parseDouble(value);
+          break;
+        case "precision":
+          output.m_precision = Integer.parseInt(value);
+          if (output.m_precision < 0 || output.m_precision > 15) {
+            throw new NumberFormatException("precision must be 0 - 15");
+          }
+          output.m_scale = Math.pow(10, output.m_precision);
+          break;
+        default:
+          TaskConfigUtils.generateError(PredictionOutput.class,
+            "Unknown prediction output setting '" + name + "'");
+        }
+      } catch (NumberFormatException | NullPointerException ex) {
+        TaskConfigUtils.generateError(PredictionOutput.class,
+          "Invalid prediction output setting '" + setting + "'");
+      }
+    }
+    return output;
+  }
+
+  /**
+   * Get the mode
+   *
+   * @return the mode
+   */
+  public Mode getMode() {
+    return m_mode;
+  }
+
+  /**
+   * Get the number of decimal places that probabilities are rounded to
+   *
+   * @return the number of decimal places, or -1 for full precision
+   */
+  public int getPrecision() {
+    return m_precision;
+  }
+
+  /**
+   * Write predictions as a pandas-split JSON string
+   *
+   * @param preds the predictions, one row per instance
+   * @param columnNames the names of the prediction columns
+   * @param labels the label for each prediction column, or null if the model
+   *          makes a numeric prediction
+   * @return the JSON
+   * @throws Exception if a problem occurs
+   */
+  public String toJson(double[][] preds, String[] columnNames,
+    String[] labels) throws Exception {
+    StringWriter w = new StringWriter(Math.max(64, preds.length * 64));
+    try (JsonGenerator g =
+      DefaultJsonInstancesDataPreparer.MAPPER.getFactory().createGenerator(w)) {
+      write(g, preds, columnNames, labels);
+    }
+    return w.toString();
+  }
+
+  /**
+   * Write predictions in the pandas-split structure to a stream, encoded in
+   * the supplied format. The stream is flushed but not closed.
+   *
+   * @param output the stream to write to
+   * @param format the encoding to use
+   * @param preds the predictions, one row per instance
+   * @param columnNames the names of the prediction columns
+   * @param labels the label for each prediction column, or null if the model
+   *          makes a numeric prediction
+   * @throws Exception if a problem occurs
+   */
+  public void write(OutputStream output, PayloadFormat format,
+    double[][] preds, String[] columnNames, String[] labels) throws Exception {
+    try (JsonGenerator g = format.getFactory().createGenerator(output)) {
+      g.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+      write(g, preds, columnNames, labels);
+    }
+  }
+
+  /**
+   * Write predictions as pandas-split JSON (or another format, depending on
+   * the generator)
+   *
+   * @param g the generator to write to
+   * @param preds the predictions, one row per instance
+   * @param columnNames the names of the prediction columns
+   * @param labels the label for each prediction column, or null if the model
+   *          makes a numeric prediction
+   * @throws Exception if a problem occurs
+   */
+  public void write(JsonGenerator g, double[][] preds, String[] columnNames,
+    String[] labels) throws Exception {
+    writeStart(g, columnNames, labels);
+    writeRows(g, preds, columnNames, labels);
+    writeEnd(g);
+  }
+
+  /**
+   * Get the mode to write predictions in
+   *
+   * @param labels the label for each prediction column, or null if the model
+   *          makes a numeric prediction
+   * @return the mode, or null to write a numeric prediction
+   */
+  protected Mode getMode(String[] labels) {
+    return labels == null && m_mode != Mode.FULL ? null : m_mode;
+  }
+
+  /**
+   * Write the start of the pandas-split structure, up to and including the
+   * start of the "data" array. Rows are then written with writeRows() (as
+   * many times as needed) and the structure finished with writeEnd().
+   *
+   * @param g the generator to write to
+   * @param columnNames the names of the prediction columns
+   * @param labels the label for each prediction column, or null if the model
+   *          makes a numeric prediction
+   * @throws Exception if a problem occurs
+   */
+  public void writeStart(JsonGenerator g, String[] columnNames,
+    String[] labels) throws Exception {
+    Mode mode = getMode(labels);
+    int k = labels != null ? Math.min(m_k, labels.length) : 0;
+
+    g.writeStartObject();
+    g.writeArrayFieldStart("columns");
+    if (mode == Mode.FULL || mode == null) {
+      for (String name : columnNames) {
+        g.writeString(name);
+      }
+    } else if (mode == Mode.ARGMAX) {
+      g.writeString("prediction");
+    } else if (mode == Mode.TOPK) {
+      for (int i = 1; i <= k; i++) {
+        g.writeString("prediction_" + i);
+        g.writeString("probability_" + i);
+      }
+    } else {
+      g.writeString("predictions");
+    }
+    g.writeEndArray();
+
+    g.writeArrayFieldStart("data");
+  }
+
+  /**
+   * Write rows of predictions into the "data" array started by writeStart()
+   *
+   * @param g the generator to write to
+   * @param preds the predictions, one row per instance
+   * @param columnNames the names of the prediction columns
+   * @param labels the label for each prediction column, or null if the model
+   *          makes a numeric prediction
+   * @throws Exception if a problem occurs
+   */
+  public void writeRows(JsonGenerator g, double[][] preds,
+    String[] columnNames, String[] labels) throws Exception {
+    Mode mode = getMode(labels);
+    int k = labels != null ? Math.min(m_k, labels.length) : 0;
+
+    int[] top = new int[Math.max(k, 1)];
+    for (double[] p : preds) {
+      g.writeStartArray();
+      if (mode == Mode.FULL) {
+        for (int j = 0; j < columnNames.length; j++) {
+          writeValue(g, p[j]);
+        }
+      } else if (mode == null) {
+        // numeric prediction
+        writeValue(g, p[0]);
+      } else if (mode == Mode.ARGMAX) {
+        topK(p, top, 1);
+        g.writeString(labels[top[0]]);
+      } else if (mode == Mode.TOPK) {
+        int n = topK(p, top, k);
+        for (int i = 0; i < k; i++) {
+          if (i < n) {
+            g.writeString(labels[top[i]]);
+            writeValue(g, p[top[i]]);
+          } else {
+            g.writeNull();
+            g.writeNull();
+          }
+        }
+      } else {
+        g.writeStartObject();
+        for (int j = 0; j < labels.length; j++) {
+          if (p[j] >= m_threshold) {
+            g.writeFieldName(labels[j]);
+            writeValue(g, p[j]);
+          }
+        }
+        g.writeEndObject();
+      }
+      g.writeEndArray();
+    }
+  }
+
+  /**
+   * Finish the pandas-split structure started by writeStart()
+   *
+   * @param g the generator to write to
+   * @throws Exception if a problem occurs
+   */
+  public void writeEnd(JsonGenerator g) throws Exception {
+    g.writeEndArray();
+    g.writeEndObject();
+  }
+
+  /**
+   * Find the indexes of the k largest values, in descending order of value
+   * (ties in favour of the lower index), without sorting the whole row
+   *
+   * @param p the values
+   * @param top array to hold the indexes (at least k long)
+   * @param k the number of indexes to find
+   * @return the number of indexes found (less than k if p is shorter)
+   */
+  protected static int topK(double[] p, int[] top, int k) {
+    int n = 0;
+    for (int j = 0; j < p.length; j++) {
+      double v = p[j];
+      if (n == k && !(v > p[top[n - 1]])) {
+        continue;
+      }
+      int pos = n < k ? n++ : n - 1;
+      while (pos > 0 && v > p[top[pos - 1]]) {
+        top[pos] = top[pos - 1];
+        pos--;
+      }
+      top[pos] = j;
+    }
+    return n;
+  }
+
+  /**
+   * Write a value, rounded to the configured precision. JSON gets the
+   * rounded value formatted as a decimal (so that it has no more digits than
+   * asked for); binary formats, which would encode a formatted number as a
+   * string, get it as a double.
+   *
+   * @param g the generator to write to
+   * @param v the value
+   * @throws Exception if a problem occurs
+   */
+  protected void writeValue(JsonGenerator g, double v) throws Exception {
+    if (m_precision < 0 || Double.isNaN(v) || Double.isInfinite(v)
+      || Math.abs(v) * m_scale >= Long.MAX_VALUE) {
+      g.writeNumber(v);
+      return;
+    }
+
+    long scaled = Math.round(v * m_scale);
+    if (m_precision == 0) {
+      g.writeNumber(scaled);
+      return;
+    }
+    if (!(g instanceof JsonGeneratorImpl)) {
+      g.writeNumber(scaled / m_scale);
+      return;
+    }
+
+    // format the fixed point value directly, dropping trailing zeros
+    StringBuilder b = new StringBuilder(24);
+    if (scaled < 0) {
+      b.append('-');
+      scaled = -scaled;
+    }
+    long divisor = (long) m_scale;
+    long fraction = scaled % divisor;
+    b.append(scaled / divisor);
+    if (fraction != 0) {
+      b.append('.');
+      String digits = Long.toString(fraction);
+      for (int i = digits.length(); i < m_precision; i++) {
+        b.append('0');
+      }
+      int end = digits.length();
+      while (digits.charAt(end - 1) == '0') {
+        end--;
+      }
+      b.append(digits, 0, end);
+    }
+    g.writeNumber(b.toString());
+  }
+}
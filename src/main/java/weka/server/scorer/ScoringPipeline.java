@@ -0,0 +1,259 @@
+/*******************************************************************************
+ * Pentaho Data Science
+ * <p/>
+ * Copyright (c) 2002-2020 Hitachi Vantara. All rights reserved.
+ * <p/>
+ * ******************************************************************************
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ * <p/>
+ ******************************************************************************/
+
+package weka.server.scorer;
+
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import weka.core.Instances;
+import weka.server.PayloadFormat;
+import weka.server.RequestContext;
+import weka.server.RequestTimings;
+import weka.server.dataprep.JsonChunkReader;
+
+/**
+ * Scores a large payload as a pipeline of stages that run concurrently on
+ * successive chunks of rows: the request thread parses chunk N+1 while a
+ * stage thread maps and predicts chunk N and another serialises the
+ * predictions for chunk N-1 to the response. Stages hand chunks on over
+ * small bounded queues, so memory use is bounded by the chunk size rather
+ * than the size of the payload, and latency approaches that of the slowest
+ * stage rather than the sum of all of them.
+ * <p>
+ * Each stage records its (accumulated) time under the usual request timing
+ * stages, and the wall-clock time of the whole pipeline is recorded under
+ * RequestTimings.PIPELINE, so the overlap achieved can be seen by comparing
+ * the two.
+ *
+ * @version : $
+ */
+public class ScoringPipeline {
+
+  /** Marks the end of the chunks on a queue */
+  protected static final Object END = new Object();
+
+  /** Runs the predict and serialise stages of all pipelines */
+  protected static final ExecutorService s_stages;
+  static {
+    final AtomicInteger threadCount = new AtomicInteger();
+    s_stages = Executors.newCachedThreadPool(r -> {
+      Thread t =
+        new Thread(r, "scoring-pipeline-" + threadCount.incrementAndGet());
+      t.setDaemon(true);
+      return t;
+    });
+  }
+
+  /**
+   * A stage running on a stage thread, which can be stopped and waited for:
+   * Future.cancel() only interrupts a running task, and Future.get() then
+   * returns without waiting for it to finish
+   */
+  protected static class Stage {
+
+    /** Set by whichever of the stage and stop() gets there first */
+    protected final AtomicBoolean m_claimed = new AtomicBoolean();
+
+    /** Released once the stage's work has finished */
+    protected final CountDownLatch m_stopped = new CountDownLatch(1);
+
+    protected final Future<?> m_future;
+
+    /**
+     * Constructor. Starts the stage.
+     *
+     * @param work the work of the stage
+     */
+    protected Stage(Callable<Object> work) {
+      m_future = s_stages.submit(() -> {
+        if (!m_claimed.compareAndSet(false, true)) {
+          // stopped before it started
+          return null;
+        }
+        try {
+          return work.call();
+        } finally {
+          m_stopped.countDown();
+        }
+      });
+    }
+
+    /**
+     * Interrupt the stage if it is still running and wait for it to finish
+     */
+    protected void stop() {
+      m_future.cancel(true);
+      if (m_claimed.compareAndSet(false, true)) {
+        // never started, and now never will
+        return;
+      }
+      boolean interrupted = false;
+      while (true) {
+        try {
+          m_stopped.await();
+          break;
+        } catch (InterruptedException ex) {
+          interrupted = true;
+        }
+      }
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /** The scorer (leased for the request) */
+  protected final WekaScoringModel m_scorer;
+
+  /** Number of chunks each queue can hold */
+  protected final int m_queueSize;
+
+  /**
+   * Constructor
+   *
+   * @param scorer the scorer to use (only used by the predict stage)
+   * @param queueSize the number of chunks that can wait between stages
+   */
+  public ScoringPipeline(WekaScoringModel scorer, int queueSize) {
+    m_scorer = scorer;
+    m_queueSize = Math.max(1, queueSize);
+  }
+
+  /**
+   * Score the chunks of a payload, writing the predictions to a stream
+   *
+   * @param reader the reader to take chunks from
+   * @param first the first chunk (already read)
+   * @param chunkSize the number of rows in each chunk
+   * @param output the stream to write the predictions to
+   * @param format the format to write predictions in
+   * @throws Exception if a problem occurs in any stage
+   */
+  public void run(JsonChunkReader reader, Instances first, int chunkSize,
+    OutputStream output, PayloadFormat format) throws Exception {
+    RequestContext context = m_scorer.getRequestContext();
+    RequestTimings timings = context != null ? context.getTimings() : null;
+    long start = System.nanoTime();
+
+    // everything the serialise stage needs is obtained up front, so that
+    // only the predict stage uses the scorer
+    PredictionOutput predictionOutput = m_scorer.getPredictionOutput();
+    String[] columnNames = m_scorer.getPredictionColumnNames();
+    String[] labels = m_scorer.getPredictionLabels();
+
+    BlockingQueue<Object> parsed = new ArrayBlockingQueue<>(m_queueSize);
+    BlockingQueue<Object> predicted = new ArrayBlockingQueue<>(m_queueSize);
+    Stage predict = new Stage(() -> {
+      Object chunk;
+      while ((chunk = parsed.take()) != END) {
+        predicted.put(m_scorer.scoreInstances((Instances) chunk));
+      }
+      predicted.put(END);
+      return null;
+    });
+    Stage serialise = new Stage(() -> {
+      try (JsonGenerator g = format.getFactory().createGenerator(output)) {
+        g.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+        predictionOutput.writeStart(g, columnNames, labels);
+        Object preds;
+        while ((preds = predicted.take()) != END) {
+          long s = timings != null ? System.nanoTime() : 0;
+          predictionOutput.writeRows(g, (double[][]) preds, columnNames,
+            labels);
+          if (timings != null) {
+            timings.record(RequestTimings.SERIALISE, s);
+          }
+        }
+        predictionOutput.writeEnd(g);
+      }
+      return null;
+    });
+
+    try {
+      Instances chunk = first;
+      while (chunk != null) {
+        handOn(parsed, chunk, predict.m_future, serialise.m_future);
+        long s = timings != null ? System.nanoTime() : 0;
+        if (context != null) {
+          context.checkDeadline("prepare", -1);
+        }
+        chunk = reader.next(chunkSize);
+        if (timings != null) {
+          timings.record(RequestTimings.PREPARE, s);
+        }
+      }
+      handOn(parsed, END, predict.m_future, serialise.m_future);
+      predict.m_future.get();
+      serialise.m_future.get();
+    } catch (ExecutionException ex) {
+      if (ex.getCause() instanceof Exception) {
+        throw (Exception) ex.getCause();
+      }
+      throw ex;
+    } finally {
+      // unblocks the other stage if one has failed. Both have to have
+      // stopped before returning: the scorer goes back to the pool, and the
+      // response may be replaced by an error
+      predict.stop();
+      serialise.stop();
+    }
+
+    if (timings != null) {
+      timings.setRows(reader.getRowsRead());
+      timings.record(RequestTimings.PIPELINE, start);
+    }
+  }
+
+  /**
+   * Put a chunk on a queue, waiting for space unless a stage has finished
+   * (i.e. failed) in the meantime
+   *
+   * @param queue the queue
+   * @param chunk the chunk
+   * @param stages the stages consuming the queue (directly or indirectly)
+   * @throws Exception the failure of a stage, if one has failed
+   */
+  protected static void handOn(BlockingQueue<Object> queue, Object chunk,
+    Future<?>... stages) throws Exception {
+    while (!queue.offer(chunk, 10, TimeUnit.MILLISECONDS)) {
+      for (Future<?> stage : stages) {
+        if (stage.isDone()) {
+          // throws the stage's failure
+          stage.get();
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,275 @@
+/*******************************************************************************
+ * Pentaho Data Science
+ * <p/>
+ * Copyright (c) 2002-2020 Hitachi Vantara. All rights reserved.
+ * <p/>
+ * ******************************************************************************
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ * <p/>
+ ******************************************************************************/
+
+package weka.server.scorer;
+
+import java.lang.invoke.MethodHandles;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import weka.core.Instances;
+import weka.core.Utils;
+import weka.server.TaskConfigUtils;
+import weka.server.audit.AuditLog;
+import weka.server.drift.DriftMonitor;
+
+/**
+ * Scores live traffic against a candidate (shadow) model in the background
+ * and compares the results with those of the production model. Prepared
+ * Instances and the production predictions are handed to a small executor
+ * with a bounded queue; when the queue is full the work is dropped (and
+ * counted) rather than making the caller wait, so the production path only
+ * ever pays for the hand-off.
+ * <p>
+ * Recorded statistics are: batches submitted, dropped, scored and failed;
+ * rows compared and the fraction on which the models agree (same most
+ * probable label or, for numeric predictions, values within the configured
+ * tolerance); the mean absolute difference (between the numeric predictions
+ * or the probabilities given to the production model's label) and the mean
+ * time each model took per batch.
+ *
+ * @version : $
+ */
+public class ShadowScorer {
+
+  /** Default number of threads scoring against the shadow model */
+  public static final int DEFAULT_THREADS = 1;
+
+  /** Default number of batches waiting to be shadow scored */
+  public static final int DEFAULT_QUEUE_SIZE = 100;
+
+  final static Logger logger =
+    LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+  /** Pool of scorers for the shadow model */
+  protected final WekaScoringModelPool m_pool;
+
+  protected final ThreadPoolExecutor m_executor;
+
+  /** Largest difference between numeric predictions counted as agreement */
+  protected final double m_tolerance;
+
+  protected final LongAdder m_submitted = new LongAdder();
+  protected final LongAdder m_dropped = new LongAdder();
+  protected final LongAdder m_scored = new LongAdder();
+  protected final LongAdder m_failed = new LongAdder();
+  protected final LongAdder m_rows = new LongAdder();
+  protected final LongAdder m_agreed = new LongAdder();
+  protected final DoubleAdder m_absDiff = new DoubleAdder();
+  protected final LongAdder m_primaryNanos = new LongAdder();
+  protected final LongAdder m_shadowNanos = new LongAdder();
+
+  /**
+   * Create a shadow scorer for a task if its config names a shadow model
+   *
+   * @param taskConfigUtils the config of the (production) task
+   * @return a shadow scorer, or null if no shadow model is configured
+   * @throws Exception if a problem occurs loading the shadow model
+   */
+  public static ShadowScorer fromConfig(TaskConfigUtils taskConfigUtils)
+    throws Exception {
+    String shadowModel = taskConfigUtils
+      .getTaskProperty(WekaScoringModel.PROP_SHADOW_MODEL_FILE_NAME_KEY);
+    if (shadowModel == null || shadowModel.trim().length() == 0) {
+      return null;
+    }
+
+    int threads = DEFAULT_THREADS;
+    String threadsS =
+      taskConfigUtils.getTaskProperty(WekaScoringModel.PROP_SHADOW_THREADS_KEY);
+    if (threadsS != null && threadsS.length() > 0) {
+      threads = Integer.parseInt(threadsS);
+    }
+    int queueSize = DEFAULT_QUEUE_SIZE;
+    String queueS = taskConfigUtils
+      .getTaskProperty(WekaScoringModel.PROP_SHADOW_QUEUE_SIZE_KEY);
+    if (queueS != null && queueS.length() > 0) {
+      queueSize = Integer.parseInt(queueS);
+    }
+    double tolerance = 0;
+    String toleranceS = taskConfigUtils
+      .getTaskProperty(WekaScoringModel.PROP_SHADOW_TOLERANCE_KEY);
+    if (toleranceS != null && toleranceS.length() > 0) {
+      tolerance = Double.parseDouble(toleranceS);
+    }
+
+    // the shadow model is served by a pool of its own, one scorer per thread
+    Properties overrides = new Properties();
+    overrides.setProperty(WekaScoringModel.PROP_SCORER_MODEL_FILE_NAME_KEY,
+      shadowModel.trim());
+    overrides.setProperty(WekaScoringModel.PROP_SHADOW_MODEL_FILE_NAME_KEY,
+      "");
+    overrides.setProperty(AuditLog.PROP_AUDIT_DIR_KEY, "");
+    overrides.setProperty(DriftMonitor.PROP_DRIFT_ENABLED_KEY, "false");
+    overrides.setProperty(TaskConfigUtils.TASK_POOL_SIZE_KEY, "" + threads);
+    overrides.setProperty(TaskConfigUtils.TASK_POOL_MIN_SIZE_KEY, "" + threads);
+    overrides.setProperty(TaskConfigUtils.TASK_POOL_MAX_SIZE_KEY, "" + threads);
+    WekaScoringModelPool pool =
+      new WekaScoringModelPool(taskConfigUtils.derive(overrides));
+    logger.info("Shadow scoring against " + shadowModel.trim());
+
+    return new ShadowScorer(pool, threads, queueSize, tolerance);
+  }
+
+  /**
+   * Constructor
+   *
+   * @param pool the pool of shadow scorers
+   * @param threads the number of threads to score with
+   * @param queueSize the number of batches that may wait to be scored
+   * @param tolerance the largest difference between numeric predictions
+   *          that counts as agreement
+   */
+  public ShadowScorer(WekaScoringModelPool pool, int threads, int queueSize,
+    double tolerance) {
+    m_pool = pool;
+    m_tolerance = tolerance;
+    final AtomicInteger threadCount = new AtomicInteger();
+    m_executor = new ThreadPoolExecutor(threads, threads, 0,
+      TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(Math.max(1, queueSize)),
+      r -> {
+        Thread t = new Thread(r, "shadow-" + threadCount.incrementAndGet());
+        t.setDaemon(true);
+        t.setPriority(Thread.MIN_PRIORITY);
+        return t;
+      }, (r, executor) -> m_dropped.increment());
+  }
+
+  /**
+   * Hand a scored batch over for shadow scoring. Never blocks: if the queue
+   * is full the batch is dropped.
+   *
+   * @param toScore the prepared data (must not be modified afterwards)
+   * @param preds the production model's predictions
+   * @param columnNames the production model's prediction column names
+   * @param primaryNanos the time the production model took
+   */
+  public void submit(Instances toScore, double[][] preds,
+    String[] columnNames, long primaryNanos) {
+    m_submitted.increment();
+    m_executor.execute(() -> compare(toScore, preds, columnNames,
+      primaryNanos));
+  }
+
+  /**
+   * Score a batch against the shadow model and record how its predictions
+   * compare with the production ones
+   *
+   * @param toScore the prepared data
+   * @param preds the production model's predictions
+   * @param columnNames the production model's prediction column names
+   * @param primaryNanos the time the production model took
+   */
+  protected void compare(Instances toScore, double[][] preds,
+    String[] columnNames, long primaryNanos) {
+    WekaScoringModel scorer = null;
+    try {
+      scorer = m_pool.getPooledScorer();
+      long start = System.nanoTime();
+      double[][] shadowPreds = scorer.scoreInstances(toScore);
+      m_shadowNanos.add(System.nanoTime() - start);
+      m_primaryNanos.add(primaryNanos);
+
+      long agreed = 0;
+      double absDiff = 0;
+      if (scorer.getPredictionLabels() == null) {
+        for (int i = 0; i < preds.length; i++) {
+          double diff = Math.abs(preds[i][0] - shadowPreds[i][0]);
+          absDiff += diff;
+          if (diff <= m_tolerance) {
+            agreed++;
+          }
+        }
+      } else {
+        // match columns by name, as the models may order labels differently
+        String[] shadowNames = scorer.getPredictionColumnNames();
+        Map<String, Integer> shadowIndex = new HashMap<>();
+        for (int j = 0; j < shadowNames.length; j++) {
+          shadowIndex.put(shadowNames[j], j);
+        }
+        for (int i = 0; i < preds.length; i++) {
+          int best = Utils.maxIndex(preds[i]);
+          int shadowBest = Utils.maxIndex(shadowPreds[i]);
+          if (columnNames[best].equals(shadowNames[shadowBest])) {
+            agreed++;
+          }
+          Integer j = shadowIndex.get(columnNames[best]);
+          absDiff += Math.abs(preds[i][best]
+            - (j != null ? shadowPreds[i][j] : 0));
+        }
+      }
+      m_rows.add(preds.length);
+      m_agreed.add(agreed);
+      m_absDiff.add(absDiff);
+      m_scored.increment();
+    } catch (Exception ex) {
+      m_failed.increment();
+      logger.debug("Shadow scoring failed", ex);
+    } finally {
+      if (scorer != null) {
+        m_pool.releasePooledScorer(scorer);
+      }
+    }
+  }
+
+  /**
+   * Get the statistics gathered so far
+   *
+   * @return named statistics
+   */
+  public Map<String, Object> getStatistics() {
+    Map<String, Object> stats = new LinkedHashMap<>();
+    long rows = m_rows.sum();
+    long scored = m_scored.sum();
+    stats.put("shadow.submitted", m_submitted.sum());
+    stats.put("shadow.dropped", m_dropped.sum());
+    stats.put("shadow.scored", scored);
+    stats.put("shadow.failed", m_failed.sum());
+    stats.put("shadow.rows", rows);
+    stats.put("shadow.agreement", rows > 0 ? (double) m_agreed.sum() / rows : 0);
+    stats.put("shadow.meanAbsDiff", rows > 0 ? m_absDiff.sum() / rows : 0);
+    stats.put("shadow.primaryMeanMs",
+      scored > 0 ? m_primaryNanos.sum() / 1e6 / scored : 0);
+    stats.put("shadow.shadowMeanMs",
+      scored > 0 ? m_shadowNanos.sum() / 1e6 / scored : 0);
+    return stats;
+  }
+
+  /**
+   * Stop shadow scoring, abandoning any queued batches
+   */
+  public void shutdown() {
+    m_executor.shutdownNow();
+    m_pool.shutdown();
+  }
+}
@@ -0,0 +1,170 @@
+/*******************************************************************************
+ * Pentaho Data Science
+ * <p/>
+ * Copyright (c) 2002-2020 Hitachi Vantara. All rights reserved.
+ * <p/>
+ * ******************************************************************************
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ * <p/>
+ ******************************************************************************/
+
+package weka.server.scorer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded, lock-free pool of objects held in a fixed number of slots.
+ * Each thread remembers the slot it last used and starts its search from
+ * there, so under steady load a thread tends to get back the same object it
+ * released (keeping that object's data warm in the thread's CPU cache) and
+ * different threads start from different slots rather than all contending on
+ * a single head. Slots are padded apart to avoid false sharing. Since the
+ * number of slots is fixed, the pool can never hold more than its capacity.
+ *
+ * @param <T> the type of pooled object
+ * @version : $
+ */
+public class StripedObjectPool<T> {
+
+  /** Distance between used slots in the backing array (avoids false sharing) */
+  protected static final int PAD = 16;
+
+  /** The slots (only every PAD'th element is used) */
+  protected final AtomicReferenceArray<T> m_slots;
+
+  /** Number of slots */
+  protected final int m_capacity;
+
+  /** Number of occupied slots */
+  protected final AtomicInteger m_idle = new AtomicInteger();
+
+  /** Slot each thread last took from or returned to */
+  protected final ThreadLocal<int[]> m_homeSlot;
+
+  /**
+   * Constructor
+   *
+   * @param capacity the maximum number of objects held by the pool (0 for a
+   *          pool that never holds anything)
+   */
+  public StripedObjectPool(int capacity) {
+    m_capacity = Math.max(0, capacity);
+    m_slots = new AtomicReferenceArray<>(Math.max(1, m_capacity) * PAD);
+    m_homeSlot = ThreadLocal.withInitial(() -> new int[] { m_capacity > 0
+      ? (int) (Thread.currentThread().getId() % m_capacity) : 0 });
+  }
+
+  /**
+   * Take an object from the pool
+   *
+   * @return an object, or null if the pool is empty
+   */
+  public T poll() {
+    // reserve an object first, so that the count never overstates what is
+    // available, then find it
+    int n;
+    do {
+      n = m_idle.get();
+      if (n <= 0) {
+        return null;
+      }
+    } while (!m_idle.compareAndSet(n, n - 1));
+
+    int[] home = m_homeSlot.get();
+    for (int i = 0;; i++) {
+      int slot = (home[0] + i) % m_capacity;
+      T t = m_slots.get(slot * PAD);
+      if (t != null && m_slots.compareAndSet(slot * PAD, t, null)) {
+        home[0] = slot;
+        return t;
+      }
+      if (i > 0 && slot == home[0]) {
+        // reserved object is still being placed by a concurrent offer()
+        Thread.yield();
+      }
+    }
+  }
+
+  /**
+   * Return an object to the pool
+   *
+   * @param t the object to return
+   * @return true if the object was added, false if the pool is full (in
+   *         which case the caller should discard it)
+   */
+  public boolean offer(T t) {
+    // reserve a slot first, so that the pool can never exceed its capacity
+    int n;
+    do {
+      n = m_idle.get();
+      if (n >= m_capacity) {
+        return false;
+      }
+    } while (!m_idle.compareAndSet(n, n + 1));
+
+    int[] home = m_homeSlot.get();
+    for (int i = 0;; i++) {
+      int slot = (home[0] + i) % m_capacity;
+      if (m_slots.get(slot * PAD) == null
+        && m_slots.compareAndSet(slot * PAD, null, t)) {
+        home[0] = slot;
+        return true;
+      }
+      if (i > 0 && slot == home[0]) {
+        // reserved slot is still being emptied by a concurrent poll()
+        Thread.yield();
+      }
+    }
+  }
+
+  /**
+   * Get the number of objects currently in the pool. This is a single atomic
+   * read and never exceeds the capacity of the pool.
+   *
+   * @return the number of objects in the pool
+   */
+  public int size() {
+    return m_idle.get();
+  }
+
+  /**
+   * Get the maximum number of objects the pool can hold
+   *
+   * @return the capacity of the pool
+   */
+  public int capacity() {
+    return m_capacity;
+  }
+
+  /**
+   * Get the objects currently in the pool, without removing them. Only a
+   * consistent view if the pool is not being used concurrently.
+   *
+   * @return the objects in the pool
+   */
+  public List<T> peekAll() {
+    List<T> result = new ArrayList<>();
+    for (int i = 0; i < m_capacity; i++) {
+      T t = m_slots.get(i * PAD);
+      if (t != null) {
+        result.add(t);
+      }
+    }
+    return result;
+  }
+}
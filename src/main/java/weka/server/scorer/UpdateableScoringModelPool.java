@@ -0,0 +1,449 @@
+/*******************************************************************************
+ * Pentaho Data Science
+ * <p/>
+ * Copyright (c) 2002-2020 Hitachi Vantara. All rights reserved.
+ * <p/>
+ * ******************************************************************************
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ * <p/>
+ ******************************************************************************/
+
+package weka.server.scorer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.lang.invoke.MethodHandles;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import weka.classifiers.Classifier;
+import weka.classifiers.UpdateableClassifier;
+import weka.core.Environment;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.SerializationHelper;
+import weka.core.Utils;
+import weka.server.RequestContext;
+import weka.server.TaskConfigUtils;
+import weka.server.TaskRejectedException;
+
+/**
+ * Pool of scorers for a model that implements UpdateableClassifier, which can
+ * also be updated with labelled instances while it serves predictions.
+ * Labelled batches are queued by update() and applied, in order, to a master
+ * copy of the model by a background thread. The trainer periodically
+ * publishes an immutable (serialized) snapshot of the model, along with a
+ * copy of it for each scorer; a scorer switches to the latest snapshot when
+ * it is next leased, so scoring never waits for training (or for the snapshot
+ * to be deserialized) and a request is always scored by one version of the
+ * model. The model is checkpointed to a separate file in ${user.home}/models
+ * (&lt;model file&gt;.checkpoint by default) periodically and when the pool is
+ * shut down. The deployed model file is never overwritten; a restart only
+ * carries on from the checkpoint if weka.server.scorer.update.checkpoint.resume
+ * is true.
+ *
+ * @version : $
+ */
+public class UpdateableScoringModelPool extends WekaScoringModelPool {
+
+  public static final String PROP_UPDATE_QUEUE_SIZE_KEY =
+    "weka.server.scorer.update.queueSize";
+  public static final int DEFAULT_QUEUE_SIZE = 1000;
+  public static final String PROP_UPDATE_PUBLISH_ROWS_KEY =
+    "weka.server.scorer.update.publishRows";
+  public static final long DEFAULT_PUBLISH_ROWS = 1000;
+  public static final String PROP_UPDATE_PUBLISH_INTERVAL_KEY =
+    "weka.server.scorer.update.publishIntervalMs";
+  public static final long DEFAULT_PUBLISH_INTERVAL = 1000;
+  public static final String PROP_UPDATE_CHECKPOINT_FILE_NAME_KEY =
+    "weka.server.scorer.update.checkpoint.filename";
+  public static final String PROP_UPDATE_CHECKPOINT_RESUME_KEY =
+    "weka.server.scorer.update.checkpoint.resume";
+  public static final String CHECKPOINT_EXTENSION = ".checkpoint";
+  public static final String PROP_UPDATE_CHECKPOINT_INTERVAL_KEY =
+    "weka.server.scorer.update.checkpointIntervalMs";
+  public static final long DEFAULT_CHECKPOINT_INTERVAL = 60000;
+
+  final static Logger logger =
+    LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+  /** The model being updated (trainer thread only) */
+  protected Classifier m_model;
+
+  /** Header of the data used to train the model */
+  protected Instances m_header;
+
+  /** Latest published snapshot of the model */
+  protected volatile Snapshot m_snapshot;
+
+  /** Labelled batches waiting to be applied */
+  protected BlockingQueue<Instances> m_queue;
+
+  protected long m_publishRows;
+  protected long m_publishIntervalNanos;
+  protected long m_checkpointIntervalNanos;
+
+  /** File the model is checkpointed to */
+  protected File m_checkpointFile;
+
+  /** Applies updates */
+  protected Thread m_trainer;
+
+  protected volatile boolean m_running = true;
+
+  protected final LongAdder m_queued = new LongAdder();
+  protected final LongAdder m_rejected = new LongAdder();
+  protected final LongAdder m_applied = new LongAdder();
+  protected final LongAdder m_failed = new LongAdder();
+  protected final LongAdder m_checkpoints = new LongAdder();
+
+  /**
+   * An immutable, published version of the model
+   */
+  protected static class Snapshot {
+
+    protected final long m_version;
+
+    /** The serialized model */
+    protected final byte[] m_model;
+
+    /** Copies of the model made by the trainer, for scorers to switch to */
+    protected final ConcurrentLinkedQueue<Object> m_copies =
+      new ConcurrentLinkedQueue<>();
+
+    /**
+     * Constructor. Makes the copies of the model before the snapshot is
+     * published, so that scorers don't have to deserialize it when they are
+     * leased.
+     *
+     * @param version the version of the model
+     * @param model the serialized model
+     * @param copies the number of copies of the model to make
+     * @throws Exception if a problem occurs
+     */
+    protected Snapshot(long version, byte[] model, int copies)
+      throws Exception {
+      m_version = version;
+      m_model = model;
+      for (int i = 0; i < copies; i++) {
+        m_copies.add(deserialize());
+      }
+    }
+
+    protected Object deserialize() throws Exception {
+      return SerializationHelper.read(new ByteArrayInputStream(m_model));
+    }
+
+    /**
+     * Get a copy of the model for a scorer's exclusive use. Only
+     * deserializes one if the pool has grown since the snapshot was
+     * published.
+     *
+     * @return a copy of the model
+     * @throws Exception if a problem occurs
+     */
+    protected Object newModel() throws Exception {
+      Object copy = m_copies.poll();
+      return copy != null ? copy : deserialize();
+    }
+  }
+
+  /**
+   * No-args constructor (so PluginManager can instantiate us)
+   */
+  public UpdateableScoringModelPool() {
+  }
+
+  @Override
+  public void setTaskConfigUtils(TaskConfigUtils taskConfigUtils)
+    throws Exception {
+    super.setTaskConfigUtils(taskConfigUtils);
+    if (m_trainer != null) {
+      return;
+    }
+
+    Object[] modelStuff = readModelFile(taskConfigUtils);
+    if (!(modelStuff[0] instanceof UpdateableClassifier)) {
+      TaskConfigUtils.generateError(this, "Model "
+        + modelStuff[0].getClass().getCanonicalName()
+        + " is not an UpdateableClassifier");
+    }
+    m_model = (Classifier) modelStuff[0];
+    m_header = (Instances) modelStuff[1];
+
+    int queueSize = DEFAULT_QUEUE_SIZE;
+    String queueS = taskConfigUtils.getTaskProperty(PROP_UPDATE_QUEUE_SIZE_KEY);
+    if (queueS != null && queueS.length() > 0) {
+      queueSize = Integer.parseInt(queueS);
+    }
+    m_queue = new ArrayBlockingQueue<>(Math.max(1, queueSize));
+    m_publishRows = DEFAULT_PUBLISH_ROWS;
+    String rowsS =
+      taskConfigUtils.getTaskProperty(PROP_UPDATE_PUBLISH_ROWS_KEY);
+    if (rowsS != null && rowsS.length() > 0) {
+      m_publishRows = Long.parseLong(rowsS);
+    }
+    long publishInterval = DEFAULT_PUBLISH_INTERVAL;
+    String publishS =
+      taskConfigUtils.getTaskProperty(PROP_UPDATE_PUBLISH_INTERVAL_KEY);
+    if (publishS != null && publishS.length() > 0) {
+      publishInterval = Long.parseLong(publishS);
+    }
+    m_publishIntervalNanos = TimeUnit.MILLISECONDS.toNanos(publishInterval);
+    long checkpointInterval = DEFAULT_CHECKPOINT_INTERVAL;
+    String checkpointS =
+      taskConfigUtils.getTaskProperty(PROP_UPDATE_CHECKPOINT_INTERVAL_KEY);
+    if (checkpointS != null && checkpointS.length() > 0) {
+      checkpointInterval = Long.parseLong(checkpointS);
+    }
+    m_checkpointIntervalNanos =
+      TimeUnit.MILLISECONDS.toNanos(checkpointInterval);
+
+    // never the deployed model file itself, so that a bad checkpoint can't
+    // replace the model that was deployed
+    String checkpointName = taskConfigUtils
+      .getTaskProperty(PROP_UPDATE_CHECKPOINT_FILE_NAME_KEY);
+    if (checkpointName == null || checkpointName.length() == 0) {
+      checkpointName = taskConfigUtils
+        .getTaskProperty(WekaScoringModel.PROP_SCORER_MODEL_FILE_NAME_KEY)
+        + CHECKPOINT_EXTENSION;
+    }
+    try {
+      checkpointName = Environment.getSystemWide().substitute(checkpointName);
+    } catch (Exception ex) {
+      // ignore substitution problems
+    }
+    m_checkpointFile = new File(System.getProperty("user.home")
+      + File.separator + "models" + File.separator + checkpointName);
+
+    String resumeS =
+      taskConfigUtils.getTaskProperty(PROP_UPDATE_CHECKPOINT_RESUME_KEY);
+    if ("true".equalsIgnoreCase(resumeS) && m_checkpointFile.exists()) {
+      Object[] checkpoint =
+        SerializationHelper.readAll(m_checkpointFile.getPath());
+      if (checkpoint.length < 2
+        || !(checkpoint[0] instanceof UpdateableClassifier)
+        || !(checkpoint[1] instanceof Instances)
+        || !m_header.equalHeaders((Instances) checkpoint[1])) {
+        TaskConfigUtils.generateError(this, "Checkpoint " + m_checkpointFile
+          + " does not hold an updateable version of the deployed model");
+      }
+      m_model = (Classifier) checkpoint[0];
+      // scorers switch from the deployed model when they are next leased
+      m_snapshot = new Snapshot(1, serialize(m_model), getNumModelCopies());
+      logger.info("Resuming from checkpoint " + m_checkpointFile);
+    }
+
+    m_trainer = new Thread(this::trainLoop,
+      "trainer-" + taskConfigUtils.getTaskId());
+    m_trainer.setDaemon(true);
+    m_trainer.start();
+  }
+
+  /**
+   * Queue a batch of labelled instances to update the model with
+   *
+   * @param input the labelled instances, in any format the task's data
+   *          preparer accepts
+   * @param context the context of the request
+   * @return the number of labelled instances queued
+   * @throws TaskRejectedException if too many updates are waiting
+   * @throws Exception if a problem occurs
+   */
+  public int update(InputStream input, RequestContext context)
+    throws Exception {
+    WekaScoringModel scorer = (WekaScoringModel) getTask(context);
+    Instances labelled;
+    try {
+      labelled = mapLabelled(scorer, scorer.prepareInstances(input));
+    } finally {
+      scorer.setRequestContext(null);
+      releaseTask(scorer);
+    }
+
+    if (!m_queue.offer(labelled)) {
+      m_rejected.increment();
+      throw new TaskRejectedException("Too many updates waiting to be applied");
+    }
+    m_queued.add(labelled.numInstances());
+
+    return labelled.numInstances();
+  }
+
+  /**
+   * Map incoming instances into the model's training header, keeping their
+   * class values. Instances with a missing class value are dropped.
+   *
+   * @param scorer the scorer whose mapping plan to use
+   * @param data the incoming instances
+   * @return the labelled instances in the model's training header
+   * @throws Exception if the data doesn't match the model, or has no labels
+   */
+  protected Instances mapLabelled(WekaScoringModel scorer, Instances data)
+    throws Exception {
+    Instances labelled = new Instances(m_header, data.numInstances());
+    if (data.numInstances() == 0) {
+      return labelled;
+    }
+    MappingPlan plan = scorer.getMappingPlan(data);
+    plan.checkProblems(this, data);
+    int classIndex = m_header.classIndex();
+    for (int i = 0; i < data.numInstances(); i++) {
+      Instance inst = plan.map(data.instance(i), true);
+      if (!Utils.isMissingValue(inst.value(classIndex))) {
+        labelled.add(inst);
+      }
+    }
+    if (labelled.numInstances() == 0) {
+      TaskConfigUtils.generateError(this, "No labelled instances found. The "
+        + "data must include the class attribute '"
+        + m_header.classAttribute().name() + "'");
+    }
+
+    return labelled;
+  }
+
+  /**
+   * Applies queued updates, publishing snapshots and checkpointing the model
+   * as it goes, until the pool is shut down
+   */
+  protected void trainLoop() {
+    long version = m_snapshot != null ? m_snapshot.m_version : 0;
+    long sincePublish = 0;
+    long checkpointed = version;
+    long lastPublish = System.nanoTime();
+    long lastCheckpoint = lastPublish;
+    while (m_running || !m_queue.isEmpty()) {
+      try {
+        Instances batch = m_queue.poll(100, TimeUnit.MILLISECONDS);
+        if (batch != null) {
+          try {
+            for (int i = 0; i < batch.numInstances(); i++) {
+              ((UpdateableClassifier) m_model)
+                .updateClassifier(batch.instance(i));
+            }
+            m_applied.add(batch.numInstances());
+            sincePublish += batch.numInstances();
+          } catch (Exception ex) {
+            m_failed.add(batch.numInstances());
+            logger.warn("Unable to update model: " + ex.getMessage());
+          }
+        }
+
+        long now = System.nanoTime();
+        if (sincePublish > 0 && (sincePublish >= m_publishRows
+          || now - lastPublish >= m_publishIntervalNanos)) {
+          m_snapshot = new Snapshot(++version, serialize(m_model),
+            getNumModelCopies());
+          sincePublish = 0;
+          lastPublish = now;
+          logger.debug("Published model version " + version);
+        }
+        if (version > checkpointed
+          && now - lastCheckpoint >= m_checkpointIntervalNanos) {
+          checkpoint();
+          checkpointed = version;
+          lastCheckpoint = now;
+        }
+      } catch (InterruptedException ex) {
+        break;
+      } catch (Exception ex) {
+        logger.warn("Problem publishing model: " + ex.getMessage());
+      }
+    }
+
+    if (m_applied.sum() > 0) {
+      try {
+        checkpoint();
+      } catch (Exception ex) {
+        logger.warn("Unable to checkpoint model: " + ex.getMessage());
+      }
+    }
+  }
+
+  protected static byte[] serialize(Object model) throws Exception {
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    SerializationHelper.write(bos, model);
+    return bos.toByteArray();
+  }
+
+  /**
+   * Write the model (and training header) to the checkpoint file, replacing
+   * it atomically
+   *
+   * @throws Exception if a problem occurs
+   */
+  protected void checkpoint() throws Exception {
+    File tmp = new File(m_checkpointFile.getPath() + ".tmp");
+    SerializationHelper.writeAll(tmp.getPath(),
+      new Object[] { m_model, m_header });
+    Files.move(tmp.toPath(), m_checkpointFile.toPath(),
+      StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    m_checkpoints.increment();
+    logger.info("Checkpointed model to " + m_checkpointFile);
+  }
+
+  @Override
+  protected WekaScoringModel getPooledScorer() throws Exception {
+    WekaScoringModel scorer = super.getPooledScorer();
+    Snapshot snapshot = m_snapshot;
+    if (snapshot != null && scorer.m_modelVersion != snapshot.m_version) {
+      // switch to the latest version before the scorer is used for a request
+      scorer.setUnderlyingModel(snapshot.newModel(), m_header);
+      scorer.m_modelVersion = snapshot.m_version;
+    }
+    return scorer;
+  }
+
+  @Override
+  public Map<String, Object> getStatistics() {
+    Map<String, Object> stats = new LinkedHashMap<>(super.getStatistics());
+    Snapshot snapshot = m_snapshot;
+    stats.put("update.version", snapshot != null ? snapshot.m_version : 0);
+    stats.put("update.queued", m_queued.sum());
+    stats.put("update.waiting", m_queue != null ? m_queue.size() : 0);
+    stats.put("update.rejected", m_rejected.sum());
+    stats.put("update.applied", m_applied.sum());
+    stats.put("update.failed", m_failed.sum());
+    stats.put("update.checkpoints", m_checkpoints.sum());
+    return stats;
+  }
+
+  @Override
+  public void shutdown() {
+    super.shutdown();
+    m_running = false;
+    if (m_trainer != null) {
+      try {
+        // let queued updates be applied and checkpointed
+        m_trainer.join(TimeUnit.SECONDS.toMillis(30));
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+}
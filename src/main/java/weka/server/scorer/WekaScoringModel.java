@@ -23,20 +23,24 @@
 package weka.server.scorer;
 
 import weka.core.Attribute;
-import weka.core.DenseInstance;
 import weka.core.Instance;
 import weka.core.Instances;
-import weka.core.Utils;
+import weka.server.audit.AuditLog;
 import weka.server.dataprep.AbstractInstancesDataPreparerer;
+import weka.server.dataprep.DefaultJsonInstancesDataPreparer;
+import weka.server.dataprep.JsonChunkReader;
+import weka.server.drift.FeatureStatistics;
+import weka.server.PayloadFormat;
+import weka.server.RequestContext;
+import weka.server.RequestTimings;
 import weka.server.TaskConfigUtils;
 import weka.server.WekaServerTask;
 
-import java.util.ArrayList;
-import java.util.LinkedHashMap;
-import java.util.List;
-import java.util.Map;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 
-import static weka.server.dataprep.DefaultJsonInstancesDataPreparer.MAPPER;
+import java.io.InputStream;
+import java.io.OutputStream;
 
 /**
  * Base class for Weka-based scoring models. getScorer() factory method returns
@@ -62,6 +66,31 @@ public abstract class WekaScoringModel extends WekaServerTask {
     "weka.server.scorer.model.filename";
   public static final String PROP_DATA_PREP_KEY =
     "weka.server.scorer.data.preparer";
+  public static final String PROP_OUTPUT_KEY = "weka.server.scorer.output";
+  public static final String PROP_CHUNK_SIZE_KEY =
+    "weka.server.scorer.chunkSize";
+  public static final int DEFAULT_CHUNK_SIZE = 1000;
+  public static final String PROP_WARMUP_ITERATIONS_KEY =
+    "weka.server.scorer.warmup.iterations";
+  public static final String PROP_WARMUP_FILE_KEY =
+    "weka.server.scorer.warmup.file";
+  public static final String PROP_WARMUP_ROWS_KEY =
+    "weka.server.scorer.warmup.rows";
+  public static final String PROP_WARMUP_TOLERANCE_KEY =
+    "weka.server.scorer.warmup.tolerance";
+  public static final String PROP_SHADOW_MODEL_FILE_NAME_KEY =
+    "weka.server.scorer.shadow.model.filename";
+  public static final String PROP_SHADOW_THREADS_KEY =
+    "weka.server.scorer.shadow.threads";
+  public static final String PROP_SHADOW_QUEUE_SIZE_KEY =
+    "weka.server.scorer.shadow.queueSize";
+  public static final String PROP_SHADOW_TOLERANCE_KEY =
+    "weka.server.scorer.shadow.tolerance";
+  public static final String PROP_PIPELINE_CHUNK_SIZE_KEY =
+    "weka.server.scorer.pipeline.chunkSize";
+  public static final String PROP_PIPELINE_QUEUE_SIZE_KEY =
+    "weka.server.scorer.pipeline.queueSize";
+  public static final int DEFAULT_PIPELINE_QUEUE_SIZE = 2;
 
   /** Data preparer to use */
   protected AbstractInstancesDataPreparerer m_dataPreparerer;
@@ -69,16 +98,133 @@ public abstract class WekaScoringModel extends WekaServerTask {
   /** Header of the data used to train the model */
   protected Instances m_modelTrainingHeader;
 
+  /** Plan used to map the most recent incoming data to the model */
+  protected MappingPlan m_mappingPlan;
+
+  /**
+   * Version of the model in use (bumped when an updateable model is switched
+   * to a newer snapshot)
+   */
+  protected long m_modelVersion;
+
+  /** Output settings from the task config (used if the request has none) */
+  protected PredictionOutput m_defaultOutput;
+
+  /** Scores traffic against a candidate model in the background (if set) */
+  protected ShadowScorer m_shadow;
+
+  /** Records the predictions made (if set) */
+  protected AuditLog m_audit;
+
+  /** Statistics of inputs and predictions for drift monitoring (if set) */
+  protected FeatureStatistics m_featureStatistics;
+
   /** Utils/configuration props for this model */
   protected TaskConfigUtils taskConfigUtils;
 
+  /** Rows per chunk when scoring requests that have a deadline */
+  protected int m_chunkSize = DEFAULT_CHUNK_SIZE;
+
+  /** Rows per chunk of a pipelined payload (0 to not pipeline) */
+  protected int m_pipelineChunkSize;
+
+  /** Chunks that can wait between the stages of a pipeline */
+  protected int m_pipelineQueueSize = DEFAULT_PIPELINE_QUEUE_SIZE;
+
   /**
    * Constructor
    *
    * @param taskConfigUtils the configuration/utils to use
+   * @throws Exception if a scorer setting in the config is invalid
    */
-  public WekaScoringModel(TaskConfigUtils taskConfigUtils) {
+  public WekaScoringModel(TaskConfigUtils taskConfigUtils) throws Exception {
     this.taskConfigUtils = taskConfigUtils;
+    if (taskConfigUtils != null) {
+      String chunkS = taskConfigUtils.getTaskProperty(PROP_CHUNK_SIZE_KEY);
+      if (chunkS != null && chunkS.length() > 0) {
+        m_chunkSize = Math.max(1, Integer.parseInt(chunkS));
+      }
+      m_pipelineChunkSize =
+        getIntProperty(PROP_PIPELINE_CHUNK_SIZE_KEY, m_pipelineChunkSize, 0);
+      m_pipelineQueueSize =
+        getIntProperty(PROP_PIPELINE_QUEUE_SIZE_KEY, m_pipelineQueueSize, 1);
+    }
+  }
+
+  /**
+   * Read an integer setting from the task's config
+   *
+   * @param key the property key
+   * @param defaultValue the value to use if the property is not set
+   * @param min the smallest valid value
+   * @return the value
+   * @throws Exception if the property is not an integer of at least min
+   */
+  protected int getIntProperty(String key, int defaultValue, int min)
+    throws Exception {
+    String s = taskConfigUtils.getTaskProperty(key);
+    if (s == null || s.trim().length() == 0) {
+      return defaultValue;
+    }
+    try {
+      int value = Integer.parseInt(s.trim());
+      if (value >= min) {
+        return value;
+      }
+    } catch (NumberFormatException ex) {
+      // reported below
+    }
+    TaskConfigUtils.generateError(this, key + " must be an integer of at "
+      + "least " + min + " (got '" + s + "')");
+    return defaultValue;
+  }
+
+  /**
+   * Get a plan for mapping instances with the supplied header into the
+   * model's training header. The most recently used plan is reused if the
+   * header has the same attributes.
+   *
+   * @param inputHeader the header of the incoming data
+   * @return a mapping plan
+   */
+  protected MappingPlan getMappingPlan(Instances inputHeader) {
+    MappingPlan plan = m_mappingPlan;
+    if (plan == null || !plan.isFor(inputHeader)) {
+      plan = new MappingPlan(m_modelTrainingHeader, inputHeader);
+      m_mappingPlan = plan;
+    }
+    return plan;
+  }
+
+  /**
+   * Map a set of incoming instances into the model's training header
+   *
+   * @param toScore the incoming instances
+   * @return the instances with columns mapped
+   * @throws Exception if a problem occurs (i.e. there are missing inputs or
+   *           type mismatches)
+   */
+  protected Instances mapInstances(Instances toScore) throws Exception {
+    RequestTimings timings = getTimings();
+    long start = timings != null ? System.nanoTime() : 0;
+    MappingPlan plan = getMappingPlan(toScore);
+    Instances mapped =
+      new Instances(m_modelTrainingHeader, toScore.numInstances());
+    if (toScore.numInstances() == 0) {
+      return mapped;
+    }
+    plan.checkProblems(this, toScore);
+    for (int i = 0; i < toScore.numInstances(); i++) {
+      mapped.add(plan.map(toScore.instance(i)));
+    }
+    if (m_featureStatistics != null) {
+      m_featureStatistics.addInputs(mapped);
+    }
+
+    if (timings != null) {
+      timings.record(RequestTimings.MAP, start);
+    }
+    return mapped;
   }
 
   /**
@@ -90,47 +236,10 @@ public abstract class WekaScoringModel extends WekaServerTask {
    *           type mismatches
    */
   protected Instance constructMappedInstance(Instance input) throws Exception {
+    MappingPlan plan = getMappingPlan(input.dataset());
+    plan.checkProblems(this, input);
 
-    StringBuilder mappingProbs = new StringBuilder();
-    mappingProbs.append("Input to model matching problems:\n\n");
-    double[] vals = new double[m_modelTrainingHeader.numAttributes()];
-    int probCount = 0;
-    for (int i = 0; i < m_modelTrainingHeader.numAttributes(); i++) {
-      Attribute modelA = m_modelTrainingHeader.attribute(i);
-
-      if (i != m_modelTrainingHeader.classIndex()) {
-        Attribute matchA = input.dataset().attribute(modelA.name());
-        if (matchA == null) {
-          mappingProbs.append("Model attribute '" + modelA.name()
-            + "' does not seem " + "to have a match in the incoming data!")
-            .append("\n");
-          vals[i] = Utils.missingValue();
-          probCount++;
-        } else if (modelA.type() != matchA.type()) {
-          mappingProbs
-            .append(
-              "Type mismatch between model attribute '" + modelA.toString()
-                + "' and incoming attribute '" + matchA.toString() + "'")
-            .append("\n");
-          vals[i] = Utils.missingValue();
-          probCount++;
-        } else {
-          vals[i] = input.value(matchA.index());
-        }
-      } else {
-        // set class missing
-        vals[i] = Utils.missingValue();
-      }
-    }
-
-    if (probCount > 0) {
-      TaskConfigUtils.generateError(this, mappingProbs.toString());
-    }
-
-    Instance inst = new DenseInstance(1.0, vals);
-    inst.setDataset(m_modelTrainingHeader);
-
-    return inst;
+    return plan.map(input);
   }
 
   /**
@@ -142,11 +251,178 @@ public abstract class WekaScoringModel extends WekaServerTask {
     m_dataPreparerer = dataPreparer;
   }
 
+  /**
+   * Set the shadow scorer to hand prepared data and predictions to
+   *
+   * @param shadow the shadow scorer, or null to disable shadow scoring
+   */
+  public void setShadowScorer(ShadowScorer shadow) {
+    m_shadow = shadow;
+  }
+
+  /**
+   * Set the audit log to record predictions in
+   *
+   * @param audit the audit log, or null to disable auditing
+   */
+  public void setAuditLog(AuditLog audit) {
+    m_audit = audit;
+  }
+
+  /**
+   * Set the statistics to add mapped inputs and predictions to
+   *
+   * @param featureStatistics the statistics, or null to disable them
+   */
+  public void setFeatureStatistics(FeatureStatistics featureStatistics) {
+    m_featureStatistics = featureStatistics;
+  }
+
   @Override
   public String processData(String... input) throws Exception {
     return scoreData(input);
   }
 
+  @Override
+  public String processData(InputStream input) throws Exception {
+    return scoreData(input);
+  }
+
+  @Override
+  public void processData(InputStream input, OutputStream output)
+    throws Exception {
+    scoreData(input, output);
+  }
+
+  /**
+   * convert and score an incoming dataset supplied as a stream
+   *
+   * @param input the dataset to score
+   * @return scored data
+   * @throws Exception if a problem occurs
+   */
+  public String scoreData(InputStream input) throws Exception {
+    Instances toScore = prepareInstances(input);
+
+    double[][] preds = scoreInstances(toScore);
+
+    return serialisePredictions(preds);
+  }
+
+  /**
+   * convert and score an incoming dataset supplied as a stream, writing the
+   * predictions to another stream in the request's output format. If
+   * weka.server.scorer.pipeline.chunkSize is set, JSON records payloads
+   * larger than a chunk are scored by a ScoringPipeline.
+   *
+   * @param input the dataset to score
+   * @param output the stream to write the predictions to
+   * @throws Exception if a problem occurs
+   */
+  public void scoreData(InputStream input, OutputStream output)
+    throws Exception {
+    if (m_pipelineChunkSize > 0
+      && m_dataPreparerer instanceof DefaultJsonInstancesDataPreparer) {
+      scorePipelined(input, output, m_pipelineChunkSize);
+      return;
+    }
+
+    Instances toScore = prepareInstances(input);
+
+    double[][] preds = scoreInstances(toScore);
+
+    writePredictions(preds, output);
+  }
+
+  /**
+   * Score a payload a chunk at a time with a ScoringPipeline if it is a
+   * records payload of more than one chunk, otherwise all at once. Other
+   * layouts are decoded as the data preparer would decode them.
+   *
+   * @param input the dataset to score
+   * @param output the stream to write the predictions to
+   * @param chunkSize the number of rows in each chunk
+   * @throws Exception if a problem occurs
+   */
+  protected void scorePipelined(InputStream input, OutputStream output,
+    int chunkSize) throws Exception {
+    DefaultJsonInstancesDataPreparer preparer =
+      (DefaultJsonInstancesDataPreparer) m_dataPreparerer;
+    RequestTimings timings = getTimings();
+    long start = timings != null ? System.nanoTime() : 0;
+    PayloadFormat inputFormat = m_requestContext != null
+      ? m_requestContext.getInputFormat() : PayloadFormat.JSON;
+    try (JsonParser p = inputFormat.getFactory().createParser(input)) {
+      String orient = preparer.getOrient(m_requestContext);
+      JsonChunkReader reader = null;
+      Instances toScore;
+      if (p.nextToken() == JsonToken.START_ARRAY && (orient == null
+        || orient.equals(DefaultJsonInstancesDataPreparer.ORIENT_RECORDS))) {
+        reader = new JsonChunkReader(p);
+        toScore = reader.next(chunkSize);
+        if (toScore == null) {
+          TaskConfigUtils.generateError(this, "No columns in payload");
+        }
+      } else {
+        toScore = preparer.parseInstances(p, orient);
+      }
+      if (timings != null) {
+        timings.record(RequestTimings.PREPARE, start);
+        timings.setRows(toScore.numInstances());
+      }
+
+      if (reader != null && !reader.isDone()) {
+        PayloadFormat format = m_requestContext != null
+          ? m_requestContext.getOutputFormat() : PayloadFormat.JSON;
+        new ScoringPipeline(this, m_pipelineQueueSize).run(reader, toScore, chunkSize,
+          output, format);
+        return;
+      }
+
+      writePredictions(scoreInstances(toScore), output);
+    }
+  }
+
+  /**
+   * Write predictions to a stream in the request's output format, recording
+   * the time taken if the request asked for timings
+   *
+   * @param preds the predictions
+   * @param output the stream to write to
+   * @throws Exception if a problem occurs
+   */
+  protected void writePredictions(double[][] preds, OutputStream output)
+    throws Exception {
+    RequestTimings timings = getTimings();
+    long start = timings != null ? System.nanoTime() : 0;
+    PayloadFormat format = m_requestContext != null
+      ? m_requestContext.getOutputFormat() : PayloadFormat.JSON;
+    getPredictionOutput().write(output, format, preds,
+      getPredictionColumnNames(), getPredictionLabels());
+    if (timings != null) {
+      timings.record(RequestTimings.SERIALISE, start);
+    }
+  }
+
+  /**
+   * Convert a streamed dataset to Instances via the data preparer
+   *
+   * @param input the dataset
+   * @return the prepared data
+   * @throws Exception if a problem occurs
+   */
+  protected Instances prepareInstances(InputStream input) throws Exception {
+    RequestTimings timings = getTimings();
+    long start = timings != null ? System.nanoTime() : 0;
+    Instances toScore =
+      m_dataPreparerer.prepareInputData(m_requestContext, input);
+    if (timings != null) {
+      timings.record(RequestTimings.PREPARE, start);
+      timings.setRows(toScore.numInstances());
+    }
+    return toScore;
+  }
+
   /**
    * convert and score the incoming dataset(s)
    *
@@ -157,17 +433,150 @@ public abstract class WekaScoringModel extends WekaServerTask {
   public String scoreData(String... input) throws Exception {
 
     // convert/prepare input to Instances via DataPreparer
-    Instances toScore = m_dataPreparerer.prepareInputData(input);
+    RequestTimings timings = getTimings();
+    long start = timings != null ? System.nanoTime() : 0;
+    Instances toScore = m_dataPreparerer.prepareInputData(m_requestContext, input);
+    if (timings != null) {
+      timings.record(RequestTimings.PREPARE, start);
+      timings.setRows(toScore.numInstances());
+    }
 
     // score data via distributionsForInstances
-    double[][] preds = distributionsForInstances(toScore);
+    double[][] preds = scoreInstances(toScore);
 
     // convert predictions to return string value via DataPreparer
-    return prepareJsonPredictions(preds, getPredictionColumnNames());
+    return serialisePredictions(preds);
+  }
+
+  /**
+   * Convert predictions to the response format, recording the time taken if
+   * the request asked for timings
+   *
+   * @param preds the predictions
+   * @return JSON formatted (pandas-split) output string
+   * @throws Exception if a problem occurs
+   */
+  protected String serialisePredictions(double[][] preds) throws Exception {
+    RequestTimings timings = getTimings();
+    long start = timings != null ? System.nanoTime() : 0;
+    String result = getPredictionOutput().toJson(preds,
+      getPredictionColumnNames(), getPredictionLabels());
+    if (timings != null) {
+      timings.record(RequestTimings.SERIALISE, start);
+    }
+    return result;
+  }
+
+  /**
+   * Score prepared data. The data is mapped into the model's training header
+   * once, up front. If a shadow model is configured, the data and the
+   * predictions are then handed to the shadow scorer, which compares them
+   * with those of the shadow model in the background. If auditing is
+   * configured, the mapped data and the predictions are added to the audit
+   * log, and if drift statistics are enabled, the predictions are added to
+   * the prediction statistics.
+   *
+   * @param toScore the prepared data to score
+   * @return an array of predictions, one row for each instance
+   * @throws Exception if a problem occurs
+   */
+  protected double[][] scoreInstances(Instances toScore) throws Exception {
+    if (m_shadow == null && m_audit == null && m_featureStatistics == null) {
+      return scoreInstancesInChunks(mapInstances(toScore));
+    }
+
+    // the shadow model's time includes mapping, so this one's does too
+    long start = System.nanoTime();
+    Instances mapped = mapInstances(toScore);
+    double[][] preds = scoreInstancesInChunks(mapped);
+    if (m_shadow != null) {
+      m_shadow.submit(toScore, preds, getPredictionColumnNames(),
+        System.nanoTime() - start);
+    }
+    if (m_audit != null) {
+      m_audit.append(mapped, preds);
+    }
+    if (m_featureStatistics != null) {
+      m_featureStatistics.addPredictions(preds);
+    }
+
+    return preds;
+  }
+
+  /**
+   * Score labelled data, e.g. to evaluate the model. The incoming class
+   * values are mapped into model space alongside the predictions.
+   *
+   * @param labelled the prepared data, including a column for the class
+   * @param classValues filled with the class value of each instance in model
+   *          space (missing for unknown or missing labels)
+   * @return an array of predictions, one row for each instance
+   * @throws Exception if the data has no class column or a problem occurs
+   *           when scoring
+   */
+  public double[][] scoreLabelledInstances(Instances labelled,
+    double[] classValues) throws Exception {
+    if (m_modelTrainingHeader.classIndex() < 0) {
+      TaskConfigUtils.generateError(this,
+        "The model has no class attribute to evaluate against");
+    }
+    String className = m_modelTrainingHeader.classAttribute().name();
+    Attribute inputClass = labelled.attribute(className);
+    if (inputClass == null) {
+      TaskConfigUtils.generateError(this, "Incoming data has no column for "
+        + "the class attribute '" + className + "'");
+    }
+    MappingPlan plan = getMappingPlan(labelled);
+    for (int i = 0; i < labelled.numInstances(); i++) {
+      classValues[i] = plan.mapClassValue(labelled.instance(i));
+      // a column of nulls decodes as numeric, so can't match a nominal class
+      if (!plan.hasClass() && !labelled.instance(i).isMissing(inputClass)) {
+        TaskConfigUtils.generateError(this, "Type mismatch between the "
+          + "class attribute and incoming column '" + className + "'");
+      }
+    }
+
+    return scoreInstances(labelled);
+  }
+
+  /**
+   * Score prepared data. If the current request has a deadline, the data is
+   * scored in chunks (of weka.server.scorer.chunkSize rows) and the deadline
+   * is checked before each chunk, so that work for requests the client has
+   * already given up on is abandoned early.
+   *
+   * @param toScore the data to score, mapped into the model's training header
+   * @return an array of predictions, one row for each instance
+   * @throws Exception if a problem occurs
+   */
+  protected double[][] scoreInstancesInChunks(Instances toScore)
+    throws Exception {
+    RequestContext context = m_requestContext;
+    if (context == null || !context.hasDeadline()) {
+      return distributionsForInstances(toScore);
+    }
+
+    int chunkSize = m_chunkSize;
+    int numInstances = toScore.numInstances();
+    if (numInstances <= chunkSize) {
+      context.checkDeadline("score", numInstances);
+      return distributionsForInstances(toScore);
+    }
+
+    double[][] preds = new double[numInstances][];
+    for (int start = 0; start < numInstances; start += chunkSize) {
+      context.checkDeadline("score", numInstances - start);
+      int size = Math.min(chunkSize, numInstances - start);
+      double[][] chunkPreds =
+        distributionsForInstances(new Instances(toScore, start, size));
+      System.arraycopy(chunkPreds, 0, preds, start, size);
+    }
+
+    return preds;
   }
 
   protected void debugScoreDataNoPrep(Instances toScore) throws Exception {
-    double[][] preds = distributionsForInstances(toScore);
+    double[][] preds = distributionsForInstances(mapInstances(toScore));
 
     for (int i = 0; i < preds.length; i++) {
       String p = "";
@@ -178,6 +587,28 @@ public abstract class WekaScoringModel extends WekaServerTask {
     }
   }
 
+  /**
+   * Get how predictions are to be output for the current request: the
+   * request's output option if set, otherwise the task's
+   * weka.server.scorer.output property
+   *
+   * @return the output settings
+   * @throws Exception if the output specification is invalid
+   */
+  protected PredictionOutput getPredictionOutput() throws Exception {
+    String spec = m_requestContext != null
+      ? m_requestContext.getOption(PredictionOutput.OUTPUT_OPTION) : null;
+    if (spec != null) {
+      return PredictionOutput.parse(spec);
+    }
+    if (m_defaultOutput == null) {
+      m_defaultOutput = taskConfigUtils != null ? PredictionOutput
+        .parse(taskConfigUtils.getTaskProperty(PROP_OUTPUT_KEY))
+        : PredictionOutput.FULL;
+    }
+    return m_defaultOutput;
+  }
+
   /**
    * Takes an array of predictions and converts them to JSON output format
    *
@@ -188,27 +619,7 @@ public abstract class WekaScoringModel extends WekaServerTask {
    */
   protected static String prepareJsonPredictions(double[][] preds,
     String[] columnNames) throws Exception {
-    Map<String, Object> m = new LinkedHashMap<>();
-
-    List<String> columns = new ArrayList<>();
-    for (int i = 0; i < columnNames.length; i++) {
-      columns.add(columnNames[i]);
-    }
-
-    m.put("columns", columns);
-
-    List<List<Double>> predL = new ArrayList<>();
-    for (int i = 0; i < preds.length; i++) {
-      List<Double> p = new ArrayList<>();
-      for (int j = 0; j < columnNames.length; j++) {
-        p.add(preds[i][j]);
-      }
-      predL.add(p);
-    }
-
-    m.put("data", predL);
-
-    return MAPPER.writeValueAsString(m);
+    return PredictionOutput.FULL.toJson(preds, columnNames, null);
   }
 
   /**
@@ -225,7 +636,8 @@ public abstract class WekaScoringModel extends WekaServerTask {
   /**
    * Returns predictions for the supplied set of instances
    *
-   * @param toScore a set of instances to score
+   * @param toScore a set of instances to score, already mapped into the
+   *          model's training header (see mapInstances())
    * @return an array of predictions, one row for each instance to predict
    * @throws Exception if a problem occurs
    */
@@ -240,4 +652,17 @@ public abstract class WekaScoringModel extends WekaServerTask {
    * @exception if the column names cannot be determined for some reason
    */
   protected abstract String[] getPredictionColumnNames() throws Exception;
+
+  /**
+   * Get the label that each prediction column gives the probability of, for
+   * output modes that report labels rather than every column. Defaults to
+   * the column names.
+   *
+   * @return an array of labels, or null if the model makes a numeric
+   *         prediction rather than predicting labels
+   * @throws Exception if the labels cannot be determined for some reason
+   */
+  protected String[] getPredictionLabels() throws Exception {
+    return getPredictionColumnNames();
+  }
 }
@@ -24,9 +24,26 @@ package weka.server.scorer;
 
 import java.io.File;
 import java.lang.invoke.MethodHandles;
-import java.util.concurrent.ConcurrentLinkedDeque;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
 import weka.classifiers.Classifier;
+import weka.core.Attribute;
 import weka.core.Environment;
 import weka.core.Instances;
 import weka.core.SerializationHelper;
@@ -35,12 +52,16 @@ import weka.core.OptionHandler;
 import weka.clusterers.Clusterer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import weka.server.audit.AuditLog;
 import weka.server.dataprep.AbstractInstancesDataPreparerer;
+import weka.server.drift.DriftMonitor;
 import weka.server.dataprep.DefaultJsonInstancesDataPreparer;
 import weka.server.TaskConfigUtils;
 import weka.server.WekaServerTask;
 import weka.server.WekaServerTaskPool;
 
+import static weka.server.dataprep.DefaultJsonInstancesDataPreparer.MAPPER;
+
 /**
  * Manages a pool of models.
  *
@@ -48,9 +69,72 @@ import weka.server.WekaServerTaskPool;
  * @author Ben Birch (Ben.Birch{[at]}hitachivantara{[dot]}com>
  */
 public class WekaScoringModelPool extends WekaServerTaskPool {
-  private ConcurrentLinkedDeque<WekaScoringModel> modelPool;
+  private StripedObjectPool<WekaScoringModel> modelPool;
   private int poolSize;
   private TaskConfigUtils taskConfigUtils;
+
+  /** Scores traffic against a candidate model (null if none configured) */
+  private ShadowScorer m_shadow;
+
+  /** Records the predictions made (null if auditing isn't configured) */
+  private AuditLog m_audit;
+
+  /** Statistics of inputs and predictions (null if not enabled) */
+  private DriftMonitor m_drift;
+
+  /** Header of the training data of the model */
+  private Instances m_header;
+
+  /** Smallest number of scorers kept when autoscaling */
+  private int m_minSize;
+
+  /** Largest number of scorers kept when autoscaling */
+  private int m_maxSize;
+
+  /** How long spare scorers must go unused before they are evicted */
+  private long m_idleTimeoutNanos;
+
+  /** Resizes the pool periodically (null if the pool is not autoscaled) */
+  private ScheduledExecutorService m_scaler;
+
+  /** Number of live scorers (pooled and leased) */
+  private final AtomicInteger m_total = new AtomicInteger();
+
+  /** Number of scorers currently leased */
+  private final AtomicInteger m_leased = new AtomicInteger();
+
+  /** Most scorers leased at once since the last autoscaling pass */
+  private final AtomicInteger m_peakLeased = new AtomicInteger();
+
+  /** Size the autoscaler is currently aiming for */
+  private volatile int m_targetSize;
+
+  /** Demand (time, scorers needed) seen by recent autoscaling passes */
+  private final Deque<long[]> m_recentDemand = new ArrayDeque<>();
+
+  /** Misses seen by the previous autoscaling pass */
+  private long m_lastMisses;
+
+  /** Payload replayed through new scorers (null if warm-up is disabled) */
+  private String m_warmUpPayload;
+
+  private final LongAdder m_misses = new LongAdder();
+  private final LongAdder m_missNanos = new LongAdder();
+  private final LongAdder m_grown = new LongAdder();
+  private final LongAdder m_evicted = new LongAdder();
+
+  /** Default number of rows to synthesize for warm-up payloads */
+  public static final int WARMUP_DEFAULT_ROWS = 100;
+
+  /** Default relative tolerance for deciding that warm-up timings have settled */
+  public static final double WARMUP_DEFAULT_TOLERANCE = 0.1;
+
+  /**
+   * Number of consecutive iterations that must fall within tolerance of the
+   * running mean before warm-up of a scorer is considered complete
+   */
+  protected static final int WARMUP_SETTLE_COUNT = 10;
+
   final static Logger logger =
     LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
 
@@ -77,24 +161,309 @@ public class WekaScoringModelPool extends WekaServerTaskPool {
         poolSize = Integer.parseInt(poolS);
       }
 
-      modelPool = new ConcurrentLinkedDeque<>();
-      logger.debug("Initializing a scorer pool of size: " + poolSize);
-      for (int i = 0; i < poolSize; i++) {
-        modelPool.add(createNewScorer());
+      m_minSize = poolSize;
+      String minS =
+        taskConfigUtils.getTaskProperty(TaskConfigUtils.TASK_POOL_MIN_SIZE_KEY);
+      if (minS != null && minS.length() > 0) {
+        m_minSize = Integer.parseInt(minS);
+      }
+      m_maxSize = Math.max(poolSize, m_minSize);
+      String maxS =
+        taskConfigUtils.getTaskProperty(TaskConfigUtils.TASK_POOL_MAX_SIZE_KEY);
+      if (maxS != null && maxS.length() > 0) {
+        m_maxSize = Math.max(m_minSize, Integer.parseInt(maxS));
+      }
+      m_targetSize = m_minSize;
+
+      modelPool = new StripedObjectPool<>(m_maxSize);
+      logger.debug("Initializing a scorer pool of size: " + m_minSize);
+      for (int i = 0; i < m_minSize; i++) {
+        modelPool.offer(createNewScorer());
+        m_total.incrementAndGet();
+      }
+
+      warmUp(modelPool.peekAll());
+
+      // set up shadow scoring, auditing and drift statistics after warm-up,
+      // so warm-up traffic isn't compared, recorded or counted
+      m_shadow = ShadowScorer.fromConfig(taskConfigUtils);
+      m_audit = AuditLog.fromConfig(taskConfigUtils);
+      List<WekaScoringModel> scorers = modelPool.peekAll();
+      if (scorers.isEmpty()) {
+        // a pool with a minimum size of 0 keeps the scorer it has to read
+        // the header with until the autoscaler finds it idle (a pool with a
+        // size of 0 holds nothing, so just discards it)
+        WekaScoringModel scorer = createNewScorer();
+        if (modelPool.offer(scorer)) {
+          m_total.incrementAndGet();
+          scorers = modelPool.peekAll();
+        } else {
+          scorers = Collections.singletonList(scorer);
+        }
+      }
+      WekaScoringModel first = scorers.get(0);
+      m_header = new Instances(first.m_modelTrainingHeader, 0);
+      m_drift = DriftMonitor.fromConfig(taskConfigUtils,
+        first.m_modelTrainingHeader, first.getPredictionColumnNames(),
+        first.getPredictionLabels(), m_maxSize);
+      for (WekaScoringModel scorer : scorers) {
+        attachMonitors(scorer);
+      }
+
+      if (m_maxSize > m_minSize) {
+        startAutoscaling();
       }
     }
   }
 
   /**
-   * Creates a new WekaScoringModel configured with appropriate DataPreparer.
+   * Start resizing the pool periodically (every
+   * weka.server.task.poolScaleIntervalMs) between weka.server.task.poolMinSize
+   * and weka.server.task.poolMaxSize scorers.
    *
-   * @return a WekaScoringModel
+   * @throws Exception if a problem occurs reading configuration
+   */
+  protected void startAutoscaling() throws Exception {
+    long interval = TaskConfigUtils.TASK_DEFAULT_POOL_SCALE_INTERVAL;
+    String intervalS = taskConfigUtils
+      .getTaskProperty(TaskConfigUtils.TASK_POOL_SCALE_INTERVAL_KEY);
+    if (intervalS != null && intervalS.length() > 0) {
+      interval = Long.parseLong(intervalS);
+    }
+    long idleTimeout = TaskConfigUtils.TASK_DEFAULT_POOL_IDLE_TIMEOUT;
+    String idleS = taskConfigUtils
+      .getTaskProperty(TaskConfigUtils.TASK_POOL_IDLE_TIMEOUT_KEY);
+    if (idleS != null && idleS.length() > 0) {
+      idleTimeout = Long.parseLong(idleS);
+    }
+    m_idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeout);
+
+    m_scaler = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread t = new Thread(r, "pool-scaler");
+      t.setDaemon(true);
+      return t;
+    });
+    m_scaler.scheduleWithFixedDelay(this::autoscale, interval, interval,
+      TimeUnit.MILLISECONDS);
+    logger.info("Autoscaling scorer pool between " + m_minSize + " and "
+      + m_maxSize + " scorers");
+  }
+
+  /**
+   * One autoscaling pass. Demand is the largest number of scorers leased at
+   * once since the last pass, plus one spare if any request found the pool
+   * empty (and so waited for a scorer to be created). The pool grows at once
+   * to the demand seen, creating (and warming up) scorers here rather than on
+   * the request path, but only shrinks once the extra scorers have not been
+   * needed for the idle timeout.
+   */
+  protected void autoscale() {
+    try {
+      long now = System.nanoTime();
+      int peak = m_peakLeased.getAndSet(m_leased.get());
+      long misses = m_misses.sum();
+      int demand = peak + (misses > m_lastMisses ? 1 : 0);
+      m_lastMisses = misses;
+
+      m_recentDemand.addLast(new long[] { now, demand });
+      while (now - m_recentDemand.peekFirst()[0] > m_idleTimeoutNanos) {
+        m_recentDemand.removeFirst();
+      }
+      int target = 0;
+      for (long[] d : m_recentDemand) {
+        target = Math.max(target, (int) d[1]);
+      }
+      target = Math.max(m_minSize, Math.min(m_maxSize, target));
+      if (target != m_targetSize) {
+        logger.info("Resizing scorer pool from " + m_targetSize + " to "
+          + target + " scorers");
+        m_targetSize = target;
+      }
+
+      while (m_total.get() < target) {
+        WekaScoringModel scorer = createNewScorer();
+        // keep warm-up traffic away from the shadow model, audit log and
+        // drift statistics
+        scorer.setShadowScorer(null);
+        scorer.setAuditLog(null);
+        scorer.setFeatureStatistics(null);
+        warmUp(Collections.singletonList(scorer));
+        attachMonitors(scorer);
+        if (!modelPool.offer(scorer)) {
+          break;
+        }
+        m_total.incrementAndGet();
+        m_grown.increment();
+      }
+
+      while (m_total.get() > target) {
+        // only idle scorers are evicted; leased ones are discarded on release
+        // if the pool is full
+        if (modelPool.poll() == null) {
+          break;
+        }
+        m_total.decrementAndGet();
+        m_evicted.increment();
+      }
+    } catch (Exception ex) {
+      logger.warn("Autoscaling failed: " + ex.getMessage());
+    }
+  }
+
+  /**
+   * Replays a representative payload through the full scoreData() path of
+   * the given scorers until per-iteration timings settle (or the configured
+   * maximum number of iterations is reached). This gives the JIT a chance to
+   * compile the JSON, CSV and model code before real requests arrive. The
+   * payload is read from the file named by weka.server.scorer.warmup.file if
+   * set, otherwise it is synthesized from the model's training header. Warm-up
+   * is disabled unless weka.server.scorer.warmup.iterations is greater than
+   * zero. Problems during warm-up are logged, but are not fatal.
+   *
+   * @param scorers the scorers to warm up
+   * @throws Exception if a problem occurs reading configuration
+   */
+  protected void warmUp(List<WekaScoringModel> scorers) throws Exception {
+    String iterS = taskConfigUtils
+      .getTaskProperty(WekaScoringModel.PROP_WARMUP_ITERATIONS_KEY);
+    if (iterS == null || iterS.length() == 0 || scorers.size() == 0) {
+      return;
+    }
+    int maxIterations = Integer.parseInt(iterS);
+    if (maxIterations <= 0) {
+      return;
+    }
+
+    double tolerance = WARMUP_DEFAULT_TOLERANCE;
+    String tolS = taskConfigUtils
+      .getTaskProperty(WekaScoringModel.PROP_WARMUP_TOLERANCE_KEY);
+    if (tolS != null && tolS.length() > 0) {
+      tolerance = Double.parseDouble(tolS);
+    }
+
+    try {
+      if (m_warmUpPayload == null) {
+        m_warmUpPayload = getWarmUpPayload(scorers.get(0));
+      }
+      String payload = m_warmUpPayload;
+      for (WekaScoringModel scorer : scorers) {
+        double mean = 0;
+        int settled = 0;
+        int i;
+        for (i = 0; i < maxIterations && settled < WARMUP_SETTLE_COUNT; i++) {
+          long start = System.nanoTime();
+          scorer.scoreData(payload);
+          double elapsed = System.nanoTime() - start;
+
+          if (i > 0 && Math.abs(elapsed - mean) <= tolerance * mean) {
+            settled++;
+          } else {
+            settled = 0;
+          }
+          // exponentially weighted running mean of iteration time
+          mean = i == 0 ? elapsed : mean + 0.1 * (elapsed - mean);
+        }
+        logger.info("Warmed up scorer in " + i + " iterations (" + (settled
+          >= WARMUP_SETTLE_COUNT ? "settled" : "not settled") + "). Mean time "
+          + "per iteration: " + Utils.doubleToString(mean / 1e6, 3) + " ms");
+      }
+    } catch (Exception ex) {
+      logger.warn("Warm-up failed: " + ex.getMessage());
+    }
+  }
+
+  /**
+   * Get the payload to use for warm-up. Reads the file specified by the
+   * warm-up file property or synthesizes a pandas-split payload from the
+   * model's training header.
+   *
+   * @param scorer a scorer to obtain the training header from
+   * @return the warm-up payload in JSON pandas-split format
    * @throws Exception if a problem occurs
    */
-  protected WekaScoringModel createNewScorer() throws Exception {
-    WekaScoringModel scoringModel = null;
+  protected String getWarmUpPayload(WekaScoringModel scorer)
+    throws Exception {
+    String warmUpFile =
+      taskConfigUtils.getTaskProperty(WekaScoringModel.PROP_WARMUP_FILE_KEY);
+    if (warmUpFile != null && warmUpFile.length() > 0) {
+      try {
+        warmUpFile = Environment.getSystemWide().substitute(warmUpFile);
+      } catch (Exception ex) {
+        // ignore substitution problems
+      }
+      return new String(Files.readAllBytes(Paths.get(warmUpFile)),
+        StandardCharsets.UTF_8);
+    }
 
-    // Get the data preparer
+    int numRows = WARMUP_DEFAULT_ROWS;
+    String rowsS =
+      taskConfigUtils.getTaskProperty(WekaScoringModel.PROP_WARMUP_ROWS_KEY);
+    if (rowsS != null && rowsS.length() > 0) {
+      numRows = Integer.parseInt(rowsS);
+    }
+
+    return synthesizePayload(scorer.m_modelTrainingHeader, numRows, 1);
+  }
+
+  /**
+   * Synthesize a random pandas-split JSON payload that matches the input
+   * attributes of the supplied training header. Numeric values are drawn from
+   * a standard normal distribution and nominal values uniformly from the
+   * attribute's labels. The class attribute (if set) is not included.
+   *
+   * @param header the training header to synthesize data for
+   * @param numRows the number of rows to generate
+   * @param seed the seed for the random number generator
+   * @return a pandas-split JSON string
+   * @throws Exception if a problem occurs
+   */
+  public static String synthesizePayload(Instances header, int numRows,
+    long seed) throws Exception {
+    Random r = new Random(seed);
+    Map<String, Object> m = new LinkedHashMap<>();
+    List<String> atts = new ArrayList<>();
+    for (int i = 0; i < header.numAttributes(); i++) {
+      if (i != header.classIndex()) {
+        atts.add(header.attribute(i).name());
+      }
+    }
+    m.put("columns", atts);
+
+    List<List<Object>> data = new ArrayList<>();
+    for (int i = 0; i < numRows; i++) {
+      List<Object> row = new ArrayList<>();
+      for (int j = 0; j < header.numAttributes(); j++) {
+        if (j == header.classIndex()) {
+          continue;
+        }
+        Attribute a = header.attribute(j);
+        if (a.isNominal()) {
+          row.add(a.numValues() > 0 ? a.value(r.nextInt(a.numValues())) : "");
+        } else if (a.isString()) {
+          row.add("warmup");
+        } else if (a.isDate()) {
+          row.add(a.formatDate(new Date().getTime()));
+        } else {
+          row.add(r.nextGaussian());
+        }
+      }
+      data.add(row);
+    }
+    m.put("data", data);
+
+    return MAPPER.writeValueAsString(m);
+  }
+
+  /**
+   * Creates the data preparer specified in the supplied config, or the default
+   * JSON data preparer if none is specified.
+   *
+   * @param taskConfigUtils the config to use
+   * @return a data preparer
+   * @throws Exception if a problem occurs
+   */
+  public static AbstractInstancesDataPreparerer createDataPreparer(
+    TaskConfigUtils taskConfigUtils) throws Exception {
     AbstractInstancesDataPreparerer dataPreparerer = null;
     String dataPrepClassName =
       taskConfigUtils.getTaskProperty(WekaScoringModel.PROP_DATA_PREP_KEY);
@@ -102,7 +471,7 @@ public class WekaScoringModelPool extends WekaServerTaskPool {
       Object dp = Class.forName(dataPrepClassName)
         .getConstructor(TaskConfigUtils.class).newInstance(taskConfigUtils);
       if (!(dp instanceof AbstractInstancesDataPreparerer)) {
-        TaskConfigUtils.generateError(this,
+        TaskConfigUtils.generateError(WekaScoringModelPool.class,
           "User specified data preparer '" + dp.getClass().getCanonicalName()
             + "' is not an instance " + "of AbstractDataPreparer");
       }
@@ -112,6 +481,19 @@ public class WekaScoringModelPool extends WekaServerTaskPool {
       dataPreparerer = new DefaultJsonInstancesDataPreparer(taskConfigUtils);
     }
 
+    return dataPreparerer;
+  }
+
+  /**
+   * Read the serialized model (and training header) named in the supplied
+   * config from ${user.home}/models
+   *
+   * @param taskConfigUtils the config to use
+   * @return an array holding the model and the training header
+   * @throws Exception if a problem occurs
+   */
+  public static Object[] readModelFile(TaskConfigUtils taskConfigUtils)
+    throws Exception {
     String modelFileName = taskConfigUtils
       .getTaskProperty(WekaScoringModel.PROP_SCORER_MODEL_FILE_NAME_KEY);
     try {
@@ -121,7 +503,7 @@ public class WekaScoringModelPool extends WekaServerTaskPool {
     }
 
     if (modelFileName == null || modelFileName.length() == 0) {
-      TaskConfigUtils.generateError(this,
+      TaskConfigUtils.generateError(WekaScoringModelPool.class,
         "No serialized model filename provided!");
     }
 
@@ -129,12 +511,30 @@ public class WekaScoringModelPool extends WekaServerTaskPool {
       + "models" + File.separator + modelFileName;
 
     Object[] modelStuff = SerializationHelper.readAll(filePath);
-    Object model = modelStuff[0];
-    if (modelStuff.length < 2) {
-      TaskConfigUtils.generateError(this,
+    if (modelStuff.length < 2 || !(modelStuff[1] instanceof Instances)) {
+      TaskConfigUtils.generateError(WekaScoringModelPool.class,
         "Model file does not seem to contain header of training data used "
           + "to build the model. We can't map incoming fields without this information!");
     }
+
+    return modelStuff;
+  }
+
+  /**
+   * Creates a new WekaScoringModel configured with appropriate DataPreparer.
+   *
+   * @return a WekaScoringModel
+   * @throws Exception if a problem occurs
+   */
+  protected WekaScoringModel createNewScorer() throws Exception {
+    WekaScoringModel scoringModel = null;
+
+    // Get the data preparer
+    AbstractInstancesDataPreparerer dataPreparerer =
+      createDataPreparer(taskConfigUtils);
+
+    Object[] modelStuff = readModelFile(taskConfigUtils);
+    Object model = modelStuff[0];
     Instances modelHeader = (Instances) modelStuff[1];
 
     String scoringModelImp =
@@ -155,6 +555,7 @@ public class WekaScoringModelPool extends WekaServerTaskPool {
 
     if (scoringModel != null) {
       scoringModel.setDataPreparer(dataPreparerer);
+      attachMonitors(scoringModel);
       scoringModel.setUnderlyingModel(model, modelHeader);
 
       if (taskConfigUtils.debug) {
@@ -168,11 +569,90 @@ public class WekaScoringModelPool extends WekaServerTaskPool {
     return scoringModel;
   }
 
+  @Override
+  public Map<String, Object> getStatistics() {
+    Map<String, Object> stats = new LinkedHashMap<>();
+    long misses = m_misses.sum();
+    stats.put("pool.size", m_total.get());
+    stats.put("pool.idle", modelPool.size());
+    stats.put("pool.leased", m_leased.get());
+    stats.put("pool.target", m_targetSize);
+    stats.put("pool.minSize", m_minSize);
+    stats.put("pool.maxSize", m_maxSize);
+    stats.put("pool.grown", m_grown.sum());
+    stats.put("pool.evicted", m_evicted.sum());
+    stats.put("pool.misses", misses);
+    stats.put("pool.missMeanMs",
+      misses > 0 ? m_missNanos.sum() / 1e6 / misses : 0);
+    if (m_shadow != null) {
+      stats.putAll(m_shadow.getStatistics());
+    }
+    if (m_audit != null) {
+      stats.putAll(m_audit.getStatistics());
+    }
+    return stats;
+  }
+
+  @Override
+  public int getNumModelCopies() {
+    return m_total.get();
+  }
+
+  /**
+   * Get the header of the data the task's model was trained on
+   *
+   * @return the training header (without instances)
+   */
+  public Instances getModelHeader() {
+    return m_header;
+  }
+
+  @Override
+  public void shutdown() {
+    if (m_scaler != null) {
+      m_scaler.shutdownNow();
+    }
+    if (m_shadow != null) {
+      m_shadow.shutdown();
+    }
+    if (m_audit != null) {
+      m_audit.close();
+    }
+  }
+
+  /**
+   * Hand a scorer the shadow scorer, audit log and drift statistics stripe
+   * configured for the task (if any)
+   *
+   * @param scorer the scorer
+   */
+  protected void attachMonitors(WekaScoringModel scorer) {
+    scorer.setShadowScorer(m_shadow);
+    scorer.setAuditLog(m_audit);
+    scorer.setFeatureStatistics(m_drift != null ? m_drift.getStripe() : null);
+  }
+
+  /**
+   * Get the drift monitor for the task
+   *
+   * @return the drift monitor, or null if drift statistics are not enabled
+   */
+  public DriftMonitor getDriftMonitor() {
+    return m_drift;
+  }
+
   @Override
   public WekaServerTask getTask() throws Exception {
     return getPooledScorer();
   }
 
+  @Override
+  public void releaseTask(WekaServerTask task) {
+    if (task instanceof WekaScoringModel) {
+      releasePooledScorer((WekaScoringModel) task);
+    }
+  }
+
   protected WekaScoringModel getScorer() throws Exception {
     return getPooledScorer();
   }
@@ -180,28 +660,39 @@ public class WekaScoringModelPool extends WekaServerTaskPool {
   protected WekaScoringModel getPooledScorer() throws Exception {
     WekaScoringModel toUse = modelPool.poll();
     if (toUse == null) {
+      // the caller has to wait while a scorer is created
+      long start = System.nanoTime();
       toUse = createNewScorer();
+      m_total.incrementAndGet();
+      m_misses.increment();
+      m_missNanos.add(System.nanoTime() - start);
+    }
+    m_peakLeased.accumulateAndGet(m_leased.incrementAndGet(), Math::max);
+    if (logger.isDebugEnabled()) {
+      logger.debug("Obtaining a scorer. Pool size now: " + modelPool.size());
     }
-    logger.debug("Obtaining a scorer. Pool size now: " + modelPool.size());
 
     return toUse;
   }
 
   protected void releasePooledScorer(WekaScoringModel scorer) {
-    if (modelPool.size() < poolSize) {
-      modelPool.add(scorer);
+    // the pool is bounded, so if it is full the scorer is simply discarded
+    m_leased.decrementAndGet();
+    if (!modelPool.offer(scorer)) {
+      m_total.decrementAndGet();
+    }
+    if (logger.isDebugEnabled()) {
+      logger.debug("Releasing a scorer. Pool size now: " + modelPool.size());
     }
-    logger.debug("Releasing a scorer. Pool size now: " + modelPool.size());
   }
 
   /**
-   * Static utility method for scoring incoming JSON data. A pool of
-   * WekaScoringModels is maintained, so this method is thread-safe. Pool size
-   * can be configured using the configuration property
-   * weka.scorer.modelPoolSize. If unspecified, the default pool size is 5. If
-   * requests outstrip the pool size then additional WekaScoringModel objects
-   * are created and configured on the fly to meet demand. Note that this
-   * process is not memory bounded.
+   * Score incoming JSON data with a scorer leased from the pool, so this
+   * method is thread-safe. The pool holds weka.server.task.poolSize scorers
+   * (1 by default), or is autoscaled between weka.server.task.poolMinSize
+   * and weka.server.task.poolMaxSize if those are set. If requests outstrip
+   * the scorers in the pool then additional ones are created on the fly to
+   * meet demand, and discarded on release if the pool is full.
    * 
    * @param data data in JSON pandas-split format to score
    * @return scores in JSON pandas-split format
@@ -209,9 +700,10 @@ public class WekaScoringModelPool extends WekaServerTaskPool {
    */
   public String score(String... data) throws Exception {
     WekaScoringModel model = getPooledScorer();
-    String result = model.scoreData(data);
-    releasePooledScorer(model);
-
-    return result;
+    try {
+      return model.scoreData(data);
+    } finally {
+      releasePooledScorer(model);
+    }
   }
 }
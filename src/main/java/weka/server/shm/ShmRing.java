@@ -0,0 +1,279 @@
+/*******************************************************************************
+ * Pentaho Data Science
+ * <p/>
+ * Copyright (c) 2002-2020 Hitachi Vantara. All rights reserved.
+ * <p/>
+ * ******************************************************************************
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ * <p/>
+ ******************************************************************************/
+
+package weka.server.shm;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Layout of the memory-mapped file shared by a ShmRingServer and its
+ * ShmRingClients, and the memory fences used to hand slots between
+ * processes. All values are in the platform's native byte order.
+ * <p>
+ * The file starts with a header of HEADER_SIZE bytes:
+ *
+ * <pre>
+ * 0  int magic (MAGIC)
+ * 4  int version (VERSION)
+ * 8  int number of slots
+ * 12 int size of each slot in bytes
+ * 16 int maximum rows per request
+ * 20 int number of input columns (the model's attributes, excluding the
+ *        class, in model order)
+ * 24 int number of prediction columns
+ * 28 int length of the column names (0 if they don't fit in the header)
+ * 32 the names of the input columns followed by those of the prediction
+ *    columns, UTF-8, each terminated by a newline
+ * </pre>
+ *
+ * followed by the slots. Each slot is a mailbox owned by one client at a
+ * time (clients claim a slot by locking its first byte):
+ *
+ * <pre>
+ * 0  int state (IDLE, REQUEST, PROCESSING, RESPONSE or ERROR)
+ * 4  int number of rows (request) or length of the error message (error)
+ * 8  int status of an error, as /invocations would give it
+ * 16 data: rows of doubles in model order (request), rows of predictions
+ *    (response) or a UTF-8 message (error)
+ * </pre>
+ *
+ * A client writes its rows and then sets the state to REQUEST; a server
+ * thread sets it to PROCESSING, scores the rows, writes the predictions and
+ * sets it to RESPONSE (or ERROR); the client reads the predictions and sets
+ * it back to IDLE. Writes are made visible before the state change that
+ * publishes them with a store fence, and a load fence follows each read of
+ * the state. The ByteBuffer accesses are plain, so these have to be real
+ * fences: VarHandle's acquire/release/full fences where the runtime has
+ * them (Java 9 and later), otherwise sun.misc.Unsafe's. Both are looked up
+ * reflectively, as MethodHandles, so that the code still compiles for Java
+ * 8 without warnings.
+ *
+ * @version : $
+ */
+public class ShmRing {
+
+  public static final int MAGIC = 0x574b5247;
+  public static final int VERSION = 1;
+
+  public static final int HEADER_SIZE = 4096;
+  public static final int SLOT_HEADER_SIZE = 16;
+
+  public static final int OFFSET_MAGIC = 0;
+  public static final int OFFSET_VERSION = 4;
+  public static final int OFFSET_NUM_SLOTS = 8;
+  public static final int OFFSET_SLOT_SIZE = 12;
+  public static final int OFFSET_MAX_ROWS = 16;
+  public static final int OFFSET_NUM_COLUMNS = 20;
+  public static final int OFFSET_NUM_PREDICTIONS = 24;
+  public static final int OFFSET_NAMES_LENGTH = 28;
+  public static final int OFFSET_NAMES = 32;
+
+  public static final int SLOT_STATE = 0;
+  public static final int SLOT_COUNT = 4;
+  public static final int SLOT_STATUS = 8;
+
+  public static final int IDLE = 0;
+  public static final int REQUEST = 1;
+  public static final int PROCESSING = 2;
+  public static final int RESPONSE = 3;
+  public static final int ERROR = 4;
+
+  /** The fences, each a static method handle of type ()void */
+  private static final MethodHandle LOAD_FENCE =
+    findFence("acquireFence", "loadFence");
+  private static final MethodHandle STORE_FENCE =
+    findFence("releaseFence", "storeFence");
+  private static final MethodHandle FULL_FENCE =
+    findFence("fullFence", "fullFence");
+
+  /**
+   * Look up a fence: the named static method of java.lang.invoke.VarHandle
+   * if there is one, otherwise the named method of sun.misc.Unsafe bound to
+   * its instance
+   *
+   * @param varHandleName the name of the VarHandle method
+   * @param unsafeName the name of the Unsafe method
+   * @return the fence, as a handle of type ()void
+   */
+  private static MethodHandle findFence(String varHandleName,
+    String unsafeName) {
+    MethodType type = MethodType.methodType(void.class);
+    try {
+      return MethodHandles.publicLookup().findStatic(
+        Class.forName("java.lang.invoke.VarHandle"), varHandleName, type);
+    } catch (ReflectiveOperationException ex) {
+      // Java 8
+    }
+    try {
+      Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+      Field f = unsafeClass.getDeclaredField("theUnsafe");
+      f.setAccessible(true);
+      return MethodHandles.publicLookup()
+        .findVirtual(unsafeClass, unsafeName, type).bindTo(f.get(null));
+    } catch (ReflectiveOperationException ex) {
+      throw new ExceptionInInitializerError(ex);
+    }
+  }
+
+  /**
+   * Keep reads that precede from being reordered after reads and writes
+   * that follow
+   */
+  public static void loadFence() {
+    try {
+      LOAD_FENCE.invokeExact();
+    } catch (Throwable ex) {
+      throw new IllegalStateException(ex);
+    }
+  }
+
+  /**
+   * Keep reads and writes that precede from being reordered after writes
+   * that follow
+   */
+  public static void storeFence() {
+    try {
+      STORE_FENCE.invokeExact();
+    } catch (Throwable ex) {
+      throw new IllegalStateException(ex);
+    }
+  }
+
+  /**
+   * Keep reads and writes that precede from being reordered after reads and
+   * writes that follow
+   */
+  public static void fullFence() {
+    try {
+      FULL_FENCE.invokeExact();
+    } catch (Throwable ex) {
+      throw new IllegalStateException(ex);
+    }
+  }
+
+  /**
+   * Compute the size of a slot: large enough for the header and the larger
+   * of a request and a response, rounded up to a multiple of a cache line
+   *
+   * @param maxRows the maximum rows per request
+   * @param numColumns the number of input columns
+   * @param numPredictions the number of prediction columns
+   * @return the slot size in bytes
+   */
+  public static int slotSize(int maxRows, int numColumns, int numPredictions) {
+    long size = SLOT_HEADER_SIZE
+      + 8L * maxRows * Math.max(1, Math.max(numColumns, numPredictions));
+    size = (size + 63) & ~63L;
+    if (size > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("Slots of " + maxRows
+        + " rows are too large");
+    }
+    return (int) size;
+  }
+
+  /**
+   * Get the offset of a slot in the file
+   *
+   * @param slot the slot index
+   * @param slotSize the size of each slot
+   * @return the offset of the slot
+   */
+  public static long slotOffset(int slot, int slotSize) {
+    return HEADER_SIZE + (long) slot * slotSize;
+  }
+
+  /**
+   * Write the names of the input and prediction columns to the header, if
+   * they fit
+   *
+   * @param buf the mapped file
+   * @param names the names of the input columns followed by those of the
+   *          prediction columns
+   */
+  public static void putNames(ByteBuffer buf, String[] names) {
+    StringBuilder b = new StringBuilder();
+    for (String name : names) {
+      b.append(name).append('\n');
+    }
+    byte[] bytes = b.toString().getBytes(StandardCharsets.UTF_8);
+    if (OFFSET_NAMES + bytes.length > HEADER_SIZE) {
+      buf.putInt(OFFSET_NAMES_LENGTH, 0);
+      return;
+    }
+    for (int i = 0; i < bytes.length; i++) {
+      buf.put(OFFSET_NAMES + i, bytes[i]);
+    }
+    buf.putInt(OFFSET_NAMES_LENGTH, bytes.length);
+  }
+
+  /**
+   * Read the names of the input and prediction columns from the header
+   *
+   * @param buf the mapped file
+   * @return the names, or null if they didn't fit in the header
+   */
+  public static String[] getNames(ByteBuffer buf) {
+    int length = buf.getInt(OFFSET_NAMES_LENGTH);
+    if (length <= 0) {
+      return null;
+    }
+    byte[] bytes = new byte[length];
+    for (int i = 0; i < length; i++) {
+      bytes[i] = buf.get(OFFSET_NAMES + i);
+    }
+    return new String(bytes, StandardCharsets.UTF_8).split("\n", -1);
+  }
+
+  /**
+   * Read a slot's state. The read is followed by a load fence, so that
+   * reads of the data the state publishes are not reordered before it (and
+   * so that polling loops re-read the state).
+   *
+   * @param buf the mapped file
+   * @param slotOffset the offset of the slot
+   * @return the state
+   */
+  public static int getState(ByteBuffer buf, int slotOffset) {
+    int state = buf.getInt(slotOffset + SLOT_STATE);
+    loadFence();
+    return state;
+  }
+
+  /**
+   * Set a slot's state, after a store fence so that data written before it
+   * is visible to whichever process sees the new state
+   *
+   * @param buf the mapped file
+   * @param slotOffset the offset of the slot
+   * @param state the new state
+   */
+  public static void setState(ByteBuffer buf, int slotOffset, int state) {
+    storeFence();
+    buf.putInt(slotOffset + SLOT_STATE, state);
+    fullFence();
+  }
+}
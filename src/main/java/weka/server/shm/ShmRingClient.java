@@ -0,0 +1,337 @@
+/*******************************************************************************
+ * Pentaho Data Science
+ * <p/>
+ * Copyright (c) 2002-2020 Hitachi Vantara. All rights reserved.
+ * <p/>
+ * ******************************************************************************
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ * <p/>
+ ******************************************************************************/
+
+package weka.server.shm;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import weka.core.WekaException;
+
+/**
+ * Client for a ShmRingServer, for use by any local process that can map the
+ * server's file. Each client claims one slot of the ring for as long as it
+ * is open (by locking the slot, so that clients in other processes and in
+ * this one keep out), so a client is not thread-safe - open one per thread.
+ * <p>
+ * Rows are row-major arrays of doubles in the order of getColumns(), with
+ * nominal values given as label indexes and NaN for missing values.
+ * Requests larger than getMaxRows() are sent in several round trips. While
+ * waiting for the server, the client spins for a short while (a round trip
+ * typically takes a few microseconds) and then parks between checks.
+ *
+ * <pre>
+ * try (ShmRingClient client = new ShmRingClient("/dev/shm/irisClassifier.ring")) {
+ *   double[] out = new double[numRows * client.getNumPredictionColumns()];
+ *   client.score(values, numRows, out);
+ * }
+ * </pre>
+ *
+ * @version : $
+ */
+public class ShmRingClient implements AutoCloseable {
+
+  public static final long DEFAULT_SPIN_MICROS = 50;
+  public static final long DEFAULT_TIMEOUT_MILLIS = 30000;
+
+  /** Nanoseconds to park between checks once done spinning */
+  protected static final long PARK_NANOS = 10000;
+
+  protected final File m_file;
+  protected final RandomAccessFile m_raf;
+  protected final MappedByteBuffer m_buffer;
+  protected final int m_maxRows;
+  protected final int m_numColumns;
+  protected final int m_numPredictions;
+  protected final String[] m_names;
+
+  protected FileLock m_lock;
+  protected int m_slot = -1;
+  protected int m_offset;
+  protected DoubleBuffer m_data;
+  protected ByteBuffer m_bytes;
+
+  protected long m_spinNanos = TimeUnit.MICROSECONDS.toNanos(DEFAULT_SPIN_MICROS);
+  protected long m_timeoutNanos =
+    TimeUnit.MILLISECONDS.toNanos(DEFAULT_TIMEOUT_MILLIS);
+
+  /**
+   * Constructor. Maps the file and claims a free slot.
+   *
+   * @param path the path of the server's file
+   * @throws Exception if the file isn't a ring or no slot is free
+   */
+  public ShmRingClient(String path) throws Exception {
+    m_file = new File(path);
+    if (!m_file.isFile()) {
+      // opening it "rw" would create it
+      throw new WekaException(path + " does not exist");
+    }
+    m_raf = new RandomAccessFile(m_file, "rw");
+    try {
+      FileChannel channel = m_raf.getChannel();
+      if (channel.size() < ShmRing.HEADER_SIZE) {
+        throw new WekaException(path + " is not a shared memory ring");
+      }
+      m_buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+        channel.size());
+      m_buffer.order(ByteOrder.nativeOrder());
+      if (m_buffer.getInt(ShmRing.OFFSET_MAGIC) != ShmRing.MAGIC) {
+        throw new WekaException(path + " is not a live shared memory ring");
+      }
+      ShmRing.loadFence();
+      int version = m_buffer.getInt(ShmRing.OFFSET_VERSION);
+      if (version != ShmRing.VERSION) {
+        throw new WekaException("Unsupported shared memory ring version "
+          + version);
+      }
+      m_maxRows = m_buffer.getInt(ShmRing.OFFSET_MAX_ROWS);
+      m_numColumns = m_buffer.getInt(ShmRing.OFFSET_NUM_COLUMNS);
+      m_numPredictions = m_buffer.getInt(ShmRing.OFFSET_NUM_PREDICTIONS);
+      m_names = ShmRing.getNames(m_buffer);
+      claim(channel);
+    } catch (Exception ex) {
+      m_raf.close();
+      throw ex;
+    }
+  }
+
+  /**
+   * Lock the first free slot and wait for any request left in it by a
+   * previous owner to finish
+   */
+  protected void claim(FileChannel channel) throws Exception {
+    int numSlots = m_buffer.getInt(ShmRing.OFFSET_NUM_SLOTS);
+    int slotSize = m_buffer.getInt(ShmRing.OFFSET_SLOT_SIZE);
+    for (int slot = 0; slot < numSlots && m_lock == null; slot++) {
+      long offset = ShmRing.slotOffset(slot, slotSize);
+      try {
+        m_lock = channel.tryLock(offset, 1, false);
+      } catch (OverlappingFileLockException ex) {
+        // held by another client in this JVM
+      }
+      if (m_lock != null) {
+        m_slot = slot;
+        m_offset = (int) offset;
+      }
+    }
+    if (m_lock == null) {
+      throw new WekaException("All " + numSlots + " slots of " + m_file
+        + " are in use");
+    }
+
+    ByteBuffer dup = m_buffer.duplicate();
+    dup.position(m_offset + ShmRing.SLOT_HEADER_SIZE);
+    dup.limit(m_offset + slotSize);
+    m_bytes = dup.slice().order(ByteOrder.nativeOrder());
+    m_data = m_bytes.asDoubleBuffer();
+
+    int state = ShmRing.getState(m_buffer, m_offset);
+    if (state == ShmRing.REQUEST || state == ShmRing.PROCESSING) {
+      await();
+    }
+    ShmRing.setState(m_buffer, m_offset, ShmRing.IDLE);
+  }
+
+  /**
+   * Get the names of the input columns, in the order rows must give them
+   *
+   * @return the names of the columns, or null if the server couldn't fit
+   *         them in the header
+   */
+  public String[] getColumns() {
+    return m_names != null ? Arrays.copyOfRange(m_names, 0, m_numColumns)
+      : null;
+  }
+
+  /**
+   * Get the names of the prediction columns
+   *
+   * @return the names of the prediction columns, or null if the server
+   *         couldn't fit them in the header
+   */
+  public String[] getPredictionColumnNames() {
+    return m_names != null ? Arrays.copyOfRange(m_names, m_numColumns,
+      m_numColumns + m_numPredictions) : null;
+  }
+
+  /**
+   * Get the number of values per input row
+   *
+   * @return the number of input columns
+   */
+  public int getNumColumns() {
+    return m_numColumns;
+  }
+
+  /**
+   * Get the number of values per prediction
+   *
+   * @return the number of prediction columns
+   */
+  public int getNumPredictionColumns() {
+    return m_numPredictions;
+  }
+
+  /**
+   * Get the maximum number of rows sent in one round trip
+   *
+   * @return the maximum rows per request
+   */
+  public int getMaxRows() {
+    return m_maxRows;
+  }
+
+  /**
+   * Get the index of the slot this client has claimed
+   *
+   * @return the slot
+   */
+  public int getSlot() {
+    return m_slot;
+  }
+
+  /**
+   * Set how long to spin waiting for a response before parking
+   *
+   * @param micros microseconds to spin
+   */
+  public void setSpinMicros(long micros) {
+    m_spinNanos = TimeUnit.MICROSECONDS.toNanos(micros);
+  }
+
+  /**
+   * Set how long to wait for a response before giving up
+   *
+   * @param millis the timeout in milliseconds
+   */
+  public void setTimeoutMillis(long millis) {
+    m_timeoutNanos = TimeUnit.MILLISECONDS.toNanos(millis);
+  }
+
+  /**
+   * Score rows
+   *
+   * @param values the values of the rows, row-major (numRows *
+   *          getNumColumns() values)
+   * @param numRows the number of rows
+   * @param out receives the predictions, row-major (numRows *
+   *          getNumPredictionColumns() values)
+   * @throws Exception if the server reports a problem (the message starts
+   *           with the status /invocations would give) or doesn't respond
+   *           in time
+   */
+  public void score(double[] values, int numRows, double[] out)
+    throws Exception {
+    if (m_lock == null) {
+      throw new IOException("Client is closed");
+    }
+    if (values.length < numRows * m_numColumns) {
+      throw new WekaException("Expected " + numRows * m_numColumns
+        + " values for " + numRows + " rows but got " + values.length);
+    }
+    if (out.length < numRows * m_numPredictions) {
+      throw new WekaException("Output buffer too small for " + numRows
+        + " rows of predictions");
+    }
+    for (int from = 0; from < numRows; from += m_maxRows) {
+      int n = Math.min(m_maxRows, numRows - from);
+      m_data.clear();
+      m_data.put(values, from * m_numColumns, n * m_numColumns);
+      m_buffer.putInt(m_offset + ShmRing.SLOT_COUNT, n);
+      ShmRing.setState(m_buffer, m_offset, ShmRing.REQUEST);
+
+      int state = await();
+      if (state == ShmRing.ERROR) {
+        int length = m_buffer.getInt(m_offset + ShmRing.SLOT_COUNT);
+        int status = m_buffer.getInt(m_offset + ShmRing.SLOT_STATUS);
+        byte[] message = new byte[length];
+        m_bytes.clear();
+        m_bytes.get(message);
+        ShmRing.setState(m_buffer, m_offset, ShmRing.IDLE);
+        throw new WekaException(status + ": "
+          + new String(message, StandardCharsets.UTF_8));
+      }
+      m_data.clear();
+      m_data.get(out, from * m_numPredictions, n * m_numPredictions);
+      ShmRing.setState(m_buffer, m_offset, ShmRing.IDLE);
+    }
+  }
+
+  /**
+   * Wait for the server to finish with the slot
+   *
+   * @return the state of the slot (RESPONSE or ERROR)
+   * @throws IOException if the server stops or doesn't respond in time
+   */
+  protected int await() throws IOException {
+    long start = System.nanoTime();
+    int state;
+    while ((state = ShmRing.getState(m_buffer, m_offset)) == ShmRing.REQUEST
+      || state == ShmRing.PROCESSING) {
+      long waited = System.nanoTime() - start;
+      if (waited < m_spinNanos) {
+        // let the server's poller run if it shares the core
+        Thread.yield();
+        continue;
+      }
+      if (m_buffer.getInt(ShmRing.OFFSET_MAGIC) != ShmRing.MAGIC) {
+        throw new IOException("The server of " + m_file + " has stopped");
+      }
+      if (waited > m_timeoutNanos) {
+        throw new IOException("Timed out waiting for the server of "
+          + m_file);
+      }
+      LockSupport.parkNanos(PARK_NANOS);
+    }
+    return state;
+  }
+
+  /**
+   * Release the slot and unmap the file
+   *
+   * @throws IOException if a problem occurs
+   */
+  @Override
+  public void close() throws IOException {
+    try {
+      if (m_lock != null) {
+        m_lock.release();
+        m_lock = null;
+      }
+    } finally {
+      m_raf.close();
+    }
+  }
+}
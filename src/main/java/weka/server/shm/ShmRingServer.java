@@ -0,0 +1,455 @@
+/*******************************************************************************
+ * Pentaho Data Science
+ * <p/>
+ * Copyright (c) 2002-2020 Hitachi Vantara. All rights reserved.
+ * <p/>
+ * ******************************************************************************
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ * <p/>
+ ******************************************************************************/
+
+package weka.server.shm;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandles;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import weka.core.Environment;
+import weka.core.WekaException;
+import weka.server.DeadlineExceededException;
+import weka.server.RegisteredTask;
+import weka.server.TaskConfigUtils;
+import weka.server.TaskRejectedException;
+import weka.server.scorer.EmbeddedScorer;
+import weka.server.scorer.WekaScoringModelPool;
+
+/**
+ * Serves a scoring task to local processes through a memory-mapped file (see
+ * ShmRing for the layout), avoiding sockets, HTTP and JSON altogether.
+ * Clients (see ShmRingClient) write rows of doubles into a slot of the file
+ * and the server's poller threads - dedicated threads that spin on the
+ * slots while there is work and park briefly when there isn't - score them
+ * with the task's scorer pool via an EmbeddedScorer and write the
+ * predictions back into the slot. Requests share the task's bulkhead and
+ * metrics with its other transports.
+ * <p>
+ * Enabled per task by setting weka.server.shm.file in the task's props
+ * file. The ring is created when the task is loaded, so a task served only
+ * this way should be preloaded by naming it on the WekaRESTServer command
+ * line. Rows are in the order of the model's attributes (excluding the
+ * class), with nominal values given as label indexes, as for
+ * EmbeddedScorer.getModelOrder().
+ *
+ * @version : $
+ */
+public class ShmRingServer {
+
+  /** Path of the file to map (enables the ring) */
+  public static final String PROP_SHM_FILE_KEY = "weka.server.shm.file";
+
+  /** Number of slots (i.e. concurrent clients) */
+  public static final String PROP_SHM_SLOTS_KEY = "weka.server.shm.slots";
+
+  /** Maximum rows per request */
+  public static final String PROP_SHM_MAX_ROWS_KEY = "weka.server.shm.maxRows";
+
+  /** Number of poller threads */
+  public static final String PROP_SHM_POLLERS_KEY = "weka.server.shm.pollers";
+
+  /**
+   * Milliseconds a poller keeps spinning after its last request before it
+   * starts parking between scans
+   */
+  public static final String PROP_SHM_IDLE_SPIN_KEY =
+    "weka.server.shm.idleSpinMs";
+
+  public static final int DEFAULT_SLOTS = 16;
+  public static final int DEFAULT_MAX_ROWS = 64;
+  public static final int DEFAULT_POLLERS = 1;
+  public static final long DEFAULT_IDLE_SPIN = 100;
+
+  /** Nanoseconds an idle poller parks between scans */
+  protected static final long IDLE_PARK_NANOS = 20000;
+
+  final static Logger logger =
+    LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+  protected final File m_file;
+  protected final EmbeddedScorer m_scorer;
+  protected final int m_numSlots;
+  protected final int m_maxRows;
+  protected final int m_numPollers;
+  protected final long m_idleSpinNanos;
+  protected final int m_numColumns;
+  protected final int m_numPredictions;
+  protected final int m_slotSize;
+
+  /** Identifies the file this server created (see fileKey()) */
+  protected Object m_fileKey;
+  protected RandomAccessFile m_raf;
+  protected MappedByteBuffer m_buffer;
+  protected Thread[] m_pollers;
+  protected volatile boolean m_running;
+
+  protected final AtomicLong m_requests = new AtomicLong();
+  protected final AtomicLong m_errors = new AtomicLong();
+
+  /**
+   * Constructor
+   *
+   * @param file the file to map
+   * @param scorer the scorer for the task
+   * @param numSlots the number of slots
+   * @param maxRows the maximum rows per request
+   * @param numPollers the number of poller threads
+   * @param idleSpinMillis milliseconds to keep spinning after a request
+   */
+  public ShmRingServer(File file, EmbeddedScorer scorer, int numSlots,
+    int maxRows, int numPollers, long idleSpinMillis) {
+    m_file = file;
+    m_scorer = scorer;
+    m_numSlots = Math.max(1, numSlots);
+    m_maxRows = Math.max(1, maxRows);
+    m_numPollers = Math.max(1, Math.min(numPollers, m_numSlots));
+    m_idleSpinNanos = TimeUnit.MILLISECONDS.toNanos(idleSpinMillis);
+    m_numColumns = scorer.getColumns().length;
+    m_numPredictions = scorer.getNumPredictionColumns();
+    m_slotSize = ShmRing.slotSize(m_maxRows, m_numColumns, m_numPredictions);
+  }
+
+  /**
+   * Create a ring for a task from its config
+   *
+   * @param task the task
+   * @return the ring, or null if the task doesn't configure one
+   * @throws Exception if a problem occurs
+   */
+  public static ShmRingServer fromConfig(RegisteredTask task)
+    throws Exception {
+    TaskConfigUtils taskConfigUtils = task.getTaskConfigUtils();
+    String path = taskConfigUtils.getTaskProperty(PROP_SHM_FILE_KEY);
+    if (path == null || path.trim().length() == 0) {
+      return null;
+    }
+    try {
+      path = Environment.getSystemWide().substitute(path.trim());
+    } catch (Exception ex) {
+      // ignore substitution problems
+    }
+    if (!(task.getPool() instanceof WekaScoringModelPool)) {
+      TaskConfigUtils.generateError(ShmRingServer.class,
+        "A shared memory ring can only serve a scoring task");
+    }
+
+    int numSlots = DEFAULT_SLOTS;
+    String slotsS = taskConfigUtils.getTaskProperty(PROP_SHM_SLOTS_KEY);
+    if (slotsS != null && slotsS.length() > 0) {
+      numSlots = Integer.parseInt(slotsS);
+    }
+    int maxRows = DEFAULT_MAX_ROWS;
+    String maxRowsS = taskConfigUtils.getTaskProperty(PROP_SHM_MAX_ROWS_KEY);
+    if (maxRowsS != null && maxRowsS.length() > 0) {
+      maxRows = Integer.parseInt(maxRowsS);
+    }
+    int numPollers = DEFAULT_POLLERS;
+    String pollersS = taskConfigUtils.getTaskProperty(PROP_SHM_POLLERS_KEY);
+    if (pollersS != null && pollersS.length() > 0) {
+      numPollers = Integer.parseInt(pollersS);
+    }
+    long idleSpin = DEFAULT_IDLE_SPIN;
+    String idleSpinS = taskConfigUtils.getTaskProperty(PROP_SHM_IDLE_SPIN_KEY);
+    if (idleSpinS != null && idleSpinS.length() > 0) {
+      idleSpin = Long.parseLong(idleSpinS);
+    }
+
+    EmbeddedScorer scorer = new EmbeddedScorer(task);
+    scorer.setBatchSize(maxRows);
+    return new ShmRingServer(new File(path), scorer, numSlots, maxRows,
+      numPollers, idleSpin);
+  }
+
+  /**
+   * Create the file (replacing one left by an earlier server, but nothing
+   * else), write the header and start the pollers. The file is created
+   * readable and writable by its owner only, so clients must run as the
+   * same user as the server.
+   *
+   * @return this server
+   * @throws IOException if the file can't be created or mapped
+   */
+  public ShmRingServer start() throws IOException {
+    File parent = m_file.getAbsoluteFile().getParentFile();
+    if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+      throw new IOException("Unable to create directory " + parent);
+    }
+    // a new file rather than truncating one that clients may still map
+    if (m_file.exists()) {
+      if (!isRingFile(m_file)) {
+        throw new IOException(m_file + " exists and is not a shared memory "
+          + "ring - not replacing it");
+      }
+      if (!m_file.delete()) {
+        throw new IOException("Unable to replace " + m_file);
+      }
+    }
+    try {
+      Files.createFile(m_file.toPath(), PosixFilePermissions
+        .asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+    } catch (UnsupportedOperationException ex) {
+      // not a POSIX file system
+      Files.createFile(m_file.toPath());
+    }
+    m_fileKey = fileKey();
+    long size = ShmRing.slotOffset(m_numSlots, m_slotSize);
+    m_raf = new RandomAccessFile(m_file, "rw");
+    m_file.deleteOnExit();
+    m_raf.setLength(size);
+    m_buffer = m_raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+    m_buffer.order(ByteOrder.nativeOrder());
+
+    m_buffer.putInt(ShmRing.OFFSET_VERSION, ShmRing.VERSION);
+    m_buffer.putInt(ShmRing.OFFSET_NUM_SLOTS, m_numSlots);
+    m_buffer.putInt(ShmRing.OFFSET_SLOT_SIZE, m_slotSize);
+    m_buffer.putInt(ShmRing.OFFSET_MAX_ROWS, m_maxRows);
+    m_buffer.putInt(ShmRing.OFFSET_NUM_COLUMNS, m_numColumns);
+    m_buffer.putInt(ShmRing.OFFSET_NUM_PREDICTIONS, m_numPredictions);
+    String[] columns = m_scorer.getColumns();
+    String[] predictions = m_scorer.getPredictionColumnNames();
+    String[] names = new String[columns.length + predictions.length];
+    System.arraycopy(columns, 0, names, 0, columns.length);
+    System.arraycopy(predictions, 0, names, columns.length,
+      predictions.length);
+    ShmRing.putNames(m_buffer, names);
+    // clients check the magic number last
+    ShmRing.storeFence();
+    m_buffer.putInt(ShmRing.OFFSET_MAGIC, ShmRing.MAGIC);
+
+    m_running = true;
+    m_pollers = new Thread[m_numPollers];
+    for (int i = 0; i < m_numPollers; i++) {
+      final int first = i;
+      m_pollers[i] = new Thread(() -> poll(first), "shm-poller-" + i);
+      m_pollers[i].setDaemon(true);
+      m_pollers[i].start();
+    }
+    logger.info("Serving " + m_numSlots + " shared memory slots at "
+      + m_file);
+    return this;
+  }
+
+  /**
+   * Returns true if a file has the header of a ring (live, or left behind by
+   * a server that stopped or died)
+   *
+   * @param file the file to check
+   * @return true if the file is a ring
+   * @throws IOException if the file can't be read
+   */
+  protected static boolean isRingFile(File file) throws IOException {
+    if (!file.isFile() || file.length() < ShmRing.HEADER_SIZE) {
+      return false;
+    }
+    ByteBuffer header =
+      ByteBuffer.allocate(ShmRing.OFFSET_VERSION + 4).order(
+        ByteOrder.nativeOrder());
+    try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+      raf.readFully(header.array());
+    }
+    int magic = header.getInt(ShmRing.OFFSET_MAGIC);
+    // stop() clears the magic number but leaves the version
+    return (magic == ShmRing.MAGIC || magic == 0)
+      && header.getInt(ShmRing.OFFSET_VERSION) == ShmRing.VERSION;
+  }
+
+  /**
+   * Stop the pollers, close the scorer and remove the file. Clients waiting
+   * on a slot see the magic number cleared and give up.
+   */
+  public void stop() {
+    m_running = false;
+    if (m_pollers != null) {
+      for (Thread poller : m_pollers) {
+        try {
+          poller.join(1000);
+        } catch (InterruptedException ex) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    }
+    m_scorer.close();
+    if (m_buffer != null) {
+      m_buffer.putInt(ShmRing.OFFSET_MAGIC, 0);
+      ShmRing.fullFence();
+    }
+    try {
+      if (m_raf != null) {
+        m_raf.close();
+      }
+    } catch (IOException ex) {
+      logger.warn("Problem closing " + m_file + ": " + ex);
+    }
+    // unless a server replacing this one has created its own file already
+    Object key = m_file.exists() ? fileKey() : null;
+    if (key != null && m_fileKey != null && !key.equals(m_fileKey)) {
+      return;
+    }
+    if (m_file.exists() && !m_file.delete()) {
+      logger.warn("Unable to remove " + m_file);
+    }
+  }
+
+  /**
+   * Get the key (e.g. device and inode) identifying the file currently at
+   * the ring's path
+   *
+   * @return the key, or null if the file system doesn't provide one
+   */
+  protected Object fileKey() {
+    try {
+      return Files.readAttributes(m_file.toPath(), BasicFileAttributes.class)
+        .fileKey();
+    } catch (IOException ex) {
+      return null;
+    }
+  }
+
+  /**
+   * Get the path of the mapped file
+   *
+   * @return the file
+   */
+  public File getFile() {
+    return m_file;
+  }
+
+  /**
+   * Get the ring's counters
+   *
+   * @return the number of requests served and failed
+   */
+  public Map<String, Object> getStatistics() {
+    Map<String, Object> stats = new LinkedHashMap<>();
+    stats.put("shm.requests", m_requests.get());
+    stats.put("shm.errors", m_errors.get());
+    return stats;
+  }
+
+  /**
+   * Poll the slots first, first + numPollers, ... until stopped
+   *
+   * @param first the first slot this poller serves
+   */
+  protected void poll(int first) {
+    int n = (m_numSlots - first + m_numPollers - 1) / m_numPollers;
+    int[] offsets = new int[n];
+    DoubleBuffer[] data = new DoubleBuffer[n];
+    ByteBuffer[] bytes = new ByteBuffer[n];
+    for (int i = 0; i < n; i++) {
+      offsets[i] = (int) ShmRing.slotOffset(first + i * m_numPollers,
+        m_slotSize);
+      ByteBuffer dup = m_buffer.duplicate();
+      dup.position(offsets[i] + ShmRing.SLOT_HEADER_SIZE);
+      dup.limit(offsets[i] + m_slotSize);
+      bytes[i] = dup.slice().order(ByteOrder.nativeOrder());
+      data[i] = bytes[i].asDoubleBuffer();
+    }
+    double[] values = new double[m_maxRows * m_numColumns];
+    double[] out = new double[m_maxRows * m_numPredictions];
+    EmbeddedScorer.ColumnBinding binding = m_scorer.getModelOrder();
+
+    long lastWork = System.nanoTime();
+    while (m_running) {
+      boolean worked = false;
+      for (int i = 0; i < n; i++) {
+        if (ShmRing.getState(m_buffer, offsets[i]) == ShmRing.REQUEST) {
+          process(offsets[i], data[i], bytes[i], values, out, binding);
+          worked = true;
+        }
+      }
+      if (worked) {
+        lastWork = System.nanoTime();
+      } else if (System.nanoTime() - lastWork > m_idleSpinNanos) {
+        LockSupport.parkNanos(IDLE_PARK_NANOS);
+      } else {
+        // let a client sharing the core run
+        Thread.yield();
+      }
+    }
+  }
+
+  /**
+   * Score the rows of a slot and write back the predictions or an error
+   */
+  protected void process(int offset, DoubleBuffer data, ByteBuffer bytes,
+    double[] values, double[] out, EmbeddedScorer.ColumnBinding binding) {
+    ShmRing.setState(m_buffer, offset, ShmRing.PROCESSING);
+    m_requests.incrementAndGet();
+    int status;
+    String message;
+    try {
+      int numRows = m_buffer.getInt(offset + ShmRing.SLOT_COUNT);
+      if (numRows < 0 || numRows > m_maxRows) {
+        throw new WekaException("Expected between 0 and " + m_maxRows
+          + " rows but got " + numRows);
+      }
+      data.clear();
+      data.get(values, 0, numRows * m_numColumns);
+      m_scorer.score(values, numRows, binding, out);
+      data.clear();
+      data.put(out, 0, numRows * m_numPredictions);
+      ShmRing.setState(m_buffer, offset, ShmRing.RESPONSE);
+      return;
+    } catch (DeadlineExceededException e) {
+      status = 504;
+      message = e.getMessage();
+    } catch (TaskRejectedException e) {
+      status = 503;
+      message = e.getMessage();
+    } catch (WekaException e) {
+      status = 400;
+      message = e.getMessage();
+    } catch (Exception e) {
+      status = 500;
+      message = e.getMessage() != null ? e.getMessage() : e.toString();
+    }
+    m_errors.incrementAndGet();
+    byte[] messageBytes = (message != null ? message : "")
+      .getBytes(StandardCharsets.UTF_8);
+    int length = Math.min(messageBytes.length, bytes.capacity());
+    bytes.clear();
+    bytes.put(messageBytes, 0, length);
+    m_buffer.putInt(offset + ShmRing.SLOT_COUNT, length);
+    m_buffer.putInt(offset + ShmRing.SLOT_STATUS, status);
+    ShmRing.setState(m_buffer, offset, ShmRing.ERROR);
+  }
+}
@@ -0,0 +1,407 @@
+/*******************************************************************************
+ * Pentaho Data Science
+ * <p/>
+ * Copyright (c) 2002-2020 Hitachi Vantara. All rights reserved.
+ * <p/>
+ * ******************************************************************************
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ * <p/>
+ ******************************************************************************/
+
+package weka.server.training;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.invoke.MethodHandles;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import weka.classifiers.AbstractClassifier;
+import weka.classifiers.Classifier;
+import weka.classifiers.evaluation.Evaluation;
+import weka.core.Instances;
+import weka.core.OptionHandler;
+import weka.core.SerializationHelper;
+import weka.core.Utils;
+import weka.server.TaskConfigUtils;
+import weka.server.WekaServerTaskRegistry;
+import weka.server.scorer.WekaScoringModel;
+
+/**
+ * A training job: cross-validates a classifier on a dataset, trains it on
+ * the full dataset, writes the model and training header to
+ * ${user.home}/models (in the format scoring tasks load) and, optionally,
+ * registers a scoring task that serves the model. The model file is written
+ * to a temporary file and moved into place, and never replaces a model file
+ * that wasn't written by a training job (those have a &lt;model&gt;.job marker
+ * file alongside them). Likewise the props file of a registered task only
+ * replaces one written by an earlier training job. The folds and the final
+ * model are built in parallel on a fork-join pool. The splits are made up
+ * front with the job's seed, as Weka's own cross-validation does, so
+ * results don't depend on the degree of parallelism.
+ *
+ * @version : $
+ */
+public class TrainingJob implements Runnable {
+
+  /** Marks the first line of props files written for registered tasks */
+  public static final String REGISTERED_PROPS_MARKER =
+    "# Written by a TrainingTask";
+
+  /** Extension of the marker files written alongside trained models */
+  public static final String MODEL_MARKER_EXTENSION = ".job";
+
+  public enum Status {
+    QUEUED, RUNNING, SUCCEEDED, FAILED
+  }
+
+  final static Logger logger =
+    LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+  protected final String m_id;
+  protected final String m_trainingTaskId;
+  protected final Instances m_data;
+  protected final Classifier m_classifier;
+  protected final int m_folds;
+  protected final long m_seed;
+  protected final String m_modelFileName;
+
+  /** taskid to register the model as (null if it isn't to be registered) */
+  protected final String m_registerAs;
+
+  /** Lines to add to the props file of the registered task */
+  protected final String m_registerProps;
+
+  /** Runs the folds */
+  protected final ForkJoinPool m_workers;
+
+  protected volatile Status m_status = Status.QUEUED;
+  protected final AtomicInteger m_foldsCompleted = new AtomicInteger();
+  protected volatile String m_error;
+  protected volatile Map<String, Object> m_evaluation;
+  protected final long m_submitted = System.currentTimeMillis();
+  protected volatile long m_started;
+  protected volatile long m_finished;
+
+  /**
+   * Constructor
+   *
+   * @param id the job id
+   * @param trainingTaskId the taskid of the training task running the job
+   * @param data the training data (with the class set)
+   * @param classifier the (unbuilt) classifier to train
+   * @param folds the number of cross-validation folds (less than 2 for none)
+   * @param seed the seed for randomizing the folds
+   * @param modelFileName the name of the model file to write
+   * @param registerAs the taskid to register the model as, or null
+   * @param registerProps extra lines for the registered task's props file
+   * @param workers the fork-join pool to build models on
+   */
+  public TrainingJob(String id, String trainingTaskId, Instances data,
+    Classifier classifier, int folds, long seed, String modelFileName,
+    String registerAs, String registerProps, ForkJoinPool workers) {
+    m_id = id;
+    m_trainingTaskId = trainingTaskId;
+    m_data = data;
+    m_classifier = classifier;
+    m_folds = folds;
+    m_seed = seed;
+    m_modelFileName = modelFileName;
+    m_registerAs = registerAs;
+    m_registerProps = registerProps;
+    m_workers = workers;
+  }
+
+  public String getId() {
+    return m_id;
+  }
+
+  public Status getStatus() {
+    return m_status;
+  }
+
+  /**
+   * Returns true if the job has succeeded or failed
+   *
+   * @return true if the job has finished
+   */
+  public boolean isFinished() {
+    return m_status == Status.SUCCEEDED || m_status == Status.FAILED;
+  }
+
+  @Override
+  public void run() {
+    m_started = System.currentTimeMillis();
+    m_status = Status.RUNNING;
+    try {
+      // build the final model alongside the folds
+      ForkJoinTask<Classifier> full = m_workers.submit(() -> {
+        Classifier c = AbstractClassifier.makeCopy(m_classifier);
+        c.buildClassifier(m_data);
+        return c;
+      });
+      if (m_folds > 1) {
+        m_evaluation = crossValidate();
+      }
+      Classifier model = full.join();
+
+      writeModel(model);
+
+      if (m_registerAs != null) {
+        register();
+      }
+      m_status = Status.SUCCEEDED;
+    } catch (Throwable ex) {
+      m_error = ex.getMessage() != null ? ex.getMessage() : ex.toString();
+      m_status = Status.FAILED;
+      logger.warn("Training job " + m_id + " failed: " + m_error);
+    } finally {
+      m_finished = System.currentTimeMillis();
+    }
+  }
+
+  /**
+   * Get a model file in ${user.home}/models
+   *
+   * @param name the name of the model file
+   * @return the model file
+   */
+  public static File getModelFile(String name) {
+    return new File(System.getProperty("user.home") + File.separator
+      + "models" + File.separator + name);
+  }
+
+  /**
+   * Returns true if a training job may write a model file: it doesn't exist
+   * yet, or was written by an earlier training job
+   *
+   * @param modelFile the model file
+   * @return true if the model file may be (re)written
+   */
+  public static boolean canWriteModel(File modelFile) {
+    return !modelFile.exists()
+      || new File(modelFile.getPath() + MODEL_MARKER_EXTENSION).exists();
+  }
+
+  /**
+   * Get the props file of a task in ${user.home}/config
+   *
+   * @param taskId the taskid
+   * @return the props file
+   */
+  public static File getPropsFile(String taskId) {
+    return new File(System.getProperty("user.home") + File.separator
+      + "config" + File.separator
+      + WekaServerTaskRegistry.getPropsFileName(taskId));
+  }
+
+  /**
+   * Returns true if a training job may write a task's props file: it doesn't
+   * exist yet, or was written by an earlier training job
+   *
+   * @param props the props file
+   * @return true if the props file may be (re)written
+   * @throws IOException if the props file can't be read
+   */
+  public static boolean canWriteProps(File props) throws IOException {
+    return !props.exists() || new String(Files.readAllBytes(props.toPath()),
+      StandardCharsets.UTF_8).startsWith(REGISTERED_PROPS_MARKER);
+  }
+
+  /**
+   * Write the model and training header to the model file, replacing it
+   * atomically
+   *
+   * @param model the trained model
+   * @throws Exception if the model file exists but wasn't written by a
+   *           training job, or a problem occurs
+   */
+  protected void writeModel(Classifier model) throws Exception {
+    File modelFile = getModelFile(m_modelFileName);
+    File tmp = new File(modelFile.getPath() + "." + m_id + ".tmp");
+    try {
+      SerializationHelper.writeAll(tmp.getPath(),
+        new Object[] { model, new Instances(m_data, 0) });
+      // checked again, as the file may have appeared since the job was
+      // submitted
+      if (!canWriteModel(modelFile)) {
+        TaskConfigUtils.generateError(this, "Model file " + m_modelFileName
+          + " already exists and was not written by a training job");
+      }
+      // the marker goes first, so a model file never lacks one
+      Files.write(
+        new File(modelFile.getPath() + MODEL_MARKER_EXTENSION).toPath(),
+        (m_id + "\n").getBytes(StandardCharsets.UTF_8));
+      Files.move(tmp.toPath(), modelFile.toPath(),
+        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(tmp.toPath());
+    }
+    logger.info("Training job " + m_id + " wrote " + modelFile);
+  }
+
+  /**
+   * Cross-validate the classifier, building the fold models in parallel
+   *
+   * @return summary statistics of the evaluation
+   * @throws Exception if a problem occurs
+   */
+  protected Map<String, Object> crossValidate() throws Exception {
+    Instances data = new Instances(m_data);
+    Random random = new Random(m_seed);
+    data.randomize(random);
+    if (data.classAttribute().isNominal()) {
+      data.stratify(m_folds);
+    }
+
+    List<Instances> trainSets = new ArrayList<>();
+    List<Instances> testSets = new ArrayList<>();
+    List<ForkJoinTask<double[][]>> folds = new ArrayList<>();
+    for (int i = 0; i < m_folds; i++) {
+      Instances train = data.trainCV(m_folds, i, random);
+      Instances test = data.testCV(m_folds, i);
+      trainSets.add(train);
+      testSets.add(test);
+      folds.add(m_workers.submit(() -> {
+        Classifier c = AbstractClassifier.makeCopy(m_classifier);
+        c.buildClassifier(train);
+        double[][] dists = new double[test.numInstances()][];
+        for (int j = 0; j < test.numInstances(); j++) {
+          dists[j] = c.distributionForInstance(test.instance(j));
+        }
+        m_foldsCompleted.incrementAndGet();
+        return dists;
+      }));
+    }
+
+    // predictions are added to the evaluation in fold order
+    Evaluation eval = new Evaluation(data);
+    for (int i = 0; i < m_folds; i++) {
+      double[][] dists = folds.get(i).join();
+      eval.setPriors(trainSets.get(i));
+      Instances test = testSets.get(i);
+      for (int j = 0; j < test.numInstances(); j++) {
+        eval.evaluateModelOnceAndRecordPrediction(dists[j], test.instance(j));
+      }
+    }
+
+    Map<String, Object> summary = new LinkedHashMap<>();
+    summary.put("folds", m_folds);
+    summary.put("instances", eval.numInstances());
+    if (data.classAttribute().isNominal()) {
+      summary.put("pctCorrect", eval.pctCorrect());
+      summary.put("kappa", eval.kappa());
+      summary.put("weightedAreaUnderROC", eval.weightedAreaUnderROC());
+    } else {
+      summary.put("correlationCoefficient", eval.correlationCoefficient());
+    }
+    summary.put("meanAbsoluteError", eval.meanAbsoluteError());
+    summary.put("rootMeanSquaredError", eval.rootMeanSquaredError());
+    return summary;
+  }
+
+  /**
+   * Write a props file for a scoring task serving the model, replacing it
+   * atomically, and (re)load the task
+   *
+   * @throws Exception if the props file exists but wasn't written by a
+   *           training job, or a problem occurs
+   */
+  protected void register() throws Exception {
+    File props = getPropsFile(m_registerAs);
+    File tmp = new File(props.getPath() + "." + m_id + ".tmp");
+    try {
+      try (Writer w = new FileWriter(tmp)) {
+        w.write(REGISTERED_PROPS_MARKER + " (job " + m_id + ")\n");
+        w.write(TaskConfigUtils.TASK_TYPE_KEY + "="
+          + WekaScoringModel.TASK_ID + "\n");
+        w.write(WekaScoringModel.PROP_SCORER_MODEL_FILE_NAME_KEY + "="
+          + m_modelFileName + "\n");
+        if (m_registerProps != null) {
+          w.write(m_registerProps);
+        }
+      }
+      // checked again, as the task may have been configured since the job
+      // was submitted
+      if (!canWriteProps(props)) {
+        TaskConfigUtils.generateError(this, "Task " + m_registerAs
+          + " already exists and was not registered by a training task");
+      }
+      Files.move(tmp.toPath(), props.toPath(),
+        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(tmp.toPath());
+    }
+    WekaServerTaskRegistry.reload(m_registerAs);
+    logger.info("Training job " + m_id + " registered task " + m_registerAs);
+  }
+
+  /**
+   * Get the state of the job as a map (for serialising as JSON)
+   *
+   * @return the state of the job
+   */
+  public Map<String, Object> toMap() {
+    Map<String, Object> m = new LinkedHashMap<>();
+    m.put("job", m_id);
+    m.put("status", m_status.toString().toLowerCase());
+    m.put("taskid", m_trainingTaskId);
+    String spec = m_classifier.getClass().getName();
+    if (m_classifier instanceof OptionHandler) {
+      spec += " " + Utils.joinOptions(((OptionHandler) m_classifier)
+        .getOptions());
+    }
+    m.put("classifier", spec.trim());
+    m.put("classAttribute", m_data.classAttribute().name());
+    m.put("rows", m_data.numInstances());
+    m.put("folds", m_folds);
+    m.put("foldsCompleted", m_foldsCompleted.get());
+    m.put("submitted", m_submitted);
+    if (m_started > 0) {
+      m.put("started", m_started);
+    }
+    if (m_finished > 0) {
+      m.put("finished", m_finished);
+      m.put("elapsedMs", m_finished - m_started);
+    }
+    if (m_evaluation != null) {
+      m.put("evaluation", m_evaluation);
+    }
+    if (m_status == Status.SUCCEEDED) {
+      m.put("model", m_modelFileName);
+      if (m_registerAs != null) {
+        m.put("registered", m_registerAs);
+      }
+    }
+    if (m_error != null) {
+      m.put("error", m_error);
+    }
+    return m;
+  }
+}
@@ -0,0 +1,80 @@
+/*******************************************************************************
+ * Pentaho Data Science
+ * <p/>
+ * Copyright (c) 2002-2020 Hitachi Vantara. All rights reserved.
+ * <p/>
+ * ******************************************************************************
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ * <p/>
+ ******************************************************************************/
+
+package weka.server.training;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import weka.core.Instances;
+import weka.server.PayloadFormat;
+import weka.server.WekaServerTask;
+import weka.server.dataprep.AbstractInstancesDataPreparerer;
+
+/**
+ * Task that submits a training job for the dataset it is given, and returns
+ * the job's id and status. The job's progress and results can then be polled
+ * (from /jobs/&lt;id&gt; on the REST server).
+ *
+ * @version : $
+ */
+public class TrainingTask extends WekaServerTask {
+
+  /** The pool that runs the jobs */
+  protected final TrainingTaskPool m_pool;
+
+  /**
+   * Constructor
+   *
+   * @param pool the pool that runs the jobs
+   */
+  public TrainingTask(TrainingTaskPool pool) {
+    m_pool = pool;
+  }
+
+  @Override
+  public String processData(String... input) throws Exception {
+    return processDataFromStream(input);
+  }
+
+  @Override
+  public void processData(InputStream input, OutputStream output)
+    throws Exception {
+    AbstractInstancesDataPreparerer preparer = m_pool.createDataPreparer();
+    Instances data = preparer.prepareInputData(m_requestContext, input);
+    TrainingJob job = m_pool.submit(data, m_requestContext);
+
+    Map<String, Object> result = new LinkedHashMap<>();
+    result.put("job", job.getId());
+    result.put("status", job.getStatus().toString().toLowerCase());
+    PayloadFormat format = m_requestContext != null
+      ? m_requestContext.getOutputFormat() : PayloadFormat.JSON;
+    JsonGenerator gen = format.getFactory().createGenerator(output);
+    gen.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+    gen.writeObject(result);
+    gen.flush();
+  }
+}
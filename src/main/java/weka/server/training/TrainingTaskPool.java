@@ -0,0 +1,330 @@
+/*******************************************************************************
+ * Pentaho Data Science
+ * <p/>
+ * Copyright (c) 2002-2020 Hitachi Vantara. All rights reserved.
+ * <p/>
+ * ******************************************************************************
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ * <p/>
+ ******************************************************************************/
+
+package weka.server.training;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import weka.classifiers.AbstractClassifier;
+import weka.classifiers.Classifier;
+import weka.core.Attribute;
+import weka.core.Instances;
+import weka.core.Utils;
+import weka.server.RequestContext;
+import weka.server.TaskConfigUtils;
+import weka.server.TaskRejectedException;
+import weka.server.WekaServerTask;
+import weka.server.WekaServerTaskPool;
+import weka.server.dataprep.AbstractInstancesDataPreparerer;
+import weka.server.scorer.WekaScoringModelPool;
+
+/**
+ * Pool for TrainingTasks. Training jobs are run asynchronously, a few at a
+ * time, and build their models on a fork-join pool whose number of workers
+ * is capped. Jobs are kept (so that their status can be polled) until they
+ * have finished and more than weka.server.training.retainedJobs newer jobs
+ * have been submitted.
+ * Each request can override the classifier, class attribute, folds and seed
+ * configured for the task, and name a taskid to register the trained model
+ * as.
+ *
+ * @version : $
+ */
+public class TrainingTaskPool extends WekaServerTaskPool {
+
+  public static final String TASK_ID = "TrainingTask";
+
+  public static final String PROP_CLASSIFIER_KEY =
+    "weka.server.training.classifier";
+  public static final String PROP_CLASS_ATTRIBUTE_KEY =
+    "weka.server.training.classAttribute";
+  public static final String PROP_FOLDS_KEY = "weka.server.training.folds";
+  public static final int DEFAULT_FOLDS = 10;
+  public static final String PROP_SEED_KEY = "weka.server.training.seed";
+  public static final String PROP_MAX_WORKERS_KEY =
+    "weka.server.training.maxWorkers";
+  public static final String PROP_CONCURRENT_JOBS_KEY =
+    "weka.server.training.concurrentJobs";
+  public static final String PROP_MAX_QUEUED_JOBS_KEY =
+    "weka.server.training.maxQueuedJobs";
+  public static final int DEFAULT_MAX_QUEUED_JOBS = 10;
+  public static final String PROP_RETAINED_JOBS_KEY =
+    "weka.server.training.retainedJobs";
+  public static final int DEFAULT_RETAINED_JOBS = 100;
+  public static final String PROP_REGISTER_PROPS_KEY =
+    "weka.server.training.register.props";
+
+  /** Request options */
+  public static final String CLASSIFIER_OPTION = "classifier";
+  public static final String CLASS_OPTION = "class";
+  public static final String FOLDS_OPTION = "folds";
+  public static final String SEED_OPTION = "seed";
+  public static final String MODEL_OPTION = "model";
+  public static final String REGISTER_OPTION = "register";
+
+  /** Jobs of all training tasks, oldest first */
+  protected static final Map<String, TrainingJob> s_jobs =
+    new LinkedHashMap<>();
+
+  protected TaskConfigUtils m_taskConfigUtils;
+
+  /** Builds models */
+  protected ForkJoinPool m_workers;
+
+  /** Runs jobs */
+  protected ThreadPoolExecutor m_jobRunner;
+
+  protected int m_retainedJobs = DEFAULT_RETAINED_JOBS;
+
+  /**
+   * Get a job of any training task
+   *
+   * @param id the job id
+   * @return the job, or null if there is no such job (or it is no longer
+   *         retained)
+   */
+  public static TrainingJob getJob(String id) {
+    synchronized (s_jobs) {
+      return s_jobs.get(id);
+    }
+  }
+
+  @Override
+  public void setTaskConfigUtils(TaskConfigUtils taskConfigUtils)
+    throws Exception {
+    m_taskConfigUtils = taskConfigUtils;
+    if (m_workers != null) {
+      return;
+    }
+
+    int maxWorkers = Runtime.getRuntime().availableProcessors();
+    String workersS = taskConfigUtils.getTaskProperty(PROP_MAX_WORKERS_KEY);
+    if (workersS != null && workersS.length() > 0) {
+      maxWorkers = Integer.parseInt(workersS);
+    }
+    int concurrentJobs = 1;
+    String jobsS = taskConfigUtils.getTaskProperty(PROP_CONCURRENT_JOBS_KEY);
+    if (jobsS != null && jobsS.length() > 0) {
+      concurrentJobs = Integer.parseInt(jobsS);
+    }
+    int maxQueued = DEFAULT_MAX_QUEUED_JOBS;
+    String queuedS = taskConfigUtils.getTaskProperty(PROP_MAX_QUEUED_JOBS_KEY);
+    if (queuedS != null && queuedS.length() > 0) {
+      maxQueued = Integer.parseInt(queuedS);
+    }
+    String retainedS = taskConfigUtils.getTaskProperty(PROP_RETAINED_JOBS_KEY);
+    if (retainedS != null && retainedS.length() > 0) {
+      m_retainedJobs = Integer.parseInt(retainedS);
+    }
+
+    m_workers = new ForkJoinPool(Math.max(1, maxWorkers));
+    final AtomicInteger threadCount = new AtomicInteger();
+    m_jobRunner = new ThreadPoolExecutor(concurrentJobs, concurrentJobs, 0,
+      TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(Math.max(1, maxQueued)),
+      r -> {
+        Thread t = new Thread(r, "training-" + threadCount.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+      });
+  }
+
+  @Override
+  public WekaServerTask getTask() throws Exception {
+    // tasks are stateless, so are not pooled
+    return new TrainingTask(this);
+  }
+
+  /**
+   * Create a data preparer for training data
+   *
+   * @return the data preparer configured for the task
+   * @throws Exception if a problem occurs
+   */
+  protected AbstractInstancesDataPreparerer createDataPreparer()
+    throws Exception {
+    return WekaScoringModelPool.createDataPreparer(m_taskConfigUtils);
+  }
+
+  /**
+   * Get a setting from the request's options, falling back to the task's
+   * config (if propName is not null)
+   */
+  protected String getSetting(RequestContext context, String option,
+    String propName) throws Exception {
+    String value = context != null ? context.getOption(option) : null;
+    if ((value == null || value.length() == 0) && propName != null) {
+      value = m_taskConfigUtils.getTaskProperty(propName);
+    }
+    return value != null && value.length() > 0 ? value : null;
+  }
+
+  /**
+   * Check that a name is safe to use as (part of) a file name
+   */
+  protected void checkName(String name, String what) throws Exception {
+    if (!name.matches("[A-Za-z0-9_.\\-]+") || name.startsWith(".")) {
+      TaskConfigUtils.generateError(this, "Invalid " + what + " '" + name
+        + "': only letters, digits, '_', '-' and '.' are allowed");
+    }
+  }
+
+  /**
+   * Submit a training job
+   *
+   * @param data the training data
+   * @param context the context of the request (holding its options)
+   * @return the job
+   * @throws TaskRejectedException if too many jobs are waiting
+   * @throws Exception if the request is invalid
+   */
+  public TrainingJob submit(Instances data, RequestContext context)
+    throws Exception {
+    String spec =
+      getSetting(context, CLASSIFIER_OPTION, PROP_CLASSIFIER_KEY);
+    if (spec == null) {
+      TaskConfigUtils.generateError(this, "No classifier specified");
+    }
+    String[] options = Utils.splitOptions(spec);
+    String className = options[0];
+    options[0] = "";
+    Classifier classifier = null;
+    try {
+      classifier = AbstractClassifier.forName(className, options);
+    } catch (Exception ex) {
+      TaskConfigUtils.generateError(this,
+        "Unable to create classifier '" + spec + "': " + ex.getMessage());
+    }
+
+    String classAtt =
+      getSetting(context, CLASS_OPTION, PROP_CLASS_ATTRIBUTE_KEY);
+    if (classAtt != null) {
+      Attribute att = data.attribute(classAtt);
+      if (att == null) {
+        TaskConfigUtils.generateError(this,
+          "Class attribute '" + classAtt + "' not found in the data");
+      }
+      data.setClass(att);
+    } else {
+      data.setClassIndex(data.numAttributes() - 1);
+    }
+    data.deleteWithMissingClass();
+    if (data.numInstances() == 0) {
+      TaskConfigUtils.generateError(this, "No labelled instances to train on");
+    }
+
+    String foldsS = getSetting(context, FOLDS_OPTION, PROP_FOLDS_KEY);
+    int folds = foldsS != null ? Integer.parseInt(foldsS) : DEFAULT_FOLDS;
+    if (folds > data.numInstances()) {
+      TaskConfigUtils.generateError(this, "Can't run " + folds
+        + " folds on " + data.numInstances() + " instances");
+    }
+    String seedS = getSetting(context, SEED_OPTION, PROP_SEED_KEY);
+    long seed = seedS != null ? Long.parseLong(seedS) : 1;
+
+    String id = UUID.randomUUID().toString();
+    String taskId = m_taskConfigUtils.getTaskId();
+    String model = getSetting(context, MODEL_OPTION, null);
+    if (model == null) {
+      model = taskId + "-" + id + ".model";
+    }
+    checkName(model, "model file name");
+    // never replace a model that wasn't written by training
+    if (!TrainingJob.canWriteModel(TrainingJob.getModelFile(model))) {
+      TaskConfigUtils.generateError(this, "Model file " + model
+        + " already exists and was not written by a training job");
+    }
+    String registerAs = getSetting(context, REGISTER_OPTION, null);
+    if (registerAs != null) {
+      checkName(registerAs, "taskid");
+      // never replace the config of a task that wasn't registered by training
+      if (!TrainingJob.canWriteProps(TrainingJob.getPropsFile(registerAs))) {
+        TaskConfigUtils.generateError(this, "Task " + registerAs
+          + " already exists and was not registered by a training task");
+      }
+    }
+    String registerProps = m_taskConfigUtils
+      .getTaskProperty(PROP_REGISTER_PROPS_KEY);
+    if (registerProps != null) {
+      // extra props are given as a ';' separated list
+      registerProps = registerProps.replace(';', '\n') + "\n";
+    }
+
+    TrainingJob job = new TrainingJob(id, taskId, data, classifier, folds,
+      seed, model, registerAs, registerProps, m_workers);
+    synchronized (s_jobs) {
+      try {
+        m_jobRunner.execute(job);
+      } catch (RejectedExecutionException ex) {
+        throw new TaskRejectedException("Too many training jobs waiting");
+      }
+      s_jobs.put(id, job);
+      // jobs still queued or running are kept, so they can always be polled
+      int excess = s_jobs.size() - m_retainedJobs;
+      for (Iterator<TrainingJob> oldest = s_jobs.values().iterator();
+        excess > 0 && oldest.hasNext();) {
+        if (oldest.next().isFinished()) {
+          oldest.remove();
+          excess--;
+        }
+      }
+    }
+
+    return job;
+  }
+
+  @Override
+  public Map<String, Object> getStatistics() {
+    if (m_jobRunner == null) {
+      return Collections.emptyMap();
+    }
+    Map<String, Object> stats = new LinkedHashMap<>();
+    stats.put("training.queued", m_jobRunner.getQueue().size());
+    stats.put("training.running", m_jobRunner.getActiveCount());
+    stats.put("training.completed", m_jobRunner.getCompletedTaskCount());
+    stats.put("training.workers", m_workers.getParallelism());
+    return stats;
+  }
+
+  @Override
+  public int getNumModelCopies() {
+    // models are trained per job and not kept by the pool
+    return 0;
+  }
+
+  @Override
+  public void shutdown() {
+    if (m_jobRunner != null) {
+      m_jobRunner.shutdownNow();
+      m_workers.shutdownNow();
+    }
+  }
+}
@@ -0,0 +1,134 @@
+package weka.server.audit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instances;
+
+/**
+ * Tests for encoding and decoding AuditRecords
+ */
+public class AuditRecordTest {
+
+  protected static Instances data(int rows) {
+    ArrayList<Attribute> atts = new ArrayList<>();
+    atts.add(new Attribute("x"));
+    atts.add(new Attribute("y"));
+    Instances data = new Instances("test", atts, rows);
+    for (int i = 0; i < rows; i++) {
+      data.add(new DenseInstance(1.0, new double[] { i, i * 0.5 }));
+    }
+    return data;
+  }
+
+  protected static double[][] predictions(int rows) {
+    double[][] preds = new double[rows][];
+    for (int i = 0; i < rows; i++) {
+      preds[i] = new double[] { 0.25, 0.75 - i };
+    }
+    return preds;
+  }
+
+  @Test
+  public void roundTrip() {
+    Instances data = data(3);
+    double[][] preds = predictions(3);
+    byte[] encoded = AuditRecord.encode(1234L, "task".getBytes(), data, true,
+      preds, Long.MAX_VALUE);
+
+    ByteBuffer b = ByteBuffer.wrap(encoded);
+    AuditRecord record = AuditRecord.decode(b);
+    assertEquals(1234L, record.getTimestamp());
+    assertEquals("task", record.getTaskId());
+    assertEquals(AuditRecord.fingerprint(data), record.getFingerprint());
+    assertEquals(3, record.getInput().length);
+    for (int i = 0; i < 3; i++) {
+      assertArrayEquals(data.instance(i).toDoubleArray(),
+        record.getInput()[i], 0);
+      assertArrayEquals(preds[i], record.getPredictions()[i], 0);
+    }
+    assertEquals(0, b.remaining());
+    assertNull(AuditRecord.decode(b));
+  }
+
+  @Test
+  public void inputIsOptional() {
+    byte[] encoded = AuditRecord.encode(1L, "task".getBytes(), data(2), false,
+      predictions(2), Long.MAX_VALUE);
+    AuditRecord record = AuditRecord.decode(ByteBuffer.wrap(encoded));
+    assertNull(record.getInput());
+    assertEquals(2, record.getPredictions().length);
+  }
+
+  @Test
+  public void fingerprintDependsOnValues() {
+    Instances a = data(2);
+    Instances b = data(2);
+    assertEquals(AuditRecord.fingerprint(a), AuditRecord.fingerprint(b));
+    b.instance(1).setValue(0, 42);
+    assertNotEquals(AuditRecord.fingerprint(a), AuditRecord.fingerprint(b));
+  }
+
+  @Test
+  public void recordsLongerThanTheLimitAreNotEncoded() {
+    byte[] encoded = AuditRecord.encode(1L, "task".getBytes(), data(3), true,
+      predictions(3), Long.MAX_VALUE);
+    assertNull(AuditRecord.encode(1L, "task".getBytes(), data(3), true,
+      predictions(3), encoded.length - 1));
+    assertEquals(encoded.length, AuditRecord.encode(1L, "task".getBytes(),
+      data(3), true, predictions(3), encoded.length).length);
+  }
+
+  @Test
+  public void logWritesRecordsThatTheReaderDecodes() throws Exception {
+    File dir = Files.createTempDirectory("audit").toFile();
+    try {
+      // small segments, so that records span several of them
+      AuditLog log = new AuditLog("task", dir, true, 16, 512, 1000);
+      for (int i = 1; i <= 10; i++) {
+        log.append(data(i), predictions(i));
+      }
+      // too big for a segment
+      log.append(data(100), predictions(100));
+      log.close();
+      log.append(data(1), predictions(1));
+      assertEquals(10L, log.getStatistics().get("audit.written"));
+      assertEquals(1L, log.getStatistics().get("audit.oversized"));
+      assertEquals(1L, log.getStatistics().get("audit.dropped"));
+
+      List<AuditRecord> records = new ArrayList<>();
+      List<File> segments = AuditLogReader.listSegments(dir.getPath());
+      for (File segment : segments) {
+        AuditLogReader.read(segment, records::add);
+      }
+      assertEquals(10, records.size());
+      assertEquals(log.getStatistics().get("audit.segments"),
+        (long) segments.size());
+      for (int i = 0; i < records.size(); i++) {
+        assertEquals(i + 1, records.get(i).getPredictions().length);
+        assertEquals(AuditRecord.fingerprint(data(i + 1)),
+          records.get(i).getFingerprint());
+      }
+    } finally {
+      File[] files = dir.listFiles();
+      if (files != null) {
+        for (File f : files) {
+          f.delete();
+        }
+      }
+      dir.delete();
+    }
+  }
+}
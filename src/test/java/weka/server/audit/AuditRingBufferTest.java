@@ -0,0 +1,99 @@
+package weka.server.audit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Tests for AuditRingBuffer
+ */
+public class AuditRingBufferTest {
+
+  @Test
+  public void capacityIsRoundedUpToAPowerOfTwo() {
+    assertEquals(8, new AuditRingBuffer<Integer>(5).capacity());
+    assertEquals(8, new AuditRingBuffer<Integer>(8).capacity());
+    assertEquals(2, new AuditRingBuffer<Integer>(0).capacity());
+  }
+
+  @Test
+  public void rejectsOffersWhenFull() {
+    AuditRingBuffer<Integer> ring = new AuditRingBuffer<>(4);
+    for (int i = 0; i < 4; i++) {
+      assertTrue(ring.offer(i));
+    }
+    assertFalse(ring.offer(4));
+
+    // taking one makes room for exactly one more
+    assertEquals(Integer.valueOf(0), ring.poll());
+    assertTrue(ring.offer(4));
+    assertFalse(ring.offer(5));
+  }
+
+  @Test
+  public void keepsOrderAcrossWrapAround() {
+    AuditRingBuffer<Integer> ring = new AuditRingBuffer<>(4);
+    int next = 0;
+    int expected = 0;
+    // many laps, with the ring holding between one and three elements
+    for (int lap = 0; lap < 100; lap++) {
+      while (next - expected < 3) {
+        assertTrue(ring.offer(next++));
+      }
+      for (int i = 0; i < 2; i++) {
+        assertEquals(Integer.valueOf(expected++), ring.poll());
+      }
+    }
+    while (expected < next) {
+      assertEquals(Integer.valueOf(expected++), ring.poll());
+    }
+    assertNull(ring.poll());
+  }
+
+  @Test
+  public void concurrentProducersLoseNothingThatWasAccepted() throws Exception {
+    final AuditRingBuffer<Integer> ring = new AuditRingBuffer<>(64);
+    final int producers = 4;
+    final int perProducer = 10000;
+    Thread[] threads = new Thread[producers];
+    final int[] accepted = new int[producers];
+    for (int t = 0; t < producers; t++) {
+      final int id = t;
+      threads[t] = new Thread(() -> {
+        for (int i = 0; i < perProducer; i++) {
+          if (ring.offer(id)) {
+            accepted[id]++;
+          }
+        }
+      });
+      threads[t].start();
+    }
+
+    int[] polled = new int[producers];
+    boolean running = true;
+    while (running) {
+      running = false;
+      for (Thread t : threads) {
+        running |= t.isAlive();
+      }
+      Integer id;
+      while ((id = ring.poll()) != null) {
+        polled[id]++;
+      }
+    }
+    for (Thread t : threads) {
+      t.join();
+    }
+    Integer id;
+    while ((id = ring.poll()) != null) {
+      polled[id]++;
+    }
+
+    for (int t = 0; t < producers; t++) {
+      assertEquals(accepted[t], polled[t]);
+    }
+  }
+}
@@ -0,0 +1,115 @@
+package weka.server.dataprep;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.fasterxml.jackson.core.JsonParser;
+
+import weka.core.Instances;
+
+/**
+ * Tests for JsonChunkReader
+ */
+public class JsonChunkReaderTest {
+
+  protected static final int ROWS = 10;
+
+  protected static String records() {
+    StringBuilder b = new StringBuilder("[");
+    for (int i = 0; i < ROWS; i++) {
+      b.append(i > 0 ? "," : "").append("{\"x\":").append(i)
+        .append(",\"y\":\"").append(i % 2 == 0 ? "even" : "odd")
+        .append("\"}");
+    }
+    return b.append("]").toString();
+  }
+
+  protected static String ndjson() {
+    StringBuilder b = new StringBuilder();
+    for (int i = 0; i < ROWS; i++) {
+      b.append("{\"x\":").append(i).append(",\"y\":\"")
+        .append(i % 2 == 0 ? "even" : "odd").append("\"}\n");
+    }
+    return b.toString();
+  }
+
+  protected static String split() {
+    StringBuilder b =
+      new StringBuilder("{\"columns\":[\"x\",\"y\"],\"data\":[");
+    for (int i = 0; i < ROWS; i++) {
+      b.append(i > 0 ? "," : "").append("[").append(i).append(",\"")
+        .append(i % 2 == 0 ? "even" : "odd").append("\"]");
+    }
+    return b.append("]}").toString();
+  }
+
+  protected static List<Instances> readAll(String json, int chunkSize)
+    throws Exception {
+    List<Instances> chunks = new ArrayList<>();
+    try (JsonParser p =
+      DefaultJsonInstancesDataPreparer.MAPPER.getFactory().createParser(json)) {
+      JsonChunkReader reader = new JsonChunkReader(p);
+      Instances chunk;
+      while ((chunk = reader.next(chunkSize)) != null) {
+        chunks.add(chunk);
+      }
+      assertTrue(reader.isDone());
+      assertNull(reader.next(chunkSize));
+      assertEquals(ROWS, reader.getRowsRead());
+    }
+    return chunks;
+  }
+
+  protected static void assertChunks(String json) throws Exception {
+    // chunk sizes that divide the rows exactly, leave a remainder, are a
+    // single row, and are larger than the whole payload
+    for (int chunkSize : new int[] { 5, 3, 1, ROWS, ROWS + 1 }) {
+      List<Instances> chunks = readAll(json, chunkSize);
+      assertEquals("chunkSize " + chunkSize,
+        (ROWS + chunkSize - 1) / chunkSize, chunks.size());
+      int row = 0;
+      for (Instances chunk : chunks) {
+        assertTrue(chunk.numInstances() <= chunkSize);
+        for (int i = 0; i < chunk.numInstances(); i++) {
+          assertEquals(row, chunk.instance(i).value(chunk.attribute("x")), 0);
+          assertEquals(row % 2 == 0 ? "even" : "odd",
+            chunk.instance(i).stringValue(chunk.attribute("y")));
+          row++;
+        }
+      }
+      assertEquals(ROWS, row);
+    }
+  }
+
+  @Test
+  public void recordsAreSplitAtChunkBoundaries() throws Exception {
+    assertChunks(records());
+  }
+
+  @Test
+  public void ndjsonIsSplitAtChunkBoundaries() throws Exception {
+    assertChunks(ndjson());
+  }
+
+  @Test
+  public void splitIsSplitAtChunkBoundaries() throws Exception {
+    assertChunks(split());
+  }
+
+  @Test
+  public void emptyPayloadsHaveNoChunks() throws Exception {
+    for (String json : new String[] { "[]", "", "{\"columns\":[\"x\"],"
+      + "\"data\":[]}" }) {
+      try (JsonParser p =
+        DefaultJsonInstancesDataPreparer.MAPPER.getFactory().createParser(json)) {
+        assertNull(json, new JsonChunkReader(p).next(5));
+      }
+    }
+  }
+}
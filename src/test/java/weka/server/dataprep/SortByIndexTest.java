@@ -0,0 +1,74 @@
+package weka.server.dataprep;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests for AbstractInstancesDataPreparerer.sortByIndex
+ */
+public class SortByIndexTest {
+
+  @Test
+  public void testSortedInputIsUnchanged() {
+    int[] indices = { 0, 2, 5, 9 };
+    double[] vals = { 1, 2, 3, 4 };
+    AbstractInstancesDataPreparerer.sortByIndex(indices, vals, 4);
+    assertArrayEquals(new int[] { 0, 2, 5, 9 }, indices);
+    assertArrayEquals(new double[] { 1, 2, 3, 4 }, vals, 0);
+  }
+
+  @Test
+  public void testValuesFollowTheirIndices() {
+    int[] indices = { 7, 3, 9, 0, 5 };
+    double[] vals = { 70, 30, 90, 0, 50 };
+    AbstractInstancesDataPreparerer.sortByIndex(indices, vals, 5);
+    assertArrayEquals(new int[] { 0, 3, 5, 7, 9 }, indices);
+    assertArrayEquals(new double[] { 0, 30, 50, 70, 90 }, vals, 0);
+  }
+
+  @Test
+  public void testOnlyTheFirstCountEntriesAreSorted() {
+    int[] indices = { 4, 1, 3, 0 };
+    double[] vals = { 4, 1, 3, 0 };
+    AbstractInstancesDataPreparerer.sortByIndex(indices, vals, 3);
+    assertArrayEquals(new int[] { 1, 3, 4, 0 }, indices);
+    assertArrayEquals(new double[] { 1, 3, 4, 0 }, vals, 0);
+  }
+
+  @Test
+  public void testEqualIndicesKeepTheirOrder() {
+    int[] indices = { 2, 1, 2, 1 };
+    double[] vals = { 1, 2, 3, 4 };
+    AbstractInstancesDataPreparerer.sortByIndex(indices, vals, 4);
+    assertArrayEquals(new int[] { 1, 1, 2, 2 }, indices);
+    assertArrayEquals(new double[] { 2, 4, 1, 3 }, vals, 0);
+  }
+
+  @Test
+  public void testWideRow() {
+    Random r = new Random(1);
+    int n = 100000;
+    int[] indices = new int[n];
+    double[] vals = new double[n];
+    for (int i = 0; i < n; i++) {
+      indices[i] = i;
+    }
+    for (int i = n - 1; i > 0; i--) {
+      int j = r.nextInt(i + 1);
+      int t = indices[i];
+      indices[i] = indices[j];
+      indices[j] = t;
+    }
+    for (int i = 0; i < n; i++) {
+      vals[i] = indices[i] * 10;
+    }
+    AbstractInstancesDataPreparerer.sortByIndex(indices, vals, n);
+    for (int i = 0; i < n; i++) {
+      assertArrayEquals(new double[] { i, i * 10 },
+        new double[] { indices[i], vals[i] }, 0);
+    }
+  }
+}
@@ -0,0 +1,104 @@
+package weka.server.drift;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests for QuantileSketch
+ */
+public class QuantileSketchTest {
+
+  protected static final double ACCURACY = 0.01;
+
+  protected static double exact(double[] sorted, double q) {
+    return sorted[(int) (q * (sorted.length - 1))];
+  }
+
+  protected static void assertWithinAccuracy(double[] values,
+    QuantileSketch sketch) {
+    double[] sorted = values.clone();
+    Arrays.sort(sorted);
+    for (double q : new double[] { 0, 0.01, 0.1, 0.25, 0.5, 0.75, 0.9, 0.99,
+      1 }) {
+      double expected = exact(sorted, q);
+      double estimate = sketch.getQuantile(q);
+      assertTrue("q=" + q + " expected " + expected + " got " + estimate,
+        Math.abs(estimate - expected) <= ACCURACY * Math.abs(expected) + 1e-9);
+    }
+  }
+
+  @Test
+  public void emptySketchHasNoQuantiles() {
+    assertTrue(Double.isNaN(new QuantileSketch(ACCURACY).getQuantile(0.5)));
+  }
+
+  @Test
+  public void quantilesAreWithinTheRelativeAccuracy() {
+    Random r = new Random(1);
+    double[] values = new double[100000];
+    QuantileSketch sketch = new QuantileSketch(ACCURACY);
+    for (int i = 0; i < values.length; i++) {
+      // wide range of magnitudes, both signs, and some zeros
+      values[i] = i % 50 == 0 ? 0 : Math.exp(r.nextGaussian() * 5)
+        * (r.nextBoolean() ? 1 : -1);
+      sketch.add(values[i]);
+    }
+    assertEquals(values.length, sketch.getCount());
+    assertWithinAccuracy(values, sketch);
+  }
+
+  @Test
+  public void mergedSketchesMatchASingleSketch() {
+    Random r = new Random(2);
+    double[] values = new double[30000];
+    QuantileSketch[] parts = new QuantileSketch[3];
+    for (int i = 0; i < parts.length; i++) {
+      parts[i] = new QuantileSketch(ACCURACY);
+    }
+    for (int i = 0; i < values.length; i++) {
+      // each part sees a different range, so buckets have to grow on merge
+      values[i] = (i % 3 + 1) * 1000 * r.nextDouble();
+      parts[i % 3].add(values[i]);
+    }
+    QuantileSketch merged = new QuantileSketch(ACCURACY);
+    for (QuantileSketch part : parts) {
+      merged.merge(part);
+    }
+    assertEquals(values.length, merged.getCount());
+    assertWithinAccuracy(values, merged);
+  }
+
+  @Test
+  public void nonFiniteValuesAreIgnored() {
+    QuantileSketch sketch = new QuantileSketch(ACCURACY);
+    sketch.add(Double.POSITIVE_INFINITY);
+    sketch.add(Double.NEGATIVE_INFINITY);
+    sketch.add(Double.NaN);
+    sketch.add(Double.MAX_VALUE);
+    sketch.add(-Double.MAX_VALUE);
+    assertEquals(2, sketch.getCount());
+    assertEquals(Double.MAX_VALUE, sketch.getQuantile(1),
+      ACCURACY * Double.MAX_VALUE);
+    assertEquals(-Double.MAX_VALUE, sketch.getQuantile(0),
+      ACCURACY * Double.MAX_VALUE);
+  }
+
+  @Test
+  public void summaryCountsInfiniteValuesSeparately() {
+    AttributeSummary summary = new AttributeSummary("x", null, ACCURACY);
+    summary.add(1);
+    summary.add(3);
+    summary.add(Double.POSITIVE_INFINITY);
+    summary.add(Double.NaN);
+    assertEquals(2L, summary.toMap().get("count"));
+    assertEquals(2.0, (Double) summary.toMap().get("mean"), 0);
+    assertEquals(3.0, (Double) summary.toMap().get("max"), 0);
+    assertEquals(0.25, (Double) summary.toMap().get("missingRate"), 0);
+    assertEquals(0.25, (Double) summary.toMap().get("infiniteRate"), 0);
+  }
+}
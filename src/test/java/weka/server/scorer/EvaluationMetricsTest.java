@@ -0,0 +1,114 @@
+package weka.server.scorer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+import weka.core.Utils;
+
+/**
+ * Tests for EvaluationMetrics
+ */
+public class EvaluationMetricsTest {
+
+  protected static final String[] LABELS = { "a", "b", "c" };
+
+  protected static double[] randomDistribution(Random r) {
+    double[] dist = new double[LABELS.length];
+    for (int i = 0; i < dist.length; i++) {
+      dist[i] = r.nextDouble();
+    }
+    return dist;
+  }
+
+  protected static void assertSameMetrics(Map<String, Object> expected,
+    Map<String, Object> actual) {
+    assertEquals(expected.keySet(), actual.keySet());
+    for (Map.Entry<String, Object> e : expected.entrySet()) {
+      Object a = actual.get(e.getKey());
+      if (e.getValue() instanceof Double) {
+        assertEquals(e.getKey(), (Double) e.getValue(), (Double) a, 1e-9);
+      } else if (e.getValue() instanceof long[][]) {
+        long[][] exp = (long[][]) e.getValue();
+        for (int i = 0; i < exp.length; i++) {
+          assertArrayEquals(exp[i], ((long[][]) a)[i]);
+        }
+      } else if (e.getValue() instanceof Map) {
+        @SuppressWarnings("unchecked")
+        Map<String, Object> expMap = (Map<String, Object>) e.getValue();
+        @SuppressWarnings("unchecked")
+        Map<String, Object> actMap = (Map<String, Object>) a;
+        assertSameMetrics(expMap, actMap);
+      } else if (!(e.getValue() instanceof Object[])) {
+        assertEquals(e.getKey(), e.getValue(), a);
+      }
+    }
+  }
+
+  @Test
+  public void mergingWorkersMatchesASingleWorker() {
+    Random r = new Random(1);
+    EvaluationMetrics whole = new EvaluationMetrics(LABELS, 100);
+    EvaluationMetrics[] workers = new EvaluationMetrics[4];
+    for (int i = 0; i < workers.length; i++) {
+      workers[i] = new EvaluationMetrics(LABELS, 100);
+    }
+    for (int i = 0; i < 5000; i++) {
+      double[] pred = randomDistribution(r);
+      double actual = i % 97 == 0 ? Utils.missingValue() : r.nextInt(3);
+      whole.add(pred, actual);
+      workers[r.nextInt(workers.length)].add(pred, actual);
+    }
+    // an all-zero distribution is not a prediction
+    whole.add(new double[3], 0);
+    workers[0].add(new double[3], 0);
+
+    EvaluationMetrics merged = new EvaluationMetrics(LABELS, 100);
+    for (EvaluationMetrics w : workers) {
+      merged.merge(w);
+    }
+    assertEquals(5001, merged.getRows());
+    assertSameMetrics(whole.toMap(), merged.toMap());
+    assertEquals(1L, merged.toMap().get("unpredicted"));
+  }
+
+  @Test
+  public void mergingNumericWorkersMatchesASingleWorker() {
+    Random r = new Random(2);
+    EvaluationMetrics whole = new EvaluationMetrics(null, 0);
+    EvaluationMetrics[] workers = new EvaluationMetrics[3];
+    for (int i = 0; i < workers.length; i++) {
+      workers[i] = new EvaluationMetrics(null, 0);
+    }
+    for (int i = 0; i < 3000; i++) {
+      double actual = r.nextGaussian() * 10 + i % 7;
+      double[] pred = { actual + r.nextGaussian() };
+      whole.add(pred, actual);
+      // uneven split, including an empty worker
+      workers[i % 5 == 0 ? 0 : 1].add(pred, actual);
+    }
+
+    EvaluationMetrics merged = new EvaluationMetrics(null, 0);
+    for (EvaluationMetrics w : workers) {
+      merged.merge(w);
+    }
+    assertSameMetrics(whole.toMap(), merged.toMap());
+  }
+
+  @Test
+  public void perfectPredictionsScorePerfectly() {
+    EvaluationMetrics m = new EvaluationMetrics(LABELS, 10);
+    for (int i = 0; i < 30; i++) {
+      double[] pred = new double[3];
+      pred[i % 3] = 1;
+      m.add(pred, i % 3);
+    }
+    Map<String, Object> map = m.toMap();
+    assertEquals(1.0, (Double) map.get("accuracy"), 0);
+    assertEquals(1.0, (Double) map.get("weightedAuc"), 0);
+  }
+}
@@ -0,0 +1,79 @@
+package weka.server.scorer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.Utils;
+
+/**
+ * Tests for MappingPlan
+ */
+public class MappingPlanTest {
+
+  protected static Instances modelHeader() {
+    ArrayList<Attribute> atts = new ArrayList<>();
+    atts.add(new Attribute("x"));
+    atts.add(new Attribute("colour", Arrays.asList("red", "green")));
+    atts.add(new Attribute("name", (ArrayList<String>) null));
+    atts.add(new Attribute("class", Arrays.asList("a", "b")));
+    Instances header = new Instances("model", atts, 0);
+    header.setClassIndex(3);
+    return header;
+  }
+
+  /** Incoming data as a decoder types it when colour and name are all null */
+  protected static Instances allMissingInput(int rows) {
+    ArrayList<Attribute> atts = new ArrayList<>();
+    atts.add(new Attribute("name"));
+    atts.add(new Attribute("colour"));
+    atts.add(new Attribute("x"));
+    Instances data = new Instances("input", atts, rows);
+    for (int i = 0; i < rows; i++) {
+      data.add(new DenseInstance(1.0,
+        new double[] { Utils.missingValue(), Utils.missingValue(), i }));
+    }
+    return data;
+  }
+
+  @Test
+  public void testAllMissingColumnOfAnyTypeMapsToMissing() throws Exception {
+    Instances model = modelHeader();
+    Instances input = allMissingInput(3);
+    MappingPlan plan = new MappingPlan(model, input);
+    plan.checkProblems(this, input);
+    for (int i = 0; i < input.numInstances(); i++) {
+      plan.checkProblems(this, input.instance(i));
+      Instance mapped = plan.map(input.instance(i));
+      assertEquals(i, mapped.value(0), 0);
+      assertTrue(mapped.isMissing(1));
+      assertTrue(mapped.isMissing(2));
+      assertTrue(mapped.classIsMissing());
+    }
+  }
+
+  @Test
+  public void testMatchingNominalLabelsAreTranslated() throws Exception {
+    Instances model = modelHeader();
+    ArrayList<Attribute> atts = new ArrayList<>();
+    atts.add(new Attribute("colour", Arrays.asList("green", "red")));
+    atts.add(new Attribute("x"));
+    atts.add(new Attribute("name", (ArrayList<String>) null));
+    Instances input = new Instances("input", atts, 1);
+    double[] vals = new double[] { 0, 5, Utils.missingValue() };
+    input.add(new DenseInstance(1.0, vals));
+    MappingPlan plan = new MappingPlan(model, input);
+    plan.checkProblems(this, input);
+    Instance mapped = plan.map(input.instance(0));
+    assertEquals("green", mapped.stringValue(1));
+    assertEquals(5, mapped.value(0), 0);
+  }
+}
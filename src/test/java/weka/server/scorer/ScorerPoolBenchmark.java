@@ -0,0 +1,185 @@
+/*******************************************************************************
+ * Pentaho Data Science
+ * <p/>
+ * Copyright (c) 2002-2020 Hitachi Vantara. All rights reserved.
+ * <p/>
+ * ******************************************************************************
+ * <p/>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ * <p/>
+ ******************************************************************************/
+
+package weka.server.scorer;
+
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Contention benchmark comparing the StripedObjectPool used by
+ * WekaScoringModelPool with the ConcurrentLinkedDeque (plus size() check on
+ * release) that it replaced. Each thread repeatedly acquires an object,
+ * does a small amount of work with it and releases it. Reports throughput
+ * and the largest pool size observed (which should never exceed the
+ * configured pool size).
+ *
+ * Usage: ScorerPoolBenchmark [threads] [poolSize] [seconds]
+ *
+ * Kept with the tests so that it isn't shipped in the server jar; run it
+ * from target/test-classes after mvn test-compile.
+ *
+ * @version : $
+ */
+public class ScorerPoolBenchmark {
+
+  /** A pool implementation under test */
+  protected interface Pool {
+    long[] poll();
+
+    void release(long[] o);
+
+    int size();
+  }
+
+  /** The previous implementation */
+  protected static class DequePool implements Pool {
+    protected final ConcurrentLinkedDeque<long[]> m_deque =
+      new ConcurrentLinkedDeque<>();
+    protected final int m_poolSize;
+
+    protected DequePool(int poolSize) {
+      m_poolSize = poolSize;
+      for (int i = 0; i < poolSize; i++) {
+        m_deque.add(new long[64]);
+      }
+    }
+
+    @Override
+    public long[] poll() {
+      return m_deque.poll();
+    }
+
+    @Override
+    public void release(long[] o) {
+      if (m_deque.size() < m_poolSize) {
+        m_deque.add(o);
+      }
+    }
+
+    @Override
+    public int size() {
+      return m_deque.size();
+    }
+  }
+
+  /** The striped implementation */
+  protected static class StripedPool implements Pool {
+    protected final StripedObjectPool<long[]> m_pool;
+
+    protected StripedPool(int poolSize) {
+      m_pool = new StripedObjectPool<>(poolSize);
+      for (int i = 0; i < poolSize; i++) {
+        m_pool.offer(new long[64]);
+      }
+    }
+
+    @Override
+    public long[] poll() {
+      return m_pool.poll();
+    }
+
+    @Override
+    public void release(long[] o) {
+      m_pool.offer(o);
+    }
+
+    @Override
+    public int size() {
+      return m_pool.size();
+    }
+  }
+
+  /**
+   * Run the benchmark against a pool
+   *
+   * @param name the name of the pool implementation
+   * @param pool the pool
+   * @param threads number of threads
+   * @param seconds how long to run for
+   * @throws Exception if a problem occurs
+   */
+  protected static void run(String name, final Pool pool, int threads,
+    int seconds) throws Exception {
+    final LongAdder ops = new LongAdder();
+    final LongAdder misses = new LongAdder();
+    final AtomicInteger maxSize = new AtomicInteger();
+    final CountDownLatch start = new CountDownLatch(1);
+    final long end = System.nanoTime() + seconds * 1000000000L;
+    Thread[] workers = new Thread[threads];
+    for (int i = 0; i < threads; i++) {
+      workers[i] = new Thread(() -> {
+        long local = 0;
+        try {
+          start.await();
+        } catch (InterruptedException ex) {
+          return;
+        }
+        while (System.nanoTime() < end) {
+          long[] o = pool.poll();
+          if (o == null) {
+            misses.increment();
+            o = new long[64];
+          }
+          // simulate a little work against the pooled object
+          for (int j = 0; j < o.length; j++) {
+            o[j] += j;
+          }
+          pool.release(o);
+          int size = pool.size();
+          if (size > maxSize.get()) {
+            maxSize.accumulateAndGet(size, Math::max);
+          }
+          local++;
+        }
+        ops.add(local);
+      });
+      workers[i].start();
+    }
+    start.countDown();
+    for (Thread t : workers) {
+      t.join();
+    }
+
+    System.out.println(name + ": " + (ops.sum() / seconds) + " ops/s, "
+      + misses.sum() + " misses, max pool size observed " + maxSize.get());
+  }
+
+  public static void main(String[] args) {
+    try {
+      int threads = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+      int poolSize = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+      int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+      System.out.println("Threads: " + threads + ", pool size: " + poolSize);
+      // warm up both implementations first
+      run("deque (warm-up)", new DequePool(poolSize), threads, 1);
+      run("striped (warm-up)", new StripedPool(poolSize), threads, 1);
+      run("deque", new DequePool(poolSize), threads, seconds);
+      run("striped", new StripedPool(poolSize), threads, seconds);
+    } catch (Exception ex) {
+      ex.printStackTrace();
+    }
+  }
+}
@@ -0,0 +1,96 @@
+package weka.server.scorer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * Tests for StripedObjectPool
+ */
+public class StripedObjectPoolTest {
+
+  @Test
+  public void emptyPoolReturnsNull() {
+    assertNull(new StripedObjectPool<String>(4).poll());
+  }
+
+  @Test
+  public void holdsNoMoreThanItsCapacity() {
+    StripedObjectPool<Integer> pool = new StripedObjectPool<>(3);
+    for (int i = 0; i < 3; i++) {
+      assertTrue(pool.offer(i));
+    }
+    assertFalse(pool.offer(3));
+    assertEquals(3, pool.size());
+
+    Set<Integer> taken = new HashSet<>();
+    for (int i = 0; i < 3; i++) {
+      taken.add(pool.poll());
+    }
+    assertEquals(3, taken.size());
+    assertNull(pool.poll());
+    assertEquals(0, pool.size());
+  }
+
+  @Test
+  public void returnsTheObjectThisThreadLastReleased() {
+    StripedObjectPool<String> pool = new StripedObjectPool<>(8);
+    pool.offer("a");
+    pool.offer("b");
+    String s = pool.poll();
+    pool.offer(s);
+    assertSame(s, pool.poll());
+  }
+
+  @Test
+  public void zeroCapacityPoolHoldsNothing() {
+    StripedObjectPool<String> pool = new StripedObjectPool<>(0);
+    assertEquals(0, pool.capacity());
+    assertFalse(pool.offer("a"));
+    assertNull(pool.poll());
+    assertTrue(pool.peekAll().isEmpty());
+  }
+
+  @Test
+  public void neverExceedsCapacityUnderContention() throws Exception {
+    final int capacity = 4;
+    final StripedObjectPool<Object> pool = new StripedObjectPool<>(capacity);
+    final AtomicInteger live = new AtomicInteger();
+    final AtomicInteger maxSize = new AtomicInteger();
+    final int threads = 8;
+    final CountDownLatch done = new CountDownLatch(threads);
+    for (int t = 0; t < threads; t++) {
+      new Thread(() -> {
+        try {
+          for (int i = 0; i < 20000; i++) {
+            Object o = pool.poll();
+            if (o == null) {
+              o = new Object();
+              live.incrementAndGet();
+            }
+            if (!pool.offer(o)) {
+              live.decrementAndGet();
+            }
+            maxSize.accumulateAndGet(pool.size(), Math::max);
+          }
+        } finally {
+          done.countDown();
+        }
+      }).start();
+    }
+    done.await();
+
+    assertTrue(maxSize.get() <= capacity);
+    assertEquals(live.get(), pool.size());
+    assertEquals(pool.size(), pool.peekAll().size());
+  }
+}